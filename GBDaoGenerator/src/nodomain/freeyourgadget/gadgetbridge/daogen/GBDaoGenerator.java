@@ -43,7 +43,7 @@ public class GBDaoGenerator {
 
 
     public static void main(String[] args) throws Exception {
-        Schema schema = new Schema(33, MAIN_PACKAGE + ".entities");
+        Schema schema = new Schema(35, MAIN_PACKAGE + ".entities");
 
         Entity userAttributes = addUserAttributes(schema);
         Entity user = addUserInfo(schema, userAttributes);
@@ -91,6 +91,8 @@ public class GBDaoGenerator {
 
         addActivitySummary(schema, user, device);
         addBatteryLevel(schema, device);
+        addActivityRollup(schema, device);
+        addActivitySampleArchive(schema, device);
         new DaoGenerator().generateAll(schema, "app/src/main/java");
     }
 
@@ -614,4 +616,37 @@ public class GBDaoGenerator {
         batteryLevel.addIntProperty("level").notNull();
         return batteryLevel;
     }
+
+    private static Entity addActivityRollup(Schema schema, Entity device) {
+        Entity rollup = addEntity(schema, "ActivityRollup");
+        rollup.setJavaDoc("Pre-aggregated activity data of a single device for one hour, maintained\n" +
+                "by the sample providers whenever samples are added.");
+        rollup.addIntProperty("timestamp").notNull().primaryKey().javaDocGetterAndSetter("Start of the hour, in seconds since the epoch.");
+        Property deviceId = rollup.addLongProperty("deviceId").primaryKey().notNull().getProperty();
+        rollup.addToOne(device, deviceId);
+        rollup.addIntProperty("sampleCount").notNull();
+        rollup.addIntProperty(SAMPLE_STEPS).notNull();
+        rollup.addIntProperty("activitySeconds").notNull();
+        rollup.addIntProperty("lightSleepSeconds").notNull();
+        rollup.addIntProperty("deepSleepSeconds").notNull();
+        rollup.addIntProperty("notWornSeconds").notNull();
+        rollup.addIntProperty("heartRateMin").notNull();
+        rollup.addIntProperty("heartRateMax").notNull();
+        rollup.addIntProperty("heartRateSum").notNull();
+        rollup.addIntProperty("heartRateCount").notNull();
+        return rollup;
+    }
+
+    private static Entity addActivitySampleArchive(Schema schema, Entity device) {
+        Entity archive = addEntity(schema, "ActivitySampleArchive");
+        archive.setJavaDoc("The activity samples of a single device for one day, compressed into a block\n" +
+                "to keep old samples small. Written and read by the sample providers.");
+        archive.addIntProperty("timestamp").notNull().primaryKey().javaDocGetterAndSetter("Start of the day (UTC), in seconds since the epoch.");
+        Property deviceId = archive.addLongProperty("deviceId").primaryKey().notNull().getProperty();
+        archive.addToOne(device, deviceId);
+        archive.addLongProperty("userId").notNull();
+        archive.addIntProperty("sampleCount").notNull();
+        archive.addByteArrayProperty("data").notNull().javaDocGetterAndSetter("The samples, as encoded by ActivitySampleArchiveCodec.");
+        return archive;
+    }
 }
@@ -57,17 +57,18 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.database.DBLockMetrics;
 import nodomain.freeyourgadget.gadgetbridge.database.DBOpenHelper;
 import nodomain.freeyourgadget.gadgetbridge.devices.DeviceManager;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoMaster;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.externalevents.BluetoothStateChangeReceiver;
+import nodomain.freeyourgadget.gadgetbridge.externalevents.NotificationFilterCache;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDeviceService;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityUser;
@@ -102,7 +103,11 @@ public class GBApplication extends Application {
     public static final String DATABASE_NAME = "Gadgetbridge";
 
     private static GBApplication context;
-    private static final Lock dbLock = new ReentrantLock();
+    private static final ReentrantLock dbLock = new ReentrantLock();
+    private static final DBLockMetrics dbLockMetrics = new DBLockMetrics("write");
+    /** Lock waits or holds longer than this are logged */
+    private static final long DB_LOCK_WARN_MILLIS = 1000;
+    private static long dbLockAcquiredAt;
     private static DeviceService deviceService;
     private static SharedPreferences sharedPrefs;
     private static final String PREFS_VERSION = "shared_preferences_version";
@@ -187,6 +192,7 @@ public class GBApplication extends Application {
         // don't do anything here before we set up logging, otherwise
         // slf4j may be implicitly initialized before we properly configured it.
         setupLogging(isFileLoggingEnabled());
+        setupTrafficCapture(isTrafficCaptureEnabled());
 
         if (getPrefsFileVersion() != CURRENT_PREFS_VERSION) {
             migratePrefs(getPrefsFileVersion());
@@ -279,6 +285,22 @@ public class GBApplication extends Application {
         return logging.getLogPath();
     }
 
+    public static void setupTrafficCapture(boolean enabled) {
+        if (!enabled) {
+            TrafficCapture.stop();
+            return;
+        }
+        try {
+            TrafficCapture.start(getTrafficCaptureFile());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to start traffic capture", e);
+        }
+    }
+
+    public static File getTrafficCaptureFile() throws IOException {
+        return new File(FileUtils.getExternalFilesDir(), "btsnoop_gadgetbridge.log");
+    }
+
     private void setupExceptionHandler() {
         LoggingExceptionHandler handler = new LoggingExceptionHandler(Thread.getDefaultUncaughtExceptionHandler());
         Thread.setDefaultUncaughtExceptionHandler(handler);
@@ -288,6 +310,10 @@ public class GBApplication extends Application {
         return prefs.getBoolean("log_to_file", false);
     }
 
+    public static boolean isTrafficCaptureEnabled() {
+        return prefs.getBoolean("capture_traffic", false);
+    }
+
     public static boolean minimizeNotification() {
         return prefs.getBoolean("minimize_priority", false);
     }
@@ -301,6 +327,10 @@ public class GBApplication extends Application {
             helper = new DBOpenHelper(this, DATABASE_NAME, null);
         }
         SQLiteDatabase db = helper.getWritableDatabase();
+        if (!env.isTest()) {
+            // allows the read-only handlers to query concurrently with a writer
+            db.enableWriteAheadLogging();
+        }
         DaoMaster daoMaster = new DaoMaster(db);
         if (lockHandler == null) {
             lockHandler = new LockHandler();
@@ -336,13 +366,47 @@ public class GBApplication extends Application {
      * @see #releaseDB()
      */
     public static DBHandler acquireDB() throws GBException {
+        long start = System.nanoTime();
         try {
             if (dbLock.tryLock(30, TimeUnit.SECONDS)) {
+                if (dbLock.getHoldCount() == 1) {
+                    dbLockAcquiredAt = System.nanoTime();
+                    recordDBLockWait(dbLockMetrics, dbLockAcquiredAt - start);
+                }
                 return lockHandler;
             }
         } catch (InterruptedException ex) {
             Log.i(TAG, "Interrupted while waiting for DB lock");
         }
+        dbLockMetrics.recordTimeout();
+        throw new GBException("Unable to access the database.");
+    }
+
+    /**
+     * Returns a DBHandler for read-only access or throws GBException when
+     * that was not successful. Read-only handlers do not take the global
+     * database lock, so they can be used concurrently with each other and
+     * with a writer that holds the handler returned by #acquireDB().
+     * <p>
+     * Callers must close() the returned handler when they are done, and
+     * must not write to the database through it.
+     *
+     * @return the read-only DBHandler
+     * @throws GBException
+     * @see #acquireDB()
+     */
+    public static DBHandler acquireReadOnlyDB() throws GBException {
+        ReadOnlyHandlerPool pool = lockHandler.getReadOnlyPool();
+        try {
+            long start = System.nanoTime();
+            DBHandler handler = pool.acquire(30, TimeUnit.SECONDS);
+            if (handler != null) {
+                logSlowDBLock(pool.getMetrics(), System.nanoTime() - start, "waited");
+                return handler;
+            }
+        } catch (InterruptedException ex) {
+            Log.i(TAG, "Interrupted while waiting for read-only DB handler");
+        }
         throw new GBException("Unable to access the database.");
     }
 
@@ -353,9 +417,33 @@ public class GBApplication extends Application {
      * @see #acquireDB()
      */
     public static void releaseDB() {
+        if (dbLock.getHoldCount() == 1) {
+            long holdNanos = System.nanoTime() - dbLockAcquiredAt;
+            dbLockMetrics.recordHold(holdNanos);
+            logSlowDBLock(dbLockMetrics, holdNanos, "held");
+        }
         dbLock.unlock();
     }
 
+    /**
+     * Returns the lock statistics of the writer and the read-only handlers.
+     */
+    public static DBLockMetrics[] getDBLockMetrics() {
+        return new DBLockMetrics[] { dbLockMetrics, lockHandler.getReadOnlyPool().getMetrics() };
+    }
+
+    private static void recordDBLockWait(DBLockMetrics metrics, long waitNanos) {
+        metrics.recordWait(waitNanos);
+        logSlowDBLock(metrics, waitNanos, "waited");
+    }
+
+    private static void logSlowDBLock(DBLockMetrics metrics, long nanos, String what) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        if (millis >= DB_LOCK_WARN_MILLIS) {
+            Log.w(TAG, "DB lock " + what + " for " + millis + " ms on " + Thread.currentThread().getName() + "; " + metrics);
+        }
+    }
+
     public static boolean isRunningLollipopOrLater() {
         return VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
     }
@@ -605,6 +693,7 @@ public class GBApplication extends Application {
         }
         boolean result = deleteOldActivityDatabase(context);
         result &= getContext().deleteDatabase(DATABASE_NAME);
+        NotificationFilterCache.invalidate();
         return result;
     }
 
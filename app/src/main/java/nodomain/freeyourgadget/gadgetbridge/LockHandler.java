@@ -19,6 +19,8 @@ package nodomain.freeyourgadget.gadgetbridge;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import java.util.concurrent.TimeUnit;
+
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoMaster;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
@@ -27,10 +29,12 @@ import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
  * Provides low-level access to the database.
  */
 public class LockHandler implements DBHandler {
+    private static final int READ_ONLY_POOL_SIZE = 3;
 
     private DaoMaster daoMaster = null;
     private DaoSession session = null;
     private SQLiteOpenHelper helper = null;
+    private final ReadOnlyHandlerPool readOnlyPool = new ReadOnlyHandlerPool(READ_ONLY_POOL_SIZE);
 
     public LockHandler() {
     }
@@ -52,6 +56,14 @@ public class LockHandler implements DBHandler {
         if (session == null) {
             throw new RuntimeException("Unable to create database session");
         }
+        readOnlyPool.init(daoMaster, helper);
+    }
+
+    /**
+     * Returns the pool of read-only handlers that share the database with this handler.
+     */
+    public ReadOnlyHandlerPool getReadOnlyPool() {
+        return readOnlyPool;
     }
 
     @Override
@@ -89,6 +101,7 @@ public class LockHandler implements DBHandler {
         if (session == null) {
             throw new IllegalStateException("session must not be null");
         }
+        readOnlyPool.drain(30, TimeUnit.SECONDS);
         session.clear();
         session.getDatabase().close();
         session = null;
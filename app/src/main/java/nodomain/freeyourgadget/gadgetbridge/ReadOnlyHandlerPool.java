@@ -0,0 +1,152 @@
+package nodomain.freeyourgadget.gadgetbridge;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import de.greenrobot.dao.identityscope.IdentityScopeType;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
+import nodomain.freeyourgadget.gadgetbridge.database.DBLockMetrics;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoMaster;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+
+/**
+ * A bounded pool of DB handlers for read-only access. Each handler owns a separate
+ * DaoSession without identity scope, so readers neither share entity caches with the
+ * writer session nor with each other. With write-ahead logging enabled, SQLite serves
+ * these readers from their own connections, so they do not block behind a writer.
+ */
+public class ReadOnlyHandlerPool {
+    private final int size;
+    private final BlockingQueue<ReadOnlyHandler> available;
+    private final DBLockMetrics metrics = new DBLockMetrics("read");
+    private boolean valid;
+
+    public ReadOnlyHandlerPool(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("pool size must be at least 1");
+        }
+        this.size = size;
+        available = new ArrayBlockingQueue<>(size);
+    }
+
+    public synchronized void init(DaoMaster daoMaster, SQLiteOpenHelper helper) {
+        if (valid) {
+            throw new IllegalStateException("Pool must be closed before initializing it again");
+        }
+        available.clear();
+        for (int i = 0; i < size; i++) {
+            available.add(new ReadOnlyHandler(daoMaster, helper));
+        }
+        valid = true;
+    }
+
+    public DBLockMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns a read-only handler, or null if none became available within the given time.
+     * Callers must close() the handler when they are done.
+     */
+    public DBHandler acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        long start = System.nanoTime();
+        ReadOnlyHandler handler = available.poll(timeout, unit);
+        if (handler == null) {
+            metrics.recordTimeout();
+            return null;
+        }
+        handler.acquiredAt = System.nanoTime();
+        metrics.recordWait(handler.acquiredAt - start);
+        return handler;
+    }
+
+    private void release(ReadOnlyHandler handler) {
+        metrics.recordHold(System.nanoTime() - handler.acquiredAt);
+        handler.session.clear();
+        available.offer(handler);
+    }
+
+    /**
+     * Waits until all handlers have been returned and invalidates them, so that
+     * the database can be closed. #init() has to be called again afterwards.
+     *
+     * @throws IllegalStateException if the readers did not finish in time
+     */
+    public synchronized void drain(long timeout, TimeUnit unit) throws IllegalStateException {
+        if (!valid) {
+            return;
+        }
+        List<ReadOnlyHandler> drained = new ArrayList<>(size);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            while (drained.size() < size) {
+                ReadOnlyHandler handler = available.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (handler == null) {
+                    break;
+                }
+                drained.add(handler);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (drained.size() < size) {
+            available.addAll(drained);
+            throw new IllegalStateException("Timed out waiting for database readers to finish");
+        }
+        valid = false;
+    }
+
+    private class ReadOnlyHandler implements DBHandler {
+        private final DaoMaster daoMaster;
+        private final SQLiteOpenHelper helper;
+        private final DaoSession session;
+        private long acquiredAt;
+
+        ReadOnlyHandler(DaoMaster daoMaster, SQLiteOpenHelper helper) {
+            this.daoMaster = daoMaster;
+            this.helper = helper;
+            session = daoMaster.newSession(IdentityScopeType.None);
+        }
+
+        @Override
+        public void closeDb() {
+            throw new UnsupportedOperationException("read-only handlers cannot close the database");
+        }
+
+        @Override
+        public void openDb() {
+            throw new UnsupportedOperationException("read-only handlers cannot open the database");
+        }
+
+        @Override
+        public SQLiteOpenHelper getHelper() {
+            return helper;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+
+        @Override
+        public SQLiteDatabase getDatabase() {
+            return daoMaster.getDatabase();
+        }
+
+        @Override
+        public DaoMaster getDaoMaster() {
+            return daoMaster;
+        }
+
+        @Override
+        public DaoSession getDaoSession() {
+            return session;
+        }
+    }
+}
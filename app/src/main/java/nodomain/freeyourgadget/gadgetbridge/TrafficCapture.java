@@ -0,0 +1,279 @@
+package nodomain.freeyourgadget.gadgetbridge;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Captures the raw frames exchanged with devices into a btsnoop file, which can be opened with
+ * Wireshark. It replaces the text hexdumps for protocol debugging, as capturing a frame only
+ * copies it into a preallocated ring buffer, without locking or allocating. A background thread
+ * writes the buffered frames to the file. If the buffer is full, frames are dropped and counted
+ * in the file.
+ *
+ * Each frame is written as an ATT PDU in an ACL packet, so that Wireshark decodes it: GATT
+ * writes, notifications and read responses with the characteristic's instance id as attribute
+ * handle, and Pebble protocol packets as writes and notifications with the endpoint as handle.
+ */
+public class TrafficCapture {
+    private static final Logger LOG = LoggerFactory.getLogger(TrafficCapture.class);
+
+    public static final byte ATT_READ_RESPONSE = 0x0b;
+    public static final byte ATT_WRITE_REQUEST = 0x12;
+    public static final byte ATT_HANDLE_VALUE_NOTIFICATION = 0x1b;
+    public static final byte ATT_WRITE_COMMAND = 0x52;
+
+    private static final byte[] BTSNOOP_MAGIC = {'b', 't', 's', 'n', 'o', 'o', 'p', 0};
+    private static final int BTSNOOP_VERSION = 1;
+    private static final int BTSNOOP_DATALINK_H4 = 1002;
+    private static final int BTSNOOP_FLAG_RECEIVED = 1;
+    // microseconds from 0 AD to the unix epoch
+    private static final long BTSNOOP_EPOCH_OFFSET = 0x00dcddb30f2f8000L;
+
+    private static final byte H4_ACL = 0x02;
+    private static final int ACL_HANDLE = 0x2001; // first flushable fragment on connection 1
+    private static final int L2CAP_CID_ATT = 0x0004;
+    private static final int ATT_OFFSET = 1 + 4 + 4;
+    private static final int MAX_HEADER_LENGTH = ATT_OFFSET + 3;
+
+    static final int DEFAULT_SLOT_COUNT = 512;
+    static final int DEFAULT_MAX_VALUE_LENGTH = 512;
+    private static final long DRAIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static volatile TrafficCapture instance;
+
+    private final File file;
+    private final int mask;
+    private final int maxValueLength;
+    private final byte[][] frames;
+    private final int[] frameLengths;
+    private final int[] originalLengths;
+    private final int[] flags;
+    private final long[] timestamps;
+    // the sequence of the frame in each slot, once it can be written to the file
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final long startMicros;
+    private final long startNanos;
+
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    TrafficCapture(File file, int slotCount, int maxValueLength) throws IOException {
+        if (Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("slot count must be a power of two: " + slotCount);
+        }
+        this.file = file;
+        this.mask = slotCount - 1;
+        this.maxValueLength = maxValueLength;
+        frames = new byte[slotCount][MAX_HEADER_LENGTH + maxValueLength];
+        frameLengths = new int[slotCount];
+        originalLengths = new int[slotCount];
+        flags = new int[slotCount];
+        timestamps = new long[slotCount];
+        published = new AtomicLongArray(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            published.set(i, -1);
+        }
+        startMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        startNanos = System.nanoTime();
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        try {
+            out.write(BTSNOOP_MAGIC);
+            out.writeInt(BTSNOOP_VERSION);
+            out.writeInt(BTSNOOP_DATALINK_H4);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+        writerThread = new Thread("Traffic capture") {
+            @Override
+            public void run() {
+                writeFrames(out);
+            }
+        };
+        writerThread.start();
+    }
+
+    /**
+     * Starts capturing into the given file, replacing its previous contents.
+     */
+    public static synchronized void start(File file) throws IOException {
+        stop();
+        instance = new TrafficCapture(file, DEFAULT_SLOT_COUNT, DEFAULT_MAX_VALUE_LENGTH);
+        LOG.info("capturing traffic to " + file);
+    }
+
+    public static synchronized void stop() {
+        TrafficCapture capture = instance;
+        if (capture != null) {
+            instance = null;
+            capture.close();
+        }
+    }
+
+    public static boolean isActive() {
+        return instance != null;
+    }
+
+    /**
+     * @see #captureSent(byte, int, byte[], int, int)
+     */
+    public static boolean captureSent(byte opcode, int handle, byte[] value) {
+        return captureSent(opcode, handle, value, 0, value != null ? value.length : 0);
+    }
+
+    /**
+     * @see #captureReceived(byte, int, byte[], int, int)
+     */
+    public static boolean captureReceived(byte opcode, int handle, byte[] value) {
+        return captureReceived(opcode, handle, value, 0, value != null ? value.length : 0);
+    }
+
+    /**
+     * Captures a frame that was sent to a device.
+     *
+     * @return whether capturing is active, so that the frame need not be logged otherwise
+     */
+    public static boolean captureSent(byte opcode, int handle, byte[] value, int offset, int length) {
+        TrafficCapture capture = instance;
+        return capture != null && capture.capture(false, opcode, handle, value, offset, length);
+    }
+
+    /**
+     * Captures a frame that was received from a device.
+     *
+     * @return whether capturing is active, so that the frame need not be logged otherwise
+     */
+    public static boolean captureReceived(byte opcode, int handle, byte[] value, int offset, int length) {
+        TrafficCapture capture = instance;
+        return capture != null && capture.capture(true, opcode, handle, value, offset, length);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    boolean capture(boolean received, byte opcode, int handle, byte[] value, int offset, int length) {
+        if (value == null) {
+            return true;
+        }
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed.get() > mask) {
+                dropped.incrementAndGet();
+                LockSupport.unpark(writerThread);
+                return true;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & mask;
+        byte[] frame = frames[slot];
+        boolean hasHandle = opcode != ATT_READ_RESPONSE;
+        int attLength = (hasHandle ? 3 : 1) + length;
+        int capturedLength = Math.min(length, maxValueLength);
+
+        frame[0] = H4_ACL;
+        putShort(frame, 1, ACL_HANDLE);
+        putShort(frame, 3, 4 + attLength);
+        putShort(frame, 5, attLength);
+        putShort(frame, 7, L2CAP_CID_ATT);
+        frame[ATT_OFFSET] = opcode;
+        int valueOffset = ATT_OFFSET + 1;
+        if (hasHandle) {
+            putShort(frame, valueOffset, handle);
+            valueOffset += 2;
+        }
+        System.arraycopy(value, offset, frame, valueOffset, capturedLength);
+
+        frameLengths[slot] = valueOffset + capturedLength;
+        originalLengths[slot] = valueOffset + length;
+        flags[slot] = received ? BTSNOOP_FLAG_RECEIVED : 0;
+        timestamps[slot] = startMicros + (System.nanoTime() - startNanos) / 1000;
+        published.lazySet(slot, sequence);
+        if ((sequence & (mask >> 1)) == 0) {
+            // wake up the writer early when a burst fills the buffer
+            LockSupport.unpark(writerThread);
+        }
+        return true;
+    }
+
+    private static void putShort(byte[] frame, int offset, int value) {
+        frame[offset] = (byte) value;
+        frame[offset + 1] = (byte) (value >> 8);
+    }
+
+    private void writeFrames(DataOutputStream out) {
+        try {
+            while (running) {
+                if (writeAvailableFrames(out) == 0) {
+                    out.flush();
+                    LockSupport.parkNanos(this, DRAIN_INTERVAL_NANOS);
+                }
+            }
+            writeAvailableFrames(out);
+        } catch (IOException e) {
+            LOG.error("Unable to write traffic capture, stopping", e);
+            running = false;
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOG.warn("Unable to close traffic capture", e);
+            }
+        }
+        if (instance == this) {
+            instance = null;
+        }
+    }
+
+    private int writeAvailableFrames(DataOutputStream out) throws IOException {
+        int count = 0;
+        long sequence = consumed.get();
+        while (true) {
+            int slot = (int) sequence & mask;
+            if (published.get(slot) != sequence) {
+                return count;
+            }
+            out.writeInt(originalLengths[slot]);
+            out.writeInt(frameLengths[slot]);
+            out.writeInt(flags[slot]);
+            out.writeInt((int) dropped.get());
+            out.writeLong(timestamps[slot] + BTSNOOP_EPOCH_OFFSET);
+            out.write(frames[slot], 0, frameLengths[slot]);
+            sequence++;
+            consumed.lazySet(sequence);
+            count++;
+        }
+    }
+
+    /**
+     * Writes the frames captured so far and closes the file.
+     */
+    void close() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -260,6 +260,10 @@ public class Widget extends AppWidgetProvider {
                 @Override
                 public void onReceive(Context context, Intent intent) {
                     LOG.debug("gbwidget BROADCAST, action" + intent.getAction());
+                    if (GBDevice.ACTION_DEVICE_CHANGED.equals(intent.getAction())
+                            && (GBDevice.getChanges(intent) & (GBDevice.CHANGE_STATE | GBDevice.CHANGE_BATTERY | GBDevice.CHANGE_INFO)) == 0) {
+                        return;
+                    }
                     updateWidget();
                 }
             };
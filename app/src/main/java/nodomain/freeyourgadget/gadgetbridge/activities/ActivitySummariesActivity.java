@@ -91,6 +91,9 @@ public class ActivitySummariesActivity extends AbstractListActivity<BaseActivity
                 case GBDevice.ACTION_DEVICE_CHANGED:
                     GBDevice device = intent.getParcelableExtra(GBDevice.EXTRA_DEVICE);
                     mGBDevice = device;
+                    if ((GBDevice.getChanges(intent) & (GBDevice.CHANGE_STATE | GBDevice.CHANGE_BUSY)) == 0) {
+                        break;
+                    }
                     if (device.isBusy()) {
                         swipeLayout.setRefreshing(true);
                     } else {
@@ -42,6 +42,7 @@ import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.activities.charts.AbstractChartFragment;
 import nodomain.freeyourgadget.gadgetbridge.activities.charts.ChartsData;
 import nodomain.freeyourgadget.gadgetbridge.activities.charts.ChartsHost;
+import nodomain.freeyourgadget.gadgetbridge.activities.charts.SampleBlock;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
@@ -69,14 +70,14 @@ public class ActivitySummariesChartFragment extends AbstractChartFragment {
     private void populate_charts_data() {
         int LEGEND_TEXT_COLOR = 0;
 
-        try (DBHandler handler = GBApplication.acquireDB()) {
+        try (DBHandler handler = GBApplication.acquireReadOnlyDB()) {
             try {
                 LEGEND_TEXT_COLOR = GBApplication.getTextColor(getContext());
             } catch (Exception e) {
                 LOG.debug("Unable to get color right now:", e);
             }
 
-            List<? extends ActivitySample> samples = getSamples(handler, gbDevice, startTime, endTime);
+            SampleBlock samples = getSampleBlock(handler, gbDevice, startTime, endTime);
             DefaultChartsData dcd=null;
             try {
                 dcd = refresh(gbDevice, samples);
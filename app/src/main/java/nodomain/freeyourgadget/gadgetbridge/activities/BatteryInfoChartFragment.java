@@ -74,7 +74,7 @@ public class BatteryInfoChartFragment extends AbstractChartFragment {
     }
 
     private void populate_charts_data() {
-        try (DBHandler handler = GBApplication.acquireDB()) {
+        try (DBHandler handler = GBApplication.acquireReadOnlyDB()) {
 
             List<? extends BatteryLevel> samples = getLevels(handler, gbDevice, startTime, endTime);
             List<Entry> entries = new ArrayList<Entry>();
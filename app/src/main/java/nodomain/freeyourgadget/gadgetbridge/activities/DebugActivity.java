@@ -51,6 +51,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -59,6 +60,8 @@ import java.util.Objects;
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.Widget;
+import nodomain.freeyourgadget.gadgetbridge.database.DBLockMetrics;
+import nodomain.freeyourgadget.gadgetbridge.externalevents.NotificationFilterCache;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.model.CallSpec;
@@ -68,6 +71,7 @@ import nodomain.freeyourgadget.gadgetbridge.model.MusicStateSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationType;
 import nodomain.freeyourgadget.gadgetbridge.model.RecordedDataTypes;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.BtLEQueueMetrics;
 import nodomain.freeyourgadget.gadgetbridge.service.serial.GBDeviceProtocol;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 import nodomain.freeyourgadget.gadgetbridge.util.WidgetPreferenceStorage;
@@ -93,7 +97,7 @@ public class DebugActivity extends AbstractGBActivity {
                     break;
                 }
                 case DeviceService.ACTION_REALTIME_SAMPLES:
-                    handleRealtimeSample(intent.getSerializableExtra(DeviceService.EXTRA_REALTIME_SAMPLE));
+                    handleRealtimeSample(intent);
                     break;
                 default:
                     LOG.info("ignoring intent action " + intent.getAction());
@@ -104,10 +108,14 @@ public class DebugActivity extends AbstractGBActivity {
     private Spinner sendTypeSpinner;
     private EditText editContent;
 
-    private void handleRealtimeSample(Serializable extra) {
+    private void handleRealtimeSample(Intent intent) {
+        Serializable extra = intent.getSerializableExtra(DeviceService.EXTRA_REALTIME_SAMPLE);
         if (extra instanceof ActivitySample) {
             ActivitySample sample = (ActivitySample) extra;
             GB.toast(this, "Heart Rate measured: " + sample.getHeartRate(), Toast.LENGTH_LONG, GB.INFO);
+        } else if (intent.hasExtra(DeviceService.EXTRA_HEART_RATE_VALUE)) {
+            int heartRate = intent.getIntExtra(DeviceService.EXTRA_HEART_RATE_VALUE, ActivitySample.NOT_MEASURED);
+            GB.toast(this, "Heart Rate measured: " + heartRate, Toast.LENGTH_LONG, GB.INFO);
         }
     }
 
@@ -434,7 +442,22 @@ public class DebugActivity extends AbstractGBActivity {
         GBApplication.deviceService().onTestNewFunction();
     }
 
+    /**
+     * Writes the collected performance statistics to the log, so that they end up
+     * in the shared log file.
+     */
+    private void logPerformanceMetrics() {
+        for (DBLockMetrics metrics : GBApplication.getDBLockMetrics()) {
+            LOG.info("DB lock statistics: " + metrics);
+        }
+        for (String actionMetrics : BtLEQueueMetrics.describe()) {
+            LOG.info("BLE action latency: " + actionMetrics);
+        }
+        LOG.info("Notification filter latency: " + NotificationFilterCache.getFilterLatency());
+    }
+
     private void shareLog() {
+        logPerformanceMetrics();
         String fileName = GBApplication.getLogPath();
         if (fileName != null && fileName.length() > 0) {
             File logFile = new File(fileName);
@@ -443,10 +466,21 @@ public class DebugActivity extends AbstractGBActivity {
                 return;
             }
 
-            Intent emailIntent = new Intent(android.content.Intent.ACTION_SEND);
+            ArrayList<Uri> files = new ArrayList<>();
+            files.add(Uri.fromFile(logFile));
+            try {
+                File captureFile = GBApplication.getTrafficCaptureFile();
+                if (captureFile.exists()) {
+                    files.add(Uri.fromFile(captureFile));
+                }
+            } catch (IOException e) {
+                LOG.warn("Unable to find the traffic capture", e);
+            }
+
+            Intent emailIntent = new Intent(android.content.Intent.ACTION_SEND_MULTIPLE);
             emailIntent.setType("*/*");
             emailIntent.putExtra(EXTRA_SUBJECT, "Gadgetbridge log file");
-            emailIntent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(logFile));
+            emailIntent.putParcelableArrayListExtra(Intent.EXTRA_STREAM, files);
             startActivity(Intent.createChooser(emailIntent, "Share File"));
         }
     }
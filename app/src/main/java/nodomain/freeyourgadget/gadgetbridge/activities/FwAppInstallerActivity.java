@@ -81,7 +81,7 @@ public class FwAppInstallerActivity extends AbstractGBActivity implements Instal
             String action = intent.getAction();
             if (GBDevice.ACTION_DEVICE_CHANGED.equals(action)) {
                 device = intent.getParcelableExtra(GBDevice.EXTRA_DEVICE);
-                if (device != null) {
+                if (device != null && (GBDevice.getChanges(intent) & (GBDevice.CHANGE_STATE | GBDevice.CHANGE_BUSY)) != 0) {
                     refreshBusyState(device);
                     if (!device.isInitialized()) {
                         setInstallEnabled(false);
@@ -55,6 +55,7 @@ import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.activities.charts.ChartsPreferencesActivity;
 import nodomain.freeyourgadget.gadgetbridge.database.PeriodicExporter;
+import nodomain.freeyourgadget.gadgetbridge.database.PeriodicSampleArchiver;
 import nodomain.freeyourgadget.gadgetbridge.devices.DeviceManager;
 import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandPreferencesActivity;
 import nodomain.freeyourgadget.gadgetbridge.devices.qhybrid.ConfigActivity;
@@ -203,6 +204,16 @@ public class SettingsActivity extends AbstractSettingsActivity {
 
         });
 
+        pref = findPreference("capture_traffic");
+        pref.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newVal) {
+                GBApplication.setupTrafficCapture(Boolean.TRUE.equals(newVal));
+                return true;
+            }
+
+        });
+
         pref = findPreference("language");
         pref.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
             @Override
@@ -345,6 +356,15 @@ public class SettingsActivity extends AbstractSettingsActivity {
             }
         });
 
+        findPreference(GBPrefs.ARCHIVE_SAMPLES_AFTER_DAYS).setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object archiveAfterDays) {
+                String value = (String) archiveAfterDays;
+                PeriodicSampleArchiver.scheduleAlarm(getApplicationContext(), value.isEmpty() ? 0 : Integer.parseInt(value));
+                return true;
+            }
+        });
+
         pref = findPreference("auto_fetch_interval_limit");
         pref.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
             @Override
@@ -422,7 +422,7 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
      */
     protected abstract void renderCharts();
 
-    public DefaultChartsData<LineData> refresh(GBDevice gbDevice, List<? extends ActivitySample> samples) {
+    public DefaultChartsData<LineData> refresh(GBDevice gbDevice, SampleBlock samples) {
 //        Calendar cal = GregorianCalendar.getInstance();
 //        cal.clear();
         TimestampTranslation tsTranslation = new TimestampTranslation();
@@ -446,14 +446,12 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
             List<Entry> notWornEntries = new ArrayList<>(numEntries);
             boolean hr = supportsHeartrate(gbDevice);
             List<Entry> heartrateEntries = hr ? new ArrayList<Entry>(numEntries) : null;
-            List<Integer> colors = new ArrayList<>(numEntries); // this is kinda inefficient...
             int lastHrSampleIndex = -1;
             HeartRateUtils heartRateUtilsInstance = HeartRateUtils.getInstance();
 
             for (int i = 0; i < numEntries; i++) {
-                ActivitySample sample = samples.get(i);
-                int type = sample.getKind();
-                int ts = tsTranslation.shorten(sample.getTimestamp());
+                int type = samples.getKind(i);
+                int ts = tsTranslation.shorten(samples.getTimestamp(i));
 
 //                System.out.println(ts);
 //                ts = i;
@@ -468,7 +466,7 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
 //                    dateStringTo = dateFormat.format(date);
 //                }
 
-                float movement = sample.getIntensity();
+                float movement = samples.getIntensity(i);
 
                 float value = movement;
                 switch (type) {
@@ -518,13 +516,14 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
                         }
                         activityEntries.add(createLineEntry(value, ts));
                 }
-                if (hr && sample.getKind() != ActivityKind.TYPE_NOT_WORN && heartRateUtilsInstance.isValidHeartRateValue(sample.getHeartRate())) {
+                int heartRate = samples.getHeartRate(i);
+                if (hr && type != ActivityKind.TYPE_NOT_WORN && heartRateUtilsInstance.isValidHeartRateValue(heartRate)) {
                     if (lastHrSampleIndex > -1 && ts - lastHrSampleIndex > 1800*HeartRateUtils.MAX_HR_MEASUREMENTS_GAP_MINUTES) {
                         heartrateEntries.add(createLineEntry(0, lastHrSampleIndex + 1));
                         heartrateEntries.add(createLineEntry(0, ts - 1));
                     }
 
-                    heartrateEntries.add(createLineEntry(sample.getHeartRate(), ts));
+                    heartrateEntries.add(createLineEntry(heartRate, ts));
                     lastHrSampleIndex = ts;
                 }
 
@@ -648,7 +647,7 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
         private ChartsData chartsData;
 
         public RefreshTask(String task, Context context) {
-            super(task, context);
+            super(task, context, true);
         }
 
         @Override
@@ -719,7 +718,26 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
         return samples;
     }
 
-    protected List<? extends ActivitySample> getSamplesofSleep(DBHandler db, GBDevice device) {
+    /**
+     * Like #getSamples(DBHandler, GBDevice), but returns the samples as SampleBlock.
+     */
+    protected SampleBlock getSampleBlock(DBHandler db, GBDevice device) {
+        int tsStart = getTSStart();
+        int tsEnd = getTSEnd();
+        SampleBlock samples = getSampleBlock(db, device, tsStart, tsEnd);
+        samples.ensureStartAndEnd(tsStart, tsEnd);
+        return samples;
+    }
+
+    /**
+     * Loads all kinds of samples of the given time span into a SampleBlock.
+     * To be called from a background thread.
+     */
+    protected SampleBlock getSampleBlock(DBHandler db, GBDevice device, int tsFrom, int tsTo) {
+        return SampleBlock.load(getProvider(db, device), tsFrom, tsTo);
+    }
+
+    protected SampleBlock getSampleBlockOfSleep(DBHandler db, GBDevice device) {
         int SLEEP_HOUR_LIMIT = 12;
 
         int tsStart = getTSStart();
@@ -737,8 +755,8 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
         day.set(Calendar.SECOND, 0);
         tsEnd = toTimestamp(day.getTime());
 
-        List<ActivitySample> samples = (List<ActivitySample>) getSamples(db, device, tsStart, tsEnd);
-        ensureStartAndEndSamples(samples, tsStart, tsEnd);
+        SampleBlock samples = getSampleBlock(db, device, tsStart, tsEnd);
+        samples.ensureStartAndEnd(tsStart, tsEnd);
         return samples;
     }
 
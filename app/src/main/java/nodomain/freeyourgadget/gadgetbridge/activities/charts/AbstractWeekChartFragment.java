@@ -25,6 +25,8 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
+import androidx.annotation.Nullable;
+
 import com.github.mikephil.charting.charts.BarChart;
 import com.github.mikephil.charting.charts.PieChart;
 import com.github.mikephil.charting.components.LimitLine;
@@ -287,20 +289,29 @@ public abstract class AbstractWeekChartFragment extends AbstractChartFragment {
         yAxisRight.setTextColor(CHART_TEXT_COLOR);
     }
 
-    private List<? extends ActivitySample> getSamplesOfDay(DBHandler db, Calendar day, int offsetHours, GBDevice device) {
-        int startTs;
-        int endTs;
-
+    private int getStartOfDay(Calendar day, int offsetHours) {
         day = (Calendar) day.clone(); // do not modify the caller's argument
         day.set(Calendar.HOUR_OF_DAY, 0);
         day.set(Calendar.MINUTE, 0);
         day.set(Calendar.SECOND, 0);
         day.add(Calendar.HOUR, offsetHours);
 
-        startTs = (int) (day.getTimeInMillis() / 1000);
-        endTs = startTs + 24 * 60 * 60 - 1;
+        return (int) (day.getTimeInMillis() / 1000);
+    }
+
+    private ActivityAmounts calculateActivityAmountsOfDay(DBHandler db, Calendar day, int offsetHours, GBDevice device) {
+        int startTs = getStartOfDay(day, offsetHours);
+        int endTs = startTs + 24 * 60 * 60 - 1;
 
-        return getSamples(db, device, startTs, endTs);
+        return new ActivityAnalysis().calculateActivityAmounts(getProvider(db, device), startTs, endTs);
+    }
+
+    @Nullable
+    private ActivityAmounts getActivityAmountsFromRollups(DBHandler db, Calendar day, int offsetHours, GBDevice device) {
+        int startTs = getStartOfDay(day, offsetHours);
+        int endTs = startTs + 24 * 60 * 60 - 1;
+
+        return getProvider(db, device).getActivityAmountsFromRollups(startTs, endTs);
     }
 
     @Override
@@ -349,8 +360,10 @@ public abstract class AbstractWeekChartFragment extends AbstractChartFragment {
         }
 
         if (amounts == null) {
-            ActivityAnalysis analysis = new ActivityAnalysis();
-            amounts = analysis.calculateActivityAmounts(getSamplesOfDay(db, day, mOffsetHours, device));
+            amounts = getActivityAmountsFromRollups(db, day, mOffsetHours, device);
+            if (amounts == null) {
+                amounts = calculateActivityAmountsOfDay(db, day, mOffsetHours, device);
+            }
             if (activityAmountCache != null) {
                 activityAmountCache.add(key, amounts);
             }
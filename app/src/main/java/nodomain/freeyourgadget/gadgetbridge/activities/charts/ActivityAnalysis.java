@@ -23,6 +23,9 @@ import org.slf4j.LoggerFactory;
 import java.util.HashMap;
 import java.util.List;
 
+import nodomain.freeyourgadget.gadgetbridge.devices.ActivitySampleVisitor;
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmount;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmounts;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
@@ -37,14 +40,37 @@ public class ActivityAnalysis {
     private int maxSpeed = 0;
 
     public ActivityAmounts calculateActivityAmounts(List<? extends ActivitySample> samples) {
-        ActivityAmount deepSleep = new ActivityAmount(ActivityKind.TYPE_DEEP_SLEEP);
-        ActivityAmount lightSleep = new ActivityAmount(ActivityKind.TYPE_LIGHT_SLEEP);
-        ActivityAmount notWorn = new ActivityAmount(ActivityKind.TYPE_NOT_WORN);
-        ActivityAmount activity = new ActivityAmount(ActivityKind.TYPE_ACTIVITY);
-
-        ActivityAmount previousAmount = null;
-        ActivitySample previousSample = null;
+        AmountsVisitor visitor = new AmountsVisitor();
         for (ActivitySample sample : samples) {
+            visitor.visit(sample);
+        }
+        return visitor.getResult();
+    }
+
+    /**
+     * Like #calculateActivityAmounts(List), but streams the samples from the provider in
+     * a single pass instead of loading them all into memory first.
+     */
+    public ActivityAmounts calculateActivityAmounts(SampleProvider<? extends AbstractActivitySample> provider, int timestampFrom, int timestampTo) {
+        AmountsVisitor visitor = new AmountsVisitor();
+        provider.visitAllActivitySamples(timestampFrom, timestampTo, visitor);
+        return visitor.getResult();
+    }
+
+    private class AmountsVisitor implements ActivitySampleVisitor<ActivitySample> {
+        private final ActivityAmount deepSleep = new ActivityAmount(ActivityKind.TYPE_DEEP_SLEEP);
+        private final ActivityAmount lightSleep = new ActivityAmount(ActivityKind.TYPE_LIGHT_SLEEP);
+        private final ActivityAmount notWorn = new ActivityAmount(ActivityKind.TYPE_NOT_WORN);
+        private final ActivityAmount activity = new ActivityAmount(ActivityKind.TYPE_ACTIVITY);
+
+        private ActivityAmount previousAmount = null;
+        // only the relevant values of the previous sample, samples may be reused by the provider
+        private boolean hasPreviousSample = false;
+        private int previousTimestamp;
+        private int previousRawKind;
+
+        @Override
+        public void visit(ActivitySample sample) {
             ActivityAmount amount;
             switch (sample.getKind()) {
                 case ActivityKind.TYPE_DEEP_SLEEP:
@@ -67,9 +93,9 @@ public class ActivityAnalysis {
                 amount.addSteps(steps);
             }
 
-            if (previousSample != null) {
-                long timeDifference = sample.getTimestamp() - previousSample.getTimestamp();
-                if (previousSample.getRawKind() == sample.getRawKind()) {
+            if (hasPreviousSample) {
+                long timeDifference = sample.getTimestamp() - previousTimestamp;
+                if (previousRawKind == sample.getRawKind()) {
                     amount.addSeconds(timeDifference);
                 } else {
                     long sharedTimeDifference = (long) (timeDifference / 2.0f);
@@ -98,26 +124,30 @@ public class ActivityAnalysis {
             amount.setEndDate(sample.getTimestamp());
 
             previousAmount = amount;
-            previousSample = sample;
+            hasPreviousSample = true;
+            previousTimestamp = sample.getTimestamp();
+            previousRawKind = sample.getRawKind();
         }
 
-        ActivityAmounts result = new ActivityAmounts();
-        if (deepSleep.getTotalSeconds() > 0) {
-            result.addAmount(deepSleep);
-        }
-        if (lightSleep.getTotalSeconds() > 0) {
-            result.addAmount(lightSleep);
-        }
-        if (activity.getTotalSeconds() > 0) {
-            result.addAmount(activity);
-        }
-        if (notWorn.getTotalSeconds() > 0) {
-            result.addAmount(notWorn);
-        }
+        ActivityAmounts getResult() {
+            ActivityAmounts result = new ActivityAmounts();
+            if (deepSleep.getTotalSeconds() > 0) {
+                result.addAmount(deepSleep);
+            }
+            if (lightSleep.getTotalSeconds() > 0) {
+                result.addAmount(lightSleep);
+            }
+            if (activity.getTotalSeconds() > 0) {
+                result.addAmount(activity);
+            }
+            if (notWorn.getTotalSeconds() > 0) {
+                result.addAmount(notWorn);
+            }
 
-        result.calculatePercentages();
+            result.calculatePercentages();
 
-        return result;
+            return result;
+        }
     }
 
     int calculateTotalSteps(List<? extends ActivitySample> samples) {
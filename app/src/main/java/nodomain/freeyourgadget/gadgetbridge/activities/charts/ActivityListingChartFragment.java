@@ -87,8 +87,8 @@ public class ActivityListingChartFragment extends AbstractChartFragment {
 
     @Override
     protected ChartsData refreshInBackground(ChartsHost chartsHost, DBHandler db, GBDevice device) {
-        List<? extends ActivitySample> activitySamples;
-        activitySamples = getSamples(db, device);
+        SampleBlock activitySamples;
+        activitySamples = getSampleBlock(db, device);
         List<ActivitySession> stepSessions = null;
         StepAnalysis stepAnalysis = new StepAnalysis();
         boolean isEmptySummary = false;
@@ -126,15 +126,24 @@ public class ActivityListingChartFragment extends AbstractChartFragment {
 
     @Override
     protected List<? extends ActivitySample> getSamples(DBHandler db, GBDevice device, int tsFrom, int tsTo) {
+        tsFrom = getStartOfDay(tsTo);
+        return getAllSamples(db, device, tsFrom, tsFrom + 24 * 60 * 60 - 1);
+    }
+
+    @Override
+    protected SampleBlock getSampleBlock(DBHandler db, GBDevice device, int tsFrom, int tsTo) {
+        tsFrom = getStartOfDay(tsTo);
+        return super.getSampleBlock(db, device, tsFrom, tsFrom + 24 * 60 * 60 - 1);
+    }
+
+    private int getStartOfDay(int tsTo) {
         Calendar day = Calendar.getInstance();
         day.setTimeInMillis(tsTo * 1000L); //we need today initially, which is the end of the time range
         day.set(Calendar.HOUR_OF_DAY, 0); //and we set time for the start and end of the same day
         day.set(Calendar.MINUTE, 0);
         day.set(Calendar.SECOND, 0);
-        tsFrom = (int) (day.getTimeInMillis() / 1000);
-        tsTo = tsFrom + 24 * 60 * 60 - 1;
-        tsDateFrom = tsFrom;
-        return getAllSamples(db, device, tsFrom, tsTo);
+        tsDateFrom = (int) (day.getTimeInMillis() / 1000);
+        return tsDateFrom;
     }
 
     private static class MyChartsData extends ChartsData {
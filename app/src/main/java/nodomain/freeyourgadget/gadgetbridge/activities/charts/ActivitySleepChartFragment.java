@@ -128,7 +128,7 @@ public class ActivitySleepChartFragment extends AbstractChartFragment {
 
     @Override
     protected ChartsData refreshInBackground(ChartsHost chartsHost, DBHandler db, GBDevice device) {
-        List<? extends ActivitySample> samples = getSamples(db, device);
+        SampleBlock samples = getSampleBlock(db, device);
         return refresh(device, samples);
     }
 
@@ -108,8 +108,10 @@ public class ChartsActivity extends AbstractGBFragmentActivity implements Charts
             String action = intent.getAction();
             switch (Objects.requireNonNull(action)) {
                 case GBDevice.ACTION_DEVICE_CHANGED:
-                    GBDevice dev = intent.getParcelableExtra(GBDevice.EXTRA_DEVICE);
-                    refreshBusyState(dev);
+                    if ((GBDevice.getChanges(intent) & (GBDevice.CHANGE_STATE | GBDevice.CHANGE_BUSY)) != 0) {
+                        GBDevice dev = intent.getParcelableExtra(GBDevice.EXTRA_DEVICE);
+                        refreshBusyState(dev);
+                    }
                     break;
             }
         }
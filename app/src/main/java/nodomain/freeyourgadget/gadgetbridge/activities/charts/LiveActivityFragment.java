@@ -161,20 +161,24 @@ public class LiveActivityFragment extends AbstractChartFragment {
             switch (action) {
                 case DeviceService.ACTION_REALTIME_SAMPLES: {
                     ActivitySample sample = (ActivitySample) intent.getSerializableExtra(DeviceService.EXTRA_REALTIME_SAMPLE);
-                    addSample(sample);
+                    if (sample != null) {
+                        addSample(sample.getTimestamp(), sample.getHeartRate(), sample.getSteps());
+                    } else {
+                        addSample((int) (intent.getLongExtra(DeviceService.EXTRA_TIMESTAMP, System.currentTimeMillis()) / 1000),
+                                intent.getIntExtra(DeviceService.EXTRA_HEART_RATE_VALUE, ActivitySample.NOT_MEASURED),
+                                intent.getIntExtra(DeviceService.EXTRA_REALTIME_STEPS, ActivitySample.NOT_MEASURED));
+                    }
                     break;
                 }
             }
         }
     };
 
-    private void addSample(ActivitySample sample) {
-        int heartRate = sample.getHeartRate();
-        int timestamp = tsTranslation.shorten(sample.getTimestamp());
+    private void addSample(int timestampInSeconds, int heartRate, int steps) {
+        int timestamp = tsTranslation.shorten(timestampInSeconds);
         if (HeartRateUtils.getInstance().isValidHeartRateValue(heartRate)) {
             setCurrentHeartRate(heartRate, timestamp);
         }
-        int steps = sample.getSteps();
         if (steps > 0) {
             addEntries(steps, timestamp);
         }
@@ -0,0 +1,222 @@
+package nodomain.freeyourgadget.gadgetbridge.activities.charts;
+
+import java.util.Arrays;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.ActivitySampleVisitor;
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+
+/**
+ * Column-wise storage of activity samples in primitive arrays, for the charts and
+ * the analysis classes. Unlike a List of samples, a block does not keep one entity
+ * object (plus boxed values) per sample alive, which matters for month-long views.
+ * <p>
+ * Kinds are stored as byte indexes into a small per-block table of the distinct
+ * normalized kinds, so that any kind value is preserved.
+ * <p>
+ * Padding samples, like the TrailingActivitySample in the list based code, may be
+ * added at both ends so that the charts span the whole requested time range.
+ */
+public class SampleBlock {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private int size;
+    private int[] timestamps;
+    private int[] steps;
+    private byte[] kinds;
+    private short[] hr;
+    private float[] intensity;
+
+    private int[] kindTable = new int[8];
+    private int kindTableSize;
+
+    private boolean leadingPadding;
+    private boolean trailingPadding;
+    private int paddingKind = ActivitySample.NOT_MEASURED;
+    private float paddingIntensity = ActivitySample.NOT_MEASURED;
+
+    public SampleBlock() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public SampleBlock(int capacity) {
+        capacity = Math.max(capacity, 2);
+        timestamps = new int[capacity];
+        steps = new int[capacity];
+        kinds = new byte[capacity];
+        hr = new short[capacity];
+        intensity = new float[capacity];
+    }
+
+    /**
+     * Loads all samples of the given time span from the provider. The samples are
+     * streamed from the database, so only the primitive values are retained.
+     */
+    public static SampleBlock load(SampleProvider<? extends AbstractActivitySample> provider, int timestampFrom, int timestampTo) {
+        final SampleBlock block = new SampleBlock();
+        provider.visitAllActivitySamples(timestampFrom, timestampTo, new ActivitySampleVisitor<AbstractActivitySample>() {
+            @Override
+            public void visit(AbstractActivitySample sample) {
+                block.add(sample);
+            }
+        });
+        block.paddingKind = provider.normalizeType(ActivitySample.NOT_MEASURED);
+        block.paddingIntensity = provider.normalizeIntensity(ActivitySample.NOT_MEASURED);
+        return block;
+    }
+
+    /**
+     * Creates a block from time-ordered samples that are already in memory.
+     */
+    public static SampleBlock of(List<? extends ActivitySample> samples) {
+        SampleBlock block = new SampleBlock(samples.size());
+        for (ActivitySample sample : samples) {
+            block.add(sample);
+        }
+        return block;
+    }
+
+    public void add(ActivitySample sample) {
+        add(sample.getTimestamp(), sample.getKind(), sample.getSteps(), sample.getHeartRate(), sample.getIntensity());
+    }
+
+    public void add(int timestamp, int kind, int stepCount, int heartRate, float sampleIntensity) {
+        if (trailingPadding) {
+            throw new IllegalStateException("cannot add samples after the trailing padding");
+        }
+        ensureCapacity(size + 1);
+        set(size, timestamp, kind, stepCount, heartRate, sampleIntensity);
+        size++;
+    }
+
+    /**
+     * Adds padding samples at tsStart and tsEnd if the block does not reach that far.
+     * Like AbstractChartFragment#ensureStartAndEndSamples(), nothing is added to an
+     * empty block.
+     */
+    public void ensureStartAndEnd(int tsStart, int tsEnd) {
+        if (size == 0) {
+            return;
+        }
+        if (!trailingPadding && timestamps[size - 1] < tsEnd) {
+            add(tsEnd, paddingKind, ActivitySample.NOT_MEASURED, ActivitySample.NOT_MEASURED, paddingIntensity);
+            trailingPadding = true;
+        }
+        if (!leadingPadding && timestamps[0] > tsStart) {
+            ensureCapacity(size + 1);
+            System.arraycopy(timestamps, 0, timestamps, 1, size);
+            System.arraycopy(steps, 0, steps, 1, size);
+            System.arraycopy(kinds, 0, kinds, 1, size);
+            System.arraycopy(hr, 0, hr, 1, size);
+            System.arraycopy(intensity, 0, intensity, 1, size);
+            set(0, tsStart, paddingKind, ActivitySample.NOT_MEASURED, ActivitySample.NOT_MEASURED, paddingIntensity);
+            size++;
+            leadingPadding = true;
+        }
+    }
+
+    /**
+     * Removes all samples outside of the given time span, in place.
+     */
+    public void retainRange(int timestampFrom, int timestampTo) {
+        int newSize = 0;
+        boolean newLeadingPadding = false;
+        boolean newTrailingPadding = false;
+        for (int i = 0; i < size; i++) {
+            int timestamp = timestamps[i];
+            if (timestamp < timestampFrom || timestamp > timestampTo) {
+                continue;
+            }
+            if (isPadding(i)) {
+                if (i == 0) {
+                    newLeadingPadding = true;
+                } else {
+                    newTrailingPadding = true;
+                }
+            }
+            timestamps[newSize] = timestamp;
+            steps[newSize] = steps[i];
+            kinds[newSize] = kinds[i];
+            hr[newSize] = hr[i];
+            intensity[newSize] = intensity[i];
+            newSize++;
+        }
+        size = newSize;
+        leadingPadding = newLeadingPadding;
+        trailingPadding = newTrailingPadding;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    public int getSteps(int index) {
+        return steps[index];
+    }
+
+    public int getKind(int index) {
+        return kindTable[kinds[index]];
+    }
+
+    public int getHeartRate(int index) {
+        return hr[index];
+    }
+
+    public float getIntensity(int index) {
+        return intensity[index];
+    }
+
+    /**
+     * Returns true if the sample at the given index was added by #ensureStartAndEnd()
+     * and thus does not represent a measurement.
+     */
+    public boolean isPadding(int index) {
+        return (leadingPadding && index == 0) || (trailingPadding && index == size - 1);
+    }
+
+    private void set(int index, int timestamp, int kind, int stepCount, int heartRate, float sampleIntensity) {
+        timestamps[index] = timestamp;
+        steps[index] = stepCount;
+        kinds[index] = kindIndex(kind);
+        hr[index] = (short) heartRate;
+        intensity[index] = sampleIntensity;
+    }
+
+    private byte kindIndex(int kind) {
+        for (int i = 0; i < kindTableSize; i++) {
+            if (kindTable[i] == kind) {
+                return (byte) i;
+            }
+        }
+        if (kindTableSize == Byte.MAX_VALUE) {
+            throw new IllegalStateException("too many distinct activity kinds");
+        }
+        if (kindTableSize == kindTable.length) {
+            kindTable = Arrays.copyOf(kindTable, kindTable.length * 2);
+        }
+        kindTable[kindTableSize] = kind;
+        return (byte) kindTableSize++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= timestamps.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, timestamps.length + (timestamps.length >> 1));
+        timestamps = Arrays.copyOf(timestamps, newCapacity);
+        steps = Arrays.copyOf(steps, newCapacity);
+        kinds = Arrays.copyOf(kinds, newCapacity);
+        hr = Arrays.copyOf(hr, newCapacity);
+        intensity = Arrays.copyOf(intensity, newCapacity);
+    }
+}
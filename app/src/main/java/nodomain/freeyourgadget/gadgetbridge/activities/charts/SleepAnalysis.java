@@ -20,6 +20,9 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
+import nodomain.freeyourgadget.gadgetbridge.devices.ActivitySampleVisitor;
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
 
@@ -29,29 +32,64 @@ public class SleepAnalysis {
     public static final long MAX_WAKE_PHASE_LENGTH = 2 * 60 * 60;
 
     public List<SleepSession> calculateSleepSessions(List<? extends ActivitySample> samples) {
-        List<SleepSession> result = new ArrayList<>();
+        SessionsVisitor visitor = new SessionsVisitor();
+        for (ActivitySample sample : samples) {
+            visitor.visit(sample);
+        }
+        return visitor.getResult();
+    }
+
+    /**
+     * Like #calculateSleepSessions(List), but streams the samples from the provider in
+     * a single pass instead of loading them all into memory first.
+     */
+    public List<SleepSession> calculateSleepSessions(SampleProvider<? extends AbstractActivitySample> provider, int timestampFrom, int timestampTo) {
+        SessionsVisitor visitor = new SessionsVisitor();
+        provider.visitAllActivitySamples(timestampFrom, timestampTo, visitor);
+        return visitor.getResult();
+    }
 
-        ActivitySample previousSample = null;
-        Date sleepStart = null;
-        Date sleepEnd = null;
-        long lightSleepDuration = 0;
-        long deepSleepDuration = 0;
-        long durationSinceLastSleep = 0;
+    /**
+     * Like #calculateSleepSessions(List), but works on the primitive arrays of a SampleBlock.
+     */
+    public List<SleepSession> calculateSleepSessions(SampleBlock samples) {
+        SessionsVisitor visitor = new SessionsVisitor();
+        for (int i = 0; i < samples.size(); i++) {
+            visitor.visit(samples.getTimestamp(i), samples.getKind(i));
+        }
+        return visitor.getResult();
+    }
 
-        for (ActivitySample sample : samples) {
-            if (isSleep(sample)) {
+    private class SessionsVisitor implements ActivitySampleVisitor<ActivitySample> {
+        private final List<SleepSession> result = new ArrayList<>();
+
+        private boolean hasPreviousSample = false;
+        private int previousTimestamp;
+        private Date sleepStart = null;
+        private Date sleepEnd = null;
+        private long lightSleepDuration = 0;
+        private long deepSleepDuration = 0;
+        private long durationSinceLastSleep = 0;
+
+        @Override
+        public void visit(ActivitySample sample) {
+            visit(sample.getTimestamp(), sample.getKind());
+        }
+
+        void visit(int timestamp, int kind) {
+            if (isSleep(kind)) {
                 if (sleepStart == null)
-                    sleepStart = getDateFromSample(sample);
-                sleepEnd = getDateFromSample(sample);
+                    sleepStart = new Date(timestamp * 1000L);
+                sleepEnd = new Date(timestamp * 1000L);
 
                 durationSinceLastSleep = 0;
             }
 
-            if (previousSample != null) {
-                long durationSinceLastSample = sample.getTimestamp() - previousSample.getTimestamp();
-                if (sample.getKind() == ActivityKind.TYPE_LIGHT_SLEEP) {
+            if (hasPreviousSample) {
+                long durationSinceLastSample = timestamp - previousTimestamp;
+                if (kind == ActivityKind.TYPE_LIGHT_SLEEP) {
                     lightSleepDuration += durationSinceLastSample;
-                } else if (sample.getKind() == ActivityKind.TYPE_DEEP_SLEEP) {
+                } else if (kind == ActivityKind.TYPE_DEEP_SLEEP) {
                     deepSleepDuration += durationSinceLastSample;
                 } else {
                     durationSinceLastSleep += durationSinceLastSample;
@@ -66,20 +104,20 @@ public class SleepAnalysis {
                 }
             }
 
-            previousSample = sample;
+            hasPreviousSample = true;
+            previousTimestamp = timestamp;
         }
-        if (lightSleepDuration + deepSleepDuration > MIN_SESSION_LENGTH) {
-            result.add(new SleepSession(sleepStart, sleepEnd, lightSleepDuration, deepSleepDuration));
-        }
-        return result;
-    }
 
-    private boolean isSleep(ActivitySample sample) {
-        return sample.getKind() == ActivityKind.TYPE_DEEP_SLEEP || sample.getKind() == ActivityKind.TYPE_LIGHT_SLEEP;
+        List<SleepSession> getResult() {
+            if (lightSleepDuration + deepSleepDuration > MIN_SESSION_LENGTH) {
+                result.add(new SleepSession(sleepStart, sleepEnd, lightSleepDuration, deepSleepDuration));
+            }
+            return result;
+        }
     }
 
-    private Date getDateFromSample(ActivitySample sample) {
-        return new Date(sample.getTimestamp() * 1000L);
+    private boolean isSleep(int kind) {
+        return kind == ActivityKind.TYPE_DEEP_SLEEP || kind == ActivityKind.TYPE_LIGHT_SLEEP;
     }
 
 
@@ -51,7 +51,6 @@ import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -94,11 +93,11 @@ public class SleepChartFragment extends AbstractChartFragment {
 
     @Override
     protected ChartsData refreshInBackground(ChartsHost chartsHost, DBHandler db, GBDevice device) {
-        List<? extends ActivitySample> samples;
+        SampleBlock samples;
         if (CHARTS_SLEEP_RANGE_24H) {
-            samples = getSamples(db, device);
+            samples = getSampleBlock(db, device);
         } else {
-            samples = getSamplesofSleep(db, device);
+            samples = getSampleBlockOfSleep(db, device);
         }
 
         MySleepChartsData mySleepChartsData = refreshSleepAmounts(device, samples);
@@ -108,12 +107,7 @@ public class SleepChartFragment extends AbstractChartFragment {
                 long tstart = mySleepChartsData.sleepSessions.get(0).getSleepStart().getTime() / 1000;
                 long tend = mySleepChartsData.sleepSessions.get(mySleepChartsData.sleepSessions.size() - 1).getSleepEnd().getTime() / 1000;
 
-                for (Iterator<ActivitySample> iterator = (Iterator<ActivitySample>) samples.iterator(); iterator.hasNext(); ) {
-                    ActivitySample sample = iterator.next();
-                    if (sample.getTimestamp() < tstart || sample.getTimestamp() > tend) {
-                        iterator.remove();
-                    }
-                }
+                samples.retainRange((int) tstart, (int) tend);
             }
         }
         DefaultChartsData chartsData = refresh(device, samples);
@@ -124,7 +118,7 @@ public class SleepChartFragment extends AbstractChartFragment {
 
 
 
-    private MySleepChartsData refreshSleepAmounts(GBDevice mGBDevice, List<? extends ActivitySample> samples) {
+    private MySleepChartsData refreshSleepAmounts(GBDevice mGBDevice, SampleBlock samples) {
         SleepAnalysis sleepAnalysis = new SleepAnalysis();
         List<SleepSession> sleepSessions = sleepAnalysis.calculateSleepSessions(samples);
 
@@ -221,70 +215,52 @@ public class SleepChartFragment extends AbstractChartFragment {
         }
     }
 
-    private Triple<Float, Integer, Integer> calculateHrData(List<? extends ActivitySample> samples) {
-        if (samples.toArray().length < 1) {
-            return Triple.of(0f, 0, 0);
-        }
-
-        List<Integer> heartRateValues = new ArrayList<>();
+    private Triple<Float, Integer, Integer> calculateHrData(SampleBlock samples) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        int count = 0;
+        float sum = 0;
         HeartRateUtils heartRateUtilsInstance = HeartRateUtils.getInstance();
-        for (ActivitySample sample : samples) {
-            if (sample.getKind() == ActivityKind.TYPE_LIGHT_SLEEP || sample.getKind() == ActivityKind.TYPE_DEEP_SLEEP) {
-                int heartRate = sample.getHeartRate();
+        for (int i = 0; i < samples.size(); i++) {
+            int kind = samples.getKind(i);
+            if (kind == ActivityKind.TYPE_LIGHT_SLEEP || kind == ActivityKind.TYPE_DEEP_SLEEP) {
+                int heartRate = samples.getHeartRate(i);
                 if (heartRateUtilsInstance.isValidHeartRateValue(heartRate)) {
-                    heartRateValues.add(heartRate);
+                    min = Math.min(min, heartRate);
+                    max = Math.max(max, heartRate);
+                    sum += heartRate;
+                    count++;
                 }
             }
         }
-        if (heartRateValues.toArray().length < 1) {
+        if (count < 1) {
             return Triple.of(0f, 0, 0);
         }
 
-        int min = Collections.min(heartRateValues);
-        int max = Collections.max(heartRateValues);
-        int count = heartRateValues.toArray().length;
-        float sum = calculateSumOfInts(heartRateValues);
         float average = sum / count;
         return Triple.of(average, min, max);
     }
 
-    private float calculateIntensitySum(List<Float> samples) {
-        float result = 0;
-        for (Float sample : samples) {
-            result += sample;
-        }
-        return result;
-    }
-
-    private float calculateSumOfInts(List<Integer> samples) {
-        float result = 0;
-        for (Integer sample : samples) {
-            result += sample;
-        }
-        return result;
-    }
-
-    private Triple<Float, Float, Float> calculateIntensityData(List<? extends ActivitySample> samples) {
-        if (samples.toArray().length < 1) {
-            return Triple.of(0f, 0f, 0f);
-        }
-
-        List<Float> allIntensities = new ArrayList<>();
-
-        for (ActivitySample s : samples) {
-            if (s.getKind() == ActivityKind.TYPE_LIGHT_SLEEP || s.getKind() == ActivityKind.TYPE_DEEP_SLEEP) {
-                float intensity = s.getIntensity();
-                allIntensities.add(intensity);
+    private Triple<Float, Float, Float> calculateIntensityData(SampleBlock samples) {
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        float sum = 0;
+        boolean found = false;
+
+        for (int i = 0; i < samples.size(); i++) {
+            int kind = samples.getKind(i);
+            if (kind == ActivityKind.TYPE_LIGHT_SLEEP || kind == ActivityKind.TYPE_DEEP_SLEEP) {
+                float intensity = samples.getIntensity(i);
+                min = Math.min(min, intensity);
+                max = Math.max(max, intensity);
+                sum += intensity;
+                found = true;
             }
         }
-        if (allIntensities.toArray().length < 1) {
+        if (!found) {
             return Triple.of(0f, 0f, 0f);
         }
 
-        Float min = Collections.min(allIntensities);
-        Float max = Collections.max(allIntensities);
-        Float sum = calculateIntensitySum(allIntensities);
-
         return Triple.of(sum, min, max);
     }
 
@@ -25,6 +25,9 @@ import java.util.List;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.activities.HeartRateUtils;
+import nodomain.freeyourgadget.gadgetbridge.devices.ActivitySampleVisitor;
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySession;
@@ -35,119 +38,170 @@ public class StepAnalysis {
     private int totalDailySteps = 0;
 
     public List<ActivitySession> calculateStepSessions(List<? extends ActivitySample> samples) {
-        List<ActivitySession> result = new ArrayList<>();
-        ActivityUser activityUser = new ActivityUser();
-        double STEP_LENGTH_M;
-        final int MIN_SESSION_LENGTH = 60 * GBApplication.getPrefs().getInt("chart_list_min_session_length", 5);
-        final int MAX_IDLE_PHASE_LENGTH = 60 * GBApplication.getPrefs().getInt("chart_list_max_idle_phase_length", 5);
-        final int MIN_STEPS_PER_MINUTE = GBApplication.getPrefs().getInt("chart_list_min_steps_per_minute", 40);
-        int stepLengthCm = activityUser.getStepLengthCm();
-        int heightCm = activityUser.getHeightCm();
-        totalDailySteps = 0;
-
-        if (stepLengthCm == 0 && heightCm != 0) {
-            STEP_LENGTH_M = heightCm * 0.43 * 0.01;
-        } else {
-            STEP_LENGTH_M = stepLengthCm * 0.01;
+        SessionsVisitor visitor = new SessionsVisitor();
+        for (ActivitySample sample : samples) {
+            visitor.visit(sample);
         }
-        final double MIN_SESSION_INTENSITY = Math.max(0, Math.min(1, MIN_STEPS_PER_MINUTE * 0.01));
+        return visitor.getResult();
+    }
 
-        ActivitySample previousSample = null;
-        Date sessionStart = null;
-        Date sessionEnd;
-        int activeSteps = 0; //steps that we count
-        int stepsBetweenActivePeriods = 0; //steps during time when we maybe take a rest but then restart
-        int durationSinceLastActiveStep = 0;
-        int activityKind;
+    /**
+     * Like #calculateStepSessions(List), but streams the samples from the provider in
+     * a single pass instead of loading them all into memory first.
+     */
+    public List<ActivitySession> calculateStepSessions(SampleProvider<? extends AbstractActivitySample> provider, int timestampFrom, int timestampTo) {
+        SessionsVisitor visitor = new SessionsVisitor();
+        provider.visitAllActivitySamples(timestampFrom, timestampTo, visitor);
+        return visitor.getResult();
+    }
 
-        List<Integer> heartRateSum = new ArrayList<>();
-        List<Integer> heartRateBetweenActivePeriodsSum = new ArrayList<>();
+    /**
+     * Like #calculateStepSessions(List), but works on the primitive arrays of a SampleBlock.
+     */
+    public List<ActivitySession> calculateStepSessions(SampleBlock samples) {
+        SessionsVisitor visitor = new SessionsVisitor();
+        for (int i = 0; i < samples.size(); i++) {
+            visitor.visit(samples.getTimestamp(i), samples.getKind(i), samples.getSteps(i),
+                    samples.getIntensity(i), samples.getHeartRate(i), samples.isPadding(i));
+        }
+        return visitor.getResult();
+    }
 
-        float activeIntensity = 0;
-        float intensityBetweenActivePeriods = 0;
-        HeartRateUtils heartRateUtilsInstance = HeartRateUtils.getInstance();
+    private class SessionsVisitor implements ActivitySampleVisitor<ActivitySample> {
+        private final List<ActivitySession> result = new ArrayList<>();
+        private final double STEP_LENGTH_M;
+        private final int MIN_SESSION_LENGTH = 60 * GBApplication.getPrefs().getInt("chart_list_min_session_length", 5);
+        private final int MAX_IDLE_PHASE_LENGTH = 60 * GBApplication.getPrefs().getInt("chart_list_max_idle_phase_length", 5);
+        private final int MIN_STEPS_PER_MINUTE = GBApplication.getPrefs().getInt("chart_list_min_steps_per_minute", 40);
+        private final double MIN_SESSION_INTENSITY = Math.max(0, Math.min(1, MIN_STEPS_PER_MINUTE * 0.01));
+        private final HeartRateUtils heartRateUtilsInstance = HeartRateUtils.getInstance();
+
+        // only the timestamp of the previous sample, samples may be reused by the provider
+        private boolean hasPreviousSample = false;
+        private int previousTimestamp;
+        private Date sessionStart = null;
+        private int activeSteps = 0; //steps that we count
+        private int stepsBetweenActivePeriods = 0; //steps during time when we maybe take a rest but then restart
+        private int durationSinceLastActiveStep = 0;
+
+        // sums and counts of valid heart rate values, kept as primitives
+        private int heartRateSum = 0;
+        private int heartRateCount = 0;
+        private int heartRateBetweenActivePeriodsSum = 0;
+        private int heartRateBetweenActivePeriodsCount = 0;
+
+        private float activeIntensity = 0;
+        private float intensityBetweenActivePeriods = 0;
+
+        SessionsVisitor() {
+            ActivityUser activityUser = new ActivityUser();
+            int stepLengthCm = activityUser.getStepLengthCm();
+            int heightCm = activityUser.getHeightCm();
+            totalDailySteps = 0;
+
+            if (stepLengthCm == 0 && heightCm != 0) {
+                STEP_LENGTH_M = heightCm * 0.43 * 0.01;
+            } else {
+                STEP_LENGTH_M = stepLengthCm * 0.01;
+            }
+        }
 
-        for (ActivitySample sample : samples) {
-            int steps = sample.getSteps();
+        @Override
+        public void visit(ActivitySample sample) {
+            visit(sample.getTimestamp(), sample.getKind(), sample.getSteps(), sample.getIntensity(),
+                    sample.getHeartRate(), sample instanceof TrailingActivitySample);
+        }
+
+        void visit(int timestamp, int kind, int steps, float intensity, int heartRate, boolean trailing) {
             if (steps > 0) {
                 totalDailySteps += steps;
             }
 
-            if (sample.getKind() != ActivityKind.TYPE_SLEEP //anything but sleep counts
-                    && !(sample instanceof TrailingActivitySample)) { //trailing samples have wrong date and make trailing activity have 0 duration
+            if (kind != ActivityKind.TYPE_SLEEP //anything but sleep counts
+                    && !trailing) { //trailing samples have wrong date and make trailing activity have 0 duration
 
                 if (sessionStart == null) {
-                    sessionStart = getDateFromSample(sample);
-                    activeSteps = sample.getSteps();
-                    activeIntensity = sample.getIntensity();
-                    heartRateSum = new ArrayList<>();
-                    if (heartRateUtilsInstance.isValidHeartRateValue(sample.getHeartRate())) {
-                        heartRateSum.add(sample.getHeartRate());
+                    sessionStart = new Date(timestamp * 1000L);
+                    activeSteps = steps;
+                    activeIntensity = intensity;
+                    heartRateSum = 0;
+                    heartRateCount = 0;
+                    if (heartRateUtilsInstance.isValidHeartRateValue(heartRate)) {
+                        heartRateSum += heartRate;
+                        heartRateCount++;
                     }
                     durationSinceLastActiveStep = 0;
                     stepsBetweenActivePeriods = 0;
-                    heartRateBetweenActivePeriodsSum = new ArrayList<>();
-                    previousSample = null;
+                    heartRateBetweenActivePeriodsSum = 0;
+                    heartRateBetweenActivePeriodsCount = 0;
+                    hasPreviousSample = false;
                 }
-                if (previousSample != null) {
-                    int durationSinceLastSample = sample.getTimestamp() - previousSample.getTimestamp();
-
-                    if (sample.getSteps() > MIN_STEPS_PER_MINUTE || //either some steps
-                            (sample.getIntensity() > MIN_SESSION_INTENSITY && sample.getSteps() > 0)) { //or some intensity plus at least one step
-                        activeSteps += sample.getSteps() + stepsBetweenActivePeriods;
-                        activeIntensity += sample.getIntensity() + intensityBetweenActivePeriods;
-                        if (heartRateUtilsInstance.isValidHeartRateValue(sample.getHeartRate())) {
-                            heartRateSum.add(sample.getHeartRate());
+                if (hasPreviousSample) {
+                    int durationSinceLastSample = timestamp - previousTimestamp;
+
+                    if (steps > MIN_STEPS_PER_MINUTE || //either some steps
+                            (intensity > MIN_SESSION_INTENSITY && steps > 0)) { //or some intensity plus at least one step
+                        activeSteps += steps + stepsBetweenActivePeriods;
+                        activeIntensity += intensity + intensityBetweenActivePeriods;
+                        if (heartRateUtilsInstance.isValidHeartRateValue(heartRate)) {
+                            heartRateSum += heartRate;
+                            heartRateCount++;
                         }
-                        heartRateSum.addAll(heartRateBetweenActivePeriodsSum);
-                        heartRateBetweenActivePeriodsSum = new ArrayList<>();
+                        heartRateSum += heartRateBetweenActivePeriodsSum;
+                        heartRateCount += heartRateBetweenActivePeriodsCount;
+                        heartRateBetweenActivePeriodsSum = 0;
+                        heartRateBetweenActivePeriodsCount = 0;
                         stepsBetweenActivePeriods = 0;
                         intensityBetweenActivePeriods = 0;
                         durationSinceLastActiveStep = 0;
 
                     } else { //short break data to remember, we will add it to the rest later, if break not too long
-                        stepsBetweenActivePeriods += sample.getSteps();
-                        if (heartRateUtilsInstance.isValidHeartRateValue(sample.getHeartRate())) {
-                            heartRateBetweenActivePeriodsSum.add(sample.getHeartRate());
+                        stepsBetweenActivePeriods += steps;
+                        if (heartRateUtilsInstance.isValidHeartRateValue(heartRate)) {
+                            heartRateBetweenActivePeriodsSum += heartRate;
+                            heartRateBetweenActivePeriodsCount++;
                         }
                         durationSinceLastActiveStep += durationSinceLastSample;
-                        intensityBetweenActivePeriods += sample.getIntensity();
+                        intensityBetweenActivePeriods += intensity;
                     }
                     if (durationSinceLastActiveStep >= MAX_IDLE_PHASE_LENGTH) { //break too long, we split here
 
-                        int current = sample.getTimestamp();
+                        int current = timestamp;
                         int starting = (int) (sessionStart.getTime() / 1000);
                         int session_length = current - starting - durationSinceLastActiveStep;
 
                         if (session_length >= MIN_SESSION_LENGTH) { //valid activity session
-                            int heartRateAverage = heartRateSum.toArray().length > 0 ? calculateSumOfInts(heartRateSum) / heartRateSum.toArray().length : 0;
-                            float distance = (float) (activeSteps * STEP_LENGTH_M);
-                            sessionEnd = new Date((sample.getTimestamp() - durationSinceLastActiveStep) * 1000L);
-                            activityKind = detect_activity_kind(session_length, activeSteps, heartRateAverage, activeIntensity);
-                            result.add(new ActivitySession(sessionStart, sessionEnd, activeSteps, heartRateAverage, activeIntensity, distance, activityKind));
+                            addSession(new Date((timestamp - durationSinceLastActiveStep) * 1000L), session_length);
                         }
                         sessionStart = null;
                     }
                 }
-                previousSample = sample;
+                hasPreviousSample = true;
+                previousTimestamp = timestamp;
             }
         }
-        //trailing activity: make sure we show the last portion of the data as well in case no further activity is recorded yet
-
-        if (sessionStart != null && previousSample != null) {
-            int current = previousSample.getTimestamp();
-            int starting = (int) (sessionStart.getTime() / 1000);
-            int session_length = current - starting - durationSinceLastActiveStep;
-
-            if (session_length >= MIN_SESSION_LENGTH) {
-                int heartRateAverage = heartRateSum.toArray().length > 0 ? calculateSumOfInts(heartRateSum) / heartRateSum.toArray().length : 0;
-                float distance = (float) (activeSteps * STEP_LENGTH_M);
-                sessionEnd = getDateFromSample(previousSample);
-                activityKind = detect_activity_kind(session_length, activeSteps, heartRateAverage, activeIntensity);
-                result.add(new ActivitySession(sessionStart, sessionEnd, activeSteps, heartRateAverage, activeIntensity, distance, activityKind));
+
+        List<ActivitySession> getResult() {
+            //trailing activity: make sure we show the last portion of the data as well in case no further activity is recorded yet
+
+            if (sessionStart != null && hasPreviousSample) {
+                int current = previousTimestamp;
+                int starting = (int) (sessionStart.getTime() / 1000);
+                int session_length = current - starting - durationSinceLastActiveStep;
+
+                if (session_length >= MIN_SESSION_LENGTH) {
+                    addSession(new Date(previousTimestamp * 1000L), session_length);
+                }
             }
+            return result;
+        }
+
+        private void addSession(Date sessionEnd, int session_length) {
+            int heartRateAverage = heartRateCount > 0 ? heartRateSum / heartRateCount : 0;
+            float distance = (float) (activeSteps * STEP_LENGTH_M);
+            int activityKind = detect_activity_kind(session_length, activeSteps, heartRateAverage, activeIntensity);
+            result.add(new ActivitySession(sessionStart, sessionEnd, activeSteps, heartRateAverage, activeIntensity, distance, activityKind));
         }
-        return result;
     }
 
     public List<ActivitySession> calculateSummary(List<ActivitySession> sessions, boolean empty) {
@@ -217,8 +271,4 @@ public class StepAnalysis {
         }
         return ActivityKind.TYPE_ACTIVITY;
     }
-
-    private Date getDateFromSample(ActivitySample sample) {
-        return new Date(sample.getTimestamp() * 1000L);
-    }
 }
@@ -27,11 +27,21 @@ import nodomain.freeyourgadget.gadgetbridge.util.GB;
 public abstract class DBAccess extends AsyncTask {
     private final String mTask;
     private final Context mContext;
+    private final boolean mReadOnly;
     private Exception mError;
 
     public DBAccess(String task, Context context) {
+        this(task, context, false);
+    }
+
+    /**
+     * @param readOnly if true, the task runs with a read-only handler that does not
+     *                 wait for the global database lock
+     */
+    public DBAccess(String task, Context context, boolean readOnly) {
         mTask = task;
         mContext = context;
+        mReadOnly = readOnly;
     }
 
     public Context getContext() {
@@ -42,7 +52,7 @@ public abstract class DBAccess extends AsyncTask {
 
     @Override
     protected Object doInBackground(Object[] params) {
-        try (DBHandler db = GBApplication.acquireDB()) {
+        try (DBHandler db = mReadOnly ? GBApplication.acquireReadOnlyDB() : GBApplication.acquireDB()) {
             doInBackground(db);
         } catch (Exception e) {
             mError = e;
@@ -45,7 +45,9 @@ import de.greenrobot.dao.query.QueryBuilder;
 import de.greenrobot.dao.query.WhereCondition;
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.activities.devicesettings.DeviceSettingsPreferenceConst;
+import nodomain.freeyourgadget.gadgetbridge.devices.AbstractSampleProvider;
 import nodomain.freeyourgadget.gadgetbridge.devices.DeviceCoordinator;
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
 import nodomain.freeyourgadget.gadgetbridge.entities.ActivityDescription;
 import nodomain.freeyourgadget.gadgetbridge.entities.ActivityDescriptionDao;
 import nodomain.freeyourgadget.gadgetbridge.entities.Alarm;
@@ -60,6 +62,7 @@ import nodomain.freeyourgadget.gadgetbridge.entities.TagDao;
 import nodomain.freeyourgadget.gadgetbridge.entities.User;
 import nodomain.freeyourgadget.gadgetbridge.entities.UserAttributes;
 import nodomain.freeyourgadget.gadgetbridge.entities.UserDao;
+import nodomain.freeyourgadget.gadgetbridge.externalevents.NotificationFilterCache;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityUser;
 import nodomain.freeyourgadget.gadgetbridge.model.ValidByDate;
@@ -146,6 +149,7 @@ public class DBHelper {
             FileUtils.copyFile(fromFile, toFile);
         } finally {
             dbHandler.openDb();
+            NotificationFilterCache.invalidate();
         }
     }
 
@@ -393,6 +397,27 @@ public class DBHelper {
         return daoSession.getDeviceDao().loadAll();
     }
 
+    /**
+     * Moves the activity samples of all devices that are older than the given number of
+     * days into compressed archive blocks, for the sample providers that support it. At most
+     * maxDays days are archived per device, callers repeat this until it returns 0.
+     * @see AbstractSampleProvider#archiveSamplesOlderThan(int, int)
+     * @return the number of archived samples
+     */
+    public static int archiveActivitySamples(int olderThanDays, int maxDays, DaoSession session) {
+        int timestamp = (int) (System.currentTimeMillis() / 1000) - olderThanDays * 24 * 60 * 60;
+        int archived = 0;
+        DeviceHelper deviceHelper = DeviceHelper.getInstance();
+        for (Device dbDevice : getActiveDevices(session)) {
+            GBDevice gbDevice = deviceHelper.toGBDevice(dbDevice);
+            SampleProvider<?> provider = deviceHelper.getCoordinator(gbDevice).getSampleProvider(gbDevice, session);
+            if (provider instanceof AbstractSampleProvider) {
+                archived += ((AbstractSampleProvider<?>) provider).archiveSamplesOlderThan(timestamp, maxDays);
+            }
+        }
+        return archived;
+    }
+
     /**
      * Looks up in the database the Device entity corresponding to the GBDevice. If a device
      * exists already, it will be updated with the current preferences values. If no device exists
@@ -0,0 +1,101 @@
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects wait and hold times of database handler acquisitions, so that contention
+ * between the chart/widget readers and the device writers becomes visible.
+ * All methods are thread safe.
+ */
+public class DBLockMetrics {
+    private final String name;
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong totalHoldNanos = new AtomicLong();
+    private final AtomicLong maxHoldNanos = new AtomicLong();
+
+    public DBLockMetrics(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void recordWait(long waitNanos) {
+        acquisitions.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        updateMax(maxWaitNanos, waitNanos);
+    }
+
+    public void recordHold(long holdNanos) {
+        totalHoldNanos.addAndGet(holdNanos);
+        updateMax(maxHoldNanos, holdNanos);
+    }
+
+    public void recordTimeout() {
+        timeouts.incrementAndGet();
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getAverageWaitMillis() {
+        return average(totalWaitNanos.get());
+    }
+
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    public long getAverageHoldMillis() {
+        return average(totalHoldNanos.get());
+    }
+
+    public long getMaxHoldMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxHoldNanos.get());
+    }
+
+    public void reset() {
+        acquisitions.set(0);
+        timeouts.set(0);
+        totalWaitNanos.set(0);
+        maxWaitNanos.set(0);
+        totalHoldNanos.set(0);
+        maxHoldNanos.set(0);
+    }
+
+    private long average(long totalNanos) {
+        long count = acquisitions.get();
+        if (count == 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(totalNanos / count);
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        do {
+            current = max.get();
+            if (value <= current) {
+                return;
+            }
+        } while (!max.compareAndSet(current, value));
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s: %d acquisitions, %d timeouts, wait avg/max %d/%d ms, hold avg/max %d/%d ms",
+                name, getAcquisitions(), getTimeouts(), getAverageWaitMillis(), getMaxWaitMillis(),
+                getAverageHoldMillis(), getMaxHoldMillis());
+    }
+}
@@ -0,0 +1,105 @@
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.util.GBPrefs;
+
+/**
+ * Moves old activity samples into compressed archive blocks once a day, if enabled. The
+ * samples are archived a few days at a time, releasing the database in between, so that
+ * the first run over a large database does not keep writers waiting. The database file is
+ * vacuumed afterwards, otherwise the freed pages would not make it any smaller.
+ */
+public class PeriodicSampleArchiver extends BroadcastReceiver {
+    private static final Logger LOG = LoggerFactory.getLogger(PeriodicSampleArchiver.class);
+
+    // the days archived per device while holding the database
+    private static final int DAYS_PER_CHUNK = 7;
+
+    private static final AtomicBoolean running = new AtomicBoolean();
+
+    public static void enablePeriodicArchive(Context context) {
+        int archiveAfterDays = GBApplication.getPrefs().getInt(GBPrefs.ARCHIVE_SAMPLES_AFTER_DAYS, 0);
+        scheduleAlarm(context, archiveAfterDays);
+    }
+
+    public static void scheduleAlarm(Context context, int archiveAfterDays) {
+        Intent i = new Intent(context, PeriodicSampleArchiver.class);
+        PendingIntent pi = PendingIntent.getBroadcast(context, 0, i, 0);
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        am.cancel(pi);
+        if (archiveAfterDays <= 0) {
+            return;
+        }
+        LOG.info("Enabling periodic sample archiving");
+        am.setInexactRepeating(
+                AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR,
+                AlarmManager.INTERVAL_DAY,
+                pi
+        );
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final int archiveAfterDays = GBApplication.getPrefs().getInt(GBPrefs.ARCHIVE_SAMPLES_AFTER_DAYS, 0);
+        if (archiveAfterDays <= 0) {
+            return;
+        }
+        if (!running.compareAndSet(false, true)) {
+            LOG.info("Still archiving activity samples");
+            return;
+        }
+        new Thread("Gadgetbridge Sample Archiver") {
+            @Override
+            public void run() {
+                try {
+                    archiveActivitySamples(archiveAfterDays);
+                } finally {
+                    running.set(false);
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Archives the samples older than the given number of days. If the process dies in
+     * between, the days archived so far are kept and the next run continues with the rest.
+     */
+    private static void archiveActivitySamples(int archiveAfterDays) {
+        long start = System.currentTimeMillis();
+        int total = 0;
+        try {
+            int archived;
+            do {
+                try (DBHandler dbHandler = GBApplication.acquireDB()) {
+                    archived = DBHelper.archiveActivitySamples(archiveAfterDays, DAYS_PER_CHUNK, dbHandler.getDaoSession());
+                }
+                total += archived;
+            } while (archived > 0);
+            LOG.info("Archived " + total + " activity samples older than " + archiveAfterDays + " days in "
+                    + (System.currentTimeMillis() - start) + " ms");
+
+            if (total > 0) {
+                start = System.currentTimeMillis();
+                try (DBHandler dbHandler = GBApplication.acquireDB()) {
+                    dbHandler.getDatabase().execSQL("VACUUM");
+                }
+                LOG.info("Vacuumed the database in " + (System.currentTimeMillis() - start) + " ms");
+            }
+        } catch (Exception ex) {
+            LOG.error("Error archiving activity samples after " + total + " samples", ex);
+        }
+    }
+}
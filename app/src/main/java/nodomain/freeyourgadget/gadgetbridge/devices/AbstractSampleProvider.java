@@ -17,21 +17,34 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.devices;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import de.greenrobot.dao.AbstractDao;
 import de.greenrobot.dao.Property;
+import de.greenrobot.dao.query.DeleteQuery;
+import de.greenrobot.dao.query.LazyList;
+import de.greenrobot.dao.query.Query;
 import de.greenrobot.dao.query.QueryBuilder;
 import de.greenrobot.dao.query.WhereCondition;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
 import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.ActivitySampleArchive;
+import nodomain.freeyourgadget.gadgetbridge.entities.ActivitySampleArchiveDao;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmounts;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
 
 /**
@@ -40,7 +53,15 @@ import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
  * @param <T> the sample type
  */
 public abstract class AbstractSampleProvider<T extends AbstractActivitySample> implements SampleProvider<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(AbstractSampleProvider.class);
     private static final WhereCondition[] NO_CONDITIONS = new WhereCondition[0];
+    private static final int DAY = 24 * 60 * 60;
+    private static final Comparator<AbstractActivitySample> TIMESTAMP_ORDER = new Comparator<AbstractActivitySample>() {
+        @Override
+        public int compare(AbstractActivitySample lhs, AbstractActivitySample rhs) {
+            return lhs.getTimestamp() < rhs.getTimestamp() ? -1 : (lhs.getTimestamp() == rhs.getTimestamp() ? 0 : 1);
+        }
+    };
     private final DaoSession mSession;
     private final GBDevice mDevice;
 
@@ -80,14 +101,154 @@ public abstract class AbstractSampleProvider<T extends AbstractActivitySample> i
         }
     }
 
+    @Override
+    public void visitAllActivitySamples(int timestamp_from, int timestamp_to, ActivitySampleVisitor<? super T> visitor) {
+        Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
+        if (dbDevice == null) {
+            // no device, no samples
+            return;
+        }
+        QueryBuilder<T> qb = getSampleDao().queryBuilder();
+        Property timestampProperty = getTimestampSampleProperty();
+        qb.where(getDeviceIdentifierSampleProperty().eq(dbDevice.getId()), timestampProperty.ge(timestamp_from))
+                .where(timestampProperty.le(timestamp_to))
+                .orderAsc(timestampProperty);
+        // uncached: every entity is only referenced until the visitor returns
+        LazyList<T> samples = qb.build().listLazyUncached();
+        LazyList<ActivitySampleArchive> blocks = null;
+        try {
+            if (supportsSampleArchive()) {
+                blocks = getArchiveQuery(dbDevice.getId(), timestamp_from, timestamp_to).listLazyUncached();
+            }
+            if (blocks == null || blocks.isEmpty()) {
+                for (T sample : samples) {
+                    sample.setProvider(this);
+                    visitor.visit(sample);
+                }
+            } else {
+                visitMergedSamples(samples.iterator(), new ArchivedSampleIterator(blocks.iterator(), timestamp_from, timestamp_to), visitor);
+            }
+        } finally {
+            samples.close();
+            if (blocks != null) {
+                blocks.close();
+                getArchiveDao().detachAll();
+            }
+        }
+    }
+
+    /**
+     * Visits the samples of both time-ordered sources in time order. Where both have a
+     * sample with the same timestamp, only the database row is visited.
+     */
+    private void visitMergedSamples(Iterator<T> samples, ArchivedSampleIterator archived, ActivitySampleVisitor<? super T> visitor) {
+        T nextSample = samples.hasNext() ? samples.next() : null;
+        T nextArchived = archived.next();
+        while (nextSample != null || nextArchived != null) {
+            T sample;
+            if (nextArchived == null || (nextSample != null && nextSample.getTimestamp() <= nextArchived.getTimestamp())) {
+                if (nextArchived != null && nextArchived.getTimestamp() == nextSample.getTimestamp()) {
+                    nextArchived = archived.next();
+                }
+                sample = nextSample;
+                nextSample = samples.hasNext() ? samples.next() : null;
+            } else {
+                sample = nextArchived;
+                nextArchived = archived.next();
+            }
+            sample.setProvider(this);
+            visitor.visit(sample);
+        }
+    }
+
+    /**
+     * Adds a single sample. Its rollup is only marked as outdated and recomputed later, as
+     * many drivers add their samples one by one; prefer {@link #addGBActivitySamples(List)}.
+     */
     @Override
     public void addGBActivitySample(T activitySample) {
         getSampleDao().insertOrReplace(activitySample);
+        if (supportsActivityRollups()) {
+            new ActivityRollupHelper(this, activitySample.getDeviceId()).invalidate(activitySample.getTimestamp());
+        }
     }
 
     @Override
     public void addGBActivitySamples(T[] activitySamples) {
+        addGBActivitySamples(Arrays.asList(activitySamples));
+    }
+
+    /**
+     * Adds the given samples in a single transaction.
+     */
+    public void addGBActivitySamples(List<T> activitySamples) {
         getSampleDao().insertOrReplaceInTx(activitySamples);
+        if (activitySamples.isEmpty()) {
+            return;
+        }
+        int timestampFrom = Integer.MAX_VALUE;
+        int timestampTo = Integer.MIN_VALUE;
+        for (T sample : activitySamples) {
+            timestampFrom = Math.min(timestampFrom, sample.getTimestamp());
+            timestampTo = Math.max(timestampTo, sample.getTimestamp());
+        }
+        updateActivityRollups(activitySamples.get(0).getDeviceId(), timestampFrom, timestampTo);
+    }
+
+    @Nullable
+    @Override
+    public ActivityAmounts getActivityAmountsFromRollups(int timestamp_from, int timestamp_to) {
+        if (!supportsActivityRollups()) {
+            return null;
+        }
+        Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
+        if (dbDevice == null) {
+            return null;
+        }
+        return new ActivityRollupHelper(this, dbDevice.getId()).getActivityAmounts(timestamp_from, timestamp_to);
+    }
+
+    /**
+     * Counts the samples of the given device and time span, including archived ones,
+     * without loading them.
+     */
+    long countActivitySamples(long deviceId, int timestamp_from, int timestamp_to) {
+        Property timestampProperty = getTimestampSampleProperty();
+        long count = getSampleDao().queryBuilder()
+                .where(getDeviceIdentifierSampleProperty().eq(deviceId), timestampProperty.between(timestamp_from, timestamp_to))
+                .count();
+        if (supportsSampleArchive()) {
+            List<ActivitySampleArchive> blocks = getArchiveQuery(deviceId, timestamp_from, timestamp_to).list();
+            getArchiveDao().detachAll();
+            for (ActivitySampleArchive block : blocks) {
+                if (block.getTimestamp() >= timestamp_from && block.getTimestamp() + DAY - 1 <= timestamp_to) {
+                    count += block.getSampleCount();
+                    continue;
+                }
+                for (T sample : decode(block)) {
+                    if (sample.getTimestamp() >= timestamp_from && sample.getTimestamp() <= timestamp_to) {
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns whether the samples of this provider may be summarized in the hourly
+     * ActivityRollup table. Providers that modify the samples at query time based on
+     * data from other tables (e.g. activity kind overlays), or whose samples are not
+     * written through this provider, must return false.
+     */
+    protected boolean supportsActivityRollups() {
+        return true;
+    }
+
+    private void updateActivityRollups(long deviceId, int timestampFrom, int timestampTo) {
+        if (supportsActivityRollups()) {
+            new ActivityRollupHelper(this, deviceId).update(timestampFrom, timestampTo);
+        }
     }
 
     @Nullable
@@ -102,14 +263,68 @@ public abstract class AbstractSampleProvider<T extends AbstractActivitySample> i
         Property deviceProperty = getDeviceIdentifierSampleProperty();
         qb.where(deviceProperty.eq(dbDevice.getId())).orderDesc(getTimestampSampleProperty()).limit(1);
         List<T> samples = qb.build().list();
-        if (samples.isEmpty()) {
+        T sample = samples.isEmpty() ? null : samples.get(0);
+        if (supportsSampleArchive()) {
+            T archived = getLatestArchivedSample(dbDevice.getId());
+            if (archived != null && (sample == null || archived.getTimestamp() > sample.getTimestamp())) {
+                sample = archived;
+            }
+        }
+        if (sample == null) {
             return null;
         }
-        T sample = samples.get(0);
         sample.setProvider(this);
         return sample;
     }
 
+    @Nullable
+    private T getLatestArchivedSample(long deviceId) {
+        List<ActivitySampleArchive> blocks = getArchiveDao().queryBuilder()
+                .where(ActivitySampleArchiveDao.Properties.DeviceId.eq(deviceId))
+                .orderDesc(ActivitySampleArchiveDao.Properties.Timestamp)
+                .limit(1).build().list();
+        getArchiveDao().detachAll();
+        if (blocks.isEmpty()) {
+            return null;
+        }
+        List<T> samples = decode(blocks.get(0));
+        return samples.isEmpty() ? null : samples.get(samples.size() - 1);
+    }
+
+    /**
+     * Returns the newest archived sample of the given device in the given time span whose raw
+     * kind is none of the given ones, or null. The day blocks are decoded newest first, only
+     * until such a sample is found.
+     */
+    @Nullable
+    protected T getLatestArchivedSample(long deviceId, int timestamp_from, int timestamp_to, Collection<Integer> ignoredRawKinds) {
+        if (!supportsSampleArchive()) {
+            return null;
+        }
+        LazyList<ActivitySampleArchive> blocks = getArchiveDao().queryBuilder()
+                .where(ActivitySampleArchiveDao.Properties.DeviceId.eq(deviceId),
+                        ActivitySampleArchiveDao.Properties.Timestamp.between(floorDay(timestamp_from), timestamp_to))
+                .orderDesc(ActivitySampleArchiveDao.Properties.Timestamp)
+                .build().listLazyUncached();
+        try {
+            for (ActivitySampleArchive block : blocks) {
+                List<T> samples = decode(block);
+                for (int i = samples.size() - 1; i >= 0; i--) {
+                    T sample = samples.get(i);
+                    if (sample.getTimestamp() >= timestamp_from && sample.getTimestamp() <= timestamp_to
+                            && !ignoredRawKinds.contains(sample.getRawKind())) {
+                        sample.setProvider(this);
+                        return sample;
+                    }
+                }
+            }
+            return null;
+        } finally {
+            blocks.close();
+            getArchiveDao().detachAll();
+        }
+    }
+
     protected List<T> getGBActivitySamples(int timestamp_from, int timestamp_to, int activityType) {
         if (getRawKindSampleProperty() == null && activityType != ActivityKind.TYPE_ALL) {
             // if we do not have a raw kind property we cannot query anything else then TYPE_ALL
@@ -126,6 +341,9 @@ public abstract class AbstractSampleProvider<T extends AbstractActivitySample> i
         qb.where(deviceProperty.eq(dbDevice.getId()), timestampProperty.ge(timestamp_from))
             .where(timestampProperty.le(timestamp_to), getClauseForActivityType(qb, activityType));
         List<T> samples = qb.build().list();
+        if (supportsSampleArchive()) {
+            samples = addArchivedSamples(dbDevice.getId(), samples, timestamp_from, timestamp_to, activityType);
+        }
         for (T sample : samples) {
             sample.setProvider(this);
         }
@@ -133,6 +351,243 @@ public abstract class AbstractSampleProvider<T extends AbstractActivitySample> i
         return samples;
     }
 
+    /**
+     * Adds the archived samples of the given time span and activity type to the samples
+     * from the database, which take precedence over archived samples with the same
+     * timestamp. The result is ordered by time if there are archived samples.
+     */
+    private List<T> addArchivedSamples(long deviceId, List<T> samples, int timestamp_from, int timestamp_to, int activityType) {
+        List<ActivitySampleArchive> blocks = getArchiveQuery(deviceId, timestamp_from, timestamp_to).list();
+        getArchiveDao().detachAll();
+        if (blocks.isEmpty()) {
+            return samples;
+        }
+        int[] dbActivityTypes = activityType == ActivityKind.TYPE_ALL ? null : ActivityKind.mapToDBActivityTypes(activityType, this);
+        List<T> archived = new ArrayList<>();
+        ArchivedSampleIterator iterator = new ArchivedSampleIterator(blocks.iterator(), timestamp_from, timestamp_to);
+        for (T sample = iterator.next(); sample != null; sample = iterator.next()) {
+            if (dbActivityTypes == null || contains(dbActivityTypes, sample.getRawKind())) {
+                archived.add(sample);
+            }
+        }
+        Collections.sort(samples, TIMESTAMP_ORDER);
+        return mergeSamples(archived, samples);
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Merges two time-ordered lists of samples. Samples of the second list replace
+     * those of the first one with the same timestamp.
+     */
+    private List<T> mergeSamples(List<T> first, List<T> second) {
+        List<T> result = new ArrayList<>(first.size() + second.size());
+        int i = 0;
+        int j = 0;
+        while (i < first.size() || j < second.size()) {
+            if (j == second.size() || (i < first.size() && first.get(i).getTimestamp() < second.get(j).getTimestamp())) {
+                result.add(first.get(i++));
+            } else {
+                if (i < first.size() && first.get(i).getTimestamp() == second.get(j).getTimestamp()) {
+                    i++;
+                }
+                result.add(second.get(j++));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether old samples of this provider may be moved into compressed
+     * ActivitySampleArchive blocks by {@link #archiveSamplesOlderThan(int)}. Only the
+     * values defined by AbstractActivitySample are archived, so providers whose samples
+     * have further columns (e.g. raw data, calories or distance), or that modify the
+     * samples at query time based on other tables, must return false.
+     */
+    protected boolean supportsSampleArchive() {
+        return false;
+    }
+
+    /**
+     * Moves the samples of all days (UTC) before the given timestamp from the sample table
+     * into ActivitySampleArchive blocks, one per day. Archived samples are still returned
+     * by all queries of this provider, but take only a fraction of the space. Samples that
+     * are added for already archived days are merged into their block on the next call.
+     *
+     * @return the number of archived samples
+     */
+    public int archiveSamplesOlderThan(int timestamp) {
+        return archiveSamplesOlderThan(timestamp, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #archiveSamplesOlderThan(int)}, but archives at most the given number of
+     * days, so that callers can release the database between chunks. Each day is archived
+     * in its own transaction.
+     *
+     * @return the number of archived samples, 0 if there is nothing left to archive
+     */
+    public int archiveSamplesOlderThan(int timestamp, int maxDays) {
+        if (!supportsSampleArchive()) {
+            return 0;
+        }
+        Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
+        if (dbDevice == null) {
+            return 0;
+        }
+        long deviceId = dbDevice.getId();
+        int firstKeptDay = floorDay(timestamp);
+        T next = getOldestSample(deviceId, Integer.MIN_VALUE);
+        if (next == null || next.getTimestamp() >= firstKeptDay) {
+            return 0;
+        }
+        // archived samples have to be covered by the rollups already
+        updateActivityRollups(deviceId, next.getTimestamp(), next.getTimestamp());
+
+        long start = System.currentTimeMillis();
+        int archived = 0;
+        int archivedDays = 0;
+        while (next != null && next.getTimestamp() < firstKeptDay && archivedDays < maxDays) {
+            int day = floorDay(next.getTimestamp());
+            int dayArchived = archiveDay(deviceId, day);
+            if (dayArchived > 0) {
+                archived += dayArchived;
+                archivedDays++;
+            }
+            next = getOldestSample(deviceId, day + DAY);
+        }
+        LOG.info("Archived " + archived + " samples of device " + deviceId + " in " + (System.currentTimeMillis() - start) + " ms");
+        return archived;
+    }
+
+    private int archiveDay(long deviceId, int day) {
+        Property timestampProperty = getTimestampSampleProperty();
+        List<T> samples = getSampleDao().queryBuilder()
+                .where(getDeviceIdentifierSampleProperty().eq(deviceId), timestampProperty.between(day, day + DAY - 1))
+                .orderAsc(timestampProperty)
+                .build().list();
+        detachFromSession();
+        if (samples.isEmpty()) {
+            return 0;
+        }
+        long userId = samples.get(0).getUserId();
+        for (T sample : samples) {
+            if (sample.getUserId() != userId) {
+                LOG.warn("Not archiving samples of day " + day + " of device " + deviceId + ": samples of multiple users");
+                return 0;
+            }
+        }
+
+        final ActivitySampleArchiveDao archiveDao = getArchiveDao();
+        List<ActivitySampleArchive> existing = archiveDao.queryBuilder()
+                .where(ActivitySampleArchiveDao.Properties.DeviceId.eq(deviceId), ActivitySampleArchiveDao.Properties.Timestamp.eq(day))
+                .build().list();
+        List<T> blockSamples = samples;
+        if (!existing.isEmpty()) {
+            if (existing.get(0).getUserId() != userId) {
+                LOG.warn("Not archiving samples of day " + day + " of device " + deviceId + ": archived samples of another user");
+                return 0;
+            }
+            blockSamples = mergeSamples(decode(existing.get(0)), samples);
+        }
+
+        final ActivitySampleArchive block = new ActivitySampleArchive();
+        block.setTimestamp(day);
+        block.setDeviceId(deviceId);
+        block.setUserId(userId);
+        block.setSampleCount(blockSamples.size());
+        block.setData(ActivitySampleArchiveCodec.encode(blockSamples));
+        final DeleteQuery<T> deleteQuery = getSampleDao().queryBuilder()
+                .where(getDeviceIdentifierSampleProperty().eq(deviceId), timestampProperty.between(day, day + DAY - 1))
+                .buildDelete();
+        getSession().runInTx(new Runnable() {
+            @Override
+            public void run() {
+                archiveDao.insertOrReplace(block);
+                deleteQuery.executeDeleteWithoutDetachingEntities();
+            }
+        });
+        archiveDao.detachAll();
+        detachFromSession();
+        return samples.size();
+    }
+
+    @Nullable
+    private T getOldestSample(long deviceId, int timestampFrom) {
+        Property timestampProperty = getTimestampSampleProperty();
+        List<T> samples = getSampleDao().queryBuilder()
+                .where(getDeviceIdentifierSampleProperty().eq(deviceId), timestampProperty.ge(timestampFrom))
+                .orderAsc(timestampProperty)
+                .limit(1).build().list();
+        detachFromSession();
+        return samples.isEmpty() ? null : samples.get(0);
+    }
+
+    private Query<ActivitySampleArchive> getArchiveQuery(long deviceId, int timestamp_from, int timestamp_to) {
+        return getArchiveDao().queryBuilder()
+                .where(ActivitySampleArchiveDao.Properties.DeviceId.eq(deviceId),
+                        ActivitySampleArchiveDao.Properties.Timestamp.between(floorDay(timestamp_from), timestamp_to))
+                .orderAsc(ActivitySampleArchiveDao.Properties.Timestamp)
+                .build();
+    }
+
+    private ActivitySampleArchiveDao getArchiveDao() {
+        return getSession().getActivitySampleArchiveDao();
+    }
+
+    private List<T> decode(ActivitySampleArchive block) {
+        return ActivitySampleArchiveCodec.decode(block.getData(), this, block.getDeviceId(), block.getUserId());
+    }
+
+    private static int floorDay(int timestamp) {
+        return timestamp - (timestamp % DAY);
+    }
+
+    /**
+     * Iterates over the samples of time-ordered archive blocks that are within the given
+     * time span, decoding one block at a time.
+     */
+    private class ArchivedSampleIterator {
+        private final Iterator<ActivitySampleArchive> blocks;
+        private final int timestampFrom;
+        private final int timestampTo;
+        private List<T> current = Collections.emptyList();
+        private int index;
+
+        ArchivedSampleIterator(Iterator<ActivitySampleArchive> blocks, int timestampFrom, int timestampTo) {
+            this.blocks = blocks;
+            this.timestampFrom = timestampFrom;
+            this.timestampTo = timestampTo;
+        }
+
+        /**
+         * @return the next sample or null if there are no more samples
+         */
+        @Nullable
+        T next() {
+            while (true) {
+                while (index < current.size()) {
+                    T sample = current.get(index++);
+                    if (sample.getTimestamp() >= timestampFrom && sample.getTimestamp() <= timestampTo) {
+                        return sample;
+                    }
+                }
+                if (!blocks.hasNext()) {
+                    return null;
+                }
+                current = decode(blocks.next());
+                index = 0;
+            }
+        }
+    }
+
     /**
      * Detaches all samples of this type from the session. Changes to them may not be
      * written back to the database.
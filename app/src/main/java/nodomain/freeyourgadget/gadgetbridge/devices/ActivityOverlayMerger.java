@@ -0,0 +1,71 @@
+package nodomain.freeyourgadget.gadgetbridge.devices;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import nodomain.freeyourgadget.gadgetbridge.model.TimeStamped;
+
+/**
+ * Applies overlay records, e.g. the activity kinds of sleep sessions, to the samples they cover.
+ * <p>
+ * An overlay covers the samples from its start timestamp (inclusive) to its end timestamp
+ * (exclusive). Where overlays overlap, the last one in the given list wins, like when applying
+ * them one after the other. Instead of testing every sample against every overlay, the
+ * overlays are sorted by their start and the samples are swept once in timestamp order, keeping
+ * the covering overlays in a heap by their precedence.
+ *
+ * @param <O> the type of the overlays
+ * @param <S> the type of the samples
+ */
+public abstract class ActivityOverlayMerger<O, S extends TimeStamped> {
+
+    protected abstract int getTimestampFrom(O overlay);
+
+    protected abstract int getTimestampTo(O overlay);
+
+    /**
+     * Applies the given overlay to a sample it covers. Called once for each covered sample,
+     * with the overlay that wins for the sample.
+     */
+    protected abstract void apply(O overlay, S sample);
+
+    /**
+     * @param overlays the overlays in order of precedence, later overlays win
+     * @param samples  the samples ordered by timestamp
+     */
+    public void merge(List<O> overlays, List<S> samples) {
+        int overlayCount = overlays.size();
+        if (overlayCount == 0 || samples.isEmpty()) {
+            return;
+        }
+
+        // the start of each overlay in the high bits, its index in the low bits
+        long[] starts = new long[overlayCount];
+        int[] ends = new int[overlayCount];
+        for (int i = 0; i < overlayCount; i++) {
+            O overlay = overlays.get(i);
+            starts[i] = ((long) getTimestampFrom(overlay) << 32) | i;
+            ends[i] = getTimestampTo(overlay);
+        }
+        Arrays.sort(starts);
+
+        // the started overlays, latest first; ended ones are removed once they are on top
+        PriorityQueue<Integer> active = new PriorityQueue<>(16, Collections.<Integer>reverseOrder());
+        int nextStart = 0;
+        for (S sample : samples) {
+            int timestamp = sample.getTimestamp();
+            while (nextStart < overlayCount && (int) (starts[nextStart] >> 32) <= timestamp) {
+                active.add((int) starts[nextStart]);
+                nextStart++;
+            }
+            while (!active.isEmpty() && ends[active.peek()] <= timestamp) {
+                active.poll();
+            }
+            if (!active.isEmpty()) {
+                apply(overlays.get(active.peek()), sample);
+            }
+        }
+    }
+}
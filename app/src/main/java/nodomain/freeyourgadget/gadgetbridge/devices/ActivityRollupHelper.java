@@ -0,0 +1,359 @@
+package nodomain.freeyourgadget.gadgetbridge.devices;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import de.greenrobot.dao.AbstractDao;
+import de.greenrobot.dao.Property;
+import de.greenrobot.dao.query.QueryBuilder;
+import nodomain.freeyourgadget.gadgetbridge.activities.HeartRateUtils;
+import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.ActivityRollup;
+import nodomain.freeyourgadget.gadgetbridge.entities.ActivityRollupDao;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmount;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmounts;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+
+/**
+ * Maintains and reads the hourly ActivityRollup rows of a single device.
+ * <p>
+ * The rollup of an hour is always recomputed from the samples of that hour (plus the
+ * last sample before it), so adding the same samples again does not count them twice.
+ * Durations are attributed like in ActivityAnalysis: the time between two consecutive
+ * samples belongs to the second one, and is split in half if the kind changed.
+ * <p>
+ * Rollups are keyed by UTC hour, so they can only be summed up for time spans of whole
+ * UTC hours. In time zones with a :30 or :45 offset, local days are not made of such
+ * hours, and the readers have to fall back to the samples.
+ * <p>
+ * Rollups of a time span are only used if they account for all samples within it,
+ * which also detects samples that were written past the sample provider. Devices with
+ * samples from before the rollup table existed are backfilled on the next write.
+ * <p>
+ * Samples that are added one by one only mark their hour as outdated, see
+ * {@link #invalidate(int)}.
+ */
+public class ActivityRollupHelper {
+    private static final Logger LOG = LoggerFactory.getLogger(ActivityRollupHelper.class);
+
+    public static final int HOUR = 3600;
+    private static final int BACKFILL_CHUNK = 7 * 24 * HOUR;
+
+    // the hours whose rollups were deleted by invalidate() and are yet to be recomputed, by device id
+    private static final Map<Long, Set<Integer>> outdatedHours = new HashMap<>();
+
+    private final AbstractSampleProvider<? extends AbstractActivitySample> provider;
+    private final long deviceId;
+
+    public ActivityRollupHelper(AbstractSampleProvider<? extends AbstractActivitySample> provider, long deviceId) {
+        this.provider = provider;
+        this.deviceId = deviceId;
+    }
+
+    public static int floorHour(int timestamp) {
+        return timestamp - (timestamp % HOUR);
+    }
+
+    /**
+     * Recomputes the rollups of all hours touched by the given time span.
+     * Performs a one-time backfill first if older samples are not covered yet.
+     */
+    public void update(int timestampFrom, int timestampTo) {
+        if (!updateOutdatedHours(takeOutdatedHours())) {
+            return;
+        }
+        recompute(floorHour(timestampFrom), floorHour(timestampTo));
+    }
+
+    /**
+     * Takes note of a single added sample, without recomputing its hour for every sample
+     * like {@link #update(int, int)} does. The rollup of the hour is deleted right away, so
+     * that readers fall back to the samples until it is recomputed, even across restarts.
+     * The outdated hours are recomputed in one go once a sample of another hour is added,
+     * or by the next update().
+     */
+    public void invalidate(int timestamp) {
+        int hour = floorHour(timestamp);
+        Set<Integer> previousHours;
+        synchronized (outdatedHours) {
+            previousHours = outdatedHours.get(deviceId);
+            if (previousHours != null && previousHours.contains(hour)) {
+                return;
+            }
+            Set<Integer> hours = new TreeSet<>();
+            hours.add(hour);
+            outdatedHours.put(deviceId, hours);
+        }
+        updateOutdatedHours(previousHours);
+        deleteRollups(hour, hour);
+    }
+
+    @Nullable
+    private Set<Integer> takeOutdatedHours() {
+        synchronized (outdatedHours) {
+            return outdatedHours.remove(deviceId);
+        }
+    }
+
+    /**
+     * Recomputes the given outdated hours, then backfills if older samples are not covered yet.
+     *
+     * @return false if a backfill was needed, which already recomputed all hours
+     */
+    private boolean updateOutdatedHours(@Nullable Set<Integer> hours) {
+        if (hours != null) {
+            for (int hour : hours) {
+                recompute(hour, hour);
+            }
+        }
+        if (!isComplete()) {
+            backfill();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if rollups exist for the oldest sample of the device, i.e. if
+     * all samples were taken into account.
+     */
+    public boolean isComplete() {
+        Integer oldestSample = getOldestSampleTimestamp();
+        if (oldestSample == null) {
+            return true;
+        }
+        ActivityRollupDao dao = getRollupDao();
+        List<ActivityRollup> oldest = dao.queryBuilder()
+                .where(ActivityRollupDao.Properties.DeviceId.eq(deviceId))
+                .orderAsc(ActivityRollupDao.Properties.Timestamp)
+                .limit(1).build().list();
+        return !oldest.isEmpty() && oldest.get(0).getTimestamp() <= floorHour(oldestSample);
+    }
+
+    /**
+     * Returns the rollups overlapping the given time span, ordered by time.
+     */
+    @NonNull
+    public List<ActivityRollup> getRollups(int timestampFrom, int timestampTo) {
+        QueryBuilder<ActivityRollup> qb = getRollupDao().queryBuilder();
+        qb.where(ActivityRollupDao.Properties.DeviceId.eq(deviceId),
+                ActivityRollupDao.Properties.Timestamp.between(floorHour(timestampFrom), timestampTo))
+                .orderAsc(ActivityRollupDao.Properties.Timestamp);
+        List<ActivityRollup> rollups = qb.build().list();
+        getRollupDao().detachAll();
+        return rollups;
+    }
+
+    /**
+     * Sums up the rollups of the given time span into ActivityAmounts, like
+     * ActivityAnalysis#calculateActivityAmounts() does for the raw samples.
+     *
+     * @return the amounts or null if the time span does not consist of whole hours, or if
+     * the rollups do not account for all samples of the time span
+     */
+    @Nullable
+    public ActivityAmounts getActivityAmounts(int timestampFrom, int timestampTo) {
+        if (timestampFrom % HOUR != 0 || (timestampTo + 1) % HOUR != 0) {
+            return null;
+        }
+        List<ActivityRollup> rollups = getRollups(timestampFrom, timestampTo);
+        long rolledUpSamples = 0;
+        for (ActivityRollup rollup : rollups) {
+            rolledUpSamples += rollup.getSampleCount();
+        }
+        long samples = provider.countActivitySamples(deviceId, timestampFrom, timestampTo);
+        if (rolledUpSamples != samples) {
+            LOG.info("Activity rollups of device " + deviceId + " cover " + rolledUpSamples + " of "
+                    + samples + " samples between " + timestampFrom + " and " + timestampTo);
+            return null;
+        }
+
+        ActivityAmount deepSleep = new ActivityAmount(ActivityKind.TYPE_DEEP_SLEEP);
+        ActivityAmount lightSleep = new ActivityAmount(ActivityKind.TYPE_LIGHT_SLEEP);
+        ActivityAmount notWorn = new ActivityAmount(ActivityKind.TYPE_NOT_WORN);
+        ActivityAmount activity = new ActivityAmount(ActivityKind.TYPE_ACTIVITY);
+
+        for (ActivityRollup rollup : rollups) {
+            if (rollup.getSampleCount() == 0) {
+                continue;
+            }
+            deepSleep.addSeconds(rollup.getDeepSleepSeconds());
+            lightSleep.addSeconds(rollup.getLightSleepSeconds());
+            notWorn.addSeconds(rollup.getNotWornSeconds());
+            activity.addSeconds(rollup.getActivitySeconds());
+            activity.addSteps(rollup.getSteps());
+            for (ActivityAmount amount : new ActivityAmount[] { deepSleep, lightSleep, notWorn, activity }) {
+                amount.setStartDate(rollup.getTimestamp());
+                amount.setEndDate(rollup.getTimestamp() + HOUR - 1);
+            }
+        }
+
+        ActivityAmounts result = new ActivityAmounts();
+        for (ActivityAmount amount : new ActivityAmount[] { deepSleep, lightSleep, activity, notWorn }) {
+            if (amount.getTotalSeconds() > 0) {
+                result.addAmount(amount);
+            }
+        }
+        result.calculatePercentages();
+        return result;
+    }
+
+    private void backfill() {
+        Integer oldest = getOldestSampleTimestamp();
+        Integer newest = getNewestSampleTimestamp();
+        if (oldest == null || newest == null) {
+            return;
+        }
+        LOG.info("Backfilling activity rollups of device " + deviceId + " from " + oldest + " to " + newest);
+        long start = System.currentTimeMillis();
+        for (int from = floorHour(oldest); from <= newest; from += BACKFILL_CHUNK) {
+            recompute(from, floorHour(Math.min(newest, from + BACKFILL_CHUNK - 1)));
+        }
+        LOG.info("Backfilling activity rollups took " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void recompute(int firstHour, int lastHour) {
+        List<? extends ActivitySample> samples = provider.getAllActivitySamples(firstHour - HOUR, lastHour + HOUR - 1);
+        List<ActivityRollup> rollups = calculateRollups(deviceId, samples, firstHour, lastHour);
+
+        deleteRollups(firstHour, lastHour);
+        ActivityRollupDao dao = getRollupDao();
+        dao.insertOrReplaceInTx(rollups);
+        dao.detachAll();
+    }
+
+    private void deleteRollups(int firstHour, int lastHour) {
+        getRollupDao().queryBuilder().where(ActivityRollupDao.Properties.DeviceId.eq(deviceId),
+                ActivityRollupDao.Properties.Timestamp.between(firstHour, lastHour))
+                .buildDelete().executeDeleteWithoutDetachingEntities();
+    }
+
+    /**
+     * Calculates the rollups of the hours firstHour..lastHour from the given time-ordered
+     * samples. Samples before firstHour only serve as predecessor for the first sample
+     * of the range. Hours without samples do not get a rollup.
+     */
+    @NonNull
+    static List<ActivityRollup> calculateRollups(long deviceId, List<? extends ActivitySample> samples, int firstHour, int lastHour) {
+        List<ActivityRollup> result = new ArrayList<>();
+        ActivityRollup current = null;
+        ActivitySample previousSample = null;
+        int rangeEnd = lastHour + HOUR;
+
+        for (ActivitySample sample : samples) {
+            int timestamp = sample.getTimestamp();
+            if (timestamp < firstHour) {
+                previousSample = sample;
+                continue;
+            }
+            if (timestamp >= rangeEnd) {
+                break;
+            }
+            int hour = floorHour(timestamp);
+            if (current == null || current.getTimestamp() != hour) {
+                current = createRollup(deviceId, hour);
+                result.add(current);
+            }
+            current.setSampleCount(current.getSampleCount() + 1);
+
+            int steps = sample.getSteps();
+            if (steps > 0) {
+                current.setSteps(current.getSteps() + steps);
+            }
+
+            int heartRate = sample.getHeartRate();
+            if (heartRate >= HeartRateUtils.MIN_HEART_RATE_VALUE && heartRate <= HeartRateUtils.MAX_HEART_RATE_VALUE) {
+                if (current.getHeartRateCount() == 0 || heartRate < current.getHeartRateMin()) {
+                    current.setHeartRateMin(heartRate);
+                }
+                if (heartRate > current.getHeartRateMax()) {
+                    current.setHeartRateMax(heartRate);
+                }
+                current.setHeartRateSum(current.getHeartRateSum() + heartRate);
+                current.setHeartRateCount(current.getHeartRateCount() + 1);
+            }
+
+            if (previousSample != null) {
+                int timeDifference = timestamp - previousSample.getTimestamp();
+                if (previousSample.getRawKind() == sample.getRawKind()) {
+                    addSeconds(current, sample.getKind(), timeDifference);
+                } else {
+                    int sharedTimeDifference = (int) (timeDifference / 2.0f);
+                    addSeconds(current, previousSample.getKind(), sharedTimeDifference);
+                    addSeconds(current, sample.getKind(), sharedTimeDifference);
+                }
+            }
+            previousSample = sample;
+        }
+        return result;
+    }
+
+    private static ActivityRollup createRollup(long deviceId, int hour) {
+        ActivityRollup rollup = new ActivityRollup();
+        rollup.setTimestamp(hour);
+        rollup.setDeviceId(deviceId);
+        return rollup;
+    }
+
+    private static void addSeconds(ActivityRollup rollup, int kind, int seconds) {
+        switch (kind) {
+            case ActivityKind.TYPE_DEEP_SLEEP:
+                rollup.setDeepSleepSeconds(rollup.getDeepSleepSeconds() + seconds);
+                break;
+            case ActivityKind.TYPE_LIGHT_SLEEP:
+                rollup.setLightSleepSeconds(rollup.getLightSleepSeconds() + seconds);
+                break;
+            case ActivityKind.TYPE_NOT_WORN:
+                rollup.setNotWornSeconds(rollup.getNotWornSeconds() + seconds);
+                break;
+            case ActivityKind.TYPE_ACTIVITY:
+            default:
+                rollup.setActivitySeconds(rollup.getActivitySeconds() + seconds);
+                break;
+        }
+    }
+
+    @Nullable
+    private Integer getOldestSampleTimestamp() {
+        return getBoundarySampleTimestamp(true);
+    }
+
+    @Nullable
+    private Integer getNewestSampleTimestamp() {
+        return getBoundarySampleTimestamp(false);
+    }
+
+    @Nullable
+    private Integer getBoundarySampleTimestamp(boolean oldest) {
+        AbstractDao<? extends AbstractActivitySample, ?> sampleDao = provider.getSampleDao();
+        QueryBuilder<? extends AbstractActivitySample> qb = sampleDao.queryBuilder();
+        Property timestampProperty = provider.getTimestampSampleProperty();
+        qb.where(provider.getDeviceIdentifierSampleProperty().eq(deviceId));
+        if (oldest) {
+            qb.orderAsc(timestampProperty);
+        } else {
+            qb.orderDesc(timestampProperty);
+        }
+        List<? extends AbstractActivitySample> samples = qb.limit(1).build().list();
+        sampleDao.detachAll();
+        if (samples.isEmpty()) {
+            return null;
+        }
+        return samples.get(0).getTimestamp();
+    }
+
+    private ActivityRollupDao getRollupDao() {
+        return provider.getSession().getActivityRollupDao();
+    }
+}
@@ -0,0 +1,169 @@
+package nodomain.freeyourgadget.gadgetbridge.devices;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
+
+/**
+ * Encodes the samples of an ActivitySampleArchive block. The values are stored column by
+ * column as variable length integers: timestamps as the difference to the previous sample,
+ * heart rates as the zigzag encoded difference to the previous sample, and steps, raw
+ * intensity and raw kind as zigzag encoded values (NOT_MEASURED is -1). A sample taken
+ * every minute thus usually needs five to seven bytes.
+ * <p>
+ * Only the values common to all samples are stored, so archiving is lossless only for
+ * sample types without further columns.
+ */
+public class ActivitySampleArchiveCodec {
+    private static final int VERSION = 1;
+
+    /**
+     * @param samples the samples to encode, ordered by time
+     */
+    @NonNull
+    public static byte[] encode(List<? extends AbstractActivitySample> samples) {
+        Writer out = new Writer(16 + samples.size() * 6);
+        out.writeByte(VERSION);
+        out.writeVarInt(samples.size());
+
+        int previous = 0;
+        for (AbstractActivitySample sample : samples) {
+            int timestamp = sample.getTimestamp();
+            if (timestamp < previous) {
+                throw new IllegalArgumentException("samples are not ordered by time: " + timestamp + " < " + previous);
+            }
+            out.writeVarInt(timestamp - previous);
+            previous = timestamp;
+        }
+        for (AbstractActivitySample sample : samples) {
+            out.writeVarInt(zigzag(sample.getSteps()));
+        }
+        for (AbstractActivitySample sample : samples) {
+            out.writeVarInt(zigzag(sample.getRawIntensity()));
+        }
+        for (AbstractActivitySample sample : samples) {
+            out.writeVarInt(zigzag(sample.getRawKind()));
+        }
+        previous = 0;
+        for (AbstractActivitySample sample : samples) {
+            int heartRate = sample.getHeartRate();
+            out.writeVarInt(zigzag(heartRate - previous));
+            previous = heartRate;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes the samples of a block into new, detached sample entities of the given provider.
+     *
+     * @throws IllegalArgumentException if the data is truncated or of an unknown version
+     */
+    @NonNull
+    public static <T extends AbstractActivitySample> List<T> decode(byte[] data, SampleProvider<T> provider, long deviceId, long userId) {
+        Reader in = new Reader(data);
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("unsupported archive version: " + version);
+        }
+        int count = in.readVarInt();
+        if (count < 0 || count > data.length) {
+            throw new IllegalArgumentException("invalid sample count: " + count);
+        }
+
+        List<T> samples = new ArrayList<>(count);
+        int timestamp = 0;
+        for (int i = 0; i < count; i++) {
+            timestamp += in.readVarInt();
+            T sample = provider.createActivitySample();
+            sample.setTimestamp(timestamp);
+            sample.setDeviceId(deviceId);
+            sample.setUserId(userId);
+            samples.add(sample);
+        }
+        for (T sample : samples) {
+            sample.setSteps(unzigzag(in.readVarInt()));
+        }
+        for (T sample : samples) {
+            sample.setRawIntensity(unzigzag(in.readVarInt()));
+        }
+        for (T sample : samples) {
+            sample.setRawKind(unzigzag(in.readVarInt()));
+        }
+        int heartRate = 0;
+        for (T sample : samples) {
+            heartRate += unzigzag(in.readVarInt());
+            sample.setHeartRate(heartRate);
+        }
+        return samples;
+    }
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static class Writer {
+        private byte[] buffer;
+        private int size;
+
+        Writer(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        void writeByte(int value) {
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        /**
+         * Writes the value as unsigned, seven bits per byte, least significant bits first.
+         */
+        void writeVarInt(int value) {
+            while ((value & ~0x7f) != 0) {
+                writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            writeByte(value);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+
+    private static class Reader {
+        private final byte[] data;
+        private int position;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        int readByte() {
+            if (position >= data.length) {
+                throw new IllegalArgumentException("archive data is truncated");
+            }
+            return data[position++] & 0xff;
+        }
+
+        int readVarInt() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("malformed variable length integer");
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package nodomain.freeyourgadget.gadgetbridge.devices;
+
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+
+/**
+ * Callback for SampleProvider#visitAllActivitySamples(), which streams the samples
+ * of a time span one by one instead of returning them as a list.
+ *
+ * @param <T> the sample type
+ */
+public interface ActivitySampleVisitor<T extends ActivitySample> {
+    /**
+     * Called for each sample, in ascending order of timestamps. Implementations
+     * should not keep a reference to the sample.
+     * @param sample the current sample
+     */
+    void visit(T sample);
+}
@@ -86,14 +86,17 @@ public class DeviceManager {
                     break;
                 case GBDevice.ACTION_DEVICE_CHANGED:
                     GBDevice dev = intent.getParcelableExtra(GBDevice.EXTRA_DEVICE);
+                    int changes = GBDevice.getChanges(intent);
+                    boolean added = false;
                     if (dev.getAddress() != null) {
                         int index = deviceList.indexOf(dev); // search by address
                         if (index >= 0) {
                             deviceList.set(index, dev);
                         } else {
                             deviceList.add(dev);
+                            added = true;
                         }
-                        if (dev.isInitialized()) {
+                        if (dev.isInitialized() && (changes & (GBDevice.CHANGE_STATE | GBDevice.CHANGE_INFO)) != 0) {
                             try (DBHandler dbHandler = GBApplication.acquireDB()) {
                                 DBHelper.getDevice(dev, dbHandler.getDaoSession()); // implicitly creates the device in database if not present, and updates device attributes
                             } catch (Exception ignore) {
@@ -101,7 +104,12 @@ public class DeviceManager {
                         }
                     }
                     updateSelectedDevice(dev);
-                    refreshPairedDevices();
+                    if (added || (changes & (GBDevice.CHANGE_STATE | GBDevice.CHANGE_INFO)) != 0) {
+                        refreshPairedDevices();
+                    } else {
+                        // neither the devices nor their order changed
+                        notifyDevicesChanged();
+                    }
                     break;
             }
         }
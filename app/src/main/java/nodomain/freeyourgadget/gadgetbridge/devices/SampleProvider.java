@@ -22,6 +22,7 @@ import java.util.List;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmounts;
 
 /**
  * Interface to retrieve samples from the database, and also create and add samples to the database.
@@ -73,6 +74,17 @@ public interface SampleProvider<T extends AbstractActivitySample> {
     @NonNull
     List<T> getSleepSamples(int timestamp_from, int timestamp_to);
 
+    /**
+     * Passes all samples, of any type, within the given time span to the given visitor,
+     * in ascending order of timestamps. Unlike #getAllActivitySamples(int, int), the
+     * samples are read from the database one by one, so that long time spans can be
+     * processed without holding all samples in memory at once.
+     * @param timestamp_from the start timestamp
+     * @param timestamp_to the end timestamp
+     * @param visitor the visitor to receive the samples
+     */
+    void visitAllActivitySamples(int timestamp_from, int timestamp_to, ActivitySampleVisitor<? super T> visitor);
+
     /**
      * Adds the given sample to the database. An existing sample with the same
      * timestamp will be overwritten.
@@ -87,6 +99,17 @@ public interface SampleProvider<T extends AbstractActivitySample> {
      */
     void addGBActivitySamples(T[] activitySamples);
 
+    /**
+     * Returns the activity amounts within the given time span, summed up from the
+     * pre-aggregated hourly rollups instead of the individual samples.
+     * @param timestamp_from the start timestamp
+     * @param timestamp_to the end timestamp
+     * @return the amounts, or null if the time span does not consist of whole (UTC) hours
+     * or the rollups do not cover all samples within it; the samples have to be used then
+     */
+    @Nullable
+    ActivityAmounts getActivityAmountsFromRollups(int timestamp_from, int timestamp_to);
+
     /**
      * Factory method to creates an empty sample of the correct type for this sample provider
      * @return the newly created "empty" sample
@@ -32,6 +32,7 @@ import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDeviceCandidate;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmounts;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
 import nodomain.freeyourgadget.gadgetbridge.model.DeviceType;
 
@@ -69,6 +70,10 @@ public class UnknownDeviceCoordinator extends AbstractDeviceCoordinator {
             return null;
         }
 
+        @Override
+        public void visitAllActivitySamples(int timestamp_from, int timestamp_to, ActivitySampleVisitor visitor) {
+        }
+
         @Override
         public void addGBActivitySample(AbstractActivitySample activitySample) {
         }
@@ -77,6 +82,11 @@ public class UnknownDeviceCoordinator extends AbstractDeviceCoordinator {
         public void addGBActivitySamples(AbstractActivitySample[] activitySamples) {
         }
 
+        @Override
+        public ActivityAmounts getActivityAmountsFromRollups(int timestamp_from, int timestamp_to) {
+            return null;
+        }
+
         @Override
         public AbstractActivitySample createActivitySample() {
             return null;
@@ -84,4 +84,9 @@ public class BangleJSSampleProvider extends AbstractSampleProvider<BangleJSActiv
     public BangleJSActivitySample createActivitySample() {
         return new BangleJSActivitySample();
     }
+
+    @Override
+    protected boolean supportsSampleArchive() {
+        return true;
+    }
 }
@@ -28,6 +28,7 @@ import java.util.List;
 import de.greenrobot.dao.AbstractDao;
 import de.greenrobot.dao.Property;
 import nodomain.freeyourgadget.gadgetbridge.devices.AbstractSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.ActivitySampleVisitor;
 import nodomain.freeyourgadget.gadgetbridge.entities.CasioGBX100ActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.entities.CasioGBX100ActivitySampleDao;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
@@ -91,6 +92,14 @@ public class CasioGBX100SampleProvider extends AbstractSampleProvider<CasioGBX10
         return super.getActivitySamples(timestamp_from, timestamp_to);
     }
 
+    @Override
+    public void visitAllActivitySamples(int timestamp_from, int timestamp_to, ActivitySampleVisitor<? super CasioGBX100ActivitySample> visitor) {
+        // no streaming, only the activity samples are returned by #getAllActivitySamples()
+        for (CasioGBX100ActivitySample sample : getAllActivitySamples(timestamp_from, timestamp_to)) {
+            visitor.visit(sample);
+        }
+    }
+
     @Override
     public List<CasioGBX100ActivitySample> getAllActivitySamples(int timestamp_from, int timestamp_to) {
         return super.getActivitySamples(timestamp_from, timestamp_to);
@@ -21,6 +21,7 @@ package nodomain.freeyourgadget.gadgetbridge.devices.hplus;
 * @author João Paulo Barraca &lt;jpbarraca@gmail.com&gt;
 */
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
@@ -33,6 +34,8 @@ import de.greenrobot.dao.Property;
 import de.greenrobot.dao.query.QueryBuilder;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
 import nodomain.freeyourgadget.gadgetbridge.devices.AbstractSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.ActivityOverlayMerger;
+import nodomain.freeyourgadget.gadgetbridge.devices.ActivitySampleVisitor;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.entities.HPlusHealthActivityOverlay;
@@ -122,6 +125,14 @@ public class HPlusHealthSampleProvider extends AbstractSampleProvider<HPlusHealt
         return getAllActivitySamples(timestamp_from, timestamp_to);
     }
 
+    @Override
+    public void visitAllActivitySamples(int timestamp_from, int timestamp_to, ActivitySampleVisitor<? super HPlusHealthActivitySample> visitor) {
+        // no streaming, the overlays are applied to the complete list of samples
+        for (HPlusHealthActivitySample sample : getAllActivitySamples(timestamp_from, timestamp_to)) {
+            visitor.visit(sample);
+        }
+    }
+
     @NonNull
     @Override
     public List<HPlusHealthActivitySample> getAllActivitySamples(int timestamp_from, int timestamp_to) {
@@ -162,33 +173,54 @@ public class HPlusHealthSampleProvider extends AbstractSampleProvider<HPlusHealt
         });
 
         //Apply Overlays
+        //Not worn takes precedence over sleep, so those overlays go last
+        List<HPlusHealthActivityOverlay> sleepOverlays = new ArrayList<>(overlayRecords.size());
+        List<HPlusHealthActivityOverlay> notWornOverlays = new ArrayList<>();
         for (HPlusHealthActivityOverlay overlay : overlayRecords) {
+            if (overlay.getRawKind() == ActivityKind.TYPE_NOT_WORN) {
+                notWornOverlays.add(overlay);
+            } else if (overlay.getRawKind() == ActivityKind.TYPE_LIGHT_SLEEP || overlay.getRawKind() == ActivityKind.TYPE_DEEP_SLEEP) {
+                sleepOverlays.add(overlay);
+            }
+        }
+        sleepOverlays.addAll(notWornOverlays);
+        new ActivityOverlayMerger<HPlusHealthActivityOverlay, HPlusHealthActivitySample>() {
+            private HPlusHealthActivityOverlay currentOverlay;
+            private long nonSleepTimeEnd;
+
+            @Override
+            protected int getTimestampFrom(HPlusHealthActivityOverlay overlay) {
+                return overlay.getTimestampFrom();
+            }
 
-            long nonSleepTimeEnd = 0;
-            for (HPlusHealthActivitySample sample : samples) {
-                if (sample.getRawKind() == ActivityKind.TYPE_NOT_WORN)
-                    continue;
+            @Override
+            protected int getTimestampTo(HPlusHealthActivityOverlay overlay) {
+                return overlay.getTimestampTo();
+            }
 
-                if (sample.getTimestamp() >= overlay.getTimestampFrom() && sample.getTimestamp() < overlay.getTimestampTo()) {
-                    if (overlay.getRawKind() == ActivityKind.TYPE_NOT_WORN || overlay.getRawKind() == ActivityKind.TYPE_LIGHT_SLEEP || overlay.getRawKind() == ActivityKind.TYPE_DEEP_SLEEP) {
-                        if (sample.getRawKind() == HPlusDataRecord.TYPE_DAY_SLOT && sample.getSteps() > 0){
-                            nonSleepTimeEnd = sample.getTimestamp() + 10 * 60; // 10 minutes
-                            continue;
-                        }else if(sample.getRawKind() == HPlusDataRecord.TYPE_REALTIME && sample.getTimestamp() <= nonSleepTimeEnd){
-                            continue;
-                        }
+            @Override
+            protected void apply(HPlusHealthActivityOverlay overlay, HPlusHealthActivitySample sample) {
+                if (overlay != currentOverlay) {
+                    currentOverlay = overlay;
+                    nonSleepTimeEnd = 0;
+                }
+                if (sample.getRawKind() == ActivityKind.TYPE_NOT_WORN)
+                    return;
 
-                        if (overlay.getRawKind() == ActivityKind.TYPE_NOT_WORN)
-                            sample.setHeartRate(0);
+                if (sample.getRawKind() == HPlusDataRecord.TYPE_DAY_SLOT && sample.getSteps() > 0){
+                    nonSleepTimeEnd = sample.getTimestamp() + 10 * 60; // 10 minutes
+                    return;
+                }else if(sample.getRawKind() == HPlusDataRecord.TYPE_REALTIME && sample.getTimestamp() <= nonSleepTimeEnd){
+                    return;
+                }
 
-                        if (sample.getRawKind() != ActivityKind.TYPE_NOT_WORN)
-                            sample.setRawKind(overlay.getRawKind());
+                if (overlay.getRawKind() == ActivityKind.TYPE_NOT_WORN)
+                    sample.setHeartRate(0);
 
-                        sample.setRawIntensity(10);
-                    }
-                }
+                sample.setRawKind(overlay.getRawKind());
+                sample.setRawIntensity(10);
             }
-        }
+        }.merge(sleepOverlays, samples);
 
 
 
@@ -256,5 +288,10 @@ public class HPlusHealthSampleProvider extends AbstractSampleProvider<HPlusHealt
 
         return samples;
     }
-}
 
+    @Override
+    protected boolean supportsActivityRollups() {
+        // activity kinds are taken from the overlay table at query time
+        return false;
+    }
+}
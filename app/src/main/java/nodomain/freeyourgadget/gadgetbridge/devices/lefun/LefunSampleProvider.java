@@ -97,4 +97,10 @@ public class LefunSampleProvider extends AbstractSampleProvider<LefunActivitySam
     public LefunActivitySample createActivitySample() {
         return new LefunActivitySample();
     }
+
+    @Override
+    protected boolean supportsActivityRollups() {
+        // samples are written directly through the DAO by LefunDeviceSupport
+        return false;
+    }
 }
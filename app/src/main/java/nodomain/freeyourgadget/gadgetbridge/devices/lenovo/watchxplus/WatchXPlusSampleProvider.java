@@ -30,6 +30,7 @@ import de.greenrobot.dao.AbstractDao;
 import de.greenrobot.dao.Property;
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.devices.AbstractSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.ActivitySampleVisitor;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.WatchXPlusActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.entities.WatchXPlusActivitySampleDao;
@@ -132,6 +133,14 @@ public class WatchXPlusSampleProvider extends AbstractSampleProvider<WatchXPlusA
 
 
 
+    @Override
+    public void visitAllActivitySamples(int timestamp_from, int timestamp_to, ActivitySampleVisitor<? super WatchXPlusActivitySample> visitor) {
+        // no streaming, the sleep detection works on the complete list of samples
+        for (WatchXPlusActivitySample sample : getAllActivitySamples(timestamp_from, timestamp_to)) {
+            visitor.visit(sample);
+        }
+    }
+
     @Override
     public List<WatchXPlusActivitySample> getAllActivitySamples(int timestamp_from, int timestamp_to) {
         boolean showRawData = GBApplication.getDeviceSpecificSharedPrefs(mDevice.getAddress()).getBoolean(WatchXPlusConstants.PREF_SHOW_RAW_GRAPH, false);
@@ -537,4 +546,10 @@ public class WatchXPlusSampleProvider extends AbstractSampleProvider<WatchXPlusA
         }
         return checkActivityData(resultList, 900, 3600);
     }
+
+    @Override
+    protected boolean supportsActivityRollups() {
+        // activity kinds are taken from the overlay table at query time
+        return false;
+    }
 }
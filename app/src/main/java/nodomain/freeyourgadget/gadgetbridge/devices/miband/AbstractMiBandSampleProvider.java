@@ -70,4 +70,9 @@ public abstract class AbstractMiBandSampleProvider extends AbstractSampleProvide
     public MiBandActivitySample createActivitySample() {
         return new MiBandActivitySample();
     }
+
+    @Override
+    protected boolean supportsSampleArchive() {
+        return true;
+    }
 }
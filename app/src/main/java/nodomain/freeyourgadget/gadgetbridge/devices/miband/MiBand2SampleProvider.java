@@ -17,9 +17,11 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.devices.miband;
 
+import java.util.Arrays;
 import java.util.List;
 
 import de.greenrobot.dao.query.QueryBuilder;
+import nodomain.freeyourgadget.gadgetbridge.devices.ActivitySampleVisitor;
 import nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiConst;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
@@ -31,6 +33,8 @@ import static nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiConst.TYPE
 import static nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiConst.TYPE_UNSET;
 
 public class MiBand2SampleProvider extends AbstractMiBandSampleProvider {
+    // all I ever had that are 0 when doing &=0xf
+    private static final List<Integer> INVALID_RAW_KINDS = Arrays.asList(TYPE_NO_CHANGE, TYPE_IGNORE, TYPE_UNSET, 16, 80, 96, 112);
 
     public MiBand2SampleProvider(GBDevice device, DaoSession session) {
         super(device, session);
@@ -43,6 +47,24 @@ public class MiBand2SampleProvider extends AbstractMiBandSampleProvider {
         return samples;
     }
 
+    @Override
+    public void visitAllActivitySamples(int timestamp_from, int timestamp_to, final ActivitySampleVisitor<? super MiBandActivitySample> visitor) {
+        super.visitAllActivitySamples(timestamp_from, timestamp_to, new ActivitySampleVisitor<MiBandActivitySample>() {
+            private boolean first = true;
+            private int lastValidKind;
+
+            @Override
+            public void visit(MiBandActivitySample sample) {
+                if (first) {
+                    lastValidKind = determinePreviousValidActivityType(sample);
+                    first = false;
+                }
+                lastValidKind = postprocess(sample, lastValidKind);
+                visitor.visit(sample);
+            }
+        });
+    }
+
     /**
      * "Temporary" runtime post processing of activity kinds.
      * @param samples
@@ -54,23 +76,30 @@ public class MiBand2SampleProvider extends AbstractMiBandSampleProvider {
 
         int lastValidKind = determinePreviousValidActivityType(samples.get(0));
         for (MiBandActivitySample sample : samples) {
-            int rawKind = sample.getRawKind();
-            if (rawKind != TYPE_UNSET) {
-                rawKind &= 0xf;
-                sample.setRawKind(rawKind);
-            }
+            lastValidKind = postprocess(sample, lastValidKind);
+        }
+    }
 
-            switch (rawKind) {
-                case TYPE_IGNORE:
-                case TYPE_NO_CHANGE:
-                    if (lastValidKind != TYPE_UNSET) {
-                        sample.setRawKind(lastValidKind);
-                    }
-                    break;
-                default:
-                    lastValidKind = rawKind;
-                    break;
-            }
+    /**
+     * Post processes the activity kind of a single sample.
+     * @return the last valid kind after this sample
+     */
+    private int postprocess(MiBandActivitySample sample, int lastValidKind) {
+        int rawKind = sample.getRawKind();
+        if (rawKind != TYPE_UNSET) {
+            rawKind &= 0xf;
+            sample.setRawKind(rawKind);
+        }
+
+        switch (rawKind) {
+            case TYPE_IGNORE:
+            case TYPE_NO_CHANGE:
+                if (lastValidKind != TYPE_UNSET) {
+                    sample.setRawKind(lastValidKind);
+                }
+                return lastValidKind;
+            default:
+                return rawKind;
         }
     }
 
@@ -79,12 +108,21 @@ public class MiBand2SampleProvider extends AbstractMiBandSampleProvider {
         qb.where(MiBandActivitySampleDao.Properties.DeviceId.eq(sample.getDeviceId()),
                 MiBandActivitySampleDao.Properties.UserId.eq(sample.getUserId()),
                 MiBandActivitySampleDao.Properties.Timestamp.lt(sample.getTimestamp()),
-                MiBandActivitySampleDao.Properties.RawKind.notIn(TYPE_NO_CHANGE, TYPE_IGNORE, TYPE_UNSET, 16, 80, 96, 112)); // all I ever had that are 0 when doing &=0xf
+                MiBandActivitySampleDao.Properties.RawKind.notIn(INVALID_RAW_KINDS));
         qb.orderDesc(MiBandActivitySampleDao.Properties.Timestamp);
         qb.limit(1);
         List<MiBandActivitySample> result = qb.build().list();
-        if (result.size() > 0) {
-            return result.get(0).getRawKind() & 0xf;
+        MiBandActivitySample previous = result.isEmpty() ? null : result.get(0);
+
+        // the previous valid sample may have been archived already, only look at the days after
+        // the one found in the table
+        int archivedFrom = previous != null ? previous.getTimestamp() + 1 : 0;
+        MiBandActivitySample archived = getLatestArchivedSample(sample.getDeviceId(), archivedFrom, sample.getTimestamp() - 1, INVALID_RAW_KINDS);
+        if (archived != null) {
+            previous = archived;
+        }
+        if (previous != null) {
+            return previous.getRawKind() & 0xf;
         }
         return TYPE_UNSET;
     }
@@ -80,4 +80,9 @@ public class No1F1SampleProvider extends AbstractSampleProvider<No1F1ActivitySam
     protected Property getDeviceIdentifierSampleProperty() {
         return No1F1ActivitySampleDao.Properties.DeviceId;
     }
+
+    @Override
+    protected boolean supportsSampleArchive() {
+        return true;
+    }
 }
@@ -0,0 +1,258 @@
+package nodomain.freeyourgadget.gadgetbridge.devices.pebble;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import androidx.annotation.Nullable;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDeviceApp;
+import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
+import nodomain.freeyourgadget.gadgetbridge.util.PebbleUtils;
+
+/**
+ * A persistent index of the metadata of the apps in the pbw cache, so that the app manager
+ * need not read and parse the json file of every cached app on every refresh.
+ *
+ * Changes that Gadgetbridge makes to the cache are applied through {@link #update(String)}.
+ * Other changes, e.g. files copied into the cache, are detected by the modification time of the
+ * cache dir. Then the cache is listed again, and only the json files with a different
+ * modification time are read again.
+ */
+public class PBWCacheIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(PBWCacheIndex.class);
+
+    private static final String INDEX_FILENAME = "pbwcacheindex.dat";
+    private static final int INDEX_VERSION = 1;
+
+    private static PBWCacheIndex instance;
+
+    private final File cacheDir;
+    private final File indexFile;
+    private Map<String, Entry> entries = new LinkedHashMap<>();
+    // the modification time of the cache dir when it was listed
+    private long cacheDirModified = -1;
+
+    public PBWCacheIndex(File cacheDir, File indexFile) {
+        this.cacheDir = cacheDir;
+        this.indexFile = indexFile;
+        load();
+    }
+
+    /**
+     * Returns the index of the pbw cache, which is up to date with the cache dir.
+     */
+    public static synchronized PBWCacheIndex getInstance() throws IOException {
+        File cacheDir = PebbleUtils.getPbwCacheDir();
+        if (instance == null || !instance.cacheDir.equals(cacheDir)) {
+            instance = new PBWCacheIndex(cacheDir, new File(FileUtils.getExternalFilesDir(), INDEX_FILENAME));
+        }
+        instance.validate();
+        return instance;
+    }
+
+    /**
+     * Lists the cache dir again if it has been modified since it was listed.
+     */
+    public synchronized void validate() {
+        long modified = cacheDir.lastModified();
+        if (modified == cacheDirModified) {
+            return;
+        }
+        String[] fileNames = cacheDir.list();
+        if (fileNames == null) {
+            fileNames = new String[0];
+        }
+        Set<String> existingFileNames = new HashSet<>(Arrays.asList(fileNames));
+
+        Map<String, Entry> listedEntries = new LinkedHashMap<>();
+        int readCount = 0;
+        for (String fileName : fileNames) {
+            if (!fileName.endsWith(".pbw")) {
+                continue;
+            }
+            String baseName = fileName.substring(0, fileName.length() - 4);
+            File jsonFile = new File(cacheDir, baseName + ".json");
+            long jsonModified = existingFileNames.contains(jsonFile.getName()) ? jsonFile.lastModified() : 0;
+            boolean configurable = existingFileNames.contains(baseName + "_config.js");
+
+            Entry entry = entries.get(baseName);
+            if (entry == null || entry.jsonModified != jsonModified) {
+                entry = readEntry(jsonFile, jsonModified);
+                readCount++;
+            }
+            entry.configurable = configurable;
+            listedEntries.put(baseName, entry);
+        }
+        LOG.info("listed " + listedEntries.size() + " cached apps, read " + readCount);
+
+        entries = listedEntries;
+        cacheDirModified = modified;
+        save();
+    }
+
+    /**
+     * Reads the metadata of the given app again, after it has been installed to or deleted from the cache.
+     */
+    public synchronized void update(String baseName) {
+        if (!new File(cacheDir, baseName + ".pbw").exists()) {
+            entries.remove(baseName);
+        } else {
+            File jsonFile = new File(cacheDir, baseName + ".json");
+            Entry entry = readEntry(jsonFile, jsonFile.lastModified());
+            entry.configurable = new File(cacheDir, baseName + "_config.js").exists();
+            entries.put(baseName, entry);
+        }
+        save();
+    }
+
+    /**
+     * Returns the base names of all cached pbw files.
+     */
+    public synchronized List<String> getBaseNames() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    /**
+     * Returns the cached app with the given base name, or null if it is not cached or its
+     * metadata cannot be read.
+     */
+    @Nullable
+    public synchronized GBDeviceApp getApp(String baseName) {
+        Entry entry = entries.get(baseName);
+        if (entry == null || entry.uuid == null) {
+            return null;
+        }
+        return new GBDeviceApp(entry.uuid, entry.name, entry.creator, entry.version, entry.type, entry.configurable);
+    }
+
+    /**
+     * Reads the metadata of the given app from its json file, which the index does not cover
+     * if there is no pbw file next to it. Returns null if the json file is missing or broken.
+     */
+    @Nullable
+    public GBDeviceApp readApp(String baseName) {
+        File jsonFile = new File(cacheDir, baseName + ".json");
+        if (!jsonFile.exists()) {
+            return null;
+        }
+        Entry entry = readEntry(jsonFile, jsonFile.lastModified());
+        if (entry.uuid == null) {
+            return null;
+        }
+        boolean configurable = new File(cacheDir, baseName + "_config.js").exists();
+        return new GBDeviceApp(entry.uuid, entry.name, entry.creator, entry.version, entry.type, configurable);
+    }
+
+    private static Entry readEntry(File jsonFile, long jsonModified) {
+        Entry entry = new Entry();
+        entry.jsonModified = jsonModified;
+        if (jsonModified == 0) {
+            return entry;
+        }
+        try {
+            String jsonString = FileUtils.getStringFromFile(jsonFile);
+            GBDeviceApp app = new GBDeviceApp(new JSONObject(jsonString), false);
+            entry.uuid = app.getUUID();
+            entry.name = app.getName();
+            entry.creator = app.getCreator();
+            entry.version = app.getVersion();
+            entry.type = app.getType();
+        } catch (Exception e) {
+            LOG.info("could not read json file " + jsonFile.getName());
+        }
+        return entry;
+    }
+
+    private void load() {
+        if (!indexFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_VERSION) {
+                LOG.info("ignoring index of another version");
+                return;
+            }
+            long modified = in.readLong();
+            int count = in.readInt();
+            Map<String, Entry> loadedEntries = new LinkedHashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String baseName = in.readUTF();
+                Entry entry = new Entry();
+                entry.jsonModified = in.readLong();
+                entry.configurable = in.readBoolean();
+                if (in.readBoolean()) {
+                    entry.uuid = new UUID(in.readLong(), in.readLong());
+                    entry.name = in.readUTF();
+                    entry.creator = in.readUTF();
+                    entry.version = in.readUTF();
+                    entry.type = GBDeviceApp.Type.valueOf(in.readUTF());
+                }
+                loadedEntries.put(baseName, entry);
+            }
+            entries = loadedEntries;
+            cacheDirModified = modified;
+        } catch (Exception e) {
+            LOG.warn("could not read pbw cache index, listing the cache again", e);
+        }
+    }
+
+    private void save() {
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(cacheDirModified);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                out.writeUTF(mapEntry.getKey());
+                out.writeLong(entry.jsonModified);
+                out.writeBoolean(entry.configurable);
+                out.writeBoolean(entry.uuid != null);
+                if (entry.uuid != null) {
+                    out.writeLong(entry.uuid.getMostSignificantBits());
+                    out.writeLong(entry.uuid.getLeastSignificantBits());
+                    out.writeUTF(entry.name);
+                    out.writeUTF(entry.creator);
+                    out.writeUTF(entry.version);
+                    out.writeUTF(entry.type.name());
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("could not write pbw cache index", e);
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(indexFile)) {
+            LOG.warn("could not replace pbw cache index " + indexFile);
+            tempFile.delete();
+        }
+    }
+
+    private static class Entry {
+        long jsonModified;
+        boolean configurable;
+        // null if the json file is missing or broken
+        UUID uuid;
+        String name;
+        String creator;
+        String version;
+        GBDeviceApp.Type type;
+    }
+}
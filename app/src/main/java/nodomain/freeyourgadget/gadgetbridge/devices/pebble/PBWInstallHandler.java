@@ -202,6 +202,12 @@ public class PBWInstallHandler implements InstallHandler {
                 }
             }
         }
+
+        try {
+            PBWCacheIndex.getInstance().update(app.getUUID().toString());
+        } catch (IOException e) {
+            LOG.warn("could not update pbw cache index", e);
+        }
     }
 
     @Override
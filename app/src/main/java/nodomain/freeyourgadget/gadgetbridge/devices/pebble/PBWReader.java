@@ -25,28 +25,55 @@ import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 
+import androidx.annotation.Nullable;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDeviceApp;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.pebble.PebbleProtocol;
+import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
+import nodomain.freeyourgadget.gadgetbridge.util.GB;
 import nodomain.freeyourgadget.gadgetbridge.util.UriHelper;
 
+/**
+ * Reads the metadata and the files of a pbw or pbz archive.
+ *
+ * The archive is accessed as a {@link ZipFile}, so that each file is read directly instead of
+ * scanning the archive up to it. Uris that are not files are copied to the cache first, named
+ * by the hash of their content. The metadata is cached by content hash and platform, so that
+ * reading the same archive again, e.g. when the installation starts, does not parse it again.
+ */
 public class PBWReader {
     private static final Logger LOG = LoggerFactory.getLogger(PBWReader.class);
     private static final HashMap<String, Byte> appFileTypesMap;
     private static final HashMap<String, Byte> fwFileTypesMap;
 
+    private static final String ARCHIVE_CACHE_DIR = "pbw";
+    private static final int MAX_CACHED_ARCHIVES = 4;
+    private static final int MAX_CACHED_METADATA = 32;
+
     static {
         appFileTypesMap = new HashMap<>();
         appFileTypesMap.put("application", PebbleProtocol.PUTBYTES_TYPE_BINARY);
@@ -60,7 +87,24 @@ public class PBWReader {
         fwFileTypesMap.put("resources", PebbleProtocol.PUTBYTES_TYPE_SYSRESOURCES);
     }
 
+    // the archive files by path, and their metadata by content hash and platform
+    private static final Map<String, Archive> archiveCache = new LinkedHashMap<String, Archive>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Archive> eldest) {
+            return size() > MAX_CACHED_METADATA;
+        }
+    };
+    // the number of open streams of each archive file, which must not be pruned from the cache
+    private static final Map<File, Integer> openArchives = new HashMap<>();
+    private static final Map<String, Metadata> metadataCache = new LinkedHashMap<String, Metadata>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Metadata> eldest) {
+            return size() > MAX_CACHED_METADATA;
+        }
+    };
+
     private final UriHelper uriHelper;
+    private File archiveFile;
     private GBDeviceApp app;
     private ArrayList<PebbleInstallable> pebbleInstallables = null;
     private boolean isFirmware = false;
@@ -97,39 +141,80 @@ public class PBWReader {
             return;
         }
 
-        String platformDir = "";
-        if (!uriHelper.getFileName().endsWith(".pbz")) {
-            platformDir = determinePlatformDir(uriHelper, platform);
+        Archive archive = getArchive(uriHelper);
+        archiveFile = archive.file;
 
-            if (platform.equals("chalk") && platformDir.equals("")) {
-                return;
+        String key = archive.contentHash + ":" + platform;
+        Metadata metadata;
+        synchronized (metadataCache) {
+            metadata = metadataCache.get(key);
+        }
+        if (metadata == null) {
+            File file = retainArchive();
+            try {
+                metadata = readMetadata(file, uriHelper.getFileName().endsWith(".pbz"), platform);
+            } finally {
+                releaseArchive(file);
+            }
+            synchronized (metadataCache) {
+                metadataCache.put(key, metadata);
             }
+        } else {
+            LOG.info("using cached metadata of " + uriHelper.getFileName());
         }
 
-        LOG.info("using platformdir: '" + platformDir + "'");
-        String appName = null;
-        String appCreator = null;
-        String appVersion = null;
-        UUID appUUID = null;
+        pebbleInstallables = metadata.pebbleInstallables;
+        isFirmware = metadata.isFirmware;
+        isValid = metadata.isValid;
+        hwRevision = metadata.hwRevision;
+        mSdkVersion = metadata.sdkVersion;
+        mAppVersion = metadata.appVersion;
+        mIconId = metadata.iconId;
+        mFlags = metadata.flags;
+        mAppKeys = metadata.appKeys;
+        if (metadata.appUUID != null) {
+            app = new GBDeviceApp(metadata.appUUID, metadata.appName, metadata.appCreator, metadata.appVersionLabel, metadata.appType);
+        }
+    }
 
-        ZipEntry ze;
-        pebbleInstallables = new ArrayList<>();
-        byte[] buffer = new byte[1024];
-        int count;
-        try (ZipInputStream zis = new ZipInputStream(uriHelper.openInputStream())) {
-            while ((ze = zis.getNextEntry()) != null) {
+    private static Metadata readMetadata(File archiveFile, boolean isPbz, String platform) throws IOException {
+        Metadata metadata = new Metadata();
+        ZipFile zipFile;
+        try {
+            zipFile = new ZipFile(archiveFile);
+        } catch (ZipException e) {
+            LOG.warn("not a zip file: " + e.getMessage());
+            metadata.pebbleInstallables = new ArrayList<>();
+            return metadata;
+        }
+
+        try {
+            String platformDir = "";
+            if (!isPbz) {
+                platformDir = determinePlatformDir(zipFile, platform);
+
+                if (platform.equals("chalk") && platformDir.equals("")) {
+                    return metadata;
+                }
+            }
+
+            LOG.info("using platformdir: '" + platformDir + "'");
+            String appName = null;
+            String appCreator = null;
+            String appVersion = null;
+            UUID appUUID = null;
+
+            metadata.pebbleInstallables = new ArrayList<>();
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry ze = entries.nextElement();
                 String fileName = ze.getName();
                 if (fileName.equals(platformDir + "manifest.json")) {
                     long bytes = ze.getSize();
                     if (bytes > 8192) // that should be too much
                         break;
 
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    while ((count = zis.read(buffer)) != -1) {
-                        baos.write(buffer, 0, count);
-                    }
-
-                    String jsonString = baos.toString();
+                    String jsonString = readString(zipFile, ze, 8192);
                     try {
                         JSONObject json = new JSONObject(jsonString);
                         HashMap<String, Byte> fileTypeMap;
@@ -137,11 +222,11 @@ public class PBWReader {
                         try {
                             JSONObject firmware = json.getJSONObject("firmware");
                             fileTypeMap = fwFileTypesMap;
-                            isFirmware = true;
-                            hwRevision = firmware.getString("hwrev");
+                            metadata.isFirmware = true;
+                            metadata.hwRevision = firmware.getString("hwrev");
                         } catch (JSONException e) {
                             fileTypeMap = appFileTypesMap;
-                            isFirmware = false;
+                            metadata.isFirmware = false;
                         }
                         for (Map.Entry<String, Byte> entry : fileTypeMap.entrySet()) {
                             try {
@@ -150,16 +235,16 @@ public class PBWReader {
                                 int size = jo.getInt("size");
                                 long crc = jo.getLong("crc");
                                 byte type = entry.getValue();
-                                pebbleInstallables.add(new PebbleInstallable(platformDir + name, size, (int) crc, type));
+                                metadata.pebbleInstallables.add(new PebbleInstallable(platformDir + name, size, (int) crc, type));
                                 LOG.info("found file to install: " + platformDir + name);
-                                isValid = true;
+                                metadata.isValid = true;
                             } catch (JSONException e) {
                                 // not fatal
                             }
                         }
                     } catch (JSONException e) {
                         // no JSON at all that is a problem
-                        isValid = false;
+                        metadata.isValid = false;
                         e.printStackTrace();
                         break;
                     }
@@ -172,12 +257,7 @@ public class PBWReader {
                         break;
                     }
 
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    while ((count = zis.read(buffer)) != -1) {
-                        baos.write(buffer, 0, count);
-                    }
-
-                    String jsonString = baos.toString();
+                    String jsonString = readString(zipFile, ze, 500000);
                     try {
                         JSONObject json = new JSONObject(jsonString);
                         appName = json.getString("shortName");
@@ -185,60 +265,79 @@ public class PBWReader {
                         appVersion = json.getString("versionLabel");
                         appUUID = UUID.fromString(json.getString("uuid"));
                         if (json.has("appKeys")) {
-                            mAppKeys = json.getJSONObject("appKeys");
-                            LOG.info("found appKeys:" + mAppKeys.toString());
+                            metadata.appKeys = json.getJSONObject("appKeys");
+                            LOG.info("found appKeys:" + metadata.appKeys.toString());
                         }
                     } catch (JSONException e) {
-                        isValid = false;
+                        metadata.isValid = false;
                         e.printStackTrace();
                         break;
                     }
                 } else if (fileName.equals(platformDir + "pebble-app.bin")) {
-                    zis.read(buffer, 0, 108);
+                    byte[] buffer = new byte[108];
+                    try (InputStream in = zipFile.getInputStream(ze)) {
+                        int count;
+                        int offset = 0;
+                        while (offset < buffer.length && (count = in.read(buffer, offset, buffer.length - offset)) != -1) {
+                            offset += count;
+                        }
+                    }
                     byte[] tmp_buf = new byte[32];
                     ByteBuffer buf = ByteBuffer.wrap(buffer);
                     buf.order(ByteOrder.LITTLE_ENDIAN);
                     buf.getLong();  // header, TODO: verify
                     buf.getShort(); // struct version, TODO: verify
-                    mSdkVersion = buf.getShort();
-                    mAppVersion = buf.getShort();
+                    metadata.sdkVersion = buf.getShort();
+                    metadata.appVersion = buf.getShort();
                     buf.getShort(); // size
                     buf.getInt(); // offset
                     buf.getInt(); // crc
                     buf.get(tmp_buf, 0, 32); // app name
                     buf.get(tmp_buf, 0, 32); // author
-                    mIconId = buf.getInt();
-                    LOG.info("got icon id from pebble-app.bin: " + mIconId);
+                    metadata.iconId = buf.getInt();
+                    LOG.info("got icon id from pebble-app.bin: " + metadata.iconId);
                     buf.getInt(); // symbol table addr
-                    mFlags = buf.getInt();
-                    LOG.info("got flags from pebble-app.bin: " + mFlags);
+                    metadata.flags = buf.getInt();
+                    LOG.info("got flags from pebble-app.bin: " + metadata.flags);
                     // more follows but, not interesting for us
                 }
             }
             if (appUUID != null && appName != null && appCreator != null && appVersion != null) {
                 GBDeviceApp.Type appType = GBDeviceApp.Type.APP_GENERIC;
 
-                if ((mFlags & 16) == 16) {
+                if ((metadata.flags & 16) == 16) {
                     appType = GBDeviceApp.Type.APP_ACTIVITYTRACKER;
-                } else if ((mFlags & 1) == 1) {
+                } else if ((metadata.flags & 1) == 1) {
                     appType = GBDeviceApp.Type.WATCHFACE;
                 }
-                app = new GBDeviceApp(appUUID, appName, appCreator, appVersion, appType);
+                metadata.appUUID = appUUID;
+                metadata.appName = appName;
+                metadata.appCreator = appCreator;
+                metadata.appVersionLabel = appVersion;
+                metadata.appType = appType;
             }
-            else if (!isFirmware) {
-                isValid = false;
+            else if (!metadata.isFirmware) {
+                metadata.isValid = false;
             }
+        } finally {
+            zipFile.close();
+        }
+        return metadata;
+    }
+
+    private static String readString(ZipFile zipFile, ZipEntry entry, long maxLength) throws IOException {
+        try (InputStream in = zipFile.getInputStream(entry)) {
+            return new String(FileUtils.readAll(in, maxLength));
         }
     }
 
     /**
-     * Determines the platform dir to use for the given uri and platform.
-     * @param uriHelper
+     * Determines the platform dir to use for the given archive and platform.
+     * @param zipFile
      * @param platform
      * @return the platform dir to use
-     * @throws IOException
      */
-    private String determinePlatformDir(UriHelper uriHelper, String platform) throws IOException {
+    private static String determinePlatformDir(ZipFile zipFile, String platform) {
         String platformDir = "";
 
         /*
@@ -265,18 +364,118 @@ public class PBWReader {
         }
 
         for (String dir : platformDirs) {
-            try (ZipInputStream zis = new ZipInputStream(uriHelper.openInputStream())) {
-                ZipEntry ze;
-                while ((ze = zis.getNextEntry()) != null) {
-                    if (ze.getName().startsWith(dir)) {
-                        return dir;
-                    }
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                if (entries.nextElement().getName().startsWith(dir)) {
+                    return dir;
                 }
             }
         }
         return platformDir;
     }
 
+    /**
+     * Returns the archive behind the given uri. Files are read in place, and only hashed again
+     * when their size or modification time changes. Other uris do not tell reliably whether
+     * their content changed, so they are copied to the cache every time, which also hashes them.
+     */
+    private static Archive getArchive(UriHelper uriHelper) throws IOException {
+        File file = uriHelper.getFile();
+        if (file == null) {
+            return copyToCache(uriHelper);
+        }
+        String key = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        synchronized (archiveCache) {
+            Archive archive = archiveCache.get(key);
+            if (archive != null && archive.size == file.length() && archive.lastModified == lastModified) {
+                return archive;
+            }
+            try (InputStream in = new FileInputStream(file)) {
+                archive = new Archive(file, digest(in, null), file.length(), lastModified);
+            }
+            archiveCache.put(key, archive);
+            return archive;
+        }
+    }
+
+    /**
+     * Copies the content of the uri to a file in the cache that is named by the content hash.
+     * Only the most recently used copies are kept, and those that are still being read.
+     */
+    private static Archive copyToCache(UriHelper uriHelper) throws IOException {
+        File cacheDir = new File(uriHelper.getContext().getCacheDir(), ARCHIVE_CACHE_DIR);
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IOException("Unable to create " + cacheDir);
+        }
+        File tempFile = File.createTempFile("pbw", ".tmp", cacheDir);
+        String contentHash;
+        try (InputStream in = uriHelper.openInputStream(); OutputStream out = new FileOutputStream(tempFile)) {
+            contentHash = digest(in, out);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+
+        File file = new File(cacheDir, contentHash + ".zip");
+        if (file.exists()) {
+            tempFile.delete();
+            file.setLastModified(System.currentTimeMillis());
+        } else if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Unable to rename " + tempFile + " to " + file);
+        }
+
+        // only the archives, the temp files may still be written by other threads
+        File[] files = cacheDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".zip");
+            }
+        });
+        if (files != null && files.length > MAX_CACHED_ARCHIVES) {
+            // newest first
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File file1, File file2) {
+                    return Long.compare(file2.lastModified(), file1.lastModified());
+                }
+            });
+            synchronized (openArchives) {
+                for (int i = MAX_CACHED_ARCHIVES; i < files.length; i++) {
+                    if (files[i].equals(file) || openArchives.containsKey(files[i])) {
+                        continue;
+                    }
+                    if (!files[i].delete()) {
+                        LOG.warn("Unable to delete " + files[i]);
+                    }
+                }
+            }
+        }
+        return new Archive(file, contentHash, uriHelper.getFileSize(), 0);
+    }
+
+    /**
+     * Returns the SHA-1 hash of the given stream, as hex string, while copying it to the given output stream, if any.
+     */
+    private static String digest(InputStream in, @Nullable OutputStream out) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 is not available", e);
+        }
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, count);
+            if (out != null) {
+                out.write(buffer, 0, count);
+            }
+        }
+        return GB.hexdump(digest.digest());
+    }
+
     public boolean isFirmware() {
         return isFirmware;
     }
@@ -302,29 +501,78 @@ public class PBWReader {
                 return null;
             }
         }
-        ZipInputStream zis = null;
-        ZipEntry ze;
+        final File file;
         try {
-            zis = new ZipInputStream(uriHelper.openInputStream());
-            while ((ze = zis.getNextEntry()) != null) {
-                if (ze.getName().equals(filename)) {
-                    return zis; // return WITHOUT closing the stream!
-                }
+            file = retainArchive();
+        } catch (IOException e) {
+            LOG.warn("archive not available: " + e);
+            return null;
+        }
+        ZipFile zipFile = null;
+        try {
+            // only reads the central directory, not the files before the requested one
+            zipFile = new ZipFile(file);
+            ZipEntry ze = zipFile.getEntry(filename);
+            if (ze != null) {
+                final ZipFile entryZipFile = zipFile;
+                return new FilterInputStream(zipFile.getInputStream(ze)) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            try {
+                                entryZipFile.close();
+                            } finally {
+                                releaseArchive(file);
+                            }
+                        }
+                    }
+                };
             }
-            zis.close();
+            zipFile.close();
         } catch (Throwable e) {
             try {
-                if (zis != null) {
-                    zis.close();
+                if (zipFile != null) {
+                    zipFile.close();
                 }
             } catch (IOException e1) {
                 // ignore
             }
             e.printStackTrace();
         }
+        releaseArchive(file);
         return null;
     }
 
+    /**
+     * Marks the archive file as being read, so that it is not pruned from the cache. If it was
+     * pruned since this reader was created, it is copied to the cache again.
+     */
+    private File retainArchive() throws IOException {
+        while (true) {
+            synchronized (openArchives) {
+                if (archiveFile.exists()) {
+                    Integer count = openArchives.get(archiveFile);
+                    openArchives.put(archiveFile, count != null ? count + 1 : 1);
+                    return archiveFile;
+                }
+            }
+            archiveFile = getArchive(uriHelper).file;
+        }
+    }
+
+    private static void releaseArchive(File file) {
+        synchronized (openArchives) {
+            Integer count = openArchives.get(file);
+            if (count == null || count <= 1) {
+                openArchives.remove(file);
+            } else {
+                openArchives.put(file, count - 1);
+            }
+        }
+    }
+
     public PebbleInstallable[] getPebbleInstallables() {
         if (pebbleInstallables == null) {
             return null;
@@ -355,4 +603,39 @@ public class PBWReader {
     public JSONObject getAppKeysJSON() {
         return mAppKeys;
     }
+
+    private static class Archive {
+        final File file;
+        final String contentHash;
+        final long size;
+        final long lastModified;
+
+        Archive(File file, String contentHash, long size, long lastModified) {
+            this.file = file;
+            this.contentHash = contentHash;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * The metadata read from an archive for a platform. It is shared by all readers of the
+     * archive and must not be modified.
+     */
+    private static class Metadata {
+        ArrayList<PebbleInstallable> pebbleInstallables;
+        boolean isFirmware;
+        boolean isValid;
+        String hwRevision;
+        short sdkVersion;
+        short appVersion;
+        int iconId;
+        int flags;
+        JSONObject appKeys;
+        UUID appUUID;
+        String appName;
+        String appCreator;
+        String appVersionLabel;
+        GBDeviceApp.Type appType;
+    }
 }
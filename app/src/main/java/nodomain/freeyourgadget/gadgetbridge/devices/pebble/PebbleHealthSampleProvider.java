@@ -25,6 +25,8 @@ import de.greenrobot.dao.Property;
 import de.greenrobot.dao.query.QueryBuilder;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
 import nodomain.freeyourgadget.gadgetbridge.devices.AbstractSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.ActivityOverlayMerger;
+import nodomain.freeyourgadget.gadgetbridge.devices.ActivitySampleVisitor;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.entities.PebbleHealthActivityOverlay;
@@ -43,6 +45,24 @@ public class PebbleHealthSampleProvider extends AbstractSampleProvider<PebbleHea
     public static final int TYPE_RUN = 6;
     public static final int TYPE_ACTIVITY = -1;
 
+    private static final ActivityOverlayMerger<PebbleHealthActivityOverlay, PebbleHealthActivitySample> OVERLAY_MERGER =
+            new ActivityOverlayMerger<PebbleHealthActivityOverlay, PebbleHealthActivitySample>() {
+                @Override
+                protected int getTimestampFrom(PebbleHealthActivityOverlay overlay) {
+                    return overlay.getTimestampFrom();
+                }
+
+                @Override
+                protected int getTimestampTo(PebbleHealthActivityOverlay overlay) {
+                    return overlay.getTimestampTo();
+                }
+
+                @Override
+                protected void apply(PebbleHealthActivityOverlay overlay, PebbleHealthActivitySample sample) {
+                    // patch in the raw kind
+                    sample.setRawKind(overlay.getRawKind());
+                }
+            };
 
     protected final float movementDivisor = 8000f;
 
@@ -50,6 +70,14 @@ public class PebbleHealthSampleProvider extends AbstractSampleProvider<PebbleHea
         super(device, session);
     }
 
+    @Override
+    public void visitAllActivitySamples(int timestamp_from, int timestamp_to, ActivitySampleVisitor<? super PebbleHealthActivitySample> visitor) {
+        // no streaming, the overlays are applied to the complete list of samples
+        for (PebbleHealthActivitySample sample : getAllActivitySamples(timestamp_from, timestamp_to)) {
+            visitor.visit(sample);
+        }
+    }
+
     @Override
     public List<PebbleHealthActivitySample> getAllActivitySamples(int timestamp_from, int timestamp_to) {
         List<PebbleHealthActivitySample> samples = super.getGBActivitySamples(timestamp_from, timestamp_to, ActivityKind.TYPE_ALL);
@@ -67,14 +95,7 @@ public class PebbleHealthSampleProvider extends AbstractSampleProvider<PebbleHea
                 .where(PebbleHealthActivityOverlayDao.Properties.TimestampFrom.le(timestamp_to));
         List<PebbleHealthActivityOverlay> overlayRecords = qb.build().list();
 
-        for (PebbleHealthActivityOverlay overlay : overlayRecords) {
-            for (PebbleHealthActivitySample sample : samples) {
-                if (overlay.getTimestampFrom() <= sample.getTimestamp() && sample.getTimestamp() < overlay.getTimestampTo()) {
-                    // patch in the raw kind
-                    sample.setRawKind(overlay.getRawKind());
-                }
-            }
-        }
+        OVERLAY_MERGER.merge(overlayRecords, samples);
         detachFromSession();
         return samples;
     }
@@ -142,4 +163,10 @@ public class PebbleHealthSampleProvider extends AbstractSampleProvider<PebbleHea
     public float normalizeIntensity(int rawIntensity) {
         return rawIntensity / movementDivisor;
     }
+
+    @Override
+    protected boolean supportsActivityRollups() {
+        // activity kinds are taken from the overlay table at query time
+        return false;
+    }
 }
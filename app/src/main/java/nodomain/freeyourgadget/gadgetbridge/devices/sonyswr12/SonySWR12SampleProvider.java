@@ -96,4 +96,9 @@ public class SonySWR12SampleProvider extends AbstractSampleProvider<SonySWR12Sam
     public SonySWR12Sample createActivitySample() {
         return new SonySWR12Sample();
     }
+
+    @Override
+    protected boolean supportsSampleArchive() {
+        return true;
+    }
 }
@@ -81,4 +81,9 @@ public class TLW64SampleProvider extends AbstractSampleProvider<TLW64ActivitySam
     public TLW64ActivitySample createActivitySample() {
         return new TLW64ActivitySample();
     }
+
+    @Override
+    protected boolean supportsSampleArchive() {
+        return true;
+    }
 }
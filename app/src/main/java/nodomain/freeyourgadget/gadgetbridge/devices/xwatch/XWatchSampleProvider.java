@@ -77,4 +77,9 @@ public class XWatchSampleProvider extends AbstractSampleProvider<XWatchActivityS
     protected Property getDeviceIdentifierSampleProperty() {
         return XWatchActivitySampleDao.Properties.DeviceId;
     }
+
+    @Override
+    protected boolean supportsSampleArchive() {
+        return true;
+    }
 }
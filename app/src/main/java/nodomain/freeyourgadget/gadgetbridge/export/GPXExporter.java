@@ -20,13 +20,14 @@ package nodomain.freeyourgadget.gadgetbridge.export;
 import android.util.Xml;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
 
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.nio.charset.StandardCharsets;
@@ -36,6 +37,7 @@ import java.util.UUID;
 
 import nodomain.freeyourgadget.gadgetbridge.activities.HeartRateUtils;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityPoint;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityPointSink;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
 import nodomain.freeyourgadget.gadgetbridge.model.GPSCoordinate;
 import nodomain.freeyourgadget.gadgetbridge.util.DateTimeUtils;
@@ -51,6 +53,9 @@ public class GPXExporter implements ActivityTrackExporter {
     private static final String OPENTRACKS_PREFIX = "opentracks";
     private static final String OPENTRACKS_NAMESPACE_URI = "http://opentracksapp.com/xmlschemas/v1";
     private static final String OPENTRACKS_NAMESPACE_XSD = "http://opentracksapp.com/xmlschemas/OpenTracks_v1.xsd";
+    private static final long MAX_NEAREST_HEART_RATE_DISTANCE_MILLIS = 60 * 2 * 1000; // minimum distance is 2min
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private static final long[] POWERS_OF_TEN = { 1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000 };
 
     private String creator;
     private boolean includeHeartRate = true;
@@ -64,30 +69,50 @@ public class GPXExporter implements ActivityTrackExporter {
 
     @Override
     public void performExport(ActivityTrack track, File targetFile) throws IOException, GPXTrackEmptyException {
+        try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(targetFile), OUTPUT_BUFFER_SIZE)) {
+            performExport(track, outputStream);
+        }
+    }
+
+    /**
+     * Streams the track as GPX to the given output stream, which should be buffered.
+     * The stream is flushed, but not closed.
+     */
+    public void performExport(ActivityTrack track, OutputStream outputStream) throws IOException, GPXTrackEmptyException {
+        TrackWriter writer = startExport(track, outputStream);
+        for (ActivityPoint point : track.getTrackPoints()) {
+            writer.addActivityPoint(point);
+        }
+        writer.finish();
+    }
+
+    /**
+     * Writes the GPX header for the given track and returns a writer for its points, so that
+     * tracks can be exported while they are still being received or parsed. The track
+     * only provides the metadata, its points are ignored.
+     * Call {@link TrackWriter#finish()} after the last point has been added.
+     */
+    public TrackWriter startExport(ActivityTrack track, OutputStream outputStream) throws IOException {
         String encoding = StandardCharsets.UTF_8.name();
         XmlSerializer ser = Xml.newSerializer();
-        try (FileOutputStream outputStream = new FileOutputStream(targetFile)) {
-            ser.setOutput(outputStream, encoding);
-            ser.startDocument(encoding, Boolean.TRUE);
-            ser.setPrefix("xsi", NS_XSI_URI);
-            ser.setPrefix(NS_TRACKPOINT_EXTENSION, NS_TRACKPOINT_EXTENSION_URI);
-            ser.setPrefix(NS_GPX_PREFIX, NS_GPX_URI);
-            ser.setPrefix(OPENTRACKS_PREFIX, OPENTRACKS_NAMESPACE_URI);
-
-            ser.startTag(NS_GPX_URI, "gpx");
-            ser.attribute(null, "version", "1.1");
-            ser.attribute(null, "creator", getCreator());
-            ser.attribute(NS_XSI_URI, "schemaLocation", NS_GPX_URI + " "
-                    + TOPOGRAFIX_NAMESPACE_XSD + " "
-                    + OPENTRACKS_NAMESPACE_URI + " " + OPENTRACKS_NAMESPACE_XSD);
-
-            exportMetadata(ser, track);
-            exportTrack(ser, track);
+        ser.setOutput(outputStream, encoding);
+        ser.startDocument(encoding, Boolean.TRUE);
+        ser.setPrefix("xsi", NS_XSI_URI);
+        ser.setPrefix(NS_TRACKPOINT_EXTENSION, NS_TRACKPOINT_EXTENSION_URI);
+        ser.setPrefix(NS_GPX_PREFIX, NS_GPX_URI);
+        ser.setPrefix(OPENTRACKS_PREFIX, OPENTRACKS_NAMESPACE_URI);
 
-            ser.endTag(NS_GPX_URI, "gpx");
-            ser.endDocument();
-            ser.flush();
-        }
+        ser.startTag(NS_GPX_URI, "gpx");
+        ser.attribute(null, "version", "1.1");
+        ser.attribute(null, "creator", getCreator());
+        ser.attribute(NS_XSI_URI, "schemaLocation", NS_GPX_URI + " "
+                + TOPOGRAFIX_NAMESPACE_XSD + " "
+                + OPENTRACKS_NAMESPACE_URI + " " + OPENTRACKS_NAMESPACE_XSD);
+
+        exportMetadata(ser, track);
+        startTrack(ser);
+
+        return new TrackWriter(ser, getSource(track));
     }
 
     private void exportMetadata(XmlSerializer ser, ActivityTrack track) throws IOException {
@@ -107,7 +132,7 @@ public class GPXExporter implements ActivityTrackExporter {
         return DateTimeUtils.formatIso8601(date);
     }
 
-    private void exportTrack(XmlSerializer ser, ActivityTrack track) throws IOException, GPXTrackEmptyException {
+    private void startTrack(XmlSerializer ser) throws IOException {
         String uuid = UUID.randomUUID().toString();
         ser.startTag(NS_GPX_URI, "trk");
         ser.startTag(NS_GPX_URI, "extensions");
@@ -115,37 +140,23 @@ public class GPXExporter implements ActivityTrackExporter {
         ser.endTag(NS_GPX_URI, "extensions");
 
         ser.startTag(NS_GPX_URI, "trkseg");
-
-        List<ActivityPoint> trackPoints = track.getTrackPoints();
-        String source = getSource(track);
-        boolean atLeastOnePointExported = false;
-        for (ActivityPoint point : trackPoints) {
-            atLeastOnePointExported |= exportTrackPoint(ser, point, source, trackPoints);
-        }
-
-        if(!atLeastOnePointExported) {
-            throw new GPXTrackEmptyException();
-        }
-
-        ser.endTag(NS_GPX_URI, "trkseg");
-        ser.endTag(NS_GPX_URI, "trk");
     }
 
     private String getSource(ActivityTrack track) {
         return track.getDevice().getName();
     }
 
-    private boolean exportTrackPoint(XmlSerializer ser, ActivityPoint point, String source, List<ActivityPoint> trackPoints) throws IOException {
+    private boolean exportTrackPoint(XmlSerializer ser, ActivityPoint point, String source, int nearestHeartRate, StringBuilder buffer) throws IOException {
         GPSCoordinate location = point.getLocation();
         if (location == null) {
             return false; // skip invalid points, that just contain hr data, for example
         }
         ser.startTag(NS_GPX_URI, "trkpt");
         // lon and lat attributes do not have an explicit namespace
-        ser.attribute(null, "lon", formatLocation(location.getLongitude()));
-        ser.attribute(null, "lat", formatLocation(location.getLatitude()));
+        ser.attribute(null, "lon", formatLocation(location.getLongitude(), buffer));
+        ser.attribute(null, "lat", formatLocation(location.getLatitude(), buffer));
         if (location.getAltitude() != -20000) {
-            ser.startTag(NS_GPX_URI, "ele").text(formatLocation(location.getAltitude())).endTag(NS_GPX_URI, "ele");
+            ser.startTag(NS_GPX_URI, "ele").text(formatLocation(location.getAltitude(), buffer)).endTag(NS_GPX_URI, "ele");
         }
         ser.startTag(NS_GPX_URI, "time").text(DateTimeUtils.formatIso8601UTC(point.getTime())).endTag(NS_GPX_URI, "time");
         String description = point.getDescription();
@@ -154,33 +165,24 @@ public class GPXExporter implements ActivityTrackExporter {
         }
         //ser.startTag(NS_GPX_URI, "src").text(source).endTag(NS_GPX_URI, "src");
 
-        exportTrackpointExtensions(ser, point, trackPoints);
+        exportTrackpointExtensions(ser, point, nearestHeartRate);
 
         ser.endTag(NS_GPX_URI, "trkpt");
 
         return true;
     }
 
-    private void exportTrackpointExtensions(XmlSerializer ser, ActivityPoint point, List<ActivityPoint> trackPoints) throws IOException {
+    private void exportTrackpointExtensions(XmlSerializer ser, ActivityPoint point, int nearestHeartRate) throws IOException {
         if (!includeHeartRate) {
             return;
         }
 
         int hr = point.getHeartRate();
         if (!HeartRateUtils.getInstance().isValidHeartRateValue(hr)) {
-            if (!includeHeartRateOfNearestSample) {
-                return;
-            }
-
-            ActivityPoint closestPointItem = findClosestSensibleActivityPoint(point.getTime(), trackPoints);
-            if(closestPointItem == null) {
-                return;
-            }
-
-            hr = closestPointItem.getHeartRate();
-            if (!HeartRateUtils.getInstance().isValidHeartRateValue(hr)) {
+            if (!includeHeartRateOfNearestSample || nearestHeartRate == 0) {
                 return;
             }
+            hr = nearestHeartRate;
         }
 
         ser.startTag(NS_GPX_URI, "extensions");
@@ -191,30 +193,47 @@ public class GPXExporter implements ActivityTrackExporter {
         ser.endTag(NS_GPX_URI, "extensions");
     }
 
-    private @Nullable ActivityPoint findClosestSensibleActivityPoint(Date time, List<ActivityPoint> trackPoints) {
-        ActivityPoint closestPointItem = null;
-        HeartRateUtils heartRateUtilsInstance = HeartRateUtils.getInstance();
-
-        long lowestDifference = 60 * 2 * 1000; // minimum distance is 2min
+    /**
+     * For every track point, determines the heart rate of the closest point with a valid heart rate
+     * that lies strictly before it and at most 2 minutes apart, or 0 if there is none.
+     */
+    static int[] findNearestSensibleHeartRates(List<ActivityPoint> trackPoints) {
+        NearestHeartRateFinder finder = new NearestHeartRateFinder();
+        int[] result = new int[trackPoints.size()];
+        int index = 0;
         for (ActivityPoint pointItem : trackPoints) {
-            int hrItem = pointItem.getHeartRate();
-            if (heartRateUtilsInstance.isValidHeartRateValue(hrItem)) {
-                Date timeItem = pointItem.getTime();
-                if (timeItem.after(time) || timeItem.equals(time)) {
-                    break; // we assume that the given trackPoints are sorted in time ascending order (oldest first)
-                }
-                long difference = time.getTime() - timeItem.getTime();
-                if (difference < lowestDifference) {
-                    lowestDifference = difference;
-                    closestPointItem = pointItem;
-                }
-            }
+            result[index++] = finder.next(pointItem);
         }
-        return closestPointItem;
+        return result;
     }
 
-    private String formatLocation(double value) {
-        return new BigDecimal(value).setScale(GPSCoordinate.GPS_DECIMAL_DEGREES_SCALE, RoundingMode.HALF_UP).toPlainString();
+    /**
+     * Formats the value rounded half up to GPS_DECIMAL_DEGREES_SCALE decimal places, like
+     * <code>new BigDecimal(value).setScale(scale, RoundingMode.HALF_UP).toPlainString()</code>,
+     * but without allocating a BigDecimal for every coordinate.
+     */
+    static String formatLocation(double value, StringBuilder buffer) {
+        final int scale = GPSCoordinate.GPS_DECIMAL_DEGREES_SCALE;
+        double scaled = Math.abs(value) * POWERS_OF_TEN[scale];
+        double fraction = scaled - Math.floor(scaled);
+        // values close to a tie can not be rounded reliably in double precision
+        if (!(scaled < 1e11) || Math.abs(fraction - 0.5) < 1e-3) {
+            return new BigDecimal(value).setScale(scale, RoundingMode.HALF_UP).toPlainString();
+        }
+        long rounded = (long) Math.floor(scaled + 0.5);
+        long integerPart = rounded / POWERS_OF_TEN[scale];
+        long fractionPart = rounded % POWERS_OF_TEN[scale];
+
+        buffer.setLength(0);
+        if (value < 0 && rounded != 0) {
+            buffer.append('-');
+        }
+        buffer.append(integerPart).append('.');
+        for (int i = scale - 1; i > 0 && fractionPart < POWERS_OF_TEN[i]; i--) {
+            buffer.append('0');
+        }
+        buffer.append(fractionPart);
+        return buffer.toString();
     }
 
     public String getCreator() {
@@ -232,4 +251,85 @@ public class GPXExporter implements ActivityTrackExporter {
     public boolean isIncludeHeartRate() {
         return includeHeartRate;
     }
+
+    /**
+     * Writes the points of a track as they are added, in time ascending order.
+     */
+    public class TrackWriter implements ActivityPointSink {
+        private final XmlSerializer ser;
+        private final String source;
+        private final StringBuilder buffer = new StringBuilder(24);
+        private final NearestHeartRateFinder nearestHeartRateFinder = new NearestHeartRateFinder();
+        private boolean atLeastOnePointExported;
+
+        private TrackWriter(XmlSerializer ser, String source) {
+            this.ser = ser;
+            this.source = source;
+        }
+
+        @Override
+        public void addActivityPoint(ActivityPoint point) throws IOException {
+            int nearestHeartRate = includeHeartRate ? nearestHeartRateFinder.next(point) : 0;
+            atLeastOnePointExported |= exportTrackPoint(ser, point, source, nearestHeartRate, buffer);
+        }
+
+        /**
+         * Closes all open tags and flushes the serializer, the output stream is not closed.
+         *
+         * @throws GPXTrackEmptyException if none of the points had a location
+         */
+        public void finish() throws IOException, GPXTrackEmptyException {
+            if (!atLeastOnePointExported) {
+                throw new GPXTrackEmptyException();
+            }
+
+            ser.endTag(NS_GPX_URI, "trkseg");
+            ser.endTag(NS_GPX_URI, "trk");
+
+            ser.endTag(NS_GPX_URI, "gpx");
+            ser.endDocument();
+            ser.flush();
+        }
+    }
+
+    /**
+     * Keeps track of the last valid heart rates in a single sweep over track points sorted in
+     * time ascending order (oldest first), instead of scanning all points for each point
+     * without heart rate.
+     */
+    private static class NearestHeartRateFinder {
+        private final HeartRateUtils heartRateUtilsInstance = HeartRateUtils.getInstance();
+
+        // the last valid heart rate of all points before the current timestamp
+        private int previousHr;
+        private long previousTime;
+        // the last valid heart rate at the current timestamp, not eligible for points with the same time
+        private int currentHr;
+        private long currentTime = Long.MIN_VALUE;
+
+        /**
+         * Returns the heart rate of the closest point with a valid heart rate that lies
+         * strictly before the given one and at most 2 minutes apart, or 0 if there is none.
+         */
+        int next(ActivityPoint pointItem) {
+            long time = pointItem.getTime().getTime();
+            if (time != currentTime) {
+                if (currentHr != 0) {
+                    previousHr = currentHr;
+                    previousTime = currentTime;
+                }
+                currentHr = 0;
+                currentTime = time;
+            }
+            int result = 0;
+            if (previousHr != 0 && time - previousTime < MAX_NEAREST_HEART_RATE_DISTANCE_MILLIS) {
+                result = previousHr;
+            }
+            int hrItem = pointItem.getHeartRate();
+            if (heartRateUtilsInstance.isValidHeartRateValue(hrItem)) {
+                currentHr = hrItem;
+            }
+            return result;
+        }
+    }
 }
@@ -0,0 +1,107 @@
+package nodomain.freeyourgadget.gadgetbridge.externalevents;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import androidx.annotation.Nullable;
+
+/**
+ * A bounded LRU cache of the Pebble color derived from the icon of each app, so that the
+ * icon only needs to be analyzed for the first notification of an app. The colors are
+ * persisted across restarts together with the last update time of the app, so that
+ * updates that happened in the meantime are detected. Updates while running are
+ * reported through {@link #invalidate(String)}.
+ */
+class AppIconColorCache {
+    private static final Logger LOG = LoggerFactory.getLogger(AppIconColorCache.class);
+
+    private static final String PREFS_NAME = "app_icon_colors";
+    private static final int MAX_ENTRIES = 256;
+
+    private final PackageManager packageManager;
+    private final SharedPreferences prefs;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > MAX_ENTRIES) {
+                prefs.edit().remove(eldest.getKey()).apply();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    AppIconColorCache(Context context) {
+        packageManager = context.getPackageManager();
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> stored : prefs.getAll().entrySet()) {
+            if (stored.getValue() instanceof Long) {
+                long value = (Long) stored.getValue();
+                entries.put(stored.getKey(), new Entry((byte) value, value >>> 8, false));
+            }
+        }
+        LOG.debug("Loaded {} app icon colors", entries.size());
+    }
+
+    /**
+     * Returns the cached color of the given app, or null if it is unknown or outdated.
+     */
+    @Nullable
+    synchronized Byte get(String packageName) {
+        Entry entry = entries.get(packageName);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.verified) {
+            // the app may have been updated while we were not running
+            if (getLastUpdateTime(packageName) != entry.lastUpdateTime) {
+                invalidate(packageName);
+                return null;
+            }
+            entry.verified = true;
+        }
+        return entry.color;
+    }
+
+    synchronized void put(String packageName, byte color) {
+        long lastUpdateTime = getLastUpdateTime(packageName);
+        if (lastUpdateTime < 0) {
+            return;
+        }
+        entries.put(packageName, new Entry(color, lastUpdateTime, true));
+        prefs.edit().putLong(packageName, (lastUpdateTime << 8) | (color & 0xff)).apply();
+    }
+
+    synchronized void invalidate(String packageName) {
+        if (entries.remove(packageName) != null) {
+            prefs.edit().remove(packageName).apply();
+        }
+    }
+
+    private long getLastUpdateTime(String packageName) {
+        try {
+            return packageManager.getPackageInfo(packageName, 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return -1;
+        }
+    }
+
+    private static class Entry {
+        final byte color;
+        final long lastUpdateTime;
+        boolean verified;
+
+        Entry(byte color, long lastUpdateTime, boolean verified) {
+            this.color = color;
+            this.lastUpdateTime = lastUpdateTime;
+            this.verified = verified;
+        }
+    }
+}
@@ -26,13 +26,16 @@ import android.widget.Toast;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Enumeration;
+import java.util.Collection;
 import java.util.GregorianCalendar;
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import de.greenrobot.dao.query.QueryBuilder;
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
@@ -46,43 +49,27 @@ import nodomain.freeyourgadget.gadgetbridge.util.GB;
 
 public class CalendarReceiver extends BroadcastReceiver {
     private static final Logger LOG = LoggerFactory.getLogger(CalendarReceiver.class);
-    private Hashtable<Long, EventSyncState> eventState = new Hashtable<>();
 
     private GBDevice mGBDevice;
 
-    private class EventSyncState {
-        private int state;
-        private CalendarEvents.CalendarEvent event;
-
-        EventSyncState(CalendarEvents.CalendarEvent event, int state) {
-            this.state = state;
-            this.event = event;
-        }
-
-        public int getState() {
-            return state;
-        }
-
-        public void setState(int state) {
-            this.state = state;
-        }
-
-        public CalendarEvents.CalendarEvent getEvent() {
-            return event;
-        }
-
-        public void setEvent(CalendarEvents.CalendarEvent event) {
-            this.event = event;
+    /**
+     * The changes of a sync that still need to be sent to the device.
+     */
+    private static class SyncChanges {
+        private final List<Long> deletedIds = new ArrayList<>();
+        private final List<CalendarEventSpec> addedEvents = new ArrayList<>();
+
+        void sendToDevice() {
+            // updated events are deleted first and added again
+            for (Long id : deletedIds) {
+                GBApplication.deviceService().onDeleteCalendarEvent(CalendarEventSpec.TYPE_UNKNOWN, id);
+            }
+            for (CalendarEventSpec calendarEventSpec : addedEvents) {
+                GBApplication.deviceService().onAddCalendarEvent(calendarEventSpec);
+            }
         }
     }
 
-    private static class EventState {
-        private static final int NOT_SYNCED = 0;
-        private static final int SYNCED = 1;
-        private static final int NEEDS_UPDATE = 2;
-        private static final int NEEDS_DELETE = 3;
-    }
-
     public CalendarReceiver(GBDevice gbDevice) {
         LOG.info("Created calendar receiver.");
         mGBDevice = gbDevice;
@@ -97,119 +84,94 @@ public class CalendarReceiver extends BroadcastReceiver {
     }
 
     public void syncCalendar(List<CalendarEvents.CalendarEvent> eventList) {
+        SyncChanges changes;
         try (DBHandler dbHandler = GBApplication.acquireDB()) {
             DaoSession session = dbHandler.getDaoSession();
-            syncCalendar(eventList, session);
+            changes = syncCalendar(eventList, session);
         } catch (Exception e1) {
             GB.toast("Database Error while syncing Calendar", Toast.LENGTH_SHORT, GB.ERROR, e1);
+            return;
         }
+        // no need to hold the database lock while talking to the device
+        changes.sendToDevice();
     }
 
-    public void syncCalendar(List<CalendarEvents.CalendarEvent> eventList, DaoSession session) {
+    /**
+     * Compares the events with the sync state of the device in a single pass and stores the
+     * new sync state in one transaction.
+     */
+    private SyncChanges syncCalendar(List<CalendarEvents.CalendarEvent> eventList, DaoSession session) {
         LOG.info("Syncing with calendar.");
-        Hashtable<Long, CalendarEvents.CalendarEvent> eventTable = new Hashtable<>();
-        Long deviceId = DBHelper.getDevice(mGBDevice, session).getId();
-        QueryBuilder<CalendarSyncState> qb = session.getCalendarSyncStateDao().queryBuilder();
-
+        long deviceId = DBHelper.getDevice(mGBDevice, session).getId();
+        final CalendarSyncStateDao calendarSyncStateDao = session.getCalendarSyncStateDao();
+
+        Map<Long, CalendarSyncState> syncStates = new HashMap<>();
+        List<CalendarSyncState> calendarSyncStateList = calendarSyncStateDao.queryBuilder()
+                .where(CalendarSyncStateDao.Properties.DeviceId.eq(deviceId)).build().list();
+        for (CalendarSyncState calendarSyncState : calendarSyncStateList) {
+            syncStates.put(calendarSyncState.getCalendarEntryId(), calendarSyncState);
+        }
 
+        SyncChanges changes = new SyncChanges();
+        final List<CalendarSyncState> storeStates = new ArrayList<>();
+        Set<Long> seenIds = new HashSet<>();
         for (CalendarEvents.CalendarEvent e : eventList) {
             long id = e.getId();
-            eventTable.put(id, e);
-            if (!eventState.containsKey(e.getId())) {
-                qb = session.getCalendarSyncStateDao().queryBuilder();
-
-                CalendarSyncState calendarSyncState = qb.where(qb.and(CalendarSyncStateDao.Properties.DeviceId.eq(deviceId), CalendarSyncStateDao.Properties.CalendarEntryId.eq(id)))
-                        .build().unique();
-                if (calendarSyncState == null) {
-                    eventState.put(id, new EventSyncState(e, EventState.NOT_SYNCED));
-                    LOG.info("event id=" + id + " is yet unknown to device id=" + deviceId);
-                } else if (calendarSyncState.getHash() == e.hashCode()) {
-                    eventState.put(id, new EventSyncState(e, EventState.SYNCED));
-                    LOG.info("event id=" + id + " is up to date on device id=" + deviceId);
-                }
-                else {
-                    eventState.put(id, new EventSyncState(e, EventState.NEEDS_UPDATE));
-                    LOG.info("event id=" + id + " is not up to date on device id=" + deviceId);
-                }
+            if (!seenIds.add(id)) {
+                continue;
+            }
+            CalendarSyncState calendarSyncState = syncStates.remove(id);
+            if (calendarSyncState == null) {
+                LOG.info("event id=" + id + " is yet unknown to device id=" + deviceId);
+                storeStates.add(new CalendarSyncState(null, deviceId, id, e.hashCode()));
+                changes.addedEvents.add(createCalendarEventSpec(e));
+            } else if (calendarSyncState.getHash() != e.hashCode()) {
+                LOG.info("event id=" + id + " is not up to date on device id=" + deviceId);
+                calendarSyncState.setHash(e.hashCode());
+                storeStates.add(calendarSyncState);
+                changes.deletedIds.add(id);
+                changes.addedEvents.add(createCalendarEventSpec(e));
             }
         }
 
-        // add all missing calendar ids on the device to sync status (so that they are deleted later)
-        List<CalendarSyncState> CalendarSyncStateList = qb.where(CalendarSyncStateDao.Properties.DeviceId.eq(deviceId)).build().list();
-        for (CalendarSyncState CalendarSyncState : CalendarSyncStateList) {
-            if (!eventState.containsKey(CalendarSyncState.getCalendarEntryId())) {
-                eventState.put(CalendarSyncState.getCalendarEntryId(), new EventSyncState(null, EventState.NEEDS_DELETE));
-                LOG.info("insert null event for orphaned calendar id=" + CalendarSyncState.getCalendarEntryId() + " for device=" + mGBDevice.getName());
-            }
+        // the remaining events are no longer in the calendar
+        final Collection<CalendarSyncState> deleteStates = syncStates.values();
+        for (CalendarSyncState calendarSyncState : deleteStates) {
+            LOG.info("deleting orphaned calendar id=" + calendarSyncState.getCalendarEntryId() + " for device=" + mGBDevice.getName());
+            changes.deletedIds.add(calendarSyncState.getCalendarEntryId());
         }
 
-        Enumeration<Long> ids = eventState.keys();
-        while (ids.hasMoreElements()) {
-            qb = session.getCalendarSyncStateDao().queryBuilder();
-            Long i = ids.nextElement();
-            EventSyncState es = eventState.get(i);
-            if (eventTable.containsKey(i)) {
-                if (es.getState() == EventState.SYNCED) {
-                    if (!es.getEvent().equals(eventTable.get(i))) {
-                        eventState.put(i, new EventSyncState(eventTable.get(i), EventState.NEEDS_UPDATE));
-                    }
+        if (!storeStates.isEmpty() || !deleteStates.isEmpty()) {
+            session.runInTx(new Runnable() {
+                @Override
+                public void run() {
+                    calendarSyncStateDao.deleteInTx(deleteStates);
+                    calendarSyncStateDao.insertOrReplaceInTx(storeStates);
                 }
-            } else {
-                if (es.getState() == EventState.NOT_SYNCED) {
-                    // delete for current device only
-                    qb.where(qb.and(CalendarSyncStateDao.Properties.DeviceId.eq(deviceId), CalendarSyncStateDao.Properties.CalendarEntryId.eq(i)))
-                            .buildDelete().executeDeleteWithoutDetachingEntities();
-                    eventState.remove(i);
-                } else {
-                    es.setState(EventState.NEEDS_DELETE);
-                    eventState.put(i, es);
-                }
-            }
-            updateEvents(deviceId, session);
+            });
         }
+        LOG.info("Calendar sync: " + changes.addedEvents.size() + " events to add, " + changes.deletedIds.size() + " to delete, " + (seenIds.size() - storeStates.size()) + " up to date");
+        return changes;
     }
 
-    private void updateEvents(Long deviceId, DaoSession session) {
-        Enumeration<Long> ids = eventState.keys();
-        while (ids.hasMoreElements()) {
-            Long i = ids.nextElement();
-            EventSyncState es = eventState.get(i);
-            int syncState = es.getState();
-            if (syncState == EventState.NOT_SYNCED || syncState == EventState.NEEDS_UPDATE) {
-                CalendarEvents.CalendarEvent calendarEvent = es.getEvent();
-                CalendarEventSpec calendarEventSpec = new CalendarEventSpec();
-                calendarEventSpec.id = i;
-                calendarEventSpec.title = calendarEvent.getTitle();
-                calendarEventSpec.allDay = calendarEvent.isAllDay();
-                calendarEventSpec.timestamp = calendarEvent.getBeginSeconds();
-                calendarEventSpec.durationInSeconds = calendarEvent.getDurationSeconds(); //FIXME: leads to problems right now
-                if (calendarEvent.isAllDay()) {
-                    //force the all day events to begin at midnight and last a whole day
-                    Calendar c = GregorianCalendar.getInstance();
-                    c.setTimeInMillis(calendarEvent.getBegin());
-                    c.set(Calendar.HOUR, 0);
-                    calendarEventSpec.timestamp = (int) (c.getTimeInMillis() / 1000);
-                    calendarEventSpec.durationInSeconds = 24 * 60 * 60;
-                }
-                calendarEventSpec.description = calendarEvent.getDescription();
-                calendarEventSpec.location = calendarEvent.getLocation();
-                calendarEventSpec.type = CalendarEventSpec.TYPE_UNKNOWN;
-                if (syncState == EventState.NEEDS_UPDATE) {
-                    GBApplication.deviceService().onDeleteCalendarEvent(CalendarEventSpec.TYPE_UNKNOWN, i);
-                }
-                GBApplication.deviceService().onAddCalendarEvent(calendarEventSpec);
-                es.setState(EventState.SYNCED);
-                eventState.put(i, es);
-                // update db
-                session.insertOrReplace(new CalendarSyncState(null, deviceId, i, es.event.hashCode()));
-            } else if (syncState == EventState.NEEDS_DELETE) {
-                GBApplication.deviceService().onDeleteCalendarEvent(CalendarEventSpec.TYPE_UNKNOWN, i);
-                eventState.remove(i);
-                // delete from db for current device only
-                QueryBuilder<CalendarSyncState> qb = session.getCalendarSyncStateDao().queryBuilder();
-                qb.where(qb.and(CalendarSyncStateDao.Properties.DeviceId.eq(deviceId), CalendarSyncStateDao.Properties.CalendarEntryId.eq(i)))
-                        .buildDelete().executeDeleteWithoutDetachingEntities();
-            }
+    private CalendarEventSpec createCalendarEventSpec(CalendarEvents.CalendarEvent calendarEvent) {
+        CalendarEventSpec calendarEventSpec = new CalendarEventSpec();
+        calendarEventSpec.id = calendarEvent.getId();
+        calendarEventSpec.title = calendarEvent.getTitle();
+        calendarEventSpec.allDay = calendarEvent.isAllDay();
+        calendarEventSpec.timestamp = calendarEvent.getBeginSeconds();
+        calendarEventSpec.durationInSeconds = calendarEvent.getDurationSeconds(); //FIXME: leads to problems right now
+        if (calendarEvent.isAllDay()) {
+            //force the all day events to begin at midnight and last a whole day
+            Calendar c = GregorianCalendar.getInstance();
+            c.setTimeInMillis(calendarEvent.getBegin());
+            c.set(Calendar.HOUR, 0);
+            calendarEventSpec.timestamp = (int) (c.getTimeInMillis() / 1000);
+            calendarEventSpec.durationInSeconds = 24 * 60 * 60;
         }
+        calendarEventSpec.description = calendarEvent.getDescription();
+        calendarEventSpec.location = calendarEvent.getLocation();
+        calendarEventSpec.type = CalendarEventSpec.TYPE_UNKNOWN;
+        return calendarEventSpec;
     }
 }
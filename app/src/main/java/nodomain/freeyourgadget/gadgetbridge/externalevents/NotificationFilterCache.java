@@ -0,0 +1,195 @@
+package nodomain.freeyourgadget.gadgetbridge.externalevents;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.GBException;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
+import nodomain.freeyourgadget.gadgetbridge.entities.NotificationFilter;
+import nodomain.freeyourgadget.gadgetbridge.entities.NotificationFilterEntry;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.LatencyHistogram;
+import nodomain.freeyourgadget.gadgetbridge.util.MultiStringMatcher;
+
+import static nodomain.freeyourgadget.gadgetbridge.activities.NotificationFilterActivity.NOTIFICATION_FILTER_MODE_BLACKLIST;
+import static nodomain.freeyourgadget.gadgetbridge.activities.NotificationFilterActivity.NOTIFICATION_FILTER_MODE_WHITELIST;
+import static nodomain.freeyourgadget.gadgetbridge.activities.NotificationFilterActivity.NOTIFICATION_FILTER_SUBMODE_ALL;
+
+/**
+ * Keeps the notification filters of all apps in memory, compiled for matching, so that
+ * the database need not be queried for every notification. The filters are loaded
+ * on first use and again after {@link #invalidate()} was called, e.g. when a filter
+ * was saved or the database was imported.
+ */
+public final class NotificationFilterCache {
+    private static final Logger LOG = LoggerFactory.getLogger(NotificationFilterCache.class);
+
+    private static final Object lock = new Object();
+    private static final LatencyHistogram filterLatency = new LatencyHistogram();
+    private static Map<String, CompiledFilter> filters;
+    private static int generation;
+
+    private NotificationFilterCache() {
+    }
+
+    /**
+     * Returns the filter of the given app, or null if there is none.
+     *
+     * @param appIdentifier the package name of the app, in lower case
+     */
+    @Nullable
+    public static CompiledFilter getFilter(String appIdentifier) throws GBException {
+        Map<String, CompiledFilter> current;
+        int loadGeneration;
+        synchronized (lock) {
+            current = filters;
+            loadGeneration = generation;
+        }
+        if (current == null) {
+            current = loadFilters();
+            synchronized (lock) {
+                // do not keep filters that were loaded before the last invalidation
+                if (generation == loadGeneration) {
+                    filters = current;
+                }
+            }
+        }
+        return current.get(appIdentifier);
+    }
+
+    /**
+     * Discards the cached filters, they will be reloaded from the database on next use.
+     */
+    public static void invalidate() {
+        synchronized (lock) {
+            filters = null;
+            generation++;
+        }
+    }
+
+    /**
+     * Records how long the filtering of a single notification took.
+     */
+    static void recordFilterLatency(long nanos) {
+        filterLatency.record(nanos);
+    }
+
+    public static LatencyHistogram getFilterLatency() {
+        return filterLatency;
+    }
+
+    private static Map<String, CompiledFilter> loadFilters() throws GBException {
+        long start = System.currentTimeMillis();
+        List<NotificationFilter> notificationFilters;
+        List<NotificationFilterEntry> filterEntries;
+        try (DBHandler db = GBApplication.acquireReadOnlyDB()) {
+            notificationFilters = db.getDaoSession().getNotificationFilterDao().loadAll();
+            filterEntries = db.getDaoSession().getNotificationFilterEntryDao().loadAll();
+        } catch (GBException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new GBException("Error loading notification filters", e);
+        }
+
+        Map<Long, List<String>> wordsByFilterId = new HashMap<>();
+        for (NotificationFilterEntry entry : filterEntries) {
+            List<String> words = wordsByFilterId.get(entry.getNotificationFilterId());
+            if (words == null) {
+                words = new ArrayList<>();
+                wordsByFilterId.put(entry.getNotificationFilterId(), words);
+            }
+            words.add(entry.getNotificationFilterContent());
+        }
+
+        Map<String, CompiledFilter> result = new HashMap<>();
+        for (NotificationFilter notificationFilter : notificationFilters) {
+            List<String> words = wordsByFilterId.get(notificationFilter.getId());
+            if (words == null) {
+                words = Collections.emptyList();
+            }
+            result.put(notificationFilter.getAppIdentifier(), new CompiledFilter(notificationFilter, words));
+        }
+        LOG.debug("Loaded {} notification filters with {} words in {} ms", result.size(), filterEntries.size(), System.currentTimeMillis() - start);
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * The mode and the words of a notification filter, matched in a single pass over the text.
+     */
+    public static class CompiledFilter {
+        private final int mode;
+        private final int subMode;
+        private final List<String> words;
+        private final MultiStringMatcher matcher;
+
+        public CompiledFilter(@NonNull NotificationFilter notificationFilter, @NonNull List<String> words) {
+            this.mode = notificationFilter.getNotificationFilterMode();
+            this.subMode = notificationFilter.getNotificationFilterSubMode();
+            this.words = words;
+            this.matcher = new MultiStringMatcher(words);
+        }
+
+        /**
+         * Returns whether a notification with the given text should be processed further.
+         */
+        public boolean shouldContinue(String body) {
+            LOG.debug("Mode: '{}' Submode: '{}' WordsList: '{}'", mode, subMode, words);
+
+            boolean allMode = subMode == NOTIFICATION_FILTER_SUBMODE_ALL;
+
+            switch (mode) {
+                case NOTIFICATION_FILTER_MODE_BLACKLIST:
+                    if (allMode) {
+                        if (!matcher.containsAll(body)) {
+                            LOG.info("Not every word was found, blacklist has no effect, processing continues.");
+                            return true;
+                        }
+                        LOG.info("Every word was found, blacklist has effect, processing stops.");
+                        return false;
+                    } else {
+                        boolean containsAny = containsAny(body);
+                        if (!containsAny) {
+                            LOG.info("No matching word was found, blacklist has no effect, processing continues.");
+                        } else {
+                            LOG.info("At least one matching word was found, blacklist has effect, processing stops.");
+                        }
+                        return !containsAny;
+                    }
+
+                case NOTIFICATION_FILTER_MODE_WHITELIST:
+                    if (allMode) {
+                        if (!matcher.containsAll(body)) {
+                            LOG.info("Not every word was found, whitelist has no effect, processing stops.");
+                            return false;
+                        }
+                        LOG.info("Every word was found, whitelist has effect, processing continues.");
+                        return true;
+                    } else {
+                        boolean containsAny = containsAny(body);
+                        if (containsAny) {
+                            LOG.info("At least one matching word was found, whitelist has effect, processing continues.");
+                        } else {
+                            LOG.info("No matching word was found, whitelist has no effect, processing stops.");
+                        }
+                        return containsAny;
+                    }
+
+                default:
+                    return true;
+            }
+        }
+
+        private boolean containsAny(String body) {
+            // like StringUtils.containsAny(), nothing is found in an empty text
+            return !body.isEmpty() && matcher.containsAny(body);
+        }
+    }
+}
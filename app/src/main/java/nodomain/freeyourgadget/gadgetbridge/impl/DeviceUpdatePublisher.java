@@ -0,0 +1,113 @@
+package nodomain.freeyourgadget.gadgetbridge.impl;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Publishes the changes of devices as {@link GBDevice#ACTION_DEVICE_CHANGED} broadcasts.
+ *
+ * Changes of the state are published right away. Other changes, e.g. of the battery level or
+ * the busy task, are merged per device for up to {@link #COALESCE_MILLIS}, so that a long
+ * fetch or install does not flood the receivers with broadcasts. Each broadcast carries the
+ * fields that changed in {@link GBDevice#EXTRA_CHANGES}, so that receivers can ignore the
+ * changes they do not show.
+ */
+public class DeviceUpdatePublisher {
+    static final long COALESCE_MILLIS = 250;
+
+    private static DeviceUpdatePublisher instance;
+
+    private final Context context;
+    private final Map<String, PendingUpdate> pendingUpdates = new HashMap<>();
+    private Handler handler;
+
+    DeviceUpdatePublisher(Context context) {
+        this.context = context;
+    }
+
+    public static synchronized DeviceUpdatePublisher getInstance(Context context) {
+        if (instance == null) {
+            instance = new DeviceUpdatePublisher(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Publishes the changes of the given device since it was last published. If nothing has
+     * changed, the whole device is published right away, e.g. to answer a request for the
+     * device state.
+     */
+    public void publish(GBDevice device) {
+        int changes = device.takeChanges();
+        if (changes == 0) {
+            changes = GBDevice.CHANGE_ALL;
+        }
+        boolean immediate = (changes & GBDevice.CHANGE_STATE) != 0;
+
+        synchronized (this) {
+            PendingUpdate update = pendingUpdates.get(device.getAddress());
+            if (update != null) {
+                update.device = device;
+                update.changes |= changes;
+                if (!immediate) {
+                    return;
+                }
+                // deliver the pending changes along with the state
+                pendingUpdates.remove(device.getAddress());
+                changes = update.changes;
+            } else if (!immediate) {
+                update = new PendingUpdate(device, changes);
+                pendingUpdates.put(device.getAddress(), update);
+                schedule(update, COALESCE_MILLIS);
+                return;
+            }
+        }
+        deliver(device, changes);
+    }
+
+    /**
+     * Runs the given update after the given delay.
+     */
+    protected void schedule(Runnable update, long delayMillis) {
+        if (handler == null) {
+            handler = new Handler(Looper.getMainLooper());
+        }
+        handler.postDelayed(update, delayMillis);
+    }
+
+    protected void deliver(GBDevice device, int changes) {
+        Intent deviceUpdateIntent = new Intent(GBDevice.ACTION_DEVICE_CHANGED);
+        deviceUpdateIntent.putExtra(GBDevice.EXTRA_DEVICE, device);
+        deviceUpdateIntent.putExtra(GBDevice.EXTRA_CHANGES, changes);
+        LocalBroadcastManager.getInstance(context).sendBroadcast(deviceUpdateIntent);
+    }
+
+    private class PendingUpdate implements Runnable {
+        private GBDevice device;
+        private int changes;
+
+        PendingUpdate(GBDevice device, int changes) {
+            this.device = device;
+            this.changes = changes;
+        }
+
+        @Override
+        public void run() {
+            synchronized (DeviceUpdatePublisher.this) {
+                // the update may have been delivered along with a change of the state
+                if (pendingUpdates.get(device.getAddress()) != this) {
+                    return;
+                }
+                pendingUpdates.remove(device.getAddress());
+            }
+            deliver(device, changes);
+        }
+    }
+}
@@ -24,7 +24,6 @@ import android.os.Parcelable;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,6 +59,20 @@ public class GBDevice implements Parcelable {
     public static final short BATTERY_UNKNOWN = -1;
     private static final short BATTERY_THRESHOLD_PERCENT = 10;
     public static final String EXTRA_DEVICE = "device";
+    /**
+     * The fields that changed since the last {@link #ACTION_DEVICE_CHANGED} broadcast of the
+     * device, as a combination of the CHANGE_ flags, see {@link #getChanges(Intent)}
+     */
+    public static final String EXTRA_CHANGES = "changes";
+    public static final int CHANGE_STATE = 1;
+    public static final int CHANGE_BATTERY = 1 << 1;
+    public static final int CHANGE_BUSY = 1 << 2;
+    public static final int CHANGE_RSSI = 1 << 3;
+    /**
+     * Any other field, e.g. name, firmware version or extra infos
+     */
+    public static final int CHANGE_INFO = 1 << 4;
+    public static final int CHANGE_ALL = CHANGE_STATE | CHANGE_BATTERY | CHANGE_BUSY | CHANGE_RSSI | CHANGE_INFO;
     private static final String DEVINFO_HW_VER = "HW: ";
     private static final String DEVINFO_FW_VER = "FW: ";
     private static final String DEVINFO_HR_VER = "HR: ";
@@ -87,6 +100,8 @@ public class GBDevice implements Parcelable {
     private int mNotificationIconConnected = R.drawable.ic_notification;
     private int mNotificationIconDisconnected = R.drawable.ic_notification_disconnected;
     private int mNotificationIconLowBattery = R.drawable.ic_notification_low_battery;
+    // the changes since the last broadcast, not parceled
+    private int mChanges;
 
     public GBDevice(String address, String name, String alias, DeviceType deviceType) {
         this(address, null, name, alias, deviceType);
@@ -175,10 +190,12 @@ public class GBDevice implements Parcelable {
             LOG.warn("Ignoring setting of GBDevice name to null for " + this);
             return;
         }
+        markChanged(CHANGE_INFO, mName, name);
         mName = name;
     }
 
     public void setAlias(String alias) {
+        markChanged(CHANGE_INFO, mAlias, alias);
         mAlias = alias;
     }
 
@@ -198,6 +215,7 @@ public class GBDevice implements Parcelable {
     }
 
     public void setFirmwareVersion(String firmwareVersion) {
+        markChanged(CHANGE_INFO, mFirmwareVersion, firmwareVersion);
         mFirmwareVersion = firmwareVersion;
     }
 
@@ -206,10 +224,12 @@ public class GBDevice implements Parcelable {
      * @param firmwareVersion2
      */
     public void setFirmwareVersion2(String firmwareVersion2) {
+        markChanged(CHANGE_INFO, mFirmwareVersion2, firmwareVersion2);
         mFirmwareVersion2 = firmwareVersion2;
     }
 
     public void setVolatileAddress(String volatileAddress) {
+        markChanged(CHANGE_INFO, mVolatileAddress, volatileAddress);
         mVolatileAddress = volatileAddress;
     }
 
@@ -225,6 +245,7 @@ public class GBDevice implements Parcelable {
     }
 
     public void setModel(String model) {
+        markChanged(CHANGE_INFO, mModel, model);
         mModel = model;
     }
 
@@ -257,6 +278,7 @@ public class GBDevice implements Parcelable {
     }
 
     public void setNotificationIconConnected(int mNotificationIconConnected) {
+        markChanged(CHANGE_INFO, this.mNotificationIconConnected, mNotificationIconConnected);
         this.mNotificationIconConnected = mNotificationIconConnected;
     }
 
@@ -265,6 +287,7 @@ public class GBDevice implements Parcelable {
     }
 
     public void setNotificationIconDisconnected(int notificationIconDisconnected) {
+        markChanged(CHANGE_INFO, this.mNotificationIconDisconnected, notificationIconDisconnected);
         this.mNotificationIconDisconnected = notificationIconDisconnected;
     }
 
@@ -273,6 +296,7 @@ public class GBDevice implements Parcelable {
     }
 
     public void setNotificationIconLowBattery(int mNotificationIconLowBattery) {
+        markChanged(CHANGE_INFO, this.mNotificationIconLowBattery, mNotificationIconLowBattery);
         this.mNotificationIconLowBattery = mNotificationIconLowBattery;
     }
 
@@ -293,6 +317,7 @@ public class GBDevice implements Parcelable {
             LOG.warn("Attempt to mark device as busy with: " + task + ", but is already busy with: " + mBusyTask);
         }
         LOG.info("Mark device as busy: " + task);
+        markChanged(CHANGE_BUSY, mBusyTask, task);
         mBusyTask = task;
     }
 
@@ -305,6 +330,7 @@ public class GBDevice implements Parcelable {
             return;
         }
         LOG.info("Mark device as NOT busy anymore: " + mBusyTask);
+        markChanged(CHANGE_BUSY);
         mBusyTask = null;
     }
 
@@ -317,6 +343,7 @@ public class GBDevice implements Parcelable {
     }
 
     public void setState(State state) {
+        markChanged(CHANGE_STATE, mState, state);
         mState = state;
         if (state.ordinal() <= State.CONNECTED.ordinal()) {
             unsetDynamicState();
@@ -388,10 +415,10 @@ public class GBDevice implements Parcelable {
     public void setRssi(short rssi) {
         if (rssi < 0) {
             LOG.warn("Illegal RSSI value " + rssi + ", setting to RSSI_UNKNOWN");
-            mRssi = RSSI_UNKNOWN;
-        } else {
-            mRssi = rssi;
+            rssi = RSSI_UNKNOWN;
         }
+        markChanged(CHANGE_RSSI, mRssi, rssi);
+        mRssi = rssi;
     }
 
     /**
@@ -401,11 +428,42 @@ public class GBDevice implements Parcelable {
         return mRssi;
     }
 
+    /**
+     * Broadcasts the changes of this device since its last broadcast. Changes of the state are
+     * broadcast right away, other changes may be merged with the following ones.
+     *
+     * @see DeviceUpdatePublisher
+     */
     // TODO: this doesn't really belong here
     public void sendDeviceUpdateIntent(Context context) {
-        Intent deviceUpdateIntent = new Intent(ACTION_DEVICE_CHANGED);
-        deviceUpdateIntent.putExtra(EXTRA_DEVICE, this);
-        LocalBroadcastManager.getInstance(context).sendBroadcast(deviceUpdateIntent);
+        DeviceUpdatePublisher.getInstance(context).publish(this);
+    }
+
+    /**
+     * Returns the fields that changed according to the given {@link #ACTION_DEVICE_CHANGED}
+     * broadcast, as a combination of the CHANGE_ flags.
+     */
+    public static int getChanges(Intent intent) {
+        return intent.getIntExtra(EXTRA_CHANGES, CHANGE_ALL);
+    }
+
+    private void markChanged(int change, Object oldValue, Object newValue) {
+        if (oldValue == null ? newValue != null : !oldValue.equals(newValue)) {
+            markChanged(change);
+        }
+    }
+
+    private synchronized void markChanged(int change) {
+        mChanges |= change;
+    }
+
+    /**
+     * Returns the changes since the last call, as a combination of the CHANGE_ flags.
+     */
+    synchronized int takeChanges() {
+        int changes = mChanges;
+        mChanges = 0;
+        return changes;
     }
 
     @Override
@@ -456,13 +514,16 @@ public class GBDevice implements Parcelable {
             mExtraInfos = new HashMap<>();
         }
 
-        mExtraInfos.put(key, info);
+        markChanged(CHANGE_INFO, mExtraInfos.put(key, info), info);
     }
 
     /**
      * Deletes all the extra infos
      */
     public void resetExtraInfos() {
+        if (mExtraInfos != null) {
+            markChanged(CHANGE_INFO);
+        }
         mExtraInfos = null;
     }
 
@@ -477,6 +538,7 @@ public class GBDevice implements Parcelable {
 
     public void setBatteryLevel(short batteryLevel) {
         if ((batteryLevel >= 0 && batteryLevel <= 100) || batteryLevel == BATTERY_UNKNOWN) {
+            markChanged(CHANGE_BATTERY, mBatteryLevel, batteryLevel);
             mBatteryLevel = batteryLevel;
         } else {
             LOG.error("Battery level musts be within range 0-100: " + batteryLevel);
@@ -485,6 +547,7 @@ public class GBDevice implements Parcelable {
 
     public void setBatteryVoltage(float batteryVoltage) {
         if (batteryVoltage >= 0 || batteryVoltage == BATTERY_UNKNOWN) {
+            markChanged(CHANGE_BATTERY, mBatteryVoltage, batteryVoltage);
             mBatteryVoltage = batteryVoltage;
         } else {
             LOG.error("Battery voltage must be > 0: " + batteryVoltage);
@@ -505,6 +568,7 @@ public class GBDevice implements Parcelable {
     }
 
     public void setBatteryState(BatteryState mBatteryState) {
+        markChanged(CHANGE_BATTERY, this.mBatteryState, mBatteryState);
         this.mBatteryState = mBatteryState;
     }
 
@@ -513,6 +577,7 @@ public class GBDevice implements Parcelable {
     }
 
     public void setBatteryThresholdPercent(short batteryThresholdPercent) {
+        markChanged(CHANGE_BATTERY, this.mBatteryThresholdPercent, batteryThresholdPercent);
         this.mBatteryThresholdPercent = batteryThresholdPercent;
     }
 
@@ -580,10 +645,12 @@ public class GBDevice implements Parcelable {
     }
 
     public void setDeviceInfos(List<ItemWithDetails> deviceInfos) {
+        markChanged(CHANGE_INFO);
         this.mDeviceInfos = deviceInfos;
     }
 
     public void addDeviceInfo(ItemWithDetails info) {
+        markChanged(CHANGE_INFO);
         if (mDeviceInfos == null) {
             mDeviceInfos = new ArrayList<>();
         } else {
@@ -600,7 +667,11 @@ public class GBDevice implements Parcelable {
         if (mDeviceInfos == null) {
             return false;
         }
-        return mDeviceInfos.remove(info);
+        if (mDeviceInfos.remove(info)) {
+            markChanged(CHANGE_INFO);
+            return true;
+        }
+        return false;
     }
 
     public enum State {
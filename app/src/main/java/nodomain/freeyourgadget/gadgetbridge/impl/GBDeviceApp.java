@@ -44,6 +44,20 @@ public class GBDeviceApp {
         this.isOnDevice = false;
     }
 
+    /**
+     * Creates an app that is in the pbw cache, from metadata that has been read from it before.
+     */
+    public GBDeviceApp(UUID uuid, String name, String creator, String version, Type type, boolean configurable) {
+        this.uuid = uuid;
+        this.name = name;
+        this.creator = creator;
+        this.version = version;
+        this.type = type;
+        this.inCache = true;
+        this.configurable = configurable;
+        this.isOnDevice = false;
+    }
+
     public GBDeviceApp(JSONObject json, boolean configurable) {
         UUID uuid = UUID.fromString("00000000-0000-0000-0000-000000000000");
         String name = "";
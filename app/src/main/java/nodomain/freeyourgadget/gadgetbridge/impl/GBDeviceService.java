@@ -45,6 +45,7 @@ import nodomain.freeyourgadget.gadgetbridge.model.WeatherSpec;
 import nodomain.freeyourgadget.gadgetbridge.service.DeviceCommunicationService;
 import nodomain.freeyourgadget.gadgetbridge.util.LanguageUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.RtlUtils;
+import nodomain.freeyourgadget.gadgetbridge.util.TextTransformPipeline;
 
 import static nodomain.freeyourgadget.gadgetbridge.util.JavaExtensions.coalesce;
 
@@ -67,6 +68,9 @@ public class GBDeviceService implements DeviceService {
             EXTRA_CALENDAREVENT_TITLE,
             EXTRA_CALENDAREVENT_DESCRIPTION
     };
+    private TextTransformPipeline mTextPipeline;
+    private boolean mTextPipelineTransliterate;
+    private boolean mTextPipelineRtl;
 
     public GBDeviceService(Context context) {
         mContext = context;
@@ -78,23 +82,35 @@ public class GBDeviceService implements DeviceService {
     }
 
     protected void invokeService(Intent intent) {
-        if (LanguageUtils.transliterate()) {
+        TextTransformPipeline textPipeline = getTextPipeline(LanguageUtils.transliterate(), RtlUtils.rtlSupport());
+        if (!textPipeline.isEmpty()) {
             for (String extra : transliterationExtras) {
                 if (intent.hasExtra(extra)) {
-                    intent.putExtra(extra, LanguageUtils.transliterate(intent.getStringExtra(extra)));
+                    intent.putExtra(extra, textPipeline.apply(intent.getStringExtra(extra)));
                 }
             }
         }
 
-        if (RtlUtils.rtlSupport()) {
-            for (String extra : transliterationExtras) {
-                if (intent.hasExtra(extra)) {
-                    intent.putExtra(extra, RtlUtils.fixRtl(intent.getStringExtra(extra)));
-                }
+        mContext.startService(intent);
+    }
+
+    /**
+     * @return the text transformations the user enabled, rebuilt only when the settings change
+     */
+    private synchronized TextTransformPipeline getTextPipeline(boolean transliterate, boolean rtl) {
+        if (mTextPipeline == null || transliterate != mTextPipelineTransliterate || rtl != mTextPipelineRtl) {
+            TextTransformPipeline.Builder builder = new TextTransformPipeline.Builder();
+            if (transliterate) {
+                builder.addAll(LanguageUtils.getTransliterateTransforms());
+            }
+            if (rtl) {
+                builder.add(RtlUtils.getFixRtlTransform());
             }
+            mTextPipeline = builder.build();
+            mTextPipelineTransliterate = transliterate;
+            mTextPipelineRtl = rtl;
         }
-
-        mContext.startService(intent);
+        return mTextPipeline;
     }
 
     protected void stopService(Intent intent) {
@@ -0,0 +1,11 @@
+package nodomain.freeyourgadget.gadgetbridge.model;
+
+import java.io.IOException;
+
+/**
+ * Receives the points of an activity track one by one, in time ascending order,
+ * so that long tracks do not need to be kept in memory as a whole.
+ */
+public interface ActivityPointSink {
+    void addActivityPoint(ActivityPoint point) throws IOException;
+}
@@ -67,13 +67,13 @@ public class DailyTotals {
 
     public long[] getDailyTotalsForDevice(GBDevice device, Calendar day) {
 
-        try (DBHandler handler = GBApplication.acquireDB()) {
+        try (DBHandler handler = GBApplication.acquireReadOnlyDB()) {
             ActivityAnalysis analysis = new ActivityAnalysis();
             ActivityAmounts amountsSteps;
             ActivityAmounts amountsSleep;
 
-            amountsSteps = analysis.calculateActivityAmounts(getSamplesOfDay(handler, day, 0, device));
-            amountsSleep = analysis.calculateActivityAmounts(getSamplesOfDay(handler, day, -12, device));
+            amountsSteps = getActivityAmountsOfDay(handler, analysis, day, 0, device);
+            amountsSleep = getActivityAmountsOfDay(handler, analysis, day, -12, device);
 
             long[] sleep = getTotalsSleepForActivityAmounts(amountsSleep);
             long steps = getTotalsStepsForActivityAmounts(amountsSteps);
@@ -112,7 +112,7 @@ public class DailyTotals {
     }
 
 
-    private List<? extends ActivitySample> getSamplesOfDay(DBHandler db, Calendar day, int offsetHours, GBDevice device) {
+    private ActivityAmounts getActivityAmountsOfDay(DBHandler db, ActivityAnalysis analysis, Calendar day, int offsetHours, GBDevice device) {
         int startTs;
         int endTs;
 
@@ -125,7 +125,11 @@ public class DailyTotals {
         startTs = (int) (day.getTimeInMillis() / 1000);
         endTs = startTs + 24 * 60 * 60 - 1;
 
-        return getSamples(db, device, startTs, endTs);
+        ActivityAmounts amounts = getProvider(db, device).getActivityAmountsFromRollups(startTs, endTs);
+        if (amounts != null) {
+            return amounts;
+        }
+        return analysis.calculateActivityAmounts(getProvider(db, device), startTs, endTs);
     }
 
 
@@ -115,16 +115,13 @@ public interface DeviceService extends EventHandler {
     String EXTRA_RESET_FLAGS = "reset_flags";
 
     /**
-     * Use EXTRA_REALTIME_SAMPLE instead
+     * Realtime samples are sent either as EXTRA_REALTIME_SAMPLE, or as the primitive
+     * EXTRA_TIMESTAMP (in milliseconds), EXTRA_HEART_RATE_VALUE and EXTRA_REALTIME_STEPS
+     * when the sample is stored later.
      */
-    @Deprecated
     String EXTRA_REALTIME_STEPS = "realtime_steps";
     String EXTRA_REALTIME_SAMPLE = "realtime_sample";
     String EXTRA_TIMESTAMP = "timestamp";
-    /**
-     * Use EXTRA_REALTIME_SAMPLE instead
-     */
-    @Deprecated
     String EXTRA_HEART_RATE_VALUE = "hr_value";
     String EXTRA_CALENDAREVENT_ID = "calendarevent_id";
     String EXTRA_CALENDAREVENT_TYPE = "calendarevent_type";
@@ -44,8 +44,10 @@ import java.io.File;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 
@@ -99,8 +101,7 @@ public abstract class AbstractDeviceSupport implements DeviceSupport {
     private BluetoothAdapter btAdapter;
     private Context context;
     private boolean autoReconnect;
-
-
+    private final List<ActivitySampleIngest<?>> sampleIngests = new ArrayList<>();
 
     @Override
     public void setContext(GBDevice gbDevice, BluetoothAdapter btAdapter, Context context) {
@@ -157,6 +158,31 @@ public abstract class AbstractDeviceSupport implements DeviceSupport {
         return context;
     }
 
+    /**
+     * Registers the given ingest, so that its pending samples are written by
+     * {@link #flushSampleIngests()}.
+     *
+     * @return the given ingest
+     */
+    protected <I extends ActivitySampleIngest<?>> I registerSampleIngest(I ingest) {
+        synchronized (sampleIngests) {
+            sampleIngests.add(ingest);
+        }
+        return ingest;
+    }
+
+    /**
+     * Writes the pending samples of all registered ingests. Called when the device
+     * disconnects or is disposed.
+     */
+    protected void flushSampleIngests() {
+        synchronized (sampleIngests) {
+            for (ActivitySampleIngest<?> ingest : sampleIngests) {
+                ingest.flushQuietly();
+            }
+        }
+    }
+
     public void evaluateGBDeviceEvent(GBDeviceEvent deviceEvent) {
         if (deviceEvent instanceof GBDeviceEventMusicControl) {
             handleGBDeviceEvent((GBDeviceEventMusicControl) deviceEvent);
@@ -0,0 +1,146 @@
+package nodomain.freeyourgadget.gadgetbridge.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.devices.AbstractSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+
+/**
+ * Collects the activity samples that a device sends one by one, e.g. while fetching its
+ * history, and writes them in batches. Each batch is written with a single acquisition of the
+ * database and a single transaction, instead of one for each sample.
+ * <p>
+ * The user and device ids of the samples are set when they are written, and looked up only for
+ * the first batch. The pending samples are written when a batch is full and when
+ * {@link #flush()} is called, which device supports should do at the end of a fetch. Ingests
+ * registered with {@link AbstractDeviceSupport#registerSampleIngest} are also flushed on
+ * disconnect.
+ * If writing fails, the samples stay pending. They are written by the next call to
+ * {@link #flush()}, or with the next batch, once another full batch has been added. At most
+ * {@link #MAX_PENDING_BATCHES} batches are kept, beyond that the oldest samples are dropped.
+ * <p>
+ * As samples are not written right away, a sample must not be modified or reused after it
+ * has been added.
+ */
+public abstract class ActivitySampleIngest<T extends AbstractActivitySample> {
+    private static final Logger LOG = LoggerFactory.getLogger(ActivitySampleIngest.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int MAX_PENDING_BATCHES = 10;
+
+    private final DeviceSupport support;
+    private final int batchSize;
+    private final List<T> pendingSamples;
+    // the number of pending samples at which add() writes them, raised after a failure
+    private int flushThreshold;
+    private Long userId;
+    private Long deviceId;
+
+    public ActivitySampleIngest(DeviceSupport support) {
+        this(support, DEFAULT_BATCH_SIZE);
+    }
+
+    public ActivitySampleIngest(DeviceSupport support, int batchSize) {
+        this.support = support;
+        this.batchSize = batchSize;
+        pendingSamples = new ArrayList<>(batchSize);
+        flushThreshold = batchSize;
+    }
+
+    protected abstract AbstractSampleProvider<T> createProvider(GBDevice device, DaoSession session);
+
+    /**
+     * Adds a sample, and writes the pending samples if the batch is full.
+     *
+     * @throws Exception if writing the batch failed, its samples are kept for the next attempt
+     */
+    public synchronized void add(T sample) throws Exception {
+        pendingSamples.add(sample);
+        if (pendingSamples.size() >= flushThreshold) {
+            flush();
+        }
+    }
+
+    /**
+     * Adds the samples, and writes all pending samples at once if the batch is full.
+     *
+     * @throws Exception if writing the batch failed, its samples are kept for the next attempt
+     */
+    public synchronized void addAll(Collection<? extends T> samples) throws Exception {
+        pendingSamples.addAll(samples);
+        if (pendingSamples.size() >= flushThreshold) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the pending samples.
+     *
+     * @throws Exception if writing failed, the pending samples are kept for the next attempt
+     */
+    public synchronized void flush() throws Exception {
+        if (pendingSamples.isEmpty()) {
+            return;
+        }
+        try {
+            write();
+            flushThreshold = batchSize;
+        } catch (Exception e) {
+            dropExcessSamples();
+            // don't retry with every sample that is added, but only with the next full batch
+            flushThreshold = pendingSamples.size() + batchSize;
+            throw e;
+        }
+    }
+
+    private void write() throws Exception {
+        try (DBHandler dbHandler = GBApplication.acquireDB()) {
+            DaoSession session = dbHandler.getDaoSession();
+            GBDevice device = support.getDevice();
+            if (deviceId == null) {
+                userId = DBHelper.getUser(session).getId();
+                deviceId = DBHelper.getDevice(device, session).getId();
+            }
+            for (T sample : pendingSamples) {
+                sample.setUserId(userId);
+                sample.setDeviceId(deviceId);
+            }
+            createProvider(device, session).addGBActivitySamples(pendingSamples);
+            LOG.debug("wrote " + pendingSamples.size() + " samples");
+            pendingSamples.clear();
+        }
+    }
+
+    private void dropExcessSamples() {
+        int excess = pendingSamples.size() - (MAX_PENDING_BATCHES - 1) * batchSize;
+        if (excess > 0) {
+            LOG.warn("dropping the " + excess + " oldest of " + pendingSamples.size() + " samples that could not be written");
+            pendingSamples.subList(0, excess).clear();
+        }
+    }
+
+    /**
+     * Writes the pending samples, logging instead of throwing errors.
+     */
+    public void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            LOG.error("Unable to write activity samples", e);
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingSamples.size();
+    }
+}
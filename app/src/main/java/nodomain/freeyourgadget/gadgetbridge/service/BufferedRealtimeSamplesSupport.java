@@ -0,0 +1,107 @@
+package nodomain.freeyourgadget.gadgetbridge.service;
+
+import android.content.Context;
+import android.content.Intent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.DeviceService;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.miband.RealtimeSamplesSupport;
+
+/**
+ * Realtime samples support that stores the samples in the background: the samples are
+ * added to an {@link ActivitySampleIngest} and written together, every flushInterval
+ * milliseconds and when stopped. Listeners are notified of every sample right away, with the
+ * timestamp, heart rate and steps as primitive extras of a
+ * {@link DeviceService#ACTION_REALTIME_SAMPLES} broadcast.
+ * <p>
+ * Call {@link #stop()} when the device disconnects, so that no samples are lost.
+ */
+public abstract class BufferedRealtimeSamplesSupport<T extends AbstractActivitySample> extends RealtimeSamplesSupport {
+    private static final Logger LOG = LoggerFactory.getLogger(BufferedRealtimeSamplesSupport.class);
+
+    public static final long DEFAULT_FLUSH_INTERVAL = 30000;
+
+    private final Context context;
+    private final ActivitySampleIngest<T> ingest;
+    private final long flushInterval;
+    private long lastFlushMillis;
+
+    public BufferedRealtimeSamplesSupport(Context context, ActivitySampleIngest<T> ingest, long delay, long period, long flushInterval) {
+        super(delay, period);
+        this.context = context;
+        this.ingest = ingest;
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Returns a new, empty sample of the device's sample type.
+     */
+    protected abstract T createSample();
+
+    /**
+     * Returns the raw kind to store the samples with, so that they are visible in the charts.
+     */
+    protected abstract int getRawKind();
+
+    @Override
+    public synchronized void start() {
+        if (!isRunning()) {
+            lastFlushMillis = System.currentTimeMillis();
+        }
+        super.start();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        ingest.flushQuietly();
+    }
+
+    @Override
+    protected void doCurrentSample() {
+        long now = System.currentTimeMillis();
+        int heartRate = getHeartrateBpm();
+        int steps = getSteps();
+
+        T sample = createSample();
+        sample.setTimestamp((int) (now / 1000));
+        sample.setHeartRate(heartRate);
+        // the steps are not stored, since realtime steps are also recorded
+        // in the regular samples and we must not count them twice
+        sample.setRawIntensity(ActivitySample.NOT_MEASURED);
+        sample.setRawKind(getRawKind()); // to make it visible in the charts TODO: add a MANUAL kind for that?
+
+        // a single measurement while not running is stored right away
+        boolean flushNow;
+        synchronized (this) {
+            flushNow = !isRunning() || now - lastFlushMillis >= flushInterval;
+            if (flushNow) {
+                lastFlushMillis = now;
+            }
+        }
+        try {
+            ingest.add(sample);
+        } catch (Exception e) {
+            LOG.warn("Unable to store realtime samples", e);
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("realtime sample: timestamp=" + now + ", heart rate=" + heartRate + ", steps=" + steps);
+        }
+
+        Intent intent = new Intent(DeviceService.ACTION_REALTIME_SAMPLES)
+                .putExtra(DeviceService.EXTRA_TIMESTAMP, now)
+                .putExtra(DeviceService.EXTRA_HEART_RATE_VALUE, heartRate)
+                .putExtra(DeviceService.EXTRA_REALTIME_STEPS, steps);
+        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+
+        if (flushNow) {
+            ingest.flushQuietly();
+        }
+    }
+}
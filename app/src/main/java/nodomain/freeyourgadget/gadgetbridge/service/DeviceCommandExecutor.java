@@ -0,0 +1,233 @@
+package nodomain.freeyourgadget.gadgetbridge.service;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Executes the commands for a device, e.g. sending a notification or the music info, one after
+ * the other on a dedicated thread, so that building and sending them does not block the main
+ * thread.
+ * <p>
+ * A command that is submitted with a coalescing key supersedes the pending command with the same
+ * key, which is then dropped. This way, bursts of e.g. music info updates only send the latest
+ * one to the device. The queue depth and the latency of the commands, from their submission to
+ * their completion, are recorded per action.
+ */
+public class DeviceCommandExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(DeviceCommandExecutor.class);
+
+    private static final long SLOW_COMMAND_MILLIS = 1000;
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Object lock = new Object();
+    private final Map<String, Command> pendingByKey = new HashMap<>();
+    private final Map<String, CommandStats> statsByAction = new HashMap<>();
+    private boolean shutDown;
+    private int queueDepth;
+    private int maxQueueDepth;
+    private int coalescedCount;
+
+    /**
+     * Creates an executor with its own thread.
+     */
+    public DeviceCommandExecutor(String name) {
+        thread = new HandlerThread(name);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Creates an executor that runs the commands on the given looper, e.g. the main looper
+     * in test cases.
+     */
+    public DeviceCommandExecutor(Looper looper) {
+        thread = null;
+        handler = new Handler(looper);
+    }
+
+    /**
+     * Queues a command.
+     *
+     * @param action        the action of the command, for logging and statistics
+     * @param coalescingKey if not null, a pending command with the same key is dropped
+     * @param task          the command
+     */
+    public void submit(String action, @Nullable String coalescingKey, Runnable task) {
+        Command command = new Command(action, coalescingKey, task);
+        synchronized (lock) {
+            if (shutDown) {
+                LOG.warn("Executor is shut down, dropping " + action);
+                return;
+            }
+            if (coalescingKey != null) {
+                Command superseded = pendingByKey.put(coalescingKey, command);
+                if (superseded != null) {
+                    superseded.cancelled = true;
+                    handler.removeCallbacks(superseded);
+                    queueDepth--;
+                    coalescedCount++;
+                }
+            }
+            queueDepth++;
+            maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+        }
+        handler.post(command);
+    }
+
+    /**
+     * Stops accepting commands. The pending ones are still executed, then the thread quits.
+     * Does not wait for them, so it may be called from the main thread.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            if (shutDown) {
+                return;
+            }
+            shutDown = true;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                LOG.info("Executed " + getExecutedCount() + " commands, coalesced " + getCoalescedCount()
+                        + ", max queue depth " + getMaxQueueDepth());
+                if (thread != null) {
+                    thread.quitSafely();
+                }
+            }
+        });
+    }
+
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return queueDepth;
+        }
+    }
+
+    public int getMaxQueueDepth() {
+        synchronized (lock) {
+            return maxQueueDepth;
+        }
+    }
+
+    public int getCoalescedCount() {
+        synchronized (lock) {
+            return coalescedCount;
+        }
+    }
+
+    public int getExecutedCount() {
+        synchronized (lock) {
+            int count = 0;
+            for (CommandStats stats : statsByAction.values()) {
+                count += stats.count;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * @return a copy of the statistics of the given action, or null if no such command was
+     * executed yet
+     */
+    @Nullable
+    public CommandStats getStats(String action) {
+        synchronized (lock) {
+            CommandStats stats = statsByAction.get(action);
+            return stats != null ? new CommandStats(stats) : null;
+        }
+    }
+
+    private void onExecuted(Command command, long latencyMillis, long durationMillis) {
+        synchronized (lock) {
+            CommandStats stats = statsByAction.get(command.action);
+            if (stats == null) {
+                stats = new CommandStats();
+                statsByAction.put(command.action, stats);
+            }
+            stats.add(latencyMillis);
+        }
+        if (durationMillis >= SLOW_COMMAND_MILLIS) {
+            LOG.warn("Command " + command.action + " took " + durationMillis + " ms");
+        }
+    }
+
+    private final class Command implements Runnable {
+        private final String action;
+        private final String coalescingKey;
+        private final Runnable task;
+        private final long submitMillis;
+        private boolean cancelled;
+
+        private Command(String action, String coalescingKey, Runnable task) {
+            this.action = action;
+            this.coalescingKey = coalescingKey;
+            this.task = task;
+            submitMillis = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void run() {
+            synchronized (lock) {
+                if (cancelled) {
+                    return;
+                }
+                if (coalescingKey != null) {
+                    pendingByKey.remove(coalescingKey);
+                }
+                queueDepth--;
+            }
+            long startMillis = SystemClock.elapsedRealtime();
+            try {
+                task.run();
+            } catch (Exception e) {
+                LOG.error("Error executing " + action, e);
+            }
+            long endMillis = SystemClock.elapsedRealtime();
+            onExecuted(this, endMillis - submitMillis, endMillis - startMillis);
+        }
+    }
+
+    public static class CommandStats {
+        private int count;
+        private long totalLatencyMillis;
+        private long maxLatencyMillis;
+
+        private CommandStats() {
+        }
+
+        private CommandStats(CommandStats other) {
+            count = other.count;
+            totalLatencyMillis = other.totalLatencyMillis;
+            maxLatencyMillis = other.maxLatencyMillis;
+        }
+
+        private void add(long latencyMillis) {
+            count++;
+            totalLatencyMillis += latencyMillis;
+            maxLatencyMillis = Math.max(maxLatencyMillis, latencyMillis);
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getAverageLatencyMillis() {
+            return count > 0 ? totalLatencyMillis / count : 0;
+        }
+
+        public long getMaxLatencyMillis() {
+            return maxLatencyMillis;
+        }
+    }
+}
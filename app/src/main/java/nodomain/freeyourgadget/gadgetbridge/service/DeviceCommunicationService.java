@@ -34,6 +34,7 @@ import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.widget.Toast;
 
 import androidx.annotation.Nullable;
@@ -45,6 +46,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.R;
@@ -81,6 +83,8 @@ import nodomain.freeyourgadget.gadgetbridge.util.EmojiConverter;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 import nodomain.freeyourgadget.gadgetbridge.util.GBPrefs;
 import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
+import nodomain.freeyourgadget.gadgetbridge.util.TextTransform;
+import nodomain.freeyourgadget.gadgetbridge.util.TextTransformPipeline;
 
 import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.ACTION_ADD_CALENDAREVENT;
 import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.ACTION_APP_CONFIGURE;
@@ -175,6 +179,7 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
     private static final Logger LOG = LoggerFactory.getLogger(DeviceCommunicationService.class);
     @SuppressLint("StaticFieldLeak") // only used for test cases
     private static DeviceSupportFactory DEVICE_SUPPORT_FACTORY = null;
+    private static Looper COMMAND_LOOPER = null; // only used for test cases
 
     private boolean mStarted = false;
 
@@ -182,6 +187,10 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
     private GBDevice mGBDevice = null;
     private DeviceSupport mDeviceSupport;
     private DeviceCoordinator mCoordinator = null;
+    private DeviceCommandExecutor mCommandExecutor = null;
+    private TextTransformPipeline mTextPipeline = null;
+    // the device support whose connect() is queued but did not return yet
+    private final AtomicReference<DeviceSupport> mQueuedConnect = new AtomicReference<>();
 
     private PhoneCallReceiver mPhoneCallReceiver = null;
     private SMSReceiver mSMSReceiver = null;
@@ -223,6 +232,16 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
         DEVICE_SUPPORT_FACTORY = factory;
     }
 
+    /**
+     * For testing! Runs the device commands on the given looper instead of a
+     * dedicated thread.
+     *
+     * @param looper
+     */
+    public static void setCommandLooper(@Nullable Looper looper) {
+        COMMAND_LOOPER = looper;
+    }
+
     public DeviceCommunicationService() {
 
     }
@@ -235,6 +254,9 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                 GBDevice device = intent.getParcelableExtra(GBDevice.EXTRA_DEVICE);
                 if (mGBDevice != null && mGBDevice.equals(device)) {
                     mGBDevice = device;
+                    if ((GBDevice.getChanges(intent) & GBDevice.CHANGE_STATE) == 0) {
+                        return;
+                    }
                     mCoordinator = DeviceHelper.getInstance().getCoordinator(device);
                     boolean enableReceivers = mDeviceSupport != null && (mDeviceSupport.useAutoConnect() || mGBDevice.isInitialized());
                     setReceiversEnableState(enableReceivers, mGBDevice.isInitialized(), mCoordinator);
@@ -327,18 +349,13 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                     autoReconnect = getGBPrefs().getAutoReconnect();
                 }
 
-                if (gbDevice != null && !isConnecting() && !isConnected()) {
+                if (gbDevice != null && !isConnecting() && !isConnected() && !isConnectQueued()) {
                     setDeviceSupport(null);
                     try {
                         DeviceSupport deviceSupport = mFactory.createDeviceSupport(gbDevice);
                         if (deviceSupport != null) {
                             setDeviceSupport(deviceSupport);
-                            if (firstTime) {
-                                deviceSupport.connectFirstTime();
-                            } else {
-                                deviceSupport.setAutoReconnect(autoReconnect);
-                                deviceSupport.connect();
-                            }
+                            submitConnect(deviceSupport, firstTime, autoReconnect);
                         } else {
                             GB.toast(this, getString(R.string.cannot_connect, "Can't create device support"), Toast.LENGTH_SHORT, GB.ERROR);
                         }
@@ -351,11 +368,15 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                     mGBDevice.sendDeviceUpdateIntent(this);
                 }
                 break;
+            case ACTION_DISCONNECT:
+                setReceiversEnableState(false, false, null);
+                releaseDeviceSupport(true);
+                break;
             default:
                 if (mDeviceSupport == null || mGBDevice == null) {
                     LOG.warn("device support:" + mDeviceSupport + ", device: " + mGBDevice + ", aborting");
                 } else {
-                    handleAction(intent, action, prefs);
+                    submitAction(intent, action, prefs);
                 }
                 break;
         }
@@ -363,35 +384,121 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
     }
 
     /**
-     * @param text original text
-     * @return 'text' or a new String without non supported chars like emoticons, etc.
+     * @return the string filter of the given device support, followed by the emoji conversion
+     * if the device does not support unicode emojis
      */
-    private String sanitizeNotifText(String text) {
-        if (text == null || text.length() == 0)
-            return text;
+    private TextTransformPipeline createTextPipeline(final DeviceSupport deviceSupport, DeviceCoordinator coordinator) {
+        TextTransformPipeline.Builder builder = new TextTransformPipeline.Builder();
+        builder.add(new TextTransform() {
+            @Override
+            public boolean transform(CharSequence text, StringBuilder out) {
+                String input = text.toString();
+                String filtered = deviceSupport.customStringFilter(input);
+                if (filtered == input) {
+                    return false;
+                }
+                out.append(filtered);
+                return true;
+            }
+        });
+        if (!coordinator.supportsUnicodeEmojis()) {
+            final Context context = getApplicationContext();
+            builder.add(new TextTransform() {
+                @Override
+                public boolean transform(CharSequence text, StringBuilder out) {
+                    out.append(EmojiConverter.convertUnicodeEmojiToAscii(text.toString(), context));
+                    return true;
+                }
+            });
+        }
+        return builder.build();
+    }
 
-        text = mDeviceSupport.customStringFilter(text);
+    /**
+     * Queues the given action for the device's command executor. The command is bound to the
+     * current device support, so that it never reaches one that was replaced in the meantime.
+     */
+    private void submitAction(final Intent intent, final String action, final Prefs prefs) {
+        final DeviceSupport deviceSupport = mDeviceSupport;
+        final GBDevice device = mGBDevice;
+        final TextTransformPipeline textPipeline = mTextPipeline;
+        mCommandExecutor.submit(action, getCoalescingKey(action), new Runnable() {
+            @Override
+            public void run() {
+                handleAction(intent, action, prefs, deviceSupport, device, textPipeline);
+            }
+        });
+    }
 
-        if (!mCoordinator.supportsUnicodeEmojis()) {
-            return EmojiConverter.convertUnicodeEmojiToAscii(text, getApplicationContext());
-        }
+    /**
+     * Queues the connection of the given device support, so that it is called from the command
+     * executor's thread only.
+     */
+    private void submitConnect(final DeviceSupport deviceSupport, final boolean firstTime, final boolean autoReconnect) {
+        mQueuedConnect.set(deviceSupport);
+        mCommandExecutor.submit(ACTION_CONNECT, null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (firstTime) {
+                        deviceSupport.connectFirstTime();
+                    } else {
+                        deviceSupport.setAutoReconnect(autoReconnect);
+                        deviceSupport.connect();
+                    }
+                } catch (Exception e) {
+                    GB.toast(DeviceCommunicationService.this, getString(R.string.cannot_connect, e.getMessage()), Toast.LENGTH_SHORT, GB.ERROR, e);
+                } finally {
+                    // from now on, the device state tells whether it is connecting
+                    mQueuedConnect.compareAndSet(deviceSupport, null);
+                }
+            }
+        });
+    }
 
-        return text;
+    /**
+     * @return true if the connection of the current device support is queued, but did not
+     * start yet, so that the device state does not say it is connecting
+     */
+    private boolean isConnectQueued() {
+        return mDeviceSupport != null && mQueuedConnect.get() == mDeviceSupport;
     }
 
-    private void handleAction(Intent intent, String action, Prefs prefs) {
+    /**
+     * @return the key of the commands that the given action supersedes while they are pending,
+     * or null if it supersedes none
+     */
+    @Nullable
+    private static String getCoalescingKey(String action) {
+        switch (action) {
+            case ACTION_SETMUSICINFO:
+            case ACTION_SETMUSICSTATE:
+            case ACTION_SETTIME:
+            case ACTION_SET_ALARMS:
+            case ACTION_SEND_WEATHER:
+                return action;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Runs on the command executor's thread, with the device support, device and text pipeline
+     * that were current when the action was submitted.
+     */
+    private void handleAction(Intent intent, String action, Prefs prefs, DeviceSupport deviceSupport, GBDevice device, TextTransformPipeline textPipeline) {
         switch (action) {
             case ACTION_REQUEST_DEVICEINFO:
-                mGBDevice.sendDeviceUpdateIntent(this);
+                device.sendDeviceUpdateIntent(this);
                 break;
             case ACTION_NOTIFICATION: {
                 int desiredId = intent.getIntExtra(EXTRA_NOTIFICATION_ID, -1);
                 NotificationSpec notificationSpec = new NotificationSpec(desiredId);
                 notificationSpec.phoneNumber = intent.getStringExtra(EXTRA_NOTIFICATION_PHONENUMBER);
-                notificationSpec.sender = sanitizeNotifText(intent.getStringExtra(EXTRA_NOTIFICATION_SENDER));
-                notificationSpec.subject = sanitizeNotifText(intent.getStringExtra(EXTRA_NOTIFICATION_SUBJECT));
-                notificationSpec.title = sanitizeNotifText(intent.getStringExtra(EXTRA_NOTIFICATION_TITLE));
-                notificationSpec.body = sanitizeNotifText(intent.getStringExtra(EXTRA_NOTIFICATION_BODY));
+                notificationSpec.sender = textPipeline.apply(intent.getStringExtra(EXTRA_NOTIFICATION_SENDER));
+                notificationSpec.subject = textPipeline.apply(intent.getStringExtra(EXTRA_NOTIFICATION_SUBJECT));
+                notificationSpec.title = textPipeline.apply(intent.getStringExtra(EXTRA_NOTIFICATION_TITLE));
+                notificationSpec.body = textPipeline.apply(intent.getStringExtra(EXTRA_NOTIFICATION_BODY));
                 notificationSpec.sourceName = intent.getStringExtra(EXTRA_NOTIFICATION_SOURCENAME);
                 notificationSpec.type = (NotificationType) intent.getSerializableExtra(EXTRA_NOTIFICATION_TYPE);
                 notificationSpec.attachedActions = (ArrayList<NotificationSpec.Action>) intent.getSerializableExtra(EXTRA_NOTIFICATION_ACTIONS);
@@ -410,7 +517,7 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                     // I would rather like to save that as an array in SharedPreferences
                     // this would work but I dont know how to do the same in the Settings Activity's xml
                     ArrayList<String> replies = new ArrayList<>();
-                    SharedPreferences devicePrefs = GBApplication.getDeviceSpecificSharedPrefs(mGBDevice.getAddress());
+                    SharedPreferences devicePrefs = GBApplication.getDeviceSpecificSharedPrefs(device.getAddress());
                     for (int i = 1; i <= 16; i++) {
                         String reply = devicePrefs.getString("canned_reply_" + i, null);
                         if (reply != null && !reply.equals("")) {
@@ -420,11 +527,11 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                     notificationSpec.cannedReplies = replies.toArray(new String[0]);
                 }
 
-                mDeviceSupport.onNotification(notificationSpec);
+                deviceSupport.onNotification(notificationSpec);
                 break;
             }
             case ACTION_DELETE_NOTIFICATION: {
-                mDeviceSupport.onDeleteNotification(intent.getIntExtra(EXTRA_NOTIFICATION_ID, -1));
+                deviceSupport.onDeleteNotification(intent.getIntExtra(EXTRA_NOTIFICATION_ID, -1));
                 break;
             }
             case ACTION_ADD_CALENDAREVENT: {
@@ -433,60 +540,48 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                 calendarEventSpec.type = intent.getByteExtra(EXTRA_CALENDAREVENT_TYPE, (byte) -1);
                 calendarEventSpec.timestamp = intent.getIntExtra(EXTRA_CALENDAREVENT_TIMESTAMP, -1);
                 calendarEventSpec.durationInSeconds = intent.getIntExtra(EXTRA_CALENDAREVENT_DURATION, -1);
-                calendarEventSpec.title = sanitizeNotifText(intent.getStringExtra(EXTRA_CALENDAREVENT_TITLE));
-                calendarEventSpec.description = sanitizeNotifText(intent.getStringExtra(EXTRA_CALENDAREVENT_DESCRIPTION));
-                calendarEventSpec.location = sanitizeNotifText(intent.getStringExtra(EXTRA_CALENDAREVENT_LOCATION));
-                mDeviceSupport.onAddCalendarEvent(calendarEventSpec);
+                calendarEventSpec.title = textPipeline.apply(intent.getStringExtra(EXTRA_CALENDAREVENT_TITLE));
+                calendarEventSpec.description = textPipeline.apply(intent.getStringExtra(EXTRA_CALENDAREVENT_DESCRIPTION));
+                calendarEventSpec.location = textPipeline.apply(intent.getStringExtra(EXTRA_CALENDAREVENT_LOCATION));
+                deviceSupport.onAddCalendarEvent(calendarEventSpec);
                 break;
             }
             case ACTION_DELETE_CALENDAREVENT: {
                 long id = intent.getLongExtra(EXTRA_CALENDAREVENT_ID, -1);
                 byte type = intent.getByteExtra(EXTRA_CALENDAREVENT_TYPE, (byte) -1);
-                mDeviceSupport.onDeleteCalendarEvent(type, id);
+                deviceSupport.onDeleteCalendarEvent(type, id);
                 break;
             }
             case ACTION_RESET: {
                 int flags = intent.getIntExtra(EXTRA_RESET_FLAGS, 0);
-                mDeviceSupport.onReset(flags);
+                deviceSupport.onReset(flags);
                 break;
             }
             case ACTION_HEARTRATE_TEST: {
-                mDeviceSupport.onHeartRateTest();
+                deviceSupport.onHeartRateTest();
                 break;
             }
             case ACTION_FETCH_RECORDED_DATA: {
                 int dataTypes = intent.getIntExtra(EXTRA_RECORDED_DATA_TYPES, 0);
-                mDeviceSupport.onFetchRecordedData(dataTypes);
-                break;
-            }
-            case ACTION_DISCONNECT: {
-                mDeviceSupport.dispose();
-                if (mGBDevice != null) {
-                    mGBDevice.setState(GBDevice.State.NOT_CONNECTED);
-                    mGBDevice.sendDeviceUpdateIntent(this);
-                }
-                setReceiversEnableState(false, false, null);
-                mGBDevice = null;
-                mDeviceSupport = null;
-                mCoordinator = null;
+                deviceSupport.onFetchRecordedData(dataTypes);
                 break;
             }
             case ACTION_FIND_DEVICE: {
                 boolean start = intent.getBooleanExtra(EXTRA_FIND_START, false);
-                mDeviceSupport.onFindDevice(start);
+                deviceSupport.onFindDevice(start);
                 break;
             }
             case ACTION_SET_CONSTANT_VIBRATION: {
                 int intensity = intent.getIntExtra(EXTRA_VIBRATION_INTENSITY, 0);
-                mDeviceSupport.onSetConstantVibration(intensity);
+                deviceSupport.onSetConstantVibration(intensity);
                 break;
             }
             case ACTION_CALLSTATE:
                 CallSpec callSpec = new CallSpec();
                 callSpec.command = intent.getIntExtra(EXTRA_CALL_COMMAND, CallSpec.CALL_UNDEFINED);
                 callSpec.number = intent.getStringExtra(EXTRA_CALL_PHONENUMBER);
-                callSpec.name = sanitizeNotifText(intent.getStringExtra(EXTRA_CALL_DISPLAYNAME));
-                mDeviceSupport.onSetCallState(callSpec);
+                callSpec.name = textPipeline.apply(intent.getStringExtra(EXTRA_CALL_DISPLAYNAME));
+                deviceSupport.onSetCallState(callSpec);
                 break;
             case ACTION_SETCANNEDMESSAGES:
                 int type = intent.getIntExtra(EXTRA_CANNEDMESSAGES_TYPE, -1);
@@ -495,20 +590,20 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                 CannedMessagesSpec cannedMessagesSpec = new CannedMessagesSpec();
                 cannedMessagesSpec.type = type;
                 cannedMessagesSpec.cannedMessages = cannedMessages;
-                mDeviceSupport.onSetCannedMessages(cannedMessagesSpec);
+                deviceSupport.onSetCannedMessages(cannedMessagesSpec);
                 break;
             case ACTION_SETTIME:
-                mDeviceSupport.onSetTime();
+                deviceSupport.onSetTime();
                 break;
             case ACTION_SETMUSICINFO:
                 MusicSpec musicSpec = new MusicSpec();
-                musicSpec.artist = sanitizeNotifText(intent.getStringExtra(EXTRA_MUSIC_ARTIST));
-                musicSpec.album = sanitizeNotifText(intent.getStringExtra(EXTRA_MUSIC_ALBUM));
-                musicSpec.track = sanitizeNotifText(intent.getStringExtra(EXTRA_MUSIC_TRACK));
+                musicSpec.artist = textPipeline.apply(intent.getStringExtra(EXTRA_MUSIC_ARTIST));
+                musicSpec.album = textPipeline.apply(intent.getStringExtra(EXTRA_MUSIC_ALBUM));
+                musicSpec.track = textPipeline.apply(intent.getStringExtra(EXTRA_MUSIC_TRACK));
                 musicSpec.duration = intent.getIntExtra(EXTRA_MUSIC_DURATION, 0);
                 musicSpec.trackCount = intent.getIntExtra(EXTRA_MUSIC_TRACKCOUNT, 0);
                 musicSpec.trackNr = intent.getIntExtra(EXTRA_MUSIC_TRACKNR, 0);
-                mDeviceSupport.onSetMusicInfo(musicSpec);
+                deviceSupport.onSetMusicInfo(musicSpec);
                 break;
             case ACTION_SETMUSICSTATE:
                 MusicStateSpec stateSpec = new MusicStateSpec();
@@ -517,23 +612,23 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                 stateSpec.position = intent.getIntExtra(EXTRA_MUSIC_POSITION, 0);
                 stateSpec.playRate = intent.getIntExtra(EXTRA_MUSIC_RATE, 0);
                 stateSpec.state = intent.getByteExtra(EXTRA_MUSIC_STATE, (byte) 0);
-                mDeviceSupport.onSetMusicState(stateSpec);
+                deviceSupport.onSetMusicState(stateSpec);
                 break;
             case ACTION_REQUEST_APPINFO:
-                mDeviceSupport.onAppInfoReq();
+                deviceSupport.onAppInfoReq();
                 break;
             case ACTION_REQUEST_SCREENSHOT:
-                mDeviceSupport.onScreenshotReq();
+                deviceSupport.onScreenshotReq();
                 break;
             case ACTION_STARTAPP: {
                 UUID uuid = (UUID) intent.getSerializableExtra(EXTRA_APP_UUID);
                 boolean start = intent.getBooleanExtra(EXTRA_APP_START, true);
-                mDeviceSupport.onAppStart(uuid, start);
+                deviceSupport.onAppStart(uuid, start);
                 break;
             }
             case ACTION_DELETEAPP: {
                 UUID uuid = (UUID) intent.getSerializableExtra(EXTRA_APP_UUID);
-                mDeviceSupport.onAppDelete(uuid);
+                deviceSupport.onAppDelete(uuid);
                 break;
             }
             case ACTION_APP_CONFIGURE: {
@@ -543,97 +638,130 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                 if (intent.hasExtra(EXTRA_APP_CONFIG_ID)) {
                     id = intent.getIntExtra(EXTRA_APP_CONFIG_ID, 0);
                 }
-                mDeviceSupport.onAppConfiguration(uuid, config, id);
+                deviceSupport.onAppConfiguration(uuid, config, id);
                 break;
             }
             case ACTION_APP_REORDER: {
                 UUID[] uuids = (UUID[]) intent.getSerializableExtra(EXTRA_APP_UUID);
-                mDeviceSupport.onAppReorder(uuids);
+                deviceSupport.onAppReorder(uuids);
                 break;
             }
             case ACTION_INSTALL:
                 Uri uri = intent.getParcelableExtra(EXTRA_URI);
                 if (uri != null) {
                     LOG.info("will try to install app/fw");
-                    mDeviceSupport.onInstallApp(uri);
+                    deviceSupport.onInstallApp(uri);
                 }
                 break;
             case ACTION_SET_ALARMS:
                 ArrayList<? extends Alarm> alarms = (ArrayList<? extends Alarm>) intent.getSerializableExtra(EXTRA_ALARMS);
-                mDeviceSupport.onSetAlarms(alarms);
+                deviceSupport.onSetAlarms(alarms);
                 break;
             case ACTION_ENABLE_REALTIME_STEPS: {
                 boolean enable = intent.getBooleanExtra(EXTRA_BOOLEAN_ENABLE, false);
-                mDeviceSupport.onEnableRealtimeSteps(enable);
+                deviceSupport.onEnableRealtimeSteps(enable);
                 break;
             }
             case ACTION_ENABLE_HEARTRATE_SLEEP_SUPPORT: {
                 boolean enable = intent.getBooleanExtra(EXTRA_BOOLEAN_ENABLE, false);
-                mDeviceSupport.onEnableHeartRateSleepSupport(enable);
+                deviceSupport.onEnableHeartRateSleepSupport(enable);
                 break;
             }
             case ACTION_SET_HEARTRATE_MEASUREMENT_INTERVAL: {
                 int seconds = intent.getIntExtra(EXTRA_INTERVAL_SECONDS, 0);
-                mDeviceSupport.onSetHeartRateMeasurementInterval(seconds);
+                deviceSupport.onSetHeartRateMeasurementInterval(seconds);
                 break;
             }
             case ACTION_ENABLE_REALTIME_HEARTRATE_MEASUREMENT: {
                 boolean enable = intent.getBooleanExtra(EXTRA_BOOLEAN_ENABLE, false);
-                mDeviceSupport.onEnableRealtimeHeartRateMeasurement(enable);
+                deviceSupport.onEnableRealtimeHeartRateMeasurement(enable);
                 break;
             }
             case ACTION_SEND_CONFIGURATION: {
                 String config = intent.getStringExtra(EXTRA_CONFIG);
-                mDeviceSupport.onSendConfiguration(config);
+                deviceSupport.onSendConfiguration(config);
                 break;
             }
             case ACTION_READ_CONFIGURATION: {
                 String config = intent.getStringExtra(EXTRA_CONFIG);
-                mDeviceSupport.onReadConfiguration(config);
+                deviceSupport.onReadConfiguration(config);
                 break;
             }
             case ACTION_TEST_NEW_FUNCTION: {
-                mDeviceSupport.onTestNewFunction();
+                deviceSupport.onTestNewFunction();
                 break;
             }
             case ACTION_SEND_WEATHER: {
                 WeatherSpec weatherSpec = intent.getParcelableExtra(EXTRA_WEATHER);
                 if (weatherSpec != null) {
-                    mDeviceSupport.onSendWeather(weatherSpec);
+                    deviceSupport.onSendWeather(weatherSpec);
                 }
                 break;
             }
             case ACTION_SET_LED_COLOR:
                 int color = intent.getIntExtra(EXTRA_LED_COLOR, 0);
                 if (color != 0) {
-                    mDeviceSupport.onSetLedColor(color);
+                    deviceSupport.onSetLedColor(color);
                 }
                 break;
             case ACTION_SET_FM_FREQUENCY:
                 float frequency = intent.getFloatExtra(EXTRA_FM_FREQUENCY, -1);
                 if (frequency != -1) {
-                    mDeviceSupport.onSetFmFrequency(frequency);
+                    deviceSupport.onSetFmFrequency(frequency);
                 }
                 break;
         }
     }
 
     /**
-     * Disposes the current DeviceSupport instance (if any) and sets a new device support instance
-     * (if not null).
+     * Queues the disposal of the current DeviceSupport instance (if any) and sets a new device
+     * support instance (if not null).
      *
      * @param deviceSupport
      */
     private void setDeviceSupport(@Nullable DeviceSupport deviceSupport) {
         if (deviceSupport != mDeviceSupport && mDeviceSupport != null) {
-            mDeviceSupport.dispose();
-            mDeviceSupport = null;
-            mGBDevice = null;
-            mCoordinator = null;
+            releaseDeviceSupport(false);
+        }
+        if (deviceSupport != null && mCommandExecutor == null) {
+            if (COMMAND_LOOPER != null) {
+                mCommandExecutor = new DeviceCommandExecutor(COMMAND_LOOPER);
+            } else {
+                mCommandExecutor = new DeviceCommandExecutor("Gadgetbridge Device Commands");
+            }
         }
         mDeviceSupport = deviceSupport;
         mGBDevice = mDeviceSupport != null ? mDeviceSupport.getDevice() : null;
         mCoordinator = mGBDevice != null ? DeviceHelper.getInstance().getCoordinator(mGBDevice) : null;
+        mTextPipeline = mDeviceSupport != null ? createTextPipeline(mDeviceSupport, mCoordinator) : null;
+    }
+
+    /**
+     * Forgets the current device support and queues its disposal after the commands that are
+     * still pending for it, so that the main thread does not wait for them.
+     *
+     * @param notifyDisconnected whether to announce the device as not connected once disposed
+     */
+    private void releaseDeviceSupport(final boolean notifyDisconnected) {
+        final DeviceSupport deviceSupport = mDeviceSupport;
+        final GBDevice device = mGBDevice;
+        mDeviceSupport = null;
+        mGBDevice = null;
+        mCoordinator = null;
+        mTextPipeline = null;
+        if (deviceSupport == null) {
+            return;
+        }
+        mCommandExecutor.submit(ACTION_DISCONNECT, null, new Runnable() {
+            @Override
+            public void run() {
+                deviceSupport.dispose();
+                if (notifyDisconnected && device != null) {
+                    device.setState(GBDevice.State.NOT_CONNECTED);
+                    device.sendDeviceUpdateIntent(DeviceCommunicationService.this);
+                }
+            }
+        });
     }
 
     private void start() {
@@ -851,6 +979,10 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
         setReceiversEnableState(false, false, null); // disable BroadcastReceivers
 
         setDeviceSupport(null);
+        if (mCommandExecutor != null) {
+            mCommandExecutor.shutdown();
+            mCommandExecutor = null;
+        }
         NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
         if (nm != null) {
             nm.cancel(GB.NOTIFICATION_ID); // need to do this because the updated notification won't be cancelled when service stops
@@ -865,9 +997,15 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
         if (GBPrefs.AUTO_RECONNECT.equals(key)) {
-            boolean autoReconnect = getGBPrefs().getAutoReconnect();
+            final boolean autoReconnect = getGBPrefs().getAutoReconnect();
             if (mDeviceSupport != null) {
-                mDeviceSupport.setAutoReconnect(autoReconnect);
+                final DeviceSupport deviceSupport = mDeviceSupport;
+                mCommandExecutor.submit(GBPrefs.AUTO_RECONNECT, null, new Runnable() {
+                    @Override
+                    public void run() {
+                        deviceSupport.setAutoReconnect(autoReconnect);
+                    }
+                });
             }
         }
         if (GBPrefs.CHART_MAX_HEART_RATE.equals(key) || GBPrefs.CHART_MIN_HEART_RATE.equals(key)) {
@@ -890,4 +1028,9 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
     public GBDevice getGBDevice() {
         return mGBDevice;
     }
+
+    @Nullable
+    public DeviceCommandExecutor getCommandExecutor() {
+        return mCommandExecutor;
+    }
 }
@@ -35,6 +35,7 @@ import java.util.Set;
 import java.util.UUID;
 
 import nodomain.freeyourgadget.gadgetbridge.Logging;
+import nodomain.freeyourgadget.gadgetbridge.TrafficCapture;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.service.AbstractDeviceSupport;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.CheckInitializedAction;
@@ -74,6 +75,13 @@ public abstract class AbstractBTLEDeviceSupport extends AbstractDeviceSupport im
         if (mQueue == null) {
             mQueue = new BtLEQueue(getBluetoothAdapter(), getDevice(), this, this, getContext(), mSupportedServerServices);
             mQueue.setAutoReconnect(getAutoReconnect());
+            mQueue.setDisconnectedCallback(new Runnable() {
+                @Override
+                public void run() {
+                    // a fetch may have been interrupted
+                    flushSampleIngests();
+                }
+            });
         }
         return mQueue.connect();
     }
@@ -98,6 +106,7 @@ public abstract class AbstractBTLEDeviceSupport extends AbstractDeviceSupport im
 
     @Override
     public void dispose() {
+        flushSampleIngests();
         if (mQueue != null) {
             mQueue.dispose();
             mQueue = null;
@@ -269,7 +278,10 @@ public abstract class AbstractBTLEDeviceSupport extends AbstractDeviceSupport im
      */
     public void logMessageContent(byte[] value) {
         logger.info("RECEIVED DATA WITH LENGTH: " + ((value != null) ? value.length : "(null)"));
-        Logging.logBytes(logger, value);
+        // the data is already in the traffic capture if it is active
+        if (!TrafficCapture.isActive()) {
+            Logging.logBytes(logger, value);
+        }
     }
 
     // default implementations of event handler methods (gatt callbacks)
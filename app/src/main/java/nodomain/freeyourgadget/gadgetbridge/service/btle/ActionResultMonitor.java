@@ -0,0 +1,217 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Synchronizes the BtLEQueue dispatch thread with the GATT callbacks. One instance is
+ * reused for all actions of a queue, instead of a new latch per action.
+ * <p>
+ * Besides waiting for the result of a single action, it keeps track of writes without
+ * response that were issued without waiting for their callback. At most
+ * <code>window</code> of them may be in flight at once; their callbacks are expected in
+ * the order in which the writes were issued. Android does not always deliver those
+ * callbacks, e.g. when the connection breaks down, so waiting for the writes times out, and
+ * the writes that are still in flight then are forgotten.
+ */
+final class ActionResultMonitor {
+    private static final Logger LOG = LoggerFactory.getLogger(ActionResultMonitor.class);
+
+    // how long to wait for the next callback of a write in flight
+    static final long DEFAULT_WRITE_TIMEOUT_MILLIS = 5000;
+
+    private final Object lock = new Object();
+    private final long writeTimeoutNanos;
+
+    private boolean resultExpected;
+    private boolean resultReceived;
+    private boolean aborted;
+
+    private int window = 1;
+    private Class<?>[] writeClasses = new Class<?>[1];
+    private long[] writeStarts = new long[1];
+    private int writeHead;
+    private int writesInFlight;
+
+    ActionResultMonitor() {
+        this(DEFAULT_WRITE_TIMEOUT_MILLIS);
+    }
+
+    ActionResultMonitor(long writeTimeoutMillis) {
+        writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+    }
+
+    /**
+     * Sets the maximum number of writes without response in flight. 1 disables pipelining.
+     */
+    void setWindow(int window) {
+        synchronized (lock) {
+            if (writesInFlight > 0) {
+                throw new IllegalStateException("cannot change the window while writes are in flight");
+            }
+            this.window = Math.max(1, window);
+            writeClasses = new Class<?>[this.window];
+            writeStarts = new long[this.window];
+            writeHead = 0;
+        }
+    }
+
+    int getWindow() {
+        synchronized (lock) {
+            return window;
+        }
+    }
+
+    /**
+     * Resets the abort state, to be called at the start of each transaction.
+     */
+    void reset() {
+        synchronized (lock) {
+            aborted = false;
+            resultExpected = false;
+            resultReceived = false;
+        }
+    }
+
+    /**
+     * Wakes up the dispatch thread and forgets about all writes in flight, e.g. on disconnect.
+     */
+    void abort() {
+        synchronized (lock) {
+            aborted = true;
+            clearWrites();
+        }
+    }
+
+    /**
+     * To be called before running an action whose result may be awaited.
+     */
+    void expectResult() {
+        synchronized (lock) {
+            resultExpected = true;
+            resultReceived = false;
+        }
+    }
+
+    /**
+     * Waits until #resultReceived() was called or the transaction was aborted.
+     */
+    void awaitResult() throws InterruptedException {
+        synchronized (lock) {
+            while (!resultReceived && !aborted) {
+                lock.wait();
+            }
+            resultExpected = false;
+        }
+    }
+
+    void resultReceived() {
+        synchronized (lock) {
+            if (resultExpected) {
+                resultReceived = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits for a free slot in the window and registers a write without response.
+     *
+     * @return false if the transaction was aborted meanwhile
+     */
+    boolean beginWrite(Class<?> actionClass) throws InterruptedException {
+        synchronized (lock) {
+            awaitWritesInFlight(window - 1);
+            if (aborted) {
+                return false;
+            }
+            int index = (writeHead + writesInFlight) % window;
+            writeClasses[index] = actionClass;
+            writeStarts[index] = System.nanoTime();
+            writesInFlight++;
+            return true;
+        }
+    }
+
+    /**
+     * Unregisters the most recent write, because it could not be issued.
+     */
+    void cancelWrite() {
+        synchronized (lock) {
+            if (writesInFlight > 0) {
+                writesInFlight--;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Completes the oldest write in flight, if any, and records its on-air latency.
+     *
+     * @return false if no write was in flight
+     */
+    boolean writeCompleted() {
+        Class<?> actionClass;
+        long start;
+        synchronized (lock) {
+            if (writesInFlight == 0) {
+                return false;
+            }
+            actionClass = writeClasses[writeHead];
+            start = writeStarts[writeHead];
+            writeClasses[writeHead] = null;
+            writeHead = (writeHead + 1) % window;
+            writesInFlight--;
+            lock.notifyAll();
+        }
+        BtLEQueueMetrics.recordOnAir(actionClass, System.nanoTime() - start);
+        return true;
+    }
+
+    boolean hasWritesInFlight() {
+        synchronized (lock) {
+            return writesInFlight > 0;
+        }
+    }
+
+    /**
+     * Waits until all writes in flight have completed, or the transaction was aborted.
+     */
+    void awaitWritesCompleted() throws InterruptedException {
+        synchronized (lock) {
+            awaitWritesInFlight(0);
+        }
+    }
+
+    /**
+     * Waits until at most the given number of writes are in flight. If no write completes
+     * within the timeout, the writes in flight are forgotten.
+     */
+    private void awaitWritesInFlight(int maxWrites) throws InterruptedException {
+        long deadline = System.nanoTime() + writeTimeoutNanos;
+        int lastWritesInFlight = writesInFlight;
+        while (writesInFlight > maxWrites && !aborted) {
+            if (writesInFlight < lastWritesInFlight) {
+                lastWritesInFlight = writesInFlight;
+                deadline = System.nanoTime() + writeTimeoutNanos;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                LOG.warn("No callback for " + writesInFlight + " writes in flight, forgetting them");
+                clearWrites();
+                return;
+            }
+            TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+        }
+    }
+
+    private void clearWrites() {
+        writesInFlight = 0;
+        writeHead = 0;
+        Arrays.fill(writeClasses, null);
+        lock.notifyAll();
+    }
+}
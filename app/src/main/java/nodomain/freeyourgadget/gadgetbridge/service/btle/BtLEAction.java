@@ -34,10 +34,12 @@ import nodomain.freeyourgadget.gadgetbridge.util.DateTimeUtils;
 public abstract class BtLEAction {
     private final BluetoothGattCharacteristic characteristic;
     private final long creationTimestamp;
+    private final long creationNanos;
 
     public BtLEAction(BluetoothGattCharacteristic characteristic) {
         this.characteristic = characteristic;
         creationTimestamp = System.currentTimeMillis();
+        creationNanos = System.nanoTime();
     }
 
     /**
@@ -57,6 +59,23 @@ public abstract class BtLEAction {
      */
     public abstract boolean run(BluetoothGatt gatt);
 
+    /**
+     * Returns true if this action is a plain write without response, which the
+     * BtLEQueue may issue without waiting for the callback of the previous one.
+     * Such an action must always cause exactly one onCharacteristicWrite() callback
+     * when run() returns true.
+     */
+    public boolean isWriteWithoutResponse() {
+        return false;
+    }
+
+    /**
+     * Returns the System#nanoTime() at creation, for measuring the time spent in the queue.
+     */
+    public long getCreationNanos() {
+        return creationNanos;
+    }
+
     /**
      * Returns the GATT characteristic being read/written/...
      *
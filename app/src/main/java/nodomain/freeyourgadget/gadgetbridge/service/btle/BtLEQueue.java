@@ -38,16 +38,16 @@ import androidx.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.Logging;
+import nodomain.freeyourgadget.gadgetbridge.TrafficCapture;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice.State;
 import nodomain.freeyourgadget.gadgetbridge.service.DeviceSupport;
@@ -65,20 +65,21 @@ public final class BtLEQueue {
     private BluetoothGattServer mBluetoothGattServer;
     private final Set<BluetoothGattService> mSupportedServerServices;
 
-    private final BlockingQueue<AbstractTransaction> mTransactions = new LinkedBlockingQueue<>();
+    private final BlockingDeque<AbstractTransaction> mTransactions = new LinkedBlockingDeque<>();
     private volatile boolean mDisposed;
     private volatile boolean mCrashed;
     private volatile boolean mAbortTransaction;
     private volatile boolean mAbortServerTransaction;
 
     private final Context mContext;
-    private CountDownLatch mWaitForActionResultLatch;
+    private final ActionResultMonitor mActionResults = new ActionResultMonitor();
     private CountDownLatch mWaitForServerActionResultLatch;
     private CountDownLatch mConnectionLatch;
     private BluetoothGattCharacteristic mWaitCharacteristic;
     private final InternalGattCallback internalGattCallback;
     private final InternalGattServerCallback internalGattServerCallback;
     private boolean mAutoReconnect;
+    private Runnable mDisconnectedCallback;
 
     private Thread dispatchThread = new Thread("Gadgetbridge GATT Dispatcher") {
 
@@ -139,28 +140,45 @@ public final class BtLEQueue {
                         Transaction transaction = (Transaction)qTransaction;
                         internalGattCallback.setTransactionGattCallback(transaction.getGattCallback());
                         mAbortTransaction = false;
+                        mActionResults.reset();
+                        mActionResults.setWindow(transaction.getWriteWithoutResponseWindow());
                         // Run all actions of the transaction until one doesn't succeed
                         for (BtLEAction action : transaction.getActions()) {
                             if (mAbortTransaction) { // got disconnected
                                 LOG.info("Aborting running transaction");
                                 break;
                             }
-                            mWaitCharacteristic = action.getCharacteristic();
-                            mWaitForActionResultLatch = new CountDownLatch(1);
                             if (LOG.isDebugEnabled()) {
                                 LOG.debug("About to run action: " + action);
                             }
+                            if (mActionResults.getWindow() > 1 && action.isWriteWithoutResponse()
+                                    && !(action instanceof GattListenerAction)) {
+                                if (!runPipelinedWrite(action)) {
+                                    break;
+                                }
+                                continue;
+                            }
+                            // all other actions wait for the pipelined writes, the result of
+                            // a read or notify must not be mistaken for that of a write
+                            mActionResults.awaitWritesCompleted();
+                            if (mAbortTransaction) {
+                                break;
+                            }
+                            mWaitCharacteristic = action.getCharacteristic();
+                            mActionResults.expectResult();
                             if (action instanceof GattListenerAction) {
                                 // this special action overwrites the transaction gatt listener (if any), it must
                                 // always be the last action in the transaction
                                 internalGattCallback.setTransactionGattCallback(((GattListenerAction) action).getGattCallback());
                             }
+                            long startNanos = System.nanoTime();
+                            BtLEQueueMetrics.recordQueueWait(action.getClass(), startNanos - action.getCreationNanos());
                             if (action.run(mBluetoothGatt)) {
                                 // check again, maybe due to some condition, action did not need to write, so we can't wait
                                 boolean waitForResult = action.expectsResult();
                                 if (waitForResult) {
-                                    mWaitForActionResultLatch.await();
-                                    mWaitForActionResultLatch = null;
+                                    mActionResults.awaitResult();
+                                    BtLEQueueMetrics.recordOnAir(action.getClass(), System.nanoTime() - startNanos);
                                     if (mAbortTransaction) {
                                         break;
                                     }
@@ -170,6 +188,8 @@ public final class BtLEQueue {
                                 break; // abort the transaction
                             }
                         }
+                        // do not let the next transaction see the callbacks of this one
+                        mActionResults.awaitWritesCompleted();
                     }
                 } catch (InterruptedException ignored) {
                     mConnectionLatch = null;
@@ -179,7 +199,7 @@ public final class BtLEQueue {
                     mCrashed = true;
                     mConnectionLatch = null;
                 } finally {
-                    mWaitForActionResultLatch = null;
+                    mActionResults.reset();
                     mWaitCharacteristic = null;
                 }
             }
@@ -187,6 +207,43 @@ public final class BtLEQueue {
         }
     };
 
+    /**
+     * Runs a write without response without waiting for its callback, as long as the
+     * write window is not full. Android refuses a write while another GATT operation
+     * is pending on many devices. In that case the window is halved for the rest of the
+     * transaction, down to serial writes, and the write is retried once the pending
+     * writes have completed.
+     *
+     * @return false if the transaction shall be aborted
+     */
+    private boolean runPipelinedWrite(BtLEAction action) throws InterruptedException {
+        if (!mActionResults.beginWrite(action.getClass())) {
+            return false;
+        }
+        BtLEQueueMetrics.recordQueueWait(action.getClass(), System.nanoTime() - action.getCreationNanos());
+        if (action.run(mBluetoothGatt)) {
+            return true;
+        }
+        mActionResults.cancelWrite();
+        if (mActionResults.hasWritesInFlight()) {
+            mActionResults.awaitWritesCompleted();
+            if (mAbortTransaction) {
+                return false;
+            }
+            int window = mActionResults.getWindow() / 2;
+            LOG.debug("Write without response refused while writes were in flight, reducing the window to " + window);
+            mActionResults.setWindow(window);
+            if (mActionResults.beginWrite(action.getClass())) {
+                if (action.run(mBluetoothGatt)) {
+                    return true;
+                }
+                mActionResults.cancelWrite();
+            }
+        }
+        LOG.error("Action returned false: " + action);
+        return false;
+    }
+
     public BtLEQueue(BluetoothAdapter bluetoothAdapter, GBDevice gbDevice, GattCallback externalGattCallback, GattServerCallback externalGattServerCallback, Context context, Set<BluetoothGattService> supportedServerServices) {
         mBluetoothAdapter = bluetoothAdapter;
         mGbDevice = gbDevice;
@@ -202,6 +259,13 @@ public final class BtLEQueue {
         mAutoReconnect = enable;
     }
 
+    /**
+     * Sets a callback that is run after each disconnect, before reconnecting.
+     */
+    public void setDisconnectedCallback(@Nullable Runnable callback) {
+        mDisconnectedCallback = callback;
+    }
+
     protected boolean isConnected() {
         return mGbDevice.isConnected();
     }
@@ -293,14 +357,15 @@ public final class BtLEQueue {
         mTransactions.clear();
         mAbortTransaction = true;
         mAbortServerTransaction = true;
-        if (mWaitForActionResultLatch != null) {
-            mWaitForActionResultLatch.countDown();
-        }
+        mActionResults.abort();
         if (mWaitForServerActionResultLatch != null) {
             mWaitForServerActionResultLatch.countDown();
         }
 
         setDeviceConnectionState(State.NOT_CONNECTED);
+        if (mDisconnectedCallback != null) {
+            mDisconnectedCallback.run();
+        }
 
         // either we've been disconnected because the device is out of range
         // or because of an explicit @{link #disconnect())
@@ -364,9 +429,7 @@ public final class BtLEQueue {
      */
     public void abortCurrentTransaction() {
         mAbortTransaction = true;
-        if (mWaitForActionResultLatch != null) {
-            mWaitForActionResultLatch.countDown();
-        }
+        mActionResults.abort();
     }
 
     /**
@@ -391,12 +454,7 @@ public final class BtLEQueue {
     public void insert(Transaction transaction) {
         LOG.debug("about to insert: " + transaction);
         if (!transaction.isEmpty()) {
-            List<AbstractTransaction> tail = new ArrayList<>(mTransactions.size() + 2);
-            //mTransactions.drainTo(tail);
-            tail.addAll(mTransactions);
-            mTransactions.clear();
-            mTransactions.add(transaction);
-            mTransactions.addAll(tail);
+            mTransactions.addFirst(transaction);
         }
     }
 
@@ -538,6 +596,14 @@ public final class BtLEQueue {
             if (getCallbackToUse() != null) {
                 getCallbackToUse().onCharacteristicWrite(gatt, characteristic, status);
             }
+            if (mActionResults.writeCompleted()) {
+                // callback of a pipelined write without response
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    LOG.debug("failed write without response, aborting transaction: " + characteristic.getUuid() + getStatusString(status));
+                    mAbortTransaction = true;
+                }
+                return;
+            }
             checkWaitingCharacteristic(characteristic, status);
         }
 
@@ -562,6 +628,9 @@ public final class BtLEQueue {
             if (!checkCorrectGattInstance(gatt, "characteristic read")) {
                 return;
             }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                TrafficCapture.captureReceived(TrafficCapture.ATT_READ_RESPONSE, characteristic.getInstanceId(), characteristic.getValue());
+            }
             if (getCallbackToUse() != null) {
                 try {
                     getCallbackToUse().onCharacteristicRead(gatt, characteristic, status);
@@ -607,7 +676,9 @@ public final class BtLEQueue {
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            if (LOG.isDebugEnabled()) {
+            boolean captured = TrafficCapture.captureReceived(TrafficCapture.ATT_HANDLE_VALUE_NOTIFICATION,
+                    characteristic.getInstanceId(), characteristic.getValue());
+            if (!captured && LOG.isDebugEnabled()) {
                 String content = Logging.formatBytes(characteristic.getValue());
                 LOG.debug("characteristic changed: " + characteristic.getUuid() + " value: " + content);
             }
@@ -648,9 +719,7 @@ public final class BtLEQueue {
                 mAbortTransaction = true;
             }
             if (characteristic != null && BtLEQueue.this.mWaitCharacteristic != null && characteristic.getUuid().equals(BtLEQueue.this.mWaitCharacteristic.getUuid())) {
-                if (mWaitForActionResultLatch != null) {
-                    mWaitForActionResultLatch.countDown();
-                }
+                mActionResults.resultReceived();
             } else {
                 if (BtLEQueue.this.mWaitCharacteristic != null) {
                     LOG.error("checkWaitingCharacteristic: mismatched characteristic received: " + ((characteristic != null && characteristic.getUuid() != null) ? characteristic.getUuid().toString() : "(null)"));
@@ -0,0 +1,61 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latency histograms of the actions run by all BtLEQueues, per action class.
+ * <ul>
+ * <li>queue wait: from the creation of the action until it is run</li>
+ * <li>on air: from running the action until its GATT callback arrived</li>
+ * </ul>
+ */
+public final class BtLEQueueMetrics {
+    private static final ConcurrentHashMap<Class<?>, ActionMetrics> METRICS = new ConcurrentHashMap<>();
+
+    private BtLEQueueMetrics() {
+    }
+
+    static void recordQueueWait(Class<?> actionClass, long nanos) {
+        getMetrics(actionClass).queueWait.record(nanos);
+    }
+
+    static void recordOnAir(Class<?> actionClass, long nanos) {
+        getMetrics(actionClass).onAir.record(nanos);
+    }
+
+    private static ActionMetrics getMetrics(Class<?> actionClass) {
+        ActionMetrics metrics = METRICS.get(actionClass);
+        if (metrics == null) {
+            metrics = new ActionMetrics();
+            ActionMetrics existing = METRICS.putIfAbsent(actionClass, metrics);
+            if (existing != null) {
+                metrics = existing;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns one human readable line per action class.
+     */
+    public static List<String> describe() {
+        List<String> result = new ArrayList<>(METRICS.size());
+        for (Map.Entry<Class<?>, ActionMetrics> entry : METRICS.entrySet()) {
+            result.add(entry.getKey().getSimpleName() + ": queue wait " + entry.getValue().queueWait
+                    + ", on air " + entry.getValue().onAir);
+        }
+        return result;
+    }
+
+    public static void reset() {
+        METRICS.clear();
+    }
+
+    private static class ActionMetrics {
+        final LatencyHistogram queueWait = new LatencyHistogram();
+        final LatencyHistogram onAir = new LatencyHistogram();
+    }
+}
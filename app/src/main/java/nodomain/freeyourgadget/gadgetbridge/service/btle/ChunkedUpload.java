@@ -0,0 +1,205 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.PlainAction;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.WriteAction;
+
+/**
+ * Writes data to a characteristic in packets of a fixed size. Each packet is only sliced from
+ * the data when it is written, into an array that is reused for all packets, so the data is
+ * neither copied nor split into an array per packet up front.
+ *
+ * The packets are queued in windows of windowSize packets. The last action of a window queues
+ * the next one, so the queue never holds more than a window of the upload, and the upload
+ * stops when a window is aborted, e.g. because the device disconnected. The next window is
+ * inserted at the head of the queue, so that transactions queued meanwhile, e.g. notifications
+ * or a time sync, run after the upload instead of writing to the device in the middle of it.
+ *
+ * Subclasses may fill in a header in front of the payload of each packet, and add further
+ * actions after a packet or after the last one, e.g. sync commands or progress updates.
+ */
+public class ChunkedUpload {
+    private static final Logger LOG = LoggerFactory.getLogger(ChunkedUpload.class);
+
+    public static final int DEFAULT_WINDOW_SIZE = 100;
+
+    private final BluetoothGattCharacteristic characteristic;
+    private final ByteBuffer data;
+    private final int headerLength;
+    private final int payloadLength;
+    private final int packetCount;
+    private final int windowSize;
+    private int writeWithoutResponseWindow = 1;
+
+    private BtLEQueue queue;
+    private String taskName;
+    private GattCallback gattCallback;
+    private int nextPacket;
+    private byte[] packet;
+    private byte[] lastPacket;
+
+    /**
+     * @param data the data from its position to its limit is uploaded; it must not be modified until the upload is done
+     * @param headerLength the number of bytes in front of the payload of each packet, see {@link #preparePacket(byte[], int)}
+     * @param packetLength the length of a packet including the header
+     */
+    public ChunkedUpload(BluetoothGattCharacteristic characteristic, ByteBuffer data, int headerLength, int packetLength, int windowSize) {
+        if (packetLength <= headerLength) {
+            throw new IllegalArgumentException("packet length of " + packetLength + " leaves no room for the payload");
+        }
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("window size must be positive: " + windowSize);
+        }
+        this.characteristic = characteristic;
+        this.data = data.slice();
+        this.headerLength = headerLength;
+        this.payloadLength = packetLength - headerLength;
+        this.packetCount = (this.data.limit() + payloadLength - 1) / payloadLength;
+        this.windowSize = windowSize;
+    }
+
+    public ChunkedUpload(BluetoothGattCharacteristic characteristic, ByteBuffer data, int packetLength) {
+        this(characteristic, data, 0, packetLength, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Lets the queue write up to the given number of packets without waiting for their
+     * callbacks, see {@link Transaction#setWriteWithoutResponseWindow(int)}. Unlike the
+     * window size, this does not change how many packets are queued at once.
+     */
+    public void setWriteWithoutResponseWindow(int window) {
+        writeWithoutResponseWindow = window;
+    }
+
+    public int getPacketCount() {
+        return packetCount;
+    }
+
+    public int getLength() {
+        return data.limit();
+    }
+
+    /**
+     * Adds the first window to the given builder, after the actions it already contains, and
+     * queues it. The following windows are inserted at the head of the queue, with the same
+     * task name and gatt callback.
+     */
+    public void queue(TransactionBuilder builder, BtLEQueue queue) {
+        this.queue = queue;
+        this.taskName = builder.getTaskName();
+        this.gattCallback = builder.getGattCallback();
+        builder.setWriteWithoutResponseWindow(writeWithoutResponseWindow);
+        addWindow(builder);
+        builder.queue(queue);
+    }
+
+    /**
+     * Adds the actions of the next window to the given builder.
+     *
+     * @return true if another window follows
+     */
+    boolean addWindow(TransactionBuilder builder) {
+        int end = nextPacket + Math.min(windowSize, packetCount - nextPacket);
+        for (; nextPacket < end; nextPacket++) {
+            builder.add(new PacketWriteAction(characteristic, nextPacket));
+            onPacketQueued(builder, nextPacket, packetCount);
+        }
+        if (nextPacket == packetCount) {
+            onUploadQueued(builder);
+            return false;
+        }
+        builder.add(new PlainAction() {
+            @Override
+            public boolean run(BluetoothGatt gatt) {
+                queueNextWindow();
+                return true;
+            }
+        });
+        return true;
+    }
+
+    private void queueNextWindow() {
+        TransactionBuilder builder = new TransactionBuilder(taskName);
+        builder.setGattCallback(gattCallback);
+        builder.setWriteWithoutResponseWindow(writeWithoutResponseWindow);
+        addWindow(builder);
+        // runs on the dispatch thread while it still holds the current window, so the next
+        // window is the next transaction it takes
+        queue.insert(builder.getTransaction());
+    }
+
+    /**
+     * Returns the packet with the given index. The array is reused for the next packet of the
+     * same length, so it must not be kept.
+     */
+    byte[] getPacket(int index) throws Exception {
+        int offset = index * payloadLength;
+        int length = Math.min(payloadLength, data.limit() - offset);
+        byte[] packet;
+        if (length == payloadLength) {
+            if (this.packet == null) {
+                this.packet = new byte[headerLength + payloadLength];
+            }
+            packet = this.packet;
+        } else {
+            if (lastPacket == null) {
+                lastPacket = new byte[headerLength + length];
+            }
+            packet = lastPacket;
+        }
+        // the packets are only written by the queue's dispatch thread
+        data.position(offset);
+        data.get(packet, headerLength, length);
+        preparePacket(packet, index);
+        return packet;
+    }
+
+    /**
+     * Called with each packet after the payload has been copied into it, right before it
+     * is written. Fills in the header, and may modify the payload in place, e.g. to
+     * encrypt it.
+     */
+    protected void preparePacket(byte[] packet, int index) throws Exception {
+    }
+
+    /**
+     * Called after the write action of each packet has been added to the builder.
+     */
+    protected void onPacketQueued(TransactionBuilder builder, int index, int packetCount) {
+    }
+
+    /**
+     * Called after the write action of the last packet has been added to the builder.
+     */
+    protected void onUploadQueued(TransactionBuilder builder) {
+    }
+
+    private class PacketWriteAction extends WriteAction {
+        private final int index;
+
+        PacketWriteAction(BluetoothGattCharacteristic characteristic, int index) {
+            super(characteristic, null);
+            this.index = index;
+        }
+
+        @Override
+        protected boolean writeValue(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
+            byte[] packet;
+            try {
+                packet = getPacket(index);
+            } catch (Exception e) {
+                LOG.error("Unable to prepare packet " + index + " of " + packetCount, e);
+                return false;
+            }
+            // the value is copied when it is written, so the array may be reused afterwards
+            return super.writeValue(gatt, characteristic, packet);
+        }
+    }
+}
@@ -34,6 +34,7 @@ public class Transaction extends AbstractTransaction {
     private
     @Nullable
     GattCallback gattCallback;
+    private int writeWithoutResponseWindow = 1;
 
     public Transaction(String taskName) {
         super(taskName);
@@ -64,6 +65,19 @@ public class Transaction extends AbstractTransaction {
         return gattCallback;
     }
 
+    /**
+     * Sets how many writes without response of this transaction the queue may issue
+     * without waiting for their callbacks. Only meant for bulk transfers; with the
+     * default of 1, every action waits for the callback of the previous one.
+     */
+    public void setWriteWithoutResponseWindow(int window) {
+        writeWithoutResponseWindow = Math.max(1, window);
+    }
+
+    public int getWriteWithoutResponseWindow() {
+        return writeWithoutResponseWindow;
+    }
+
     @Override
     public int getActionCount() {
         return mActions.size();
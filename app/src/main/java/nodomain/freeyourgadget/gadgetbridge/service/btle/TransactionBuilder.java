@@ -106,6 +106,14 @@ public class TransactionBuilder {
         mTransaction.setGattCallback(callback);
     }
 
+    /**
+     * @see Transaction#setWriteWithoutResponseWindow(int)
+     */
+    public TransactionBuilder setWriteWithoutResponseWindow(int window) {
+        mTransaction.setWriteWithoutResponseWindow(window);
+        return this;
+    }
+
     public
     @Nullable
     GattCallback getGattCallback() {
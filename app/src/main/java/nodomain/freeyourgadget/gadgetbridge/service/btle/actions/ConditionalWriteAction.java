@@ -33,6 +33,12 @@ public abstract class ConditionalWriteAction extends WriteAction {
         return true;
     }
 
+    @Override
+    public boolean isWriteWithoutResponse() {
+        // may not write anything at all, so there may be no callback
+        return false;
+    }
+
     /**
      * Checks the condition whether the write shall happen or not.
      * Returns the actual value to be written or null in case nothing shall be written.
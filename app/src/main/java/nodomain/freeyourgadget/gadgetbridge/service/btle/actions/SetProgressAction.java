@@ -24,6 +24,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
+import nodomain.freeyourgadget.gadgetbridge.util.TransferProgress;
 
 public class SetProgressAction extends PlainAction {
     private static final Logger LOG = LoggerFactory.getLogger(SetProgressAction.class);
@@ -32,6 +33,9 @@ public class SetProgressAction extends PlainAction {
     private final boolean ongoing;
     private final int percentage;
     private final Context context;
+    private final TransferProgress progress;
+    private final long bytesDone;
+    private final long bytesTotal;
 
     /**
      * When run, will update the progress notification.
@@ -47,10 +51,35 @@ public class SetProgressAction extends PlainAction {
         this.ongoing = ongoing;
         this.percentage = percentage;
         this.context = context;
+        this.progress = null;
+        this.bytesDone = 0;
+        this.bytesTotal = 0;
+    }
+
+    /**
+     * When run, will update the given progress, including throughput and time left.
+     *
+     * @param progress
+     * @param bytesDone
+     * @param bytesTotal
+     */
+    public SetProgressAction(TransferProgress progress, long bytesDone, long bytesTotal) {
+        this.text = null;
+        this.ongoing = true;
+        this.percentage = bytesTotal > 0 ? (int) (bytesDone * 100 / bytesTotal) : 0;
+        this.context = null;
+        this.progress = progress;
+        this.bytesDone = bytesDone;
+        this.bytesTotal = bytesTotal;
     }
 
     @Override
     public boolean run(BluetoothGatt gatt) {
+        if (progress != null) {
+            // run for every packet, so rather not log
+            progress.update(bytesDone, bytesTotal);
+            return true;
+        }
         LOG.info(toString());
         GB.updateInstallNotification(this.text, this.ongoing, this.percentage, this.context);
         return true;
@@ -25,6 +25,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import nodomain.freeyourgadget.gadgetbridge.Logging;
+import nodomain.freeyourgadget.gadgetbridge.TrafficCapture;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BtLEAction;
 
 /**
@@ -54,7 +55,10 @@ public class WriteAction extends BtLEAction {
     }
 
     protected boolean writeValue(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
-        if (LOG.isDebugEnabled()) {
+        byte opcode = characteristic.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                ? TrafficCapture.ATT_WRITE_COMMAND : TrafficCapture.ATT_WRITE_REQUEST;
+        boolean captured = TrafficCapture.captureSent(opcode, characteristic.getInstanceId(), value);
+        if (!captured && LOG.isDebugEnabled()) {
             LOG.debug("writing to characteristic: " + characteristic.getUuid() + ": " + Logging.formatBytes(value));
         }
         if (characteristic.setValue(value)) {
@@ -63,6 +67,11 @@ public class WriteAction extends BtLEAction {
         return false;
     }
 
+    @Override
+    public boolean isWriteWithoutResponse() {
+        return getCharacteristic().getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+    }
+
     protected final byte[] getValue() {
         return value;
     }
@@ -20,6 +20,7 @@ package nodomain.freeyourgadget.gadgetbridge.service.devices.huami;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.ArrayList;
@@ -30,11 +31,19 @@ import java.util.concurrent.TimeUnit;
 import nodomain.freeyourgadget.gadgetbridge.GBException;
 import nodomain.freeyourgadget.gadgetbridge.entities.BaseActivitySummary;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityPoint;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityPointSink;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
 import nodomain.freeyourgadget.gadgetbridge.model.GPSCoordinate;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 
+/**
+ * Parses the sports details of Huami devices. The data can either be parsed at once with
+ * {@link #parse(byte[])}, or be pushed with {@link #consume(byte[], int, int)} as the
+ * packets arrive, in which case the parsed points are passed on to the
+ * {@link ActivityPointSink} as soon as they are complete, and the memory needed does not
+ * depend on the length of the activity.
+ */
 public class HuamiActivityDetailsParser {
     private static final Logger LOG = LoggerFactory.getLogger(HuamiActivityDetailsParser.class);
 
@@ -47,6 +56,9 @@ public class HuamiActivityDetailsParser {
     private static final byte TYPE_SPEED6 = 6;
     private static final byte TYPE_SWIMMING = 8;
 
+    private static final int RECORD_LENGTH = 8; // type, time offset and 6 bytes of data
+    private static final int PACKET_LENGTH = 17; // when skipping the counter byte: counter and 16 bytes of data
+
     private static final BigDecimal HUAMI_TO_DECIMAL_DEGREES_DIVISOR = new BigDecimal(3000000.0);
     private final ActivityTrack activityTrack;
     private final Date baseDate;
@@ -55,6 +67,17 @@ public class HuamiActivityDetailsParser {
     private int baseAltitude;
     private ActivityPoint lastActivityPoint;
 
+    private ActivityPointSink sink;
+    private final byte[] record = new byte[RECORD_LENGTH];
+    private int recordLength;
+    private long streamPosition;
+    private long totalTimeOffset;
+    private int lastTimeOffset;
+
+    // the points at the start of the track, until it is known which of them lack a proper timestamp
+    private List<ActivityPoint> pendingPoints = new ArrayList<>();
+    private final List<ActivityPoint> entriesToFixUp = new ArrayList<>();
+
     public void setSkipCounterByte(boolean skipCounterByte) {
         this.skipCounterByte = skipCounterByte;
     }
@@ -71,107 +94,174 @@ public class HuamiActivityDetailsParser {
         activityTrack.setUser(summary.getUser());
         activityTrack.setDevice(summary.getDevice());
         activityTrack.setName(createActivityName(summary));
+
+        this.sink = new ActivityPointSink() {
+            @Override
+            public void addActivityPoint(ActivityPoint point) {
+                activityTrack.addTrackPoint(point);
+            }
+        };
+    }
+
+    /**
+     * Returns the track with the metadata of the activity. Its points are only filled in
+     * if no other sink was set.
+     */
+    public ActivityTrack getActivityTrack() {
+        return activityTrack;
+    }
+
+    /**
+     * Sets the sink that receives the parsed points instead of the activity track.
+     */
+    public void setActivityPointSink(ActivityPointSink sink) {
+        this.sink = sink;
     }
 
     public ActivityTrack parse(byte[] bytes) throws GBException {
-        int i = 0;
         try {
-            long totalTimeOffset = 0;
-            int lastTimeOffset = 0;
-            while (i < bytes.length) {
-                if (skipCounterByte && (i % 17) == 0) {
-                    i++;
-                }
+            consume(bytes, 0, bytes.length);
+            finish();
+        } catch (IOException ex) {
+            throw new GBException("Error parsing activity details: " + ex.getMessage(), ex);
+        }
+        return activityTrack;
+    }
 
-                byte type = bytes[i++]; // lgtm [java/index-out-of-bounds]]
-                int timeOffset = BLETypeConversions.toUnsigned(bytes[i++]); // lgtm [java/index-out-of-bounds]
-                // handle timeOffset overflows (1 byte, always increasing, relative to base)
-                if (lastTimeOffset <= timeOffset) {
-                    timeOffset = timeOffset - lastTimeOffset;
-                    lastTimeOffset += timeOffset;
-                } else {
-                    lastTimeOffset = timeOffset;
-                }
-                totalTimeOffset += timeOffset;
-
-                switch (type) {
-                    case TYPE_GPS:
-                        i += consumeGPSAndUpdateBaseLocation(bytes, i, totalTimeOffset);
-                        break;
-                    case TYPE_HR:
-                        i += consumeHeartRate(bytes, i, totalTimeOffset);
-                        break;
-                    case TYPE_PAUSE:
-                        i += consumePause(bytes, i);
-                        break;
-                    case TYPE_RESUME:
-                        i += consumeResume(bytes, i);
-                        break;
-                    case TYPE_SPEED4:
-                        i += consumeSpeed4(bytes, i);
-                        break;
-                    case TYPE_SPEED5:
-                        i += consumeSpeed5(bytes, i);
-                        break;
-                    case TYPE_SPEED6:
-                        i += consumeSpeed6(bytes, i);
-                        break;
-                    case TYPE_SWIMMING:
-                        i += consumeSwimming(bytes, i);
-                        break;
-                    default:
-                        LOG.warn("unknown packet type" + type);
-                        i+=6;
-                }
+    /**
+     * Parses the next chunk of data, e.g. a notification packet. Records may span
+     * multiple chunks.
+     */
+    public void consume(byte[] bytes, int offset, int length) throws IOException {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (skipCounterByte && (streamPosition++ % PACKET_LENGTH) == 0) {
+                continue;
+            }
+            record[recordLength++] = bytes[i];
+            if (recordLength == RECORD_LENGTH) {
+                recordLength = 0;
+                consumeRecord(record);
             }
-        } catch (IndexOutOfBoundsException ex) {
-            throw new GBException("Error parsing activity details: " + ex.getMessage(), ex);
         }
+    }
 
-        fixupMissingTimestamps(activityTrack);
+    /**
+     * To be called after the last chunk of data, passes on the remaining points.
+     *
+     * @throws GBException if the data ended in the middle of a record
+     */
+    public void finish() throws GBException, IOException {
+        if (lastActivityPoint != null) {
+            completePoint(lastActivityPoint, null);
+            lastActivityPoint = null;
+        }
+        if (pendingPoints != null) {
+            flushPendingPoints();
+        }
+        if (recordLength != 0) {
+            throw new GBException("Error parsing activity details: incomplete record of " + recordLength + " bytes");
+        }
+    }
 
-        return activityTrack;
+    private void consumeRecord(byte[] bytes) throws IOException {
+        int i = 0;
+        byte type = bytes[i++];
+        int timeOffset = BLETypeConversions.toUnsigned(bytes[i++]);
+        // handle timeOffset overflows (1 byte, always increasing, relative to base)
+        if (lastTimeOffset <= timeOffset) {
+            timeOffset = timeOffset - lastTimeOffset;
+            lastTimeOffset += timeOffset;
+        } else {
+            lastTimeOffset = timeOffset;
+        }
+        totalTimeOffset += timeOffset;
+
+        switch (type) {
+            case TYPE_GPS:
+                consumeGPSAndUpdateBaseLocation(bytes, i, totalTimeOffset);
+                break;
+            case TYPE_HR:
+                consumeHeartRate(bytes, i, totalTimeOffset);
+                break;
+            case TYPE_PAUSE:
+                consumePause(bytes, i);
+                break;
+            case TYPE_RESUME:
+                consumeResume(bytes, i);
+                break;
+            case TYPE_SPEED4:
+                consumeSpeed4(bytes, i);
+                break;
+            case TYPE_SPEED5:
+                consumeSpeed5(bytes, i);
+                break;
+            case TYPE_SPEED6:
+                consumeSpeed6(bytes, i);
+                break;
+            case TYPE_SWIMMING:
+                consumeSwimming(bytes, i);
+                break;
+            default:
+                LOG.warn("unknown packet type" + type);
+        }
     }
 
-    private void fixupMissingTimestamps(ActivityTrack activityTrack) {
-        try {
-            int pointer = 0;
-            List<ActivityPoint> activityPointList = activityTrack.getTrackPoints();
-            Date gpsStartTime = null;
-            List<ActivityPoint> entriesToFixUp = new ArrayList<>();
-            while (pointer < activityPointList.size() - 1) {
-                ActivityPoint activityPoint = activityPointList.get(pointer);
-                if (activityPoint.getLocation() == null) {
-                    pointer++;
-                    continue;
-                }
-                if (activityPoint.getTime().equals(activityPointList.get(pointer + 1).getTime())) {
-                    entriesToFixUp.add(activityPoint);
-                } else {
-                    // found the first activity point with a proper timestamp
-                    entriesToFixUp.add(activityPoint);
-                    gpsStartTime = activityPointList.get(pointer + 1).getTime();
-                    break;
-                }
-                pointer++;
+    /**
+     * Called once no more data will be added to the given point. The GPS points at the start
+     * of the track, up to the first one with a proper timestamp, are held back, because
+     * their timestamps are spread evenly between the start of the activity and that point.
+     *
+     * @param nextTime the time of the following point, or null if this was the last one
+     */
+    private void completePoint(ActivityPoint activityPoint, Date nextTime) throws IOException {
+        if (pendingPoints == null) {
+            sink.addActivityPoint(activityPoint);
+            return;
+        }
+        if (activityPoint.getLocation() == null) {
+            if (pendingPoints.isEmpty()) {
+                sink.addActivityPoint(activityPoint);
+            } else {
+                pendingPoints.add(activityPoint);
             }
-            if (gpsStartTime != null) {
-                // now adjust those entries without a timestamp
-                long differenceInSec = TimeUnit.SECONDS.convert(Math.abs(gpsStartTime.getTime() - baseDate.getTime()), TimeUnit.MILLISECONDS);
+            return;
+        }
+        pendingPoints.add(activityPoint);
+        entriesToFixUp.add(activityPoint);
+        if (nextTime != null && !activityPoint.getTime().equals(nextTime)) {
+            // found the first activity point with a proper timestamp
+            fixupMissingTimestamps(nextTime);
+            flushPendingPoints();
+        }
+    }
 
-                double multiplier = (double) differenceInSec / (double) (entriesToFixUp.size());
+    private void fixupMissingTimestamps(Date gpsStartTime) {
+        try {
+            // now adjust those entries without a timestamp
+            long differenceInSec = TimeUnit.SECONDS.convert(Math.abs(gpsStartTime.getTime() - baseDate.getTime()), TimeUnit.MILLISECONDS);
 
-                for (int j = 0; j < entriesToFixUp.size(); j++) {
-                    long timeOffsetSeconds = Math.round(j * multiplier);
-                    entriesToFixUp.get(j).setTime(makeAbsolute(timeOffsetSeconds));
-                }
+            double multiplier = (double) differenceInSec / (double) (entriesToFixUp.size());
+
+            for (int j = 0; j < entriesToFixUp.size(); j++) {
+                long timeOffsetSeconds = Math.round(j * multiplier);
+                entriesToFixUp.get(j).setTime(makeAbsolute(timeOffsetSeconds));
             }
         } catch (Exception ex) {
             LOG.warn("Error cleaning activity details", ex);
         }
     }
 
-    private int consumeGPSAndUpdateBaseLocation(byte[] bytes, int offset, long timeOffset) {
+    private void flushPendingPoints() throws IOException {
+        List<ActivityPoint> points = pendingPoints;
+        pendingPoints = null;
+        entriesToFixUp.clear();
+        for (ActivityPoint point : points) {
+            sink.addActivityPoint(point);
+        }
+    }
+
+    private int consumeGPSAndUpdateBaseLocation(byte[] bytes, int offset, long timeOffset) throws IOException {
         int i = 0;
         int longitudeDelta = BLETypeConversions.toInt16(bytes[offset + i++], bytes[offset + i++]);
         int latitudeDelta = BLETypeConversions.toInt16(bytes[offset + i++], bytes[offset + i++]);
@@ -200,7 +290,7 @@ public class HuamiActivityDetailsParser {
         return result.doubleValue();
     }
 
-    private int consumeHeartRate(byte[] bytes, int offset, long timeOffsetSeconds) {
+    private int consumeHeartRate(byte[] bytes, int offset, long timeOffsetSeconds) throws IOException {
         int v1 = BLETypeConversions.toUint16(bytes[offset]);
         int v2 = BLETypeConversions.toUint16(bytes[offset + 1]);
         int v3 = BLETypeConversions.toUint16(bytes[offset + 2]);
@@ -257,10 +347,12 @@ public class HuamiActivityDetailsParser {
         return new Date(baseDate.getTime() + timeOffsetSeconds * 1000);
     }
 
-    private void add(ActivityPoint ap) {
+    private void add(ActivityPoint ap) throws IOException {
         if (ap != lastActivityPoint) {
+            if (lastActivityPoint != null) {
+                completePoint(lastActivityPoint, ap.getTime());
+            }
             lastActivityPoint = ap;
-            activityTrack.addTrackPoint(ap);
         } else {
             LOG.info("skipping point!");
         }
@@ -22,8 +22,11 @@ import android.widget.Toast;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.GregorianCalendar;
 
 import androidx.annotation.NonNull;
@@ -36,7 +39,6 @@ import nodomain.freeyourgadget.gadgetbridge.entities.BaseActivitySummary;
 import nodomain.freeyourgadget.gadgetbridge.export.ActivityTrackExporter;
 import nodomain.freeyourgadget.gadgetbridge.export.GPXExporter;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
-import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.HuamiSupport;
@@ -54,7 +56,11 @@ public class FetchSportsDetailsOperation extends AbstractFetchOperation {
     private final BaseActivitySummary summary;
     private final String lastSyncTimeKey;
 
-    private ByteArrayOutputStream buffer;
+    private HuamiActivityDetailsParser parser;
+    private File targetFile;
+    private File tempFile;
+    private OutputStream outputStream;
+    private GPXExporter.TrackWriter trackWriter;
 
     FetchSportsDetailsOperation(@NonNull BaseActivitySummary summary, @NonNull HuamiSupport support, @NonNull String lastSyncTimeKey) {
         super(support);
@@ -66,7 +72,14 @@ public class FetchSportsDetailsOperation extends AbstractFetchOperation {
     @Override
     protected void startFetching(TransactionBuilder builder) {
         LOG.info("start " + getName());
-        buffer = new ByteArrayOutputStream(1024);
+        parser = new HuamiActivityDetailsParser(summary);
+        parser.setSkipCounterByte(false); // is already stripped
+        try {
+            startExport();
+        } catch (IOException ex) {
+            GB.toast(getContext(), "Error getting activity details: " + ex.getMessage(), Toast.LENGTH_LONG, GB.ERROR, ex);
+            closeExport();
+        }
         GregorianCalendar sinceWhen = getLastSuccessfulSyncTime();
         startFetching(builder, AmazfitBipService.COMMAND_ACTIVITY_DATA_TYPE_SPORTS_DETAILS, sinceWhen);
     }
@@ -85,32 +98,12 @@ public class FetchSportsDetailsOperation extends AbstractFetchOperation {
 //        }
 
 
-        if (success) {
-            HuamiActivityDetailsParser parser = new HuamiActivityDetailsParser(summary);
-            parser.setSkipCounterByte(false); // is already stripped
+        if (success && trackWriter != null) {
             try {
-                ActivityTrack track = parser.parse(buffer.toByteArray());
-                ActivityTrackExporter exporter = createExporter();
-                String trackType = "track";
-                switch (summary.getActivityKind()) {
-                    case ActivityKind.TYPE_CYCLING:
-                        trackType = getContext().getString(R.string.activity_type_biking);
-                        break;
-                    case ActivityKind.TYPE_RUNNING:
-                        trackType = getContext().getString(R.string.activity_type_running);
-                        break;
-                    case ActivityKind.TYPE_WALKING:
-                        trackType = getContext().getString(R.string.activity_type_walking);
-                        break;
-                    case ActivityKind.TYPE_SWIMMING:
-                        trackType = getContext().getString(R.string.activity_type_swimming);
-                        break;
-                }
-                String fileName = FileUtils.makeValidFileName("gadgetbridge-"+trackType.toLowerCase()+"-" + DateTimeUtils.formatIso8601(summary.getStartTime()) + ".gpx");
-                File targetFile = new File(FileUtils.getExternalFilesDir(), fileName);
-
+                parser.finish();
                 try {
-                    exporter.performExport(track, targetFile);
+                    trackWriter.finish();
+                    finishExport();
 
                     try (DBHandler dbHandler = GBApplication.acquireDB()) {
                         summary.setGpxTrack(targetFile.getAbsolutePath());
@@ -127,11 +120,77 @@ public class FetchSportsDetailsOperation extends AbstractFetchOperation {
                 GB.toast(getContext(), "Error getting activity details: " + ex.getMessage(), Toast.LENGTH_LONG, GB.ERROR, ex);
             }
         }
+        closeExport();
 
         super.handleActivityFetchFinish(success);
     }
 
-    private ActivityTrackExporter createExporter() {
+    /**
+     * Opens a temporary GPX file next to the target file, so that the track is written while
+     * the details are being received, instead of buffering all of it. An existing GPX file
+     * of the same activity is only replaced once the new one is complete.
+     */
+    private void startExport() throws IOException {
+        String trackType = "track";
+        switch (summary.getActivityKind()) {
+            case ActivityKind.TYPE_CYCLING:
+                trackType = getContext().getString(R.string.activity_type_biking);
+                break;
+            case ActivityKind.TYPE_RUNNING:
+                trackType = getContext().getString(R.string.activity_type_running);
+                break;
+            case ActivityKind.TYPE_WALKING:
+                trackType = getContext().getString(R.string.activity_type_walking);
+                break;
+            case ActivityKind.TYPE_SWIMMING:
+                trackType = getContext().getString(R.string.activity_type_swimming);
+                break;
+        }
+        String fileName = FileUtils.makeValidFileName("gadgetbridge-"+trackType.toLowerCase()+"-" + DateTimeUtils.formatIso8601(summary.getStartTime()) + ".gpx");
+        targetFile = new File(FileUtils.getExternalFilesDir(), fileName);
+
+        tempFile = File.createTempFile("gadgetbridge-", ".gpx.tmp", targetFile.getParentFile());
+        outputStream = new BufferedOutputStream(new FileOutputStream(tempFile));
+        trackWriter = createExporter().startExport(parser.getActivityTrack(), outputStream);
+        parser.setActivityPointSink(trackWriter);
+    }
+
+    /**
+     * Closes the complete temporary GPX file and moves it to the target file.
+     */
+    private void finishExport() throws IOException {
+        trackWriter = null;
+        OutputStream stream = outputStream;
+        outputStream = null;
+        stream.close();
+        if (!tempFile.renameTo(targetFile)) {
+            throw new IOException("Unable to rename " + tempFile + " to " + targetFile);
+        }
+        tempFile = null;
+    }
+
+    /**
+     * Closes and deletes the incomplete temporary GPX file, if still open.
+     */
+    private void closeExport() {
+        trackWriter = null;
+        if (outputStream != null) {
+            try {
+                outputStream.close();
+            } catch (IOException ex) {
+                LOG.warn("Error closing " + tempFile, ex);
+            }
+            outputStream = null;
+        }
+        if (tempFile != null) {
+            if (!tempFile.delete()) {
+                LOG.warn("Unable to delete incomplete " + tempFile);
+            }
+            tempFile = null;
+        }
+    }
+
+    private GPXExporter createExporter() {
         GPXExporter exporter = new GPXExporter();
         exporter.setCreator(GBApplication.app().getNameAndVersion());
         return exporter;
@@ -173,13 +232,21 @@ public class FetchSportsDetailsOperation extends AbstractFetchOperation {
     }
 
     /**
-     * Buffers the given activity summary data. If the total size is reached,
-     * it is converted to an object and saved in the database.
+     * Parses the given activity details data and writes the resulting points
+     * to the GPX file.
      * @param value
      */
     @Override
     protected void bufferActivityData(byte[] value) {
-        buffer.write(value, 1, value.length - 1); // skip the counter
+        if (trackWriter == null) {
+            return;
+        }
+        try {
+            parser.consume(value, 1, value.length - 1); // skip the counter
+        } catch (IOException ex) {
+            GB.toast(getContext(), "Error getting activity details: " + ex.getMessage(), Toast.LENGTH_LONG, GB.ERROR, ex);
+            closeExport();
+        }
     }
 
     @Override
@@ -27,7 +27,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.UUID;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
@@ -36,6 +36,7 @@ import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventDisplayMes
 import nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiFWHelper;
 import nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiService;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.ChunkedUpload;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.SetDeviceBusyAction;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.SetProgressAction;
@@ -45,6 +46,7 @@ import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.HuamiFirmwareT
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.HuamiSupport;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
+import nodomain.freeyourgadget.gadgetbridge.util.TransferProgress;
 
 public class UpdateFirmwareOperation extends AbstractHuamiOperation {
     private static final Logger LOG = LoggerFactory.getLogger(UpdateFirmwareOperation.class);
@@ -231,37 +233,32 @@ public class UpdateFirmwareOperation extends AbstractHuamiOperation {
      */
     private boolean sendFirmwareData(HuamiFirmwareInfo info) {
         byte[] fwbytes = info.getBytes();
-        int len = fwbytes.length;
+        final int len = fwbytes.length;
         final int packetLength = getSupport().getMTU() - 3;
-        int packets = len / packetLength;
+        final int fullPackets = len / packetLength;
 
         try {
-            // going from 0 to len
-            int firmwareProgress = 0;
-
             TransactionBuilder builder = performInitialized("send firmware packet");
             builder.write(fwCControlChar, getFirmwareStartCommand());
 
-            for (int i = 0; i < packets; i++) {
-                byte[] fwChunk = Arrays.copyOfRange(fwbytes, i * packetLength, i * packetLength + packetLength);
-
-                builder.write(fwCDataChar, fwChunk);
-                firmwareProgress += packetLength;
+            final TransferProgress progress = TransferProgress.forInstall(getContext().getString(R.string.updatefirmwareoperation_update_in_progress), getContext());
+            ChunkedUpload upload = new ChunkedUpload(fwCDataChar, ByteBuffer.wrap(fwbytes), packetLength) {
+                @Override
+                protected void onPacketQueued(TransactionBuilder builder, int index, int packetCount) {
+                    if ((index > 0) && (index % 100 == 0) && (index < fullPackets)) {
+                        // going from 0 to len
+                        int firmwareProgress = (index + 1) * packetLength;
+                        builder.write(fwCControlChar, new byte[]{HuamiService.COMMAND_FIRMWARE_UPDATE_SYNC});
+                        builder.add(new SetProgressAction(progress, firmwareProgress, len));
+                    }
+                }
 
-                int progressPercent = (int) ((((float) firmwareProgress) / len) * 100);
-                if ((i > 0) && (i % 100 == 0)) {
+                @Override
+                protected void onUploadQueued(TransactionBuilder builder) {
                     builder.write(fwCControlChar, new byte[]{HuamiService.COMMAND_FIRMWARE_UPDATE_SYNC});
-                    builder.add(new SetProgressAction(getContext().getString(R.string.updatefirmwareoperation_update_in_progress), true, progressPercent, getContext()));
                 }
-            }
-
-            if (firmwareProgress < len) {
-                byte[] lastChunk = Arrays.copyOfRange(fwbytes, packets * packetLength, len);
-                builder.write(fwCDataChar, lastChunk);
-            }
-
-            builder.write(fwCControlChar, new byte[]{HuamiService.COMMAND_FIRMWARE_UPDATE_SYNC});
-            builder.queue(getQueue());
+            };
+            upload.queue(builder, getQueue());
 
         } catch (IOException ex) {
             LOG.error("Unable to send fw to device", ex);
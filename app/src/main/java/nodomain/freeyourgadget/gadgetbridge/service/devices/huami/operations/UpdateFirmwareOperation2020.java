@@ -23,11 +23,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiService;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.ChunkedUpload;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.SetDeviceBusyAction;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.SetProgressAction;
@@ -35,6 +36,7 @@ import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.HuamiFirmwareI
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.HuamiFirmwareType;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.HuamiSupport;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
+import nodomain.freeyourgadget.gadgetbridge.util.TransferProgress;
 
 public class UpdateFirmwareOperation2020 extends UpdateFirmwareOperation {
     private static final Logger LOG = LoggerFactory.getLogger(UpdateFirmwareOperation2020.class);
@@ -51,6 +53,7 @@ public class UpdateFirmwareOperation2020 extends UpdateFirmwareOperation {
     private final byte COMMAND_FINALIZE_UPDATE = (byte) 0xd6;
 
     private int mChunkLength = -1;
+    private TransferProgress mProgress;
 
     @Override
     protected void doPerform() throws IOException {
@@ -197,7 +200,7 @@ public class UpdateFirmwareOperation2020 extends UpdateFirmwareOperation {
 
     private boolean sendFirmwareDataChunk(HuamiFirmwareInfo info, int offset) {
         byte[] fwbytes = info.getBytes();
-        int len = fwbytes.length;
+        final int len = fwbytes.length;
         int remaining = len - offset;
         final int packetLength = getSupport().getMTU() - 3;
 
@@ -206,9 +209,6 @@ public class UpdateFirmwareOperation2020 extends UpdateFirmwareOperation {
             chunkLength = remaining;
         }
 
-        int packets = chunkLength / packetLength;
-        int chunkProgress = 0;
-
         try {
             if (remaining <= 0) {
                 sendTransferComplete();
@@ -217,23 +217,18 @@ public class UpdateFirmwareOperation2020 extends UpdateFirmwareOperation {
 
             TransactionBuilder builder = performInitialized("send firmware packets");
 
-            for (int i = 0; i < packets; i++) {
-                byte[] fwChunk = Arrays.copyOfRange(fwbytes, offset + i * packetLength, offset + i * packetLength + packetLength);
-
-                builder.write(fwCDataChar, fwChunk);
-                chunkProgress += packetLength;
+            if (mProgress == null) {
+                mProgress = TransferProgress.forInstall(getContext().getString(R.string.updatefirmwareoperation_update_in_progress), getContext());
             }
-
-            if (chunkProgress < chunkLength) {
-                byte[] lastChunk = Arrays.copyOfRange(fwbytes, offset + packets * packetLength, offset + packets * packetLength + (chunkLength - chunkProgress));
-                builder.write(fwCDataChar, lastChunk);
-            }
-
-            int progressPercent = (int) ((((float) (offset + chunkLength)) / len) * 100);
-
-            builder.add(new SetProgressAction(getContext().getString(R.string.updatefirmwareoperation_update_in_progress), true, progressPercent, getContext()));
-
-            builder.queue(getQueue());
+            final int firmwareProgress = offset + chunkLength;
+            ChunkedUpload upload = new ChunkedUpload(fwCDataChar, ByteBuffer.wrap(fwbytes, offset, chunkLength), 0, packetLength, Integer.MAX_VALUE) {
+                @Override
+                protected void onUploadQueued(TransactionBuilder builder) {
+                    builder.add(new SetProgressAction(mProgress, firmwareProgress, len));
+                }
+            };
+            // the band requests each chunk when it is done with the previous one
+            upload.queue(builder, getQueue());
 
         } catch (IOException ex) {
             LOG.error("Unable to send fw to device", ex);
@@ -48,6 +48,7 @@ import nodomain.freeyourgadget.gadgetbridge.service.devices.miband.MiBandSupport
 import nodomain.freeyourgadget.gadgetbridge.util.DateTimeUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
+import nodomain.freeyourgadget.gadgetbridge.util.TransferProgress;
 
 
 /**
@@ -63,13 +64,13 @@ public class FetchActivityOperation extends AbstractMiBand1Operation {
     //private ScheduledFuture scheduledTask;
 
     private final int activityMetadataLength = 11;
+    private TransferProgress transferProgress;
 
     private final boolean hasExtendedActivityData;
     private final boolean hasPacketCounter;
 
     private class ActivityStruct {
         private int maxDataPacketLength;
-        private int lastNotifiedProgress;
         private final byte[] activityDataHolder;
         private final int activityDataHolderSize;
         //index of the buffer above
@@ -145,7 +146,6 @@ public class FetchActivityOperation extends AbstractMiBand1Operation {
         void bufferFlushed(int minutes) {
             activityDataTimestampProgress.add(Calendar.MINUTE, minutes);
             activityDataHolderProgress = 0;
-            lastNotifiedProgress = 0;
         }
     }
 
@@ -236,11 +236,8 @@ public class FetchActivityOperation extends AbstractMiBand1Operation {
             LOG.debug("activity data: length: " + value.length + ", remaining bytes: " + activityStruct.activityDataRemainingBytes);
         }
 
-        int progress = (int) (((float) (activityStruct.activityDataUntilNextHeader - activityStruct.activityDataRemainingBytes)) / activityStruct.activityDataUntilNextHeader * 100);
-        // avoid too many notifications overloading the system
-        if (progress - activityStruct.lastNotifiedProgress >= 8) {
-            activityStruct.lastNotifiedProgress = progress;
-            GB.updateTransferNotification(null, getContext().getString(R.string.busy_task_fetch_activity_data), true, progress, getContext());
+        if (transferProgress != null) {
+            transferProgress.update(activityStruct.activityDataUntilNextHeader - activityStruct.activityDataRemainingBytes, activityStruct.activityDataUntilNextHeader);
         }
 
         if (activityStruct.isBlockFinished()) {
@@ -285,6 +282,7 @@ public class FetchActivityOperation extends AbstractMiBand1Operation {
         LOG.info("TIMESTAMP: " + DateFormat.getDateTimeInstance().format(timestamp.getTime()) + " magic byte: " + dataUntilNextHeader);
 
         activityStruct.startNewBlock(timestamp, dataUntilNextHeader);
+        transferProgress = TransferProgress.forTransfer(null, getContext().getString(R.string.busy_task_fetch_activity_data), getContext());
     }
 
     private int getBytesPerMinuteOfActivityData() {
@@ -46,6 +46,7 @@ import nodomain.freeyourgadget.gadgetbridge.service.serial.GBDeviceProtocol;
 import nodomain.freeyourgadget.gadgetbridge.util.CheckSums;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
+import nodomain.freeyourgadget.gadgetbridge.util.TransferProgress;
 
 public class UpdateFirmwareOperation extends AbstractMiBand1Operation {
     private static final Logger LOG = LoggerFactory.getLogger(UpdateFirmwareOperation.class);
@@ -313,16 +314,16 @@ public class UpdateFirmwareOperation extends AbstractMiBand1Operation {
             if (GBApplication.getDeviceSpecificSharedPrefs(getDevice().getAddress()).getBoolean("low_latency_fw_update", true)) {
                 getSupport().setLowLatency(builder);
             }
+            TransferProgress progress = TransferProgress.forInstall(getContext().getString(R.string.updatefirmwareoperation_update_in_progress), getContext());
             for (int i = 0; i < packets; i++) {
                 byte[] fwChunk = Arrays.copyOfRange(fwbytes, i * packetLength, i * packetLength + packetLength);
 
                 builder.write(characteristicFWData, fwChunk);
                 firmwareProgress += packetLength;
 
-                int progressPercent = (int) ((((float) firmwareProgress) / len) * 100);
                 if ((i > 0) && (i % 50 == 0)) {
                     builder.write(characteristicControlPoint, new byte[]{MiBandService.COMMAND_SYNC});
-                    builder.add(new SetProgressAction(getContext().getString(R.string.updatefirmwareoperation_update_in_progress), true, progressPercent, getContext()));
+                    builder.add(new SetProgressAction(progress, firmwareProgress, len));
                 }
             }
 
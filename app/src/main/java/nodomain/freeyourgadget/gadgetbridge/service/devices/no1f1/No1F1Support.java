@@ -617,8 +617,8 @@ public class No1F1Support extends AbstractBTLEDeviceSupport {
                             else
                                 samples.get(i).setRawKind(ActivityKind.TYPE_LIGHT_SLEEP);
                         }
-                        provider.addGBActivitySample(samples.get(i));
                     }
+                    provider.addGBActivitySamples(samples);
                     LOG.info("Activity data saved");
                     if (data[0] == No1F1Constants.CMD_FETCH_STEPS) {
                         sendFetchCommand(No1F1Constants.CMD_FETCH_SLEEP);
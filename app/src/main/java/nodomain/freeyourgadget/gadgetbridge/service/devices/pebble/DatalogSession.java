@@ -22,8 +22,10 @@ import org.slf4j.LoggerFactory;
 import java.nio.ByteBuffer;
 import java.util.UUID;
 
+import nodomain.freeyourgadget.gadgetbridge.TrafficCapture;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEvent;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.pebble.GBDeviceEventDataLogging;
+import nodomain.freeyourgadget.gadgetbridge.util.GB;
 
 class DatalogSession {
     private static final Logger LOG = LoggerFactory.getLogger(DatalogSession.class);
@@ -49,6 +51,13 @@ class DatalogSession {
         return new GBDeviceEvent[]{null};
     }
 
+    void logMessage(ByteBuffer buf, int length) {
+        // the whole message is in the traffic capture if it is active
+        if (!TrafficCapture.isActive()) {
+            LOG.info("DATALOG " + taginfo + GB.hexdump(buf.array(), buf.position(), length));
+        }
+    }
+
     String getTaginfo() {
         return taginfo;
     }
@@ -48,6 +48,7 @@ import java.util.UUID;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.R;
+import nodomain.freeyourgadget.gadgetbridge.TrafficCapture;
 import nodomain.freeyourgadget.gadgetbridge.activities.ExternalPebbleJSActivity;
 import nodomain.freeyourgadget.gadgetbridge.activities.appmanager.AbstractAppManagerFragment;
 import nodomain.freeyourgadget.gadgetbridge.activities.appmanager.AppManagerActivity;
@@ -67,11 +68,16 @@ import nodomain.freeyourgadget.gadgetbridge.service.serial.GBDeviceProtocol;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 import nodomain.freeyourgadget.gadgetbridge.util.PebbleUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
+import nodomain.freeyourgadget.gadgetbridge.util.TransferProgress;
 import nodomain.freeyourgadget.gadgetbridge.util.WebViewSingleton;
 
 class PebbleIoThread extends GBDeviceIoThread {
     private static final Logger LOG = LoggerFactory.getLogger(PebbleIoThread.class);
 
+    // packets sent over bluetooth before waiting for an answer by default, and how long to wait
+    private static final int DEFAULT_SEND_WINDOW = 4;
+    private static final int SEND_PACE_MILLIS = 100;
+
     private final Prefs prefs = GBApplication.getPrefs();
 
     private final PebbleProtocol mPebbleProtocol;
@@ -86,6 +92,7 @@ class PebbleIoThread extends GBDeviceIoThread {
     private Socket mTCPSocket = null; // for emulator
     private InputStream mInStream = null;
     private OutputStream mOutStream = null;
+    private PebbleSendPipeline mSendPipeline = null;
     private PebbleLESupport mPebbleLESupport;
 
     private boolean mQuit = false;
@@ -103,6 +110,7 @@ class PebbleIoThread extends GBDeviceIoThread {
     private int mCRC = -1;
     private int mBinarySize = -1;
     private int mBytesWritten = -1;
+    private TransferProgress mInstallProgress = null;
 
     private void sendAppMessageJS(GBDeviceEventAppMessage appMessage) {
         sendAppMessage(appMessage);
@@ -177,6 +185,7 @@ class PebbleIoThread extends GBDeviceIoThread {
                 mIsTCP = true;
                 InetAddress serverAddr = InetAddress.getByName(deviceAddress.substring(0, firstColon));
                 mTCPSocket = new Socket(serverAddr, Integer.parseInt(deviceAddress.substring(firstColon + 1)));
+                mTCPSocket.setTcpNoDelay(true); // packets are batched by the send pipeline
                 mInStream = mTCPSocket.getInputStream();
                 mOutStream = mTCPSocket.getOutputStream();
             } else {
@@ -230,6 +239,11 @@ class PebbleIoThread extends GBDeviceIoThread {
 
         mPebbleProtocol.setForceProtocol(prefs.getBoolean("pebble_force_protocol", false));
 
+        // the emulator is flow controlled by TCP, no need to pace the packets
+        int sendWindow = mIsTCP ? 0 : Math.max(0, prefs.getInt("pebble_send_window", DEFAULT_SEND_WINDOW));
+        mSendPipeline = new PebbleSendPipeline(mOutStream, mIsTCP, sendWindow, SEND_PACE_MILLIS);
+        mSendPipeline.start();
+
         mIsConnected = true;
         write(mPebbleProtocol.encodeFirmwareVersionReq());
         gbDevice.setState(GBDevice.State.CONNECTED);
@@ -271,6 +285,8 @@ class PebbleIoThread extends GBDeviceIoThread {
                             mCRC = pi.getCRC();
                             mBinarySize = pi.getFileSize();
                             mBytesWritten = 0;
+                            mInstallProgress = TransferProgress.forInstall(getContext().getString(
+                                    R.string.installing_binary_d_d, (mCurrentInstallableIndex + 1), mPebbleInstallables.length), getContext());
                             writeInstallApp(mPebbleProtocol.encodeUploadStart(pi.getType(), mInstallSlot, mBinarySize, mPBWReader.isLanguage() ? "lang" : null));
                             mAppInstallToken = -1;
                             mInstallState = PebbleAppInstallState.WAIT_TOKEN;
@@ -291,8 +307,7 @@ class PebbleIoThread extends GBDeviceIoThread {
                             } while (bytes < 2000);
 
                             if (bytes > 0) {
-                                GB.updateInstallNotification(getContext().getString(
-                                        R.string.installing_binary_d_d, (mCurrentInstallableIndex + 1), mPebbleInstallables.length), true, (int) (((float) mBytesWritten / mBinarySize) * 100), getContext());
+                                mInstallProgress.update(mBytesWritten, mBinarySize);
                                 writeInstallApp(mPebbleProtocol.encodeUploadChunk(mAppInstallToken, buffer, bytes));
                                 mBytesWritten += bytes;
                                 mAppInstallToken = -1;
@@ -366,6 +381,9 @@ class PebbleIoThread extends GBDeviceIoThread {
                     mInStream.skip(2);
                 }
 
+                mSendPipeline.onPacketReceived();
+                TrafficCapture.captureReceived(TrafficCapture.ATT_HANDLE_VALUE_NOTIFICATION, endpoint & 0xffff, buffer, 0, length + 4);
+
                 GBDeviceEvent[] deviceEvents = mPebbleProtocol.decodeResponse(buffer);
                 if (deviceEvents == null) {
                     LOG.info("unhandled message to endpoint " + endpoint + " (" + length + " bytes)");
@@ -379,11 +397,6 @@ class PebbleIoThread extends GBDeviceIoThread {
                         }
                     }
                 }
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
             } catch (IOException e) {
                 if (e.getMessage() != null && (e.getMessage().equals("broken pipe") || e.getMessage().contains("socket closed"))) { //FIXME: this does not feel right
                     LOG.info(e.getMessage());
@@ -395,6 +408,9 @@ class PebbleIoThread extends GBDeviceIoThread {
             }
         }
         mIsConnected = false;
+        if (mSendPipeline != null) {
+            mSendPipeline.close();
+        }
         if (mBtSocket != null) {
             try {
                 mBtSocket.close();
@@ -432,27 +448,12 @@ class PebbleIoThread extends GBDeviceIoThread {
 
 
     private void write_real(byte[] bytes) {
-        try {
-            if (mIsTCP) {
-                ByteBuffer buf = ByteBuffer.allocate(bytes.length + 8);
-                buf.order(ByteOrder.BIG_ENDIAN);
-                buf.putShort((short) 0xfeed);
-                buf.putShort((short) 1);
-                buf.putShort((short) bytes.length);
-                buf.put(bytes);
-                buf.putShort((short) 0xbeef);
-                mOutStream.write(buf.array());
-                mOutStream.flush();
-            } else {
-                mOutStream.write(bytes);
-                mOutStream.flush();
-            }
-        } catch (IOException e) {
-            LOG.error("Error writing.", e);
+        if (bytes.length >= 4) {
+            int endpoint = ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+            TrafficCapture.captureSent(TrafficCapture.ATT_WRITE_COMMAND, endpoint, bytes);
         }
-        try {
-            Thread.sleep(100);
-        } catch (InterruptedException ignored) {
+        if (mSendPipeline == null || !mSendPipeline.send(bytes)) {
+            LOG.warn("Not connected, dropping " + bytes.length + " bytes");
         }
     }
 
@@ -728,6 +729,9 @@ class PebbleIoThread extends GBDeviceIoThread {
     @Override
     public void quit() {
         mQuit = true;
+        if (mSendPipeline != null) {
+            mSendPipeline.close();
+        }
         if (mBtSocket != null) {
             try {
                 mBtSocket.close();
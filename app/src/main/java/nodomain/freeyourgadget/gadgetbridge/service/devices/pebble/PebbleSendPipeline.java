@@ -0,0 +1,179 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.pebble;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends Pebble protocol packets from a dedicated thread.
+ * <p>
+ * Instead of sleeping a fixed time after every packet, at most <code>window</code> packets
+ * are sent before waiting for the watch to answer. Every packet received from the watch
+ * (responses, upload tokens, ...) opens the window again. Many messages never get an
+ * answer, so after <code>paceMillis</code> without one the window advances by one packet
+ * anyway. A window of 0 disables pacing altogether.
+ * <p>
+ * Packets are written into a buffer which is only flushed once the queue is drained or
+ * the window is full, so bursts of small packets end up in few writes to the socket.
+ */
+class PebbleSendPipeline {
+    private static final Logger LOG = LoggerFactory.getLogger(PebbleSendPipeline.class);
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+    private final OutputStream out;
+    private final boolean tcpFraming;
+    private final int window;
+    private final int paceMillis;
+    private final Thread thread;
+
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong paceTimeouts = new AtomicLong();
+
+    private int inFlight = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * @param out        the stream to the watch
+     * @param tcpFraming true to wrap the packets for the emulator (QEMU) protocol
+     * @param window     number of packets that may be sent without an answer, 0 for unlimited
+     * @param paceMillis time to wait for an answer before advancing a full window by one packet
+     */
+    PebbleSendPipeline(OutputStream out, boolean tcpFraming, int window, int paceMillis) {
+        this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+        this.tcpFraming = tcpFraming;
+        this.window = window;
+        this.paceMillis = paceMillis;
+        thread = new Thread("Pebble send pipeline") {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        };
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Queues a packet for sending.
+     *
+     * @return false if the pipeline has been closed already
+     */
+    boolean send(byte[] packet) {
+        if (closed) {
+            return false;
+        }
+        return queue.offer(packet);
+    }
+
+    /**
+     * To be called for every packet received from the watch, acknowledges all
+     * packets sent so far.
+     */
+    synchronized void onPacketReceived() {
+        inFlight = 0;
+        notifyAll();
+    }
+
+    /**
+     * Stops the sending thread. Packets that have not been sent yet are dropped.
+     */
+    void close() {
+        closed = true;
+        thread.interrupt();
+        int dropped = queue.size();
+        queue.clear();
+        if (dropped > 0) {
+            LOG.info("Dropped " + dropped + " unsent packets");
+        }
+    }
+
+    boolean isIdle() {
+        return queue.isEmpty();
+    }
+
+    long getPacketsSent() {
+        return packetsSent.get();
+    }
+
+    long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    long getPaceTimeouts() {
+        return paceTimeouts.get();
+    }
+
+    private void sendLoop() {
+        try {
+            while (!closed) {
+                byte[] packet = queue.take();
+                awaitWindow();
+                try {
+                    writePacket(packet);
+                    // the watch can only answer what it has received
+                    if (queue.isEmpty() || isWindowFull()) {
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    LOG.error("Error writing.", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            if (!closed) {
+                LOG.warn("Send pipeline interrupted", e);
+            }
+        }
+    }
+
+    private synchronized boolean isWindowFull() {
+        return window > 0 && inFlight >= window;
+    }
+
+    private synchronized void awaitWindow() throws InterruptedException {
+        if (window <= 0) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + paceMillis;
+        while (inFlight >= window) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                // no answer in time, most likely a message that is never answered
+                paceTimeouts.incrementAndGet();
+                inFlight--;
+                break;
+            }
+            wait(remaining);
+        }
+        inFlight++;
+    }
+
+    private void writePacket(byte[] packet) throws IOException {
+        if (tcpFraming) {
+            writeShort(0xfeed);
+            writeShort(1);
+            writeShort(packet.length);
+            out.write(packet);
+            writeShort(0xbeef);
+        } else {
+            out.write(packet);
+        }
+        packetsSent.incrementAndGet();
+        bytesSent.addAndGet(packet.length);
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write((value >> 8) & 0xff);
+        out.write(value & 0xff);
+    }
+}
@@ -40,12 +40,8 @@ import java.util.TimeZone;
 import java.util.UUID;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
-import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
-import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
-import nodomain.freeyourgadget.gadgetbridge.devices.qhybrid.HybridHRActivitySampleProvider;
 import nodomain.freeyourgadget.gadgetbridge.devices.qhybrid.NotificationConfiguration;
 import nodomain.freeyourgadget.gadgetbridge.devices.qhybrid.PackageConfigHelper;
-import nodomain.freeyourgadget.gadgetbridge.entities.HybridHRActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.Alarm;
 import nodomain.freeyourgadget.gadgetbridge.model.GenericItem;
@@ -55,8 +51,7 @@ import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.adapter.Watc
 import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.buttonconfig.ConfigFileBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.buttonconfig.ConfigPayload;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.file.FileHandle;
-import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.parser.ActivityEntry;
-import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.parser.ActivityFileParser;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.parser.ActivityFileImporter;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.requests.Request;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.requests.fossil.FossilRequest;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.requests.fossil.RequestMtuRequest;
@@ -89,6 +84,11 @@ import static nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.QHybr
 import static nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.QHybridSupport.QHYBRID_EVENT_MULTI_BUTTON_PRESS;
 
 public class FossilWatchAdapter extends WatchAdapter {
+    /**
+     * How many packets of a file upload may be written without waiting for their callbacks.
+     */
+    public static final int FILE_UPLOAD_WRITE_WINDOW = 4;
+
     private ArrayList<Request> requestQueue = new ArrayList<>();
 
     private FossilRequest fossilRequest;
@@ -478,22 +478,23 @@ public class FossilWatchAdapter extends WatchAdapter {
     @Override
     public void onFetchActivityData() {
         queueWrite(new FileLookupAndGetRequest(FileHandle.ACTIVITY_FILE, this) {
-            @Override
-            public void handleFileData(byte[] fileData) {
-                try (DBHandler dbHandler = GBApplication.acquireDB()) {
-                    ActivityFileParser parser = new ActivityFileParser();
-                    ArrayList<ActivityEntry> entries = parser.parseFile(fileData);
-                    HybridHRActivitySampleProvider provider = new HybridHRActivitySampleProvider(getDeviceSupport().getDevice(), dbHandler.getDaoSession());
+            private final ActivityFileImporter importer = new ActivityFileImporter(getDeviceSupport());
 
-                    HybridHRActivitySample[] samples = new HybridHRActivitySample[entries.size()];
+            @Override
+            protected void handleFileChunk(byte[] data, int offset, int length) {
+                importer.consume(data, offset, length);
+            }
 
-                    Long userId = DBHelper.getUser(dbHandler.getDaoSession()).getId();
-                    Long deviceId = DBHelper.getDevice(getDeviceSupport().getDevice(), dbHandler.getDaoSession()).getId();
-                    for (int i = 0; i < entries.size(); i++) {
-                        samples[i] = entries.get(i).toDAOActivitySample(userId, deviceId);
-                    }
+            @Override
+            protected boolean keepsFileData() {
+                // the samples are parsed while the file is received
+                return false;
+            }
 
-                    provider.addGBActivitySamples(samples);
+            @Override
+            public void handleFileData(byte[] fileData) {
+                try {
+                    importer.finish();
 
                     queueWrite(new FileDeleteRequest(getHandle()));
                     GB.toast("synced activity data", Toast.LENGTH_SHORT, GB.INFO);
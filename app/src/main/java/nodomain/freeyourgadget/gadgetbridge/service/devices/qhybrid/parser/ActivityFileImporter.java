@@ -0,0 +1,87 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.parser;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.AbstractSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.qhybrid.HybridHRActivitySampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.HybridHRActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.service.ActivitySampleIngest;
+import nodomain.freeyourgadget.gadgetbridge.service.DeviceSupport;
+
+/**
+ * Parses an activity file while it is received, and stores its samples once the whole file
+ * was received and its CRC matches.
+ *
+ * Until then, the samples are kept in memory, so that nothing is stored for a file that is
+ * interrupted or fails the CRC check. The file is only deleted from the watch after a
+ * successful import, so it is downloaded again on the next sync.
+ */
+public class ActivityFileImporter implements ActivityFileParser.ActivityEntryListener {
+    private static final Logger LOG = LoggerFactory.getLogger(ActivityFileImporter.class);
+
+    /**
+     * The most samples kept for a single file, about two months of minutes.
+     */
+    static final int MAX_SAMPLES = 100000;
+
+    private final ActivitySampleIngest<HybridHRActivitySample> ingest;
+    private final ActivityFileParser parser = new ActivityFileParser(this);
+    private final List<HybridHRActivitySample> samples = new ArrayList<>();
+    private Exception error;
+
+    public ActivityFileImporter(DeviceSupport support) {
+        ingest = new ActivitySampleIngest<HybridHRActivitySample>(support) {
+            @Override
+            protected AbstractSampleProvider<HybridHRActivitySample> createProvider(GBDevice device, DaoSession session) {
+                return new HybridHRActivitySampleProvider(device, session);
+            }
+        };
+    }
+
+    /**
+     * Parses the next part of the file. Errors are reported by {@link #finish()}.
+     */
+    public void consume(byte[] data, int offset, int length) {
+        if (error != null) {
+            return;
+        }
+        try {
+            parser.consume(data, offset, length);
+        } catch (Exception e) {
+            LOG.error("Error importing activity file", e);
+            error = e;
+        }
+    }
+
+    @Override
+    public void onActivityEntry(ActivityEntry entry) {
+        if (samples.size() >= MAX_SAMPLES) {
+            throw new IllegalStateException("Activity file contains more than " + MAX_SAMPLES + " samples");
+        }
+        // the ids are set by the ingest
+        samples.add(entry.toDAOActivitySample(0, 0));
+    }
+
+    /**
+     * Parses the rest of the file and stores all of its samples in a single transaction.
+     * Must only be called after the file was received completely and its CRC matches.
+     *
+     * @return the number of samples stored
+     */
+    public int finish() throws Exception {
+        if (error != null) {
+            throw error;
+        }
+        parser.finish();
+        ingest.addAll(samples);
+        ingest.flush();
+        LOG.info("Imported " + samples.size() + " activity samples");
+        return samples.size();
+    }
+}
@@ -16,11 +16,32 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.parser;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 
+/**
+ * Parses an activity file, either at once with {@link #parseFile(byte[])} or while it is
+ * received with {@link #consume(byte[], int, int)} and {@link #finish()}. Each entry is passed
+ * to the listener as soon as it is complete, and only an incomplete record is kept in
+ * between, so that files of any size are parsed in constant memory.
+ */
 public class ActivityFileParser {
+    private static final Logger LOG = LoggerFactory.getLogger(ActivityFileParser.class);
+
+    private static final int HEADER_LENGTH = 20;
+    // the file ends with a CRC
+    private static final int TRAILER_LENGTH = 4;
+
+    public interface ActivityEntryListener {
+        void onActivityEntry(ActivityEntry entry);
+    }
+
+    private ActivityEntryListener listener;
+
     // state flags;
     int heartRateQuality;
     ActivityEntry.WEARING_STATE wearingState = ActivityEntry.WEARING_STATE.WEARING;
@@ -28,10 +49,93 @@ public class ActivityFileParser {
     ActivityEntry currentSample = null;
     int currentId = 1;
 
+    // the data that could not be parsed yet
+    private byte[] pending = new byte[64];
+    private int pendingLength;
+    private boolean headerParsed;
+    private boolean finished;
+
+    public ActivityFileParser() {
+    }
+
+    public ActivityFileParser(ActivityEntryListener listener) {
+        this.listener = listener;
+    }
+
     public ArrayList<ActivityEntry> parseFile(byte[] file) {
-        ByteBuffer buffer = ByteBuffer.wrap(file);
+        final ArrayList<ActivityEntry> samples = new ArrayList<>();
+        listener = new ActivityEntryListener() {
+            @Override
+            public void onActivityEntry(ActivityEntry entry) {
+                samples.add(entry);
+            }
+        };
+        consume(file, 0, file.length);
+        finish();
+        return samples;
+    }
+
+    /**
+     * Parses the next part of the file. The data is not used after the call.
+     */
+    public void consume(byte[] data, int offset, int length) {
+        if (finished) {
+            throw new IllegalStateException("parser already finished");
+        }
+        if (pendingLength + length > pending.length) {
+            byte[] grown = new byte[Math.max(pending.length * 2, pendingLength + length)];
+            System.arraycopy(pending, 0, grown, 0, pendingLength);
+            pending = grown;
+        }
+        System.arraycopy(data, offset, pending, pendingLength, length);
+        pendingLength += length;
+        parsePending(false);
+    }
+
+    /**
+     * Parses the rest of the file, which must have been passed completely.
+     */
+    public void finish() {
+        if (finished) {
+            return;
+        }
+        parsePending(true);
+        if (pendingLength > TRAILER_LENGTH) {
+            LOG.warn("ignoring incomplete record of " + (pendingLength - TRAILER_LENGTH) + " bytes at the end of the file");
+        }
+        finished = true;
+        pending = null;
+    }
+
+    private void parsePending(boolean complete) {
+        ByteBuffer buffer = ByteBuffer.wrap(pending, 0, pendingLength);
         buffer.order(ByteOrder.LITTLE_ENDIAN);
 
+        if (!headerParsed) {
+            if (pendingLength < HEADER_LENGTH) {
+                if (complete) {
+                    throw new RuntimeException("File too short: " + pendingLength + " bytes");
+                }
+                return;
+            }
+            parseHeader(buffer);
+            buffer.position(HEADER_LENGTH);
+        }
+
+        // the last bytes of the file are the CRC, unless more data follows
+        while (buffer.position() < pendingLength - TRAILER_LENGTH) {
+            int recordLength = getRecordLength(buffer);
+            if (recordLength < 0 || buffer.position() + recordLength > pendingLength) {
+                break;
+            }
+            parseRecord(buffer);
+        }
+
+        pendingLength -= buffer.position();
+        System.arraycopy(pending, buffer.position(), pending, 0, pendingLength);
+    }
+
+    private void parseHeader(ByteBuffer buffer) {
         // read file version
         short version = buffer.getShort(2);
         if (version != 22) throw new RuntimeException("File version " + version + ", 16 required");
@@ -41,34 +145,67 @@ public class ActivityFileParser {
 
         short fileId = buffer.getShort(16);
 
-        buffer.position(20);
+        headerParsed = true;
+        finishCurrentPacket();
+    }
 
-        ArrayList<ActivityEntry> samples = new ArrayList<>();
-        finishCurrentPacket(samples);
+    /**
+     * Returns the length of the record at the current position, or -1 if not enough data
+     * is available to tell.
+     */
+    private int getRecordLength(ByteBuffer buffer) {
+        int position = buffer.position();
+        switch (buffer.get(position)) {
+            case (byte) 0xCA:
+            case (byte) 0xCB:
+            case (byte) 0xCC:
+            case (byte) 0xCD:
+            case (byte) 0xCE:
+            case (byte) 0xCF:
+            case (byte) 0xDE:
+            case (byte) 0xDF:
+            case (byte) 0xE1:
+            case (byte) 0xDD:
+            case (byte) 0xFD:
+            case (byte) 0xFE:
+                return 2;
+            case (byte) 0xE2:
+                if (position + 1 >= buffer.limit()) {
+                    return -1;
+                }
+                byte type = buffer.get(position + 1);
+                if (type == 0x04) {
+                    return 10;
+                } else if (type == 0x09) {
+                    return 4;
+                }
+                return 2;
+            default:
+                return 4;
+        }
+    }
 
-        while (buffer.position() < buffer.capacity() - 4) {
-            byte next = buffer.get();
+    private void parseRecord(ByteBuffer buffer) {
+        byte next = buffer.get();
 
-            if (paraseFlag(next, buffer, samples)) continue;
+        if (paraseFlag(next, buffer)) return;
 
-            if(currentSample != null) {
-                parseVariabilityBytes(next, buffer.get());
+        if(currentSample != null) {
+            parseVariabilityBytes(next, buffer.get());
 
-                int heartRate = buffer.get() & 0xFF;
-                int calories = buffer.get() & 0xFF;
-                boolean isActive = (calories & 0x40) == 0x40; // upper two bits
-                calories &= 0x3F; // delete upper two bits
+            int heartRate = buffer.get() & 0xFF;
+            int calories = buffer.get() & 0xFF;
+            boolean isActive = (calories & 0x40) == 0x40; // upper two bits
+            calories &= 0x3F; // delete upper two bits
 
-                currentSample.heartRate = heartRate;
-                currentSample.calories = calories;
-                currentSample.isActive = isActive;
-                finishCurrentPacket(samples);
-            }
+            currentSample.heartRate = heartRate;
+            currentSample.calories = calories;
+            currentSample.isActive = isActive;
+            finishCurrentPacket();
         }
-        return samples;
     }
 
-    private boolean paraseFlag(byte flag, ByteBuffer buffer, ArrayList<ActivityEntry> samples) {
+    private boolean paraseFlag(byte flag, ByteBuffer buffer) {
         switch (flag) {
             case (byte) 0xCA:
             case (byte) 0xCB:
@@ -141,13 +278,13 @@ public class ActivityFileParser {
         }
     }
 
-    private void finishCurrentPacket(ArrayList<ActivityEntry> samples) {
+    private void finishCurrentPacket() {
         if (currentSample != null) {
             currentSample.timestamp = currentTimestamp;
             currentSample.heartRateQuality = this.heartRateQuality;
             currentSample.wearingState = wearingState;
             currentTimestamp += 60;
-            samples.add(currentSample);
+            listener.onActivityEntry(currentSample);
             currentSample = null;
         }
         this.currentSample = new ActivityEntry();
@@ -36,6 +36,8 @@ public abstract class FileGetRawRequest extends FossilRequest {
 
     private byte[] fileData;
 
+    private CRC32 crc;
+
     private boolean finished = false;
 
     public FileGetRawRequest(short handle, FossilWatchAdapter adapter) {
@@ -86,7 +88,10 @@ public abstract class FileGetRawRequest extends FossilRequest {
                     throw new RuntimeException("handle: " + handle + "   expected: " + this.handle);
                 }
                 log("file size: " + size);
-                fileBuffer = ByteBuffer.allocate(size);
+                if (keepsFileData()) {
+                    fileBuffer = ByteBuffer.allocate(size);
+                }
+                crc = new CRC32();
             }else if((first & 0x0F) == 8){
                 this.finished = true;
 
@@ -98,9 +103,6 @@ public abstract class FileGetRawRequest extends FossilRequest {
                     throw new RuntimeException("handle: " + handle + "   expected: " + this.handle);
                 }
 
-                CRC32 crc = new CRC32();
-                crc.update(this.fileData);
-
                 int crcExpected = buffer.getInt(8);
 
                 if((int) crc.getValue() != crcExpected){
@@ -110,10 +112,14 @@ public abstract class FileGetRawRequest extends FossilRequest {
                 this.handleFileRawData(this.fileData);
             }
         }else if(characteristic.getUuid().toString().equals("3dda0004-957f-7d4a-34a6-74696673696d")){
-            fileBuffer.put(value, 1, value.length - 1);
-            if((first & 0x80) == 0x80){
-                this.fileData = fileBuffer.array();
+            crc.update(value, 1, value.length - 1);
+            if (fileBuffer != null) {
+                fileBuffer.put(value, 1, value.length - 1);
+                if((first & 0x80) == 0x80){
+                    this.fileData = fileBuffer.array();
+                }
             }
+            handleFileChunk(value, 1, value.length - 1);
         }
     }
 
@@ -132,5 +138,25 @@ public abstract class FileGetRawRequest extends FossilRequest {
         return 11;
     }
 
+    /**
+     * Called with each part of the file as soon as it was received, before the CRC of the
+     * whole file is checked. The data is only valid during the call.
+     */
+    protected void handleFileChunk(byte[] data, int offset, int length) {
+    }
+
+    /**
+     * Returns whether the whole file is kept in memory and passed to {@link #handleFileRawData(byte[])},
+     * which is unnecessary if it is processed in {@link #handleFileChunk(byte[], int, int)}.
+     */
+    protected boolean keepsFileData() {
+        return true;
+    }
+
+    /**
+     * Called when the file was received completely and its CRC matches.
+     *
+     * @param fileData the file, or null if {@link #keepsFileData()} returned false
+     */
     abstract public void handleFileRawData(byte[] fileData);
 }
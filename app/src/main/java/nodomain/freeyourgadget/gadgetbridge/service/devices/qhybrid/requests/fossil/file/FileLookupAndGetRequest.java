@@ -31,8 +31,31 @@ public abstract class FileLookupAndGetRequest extends FileLookupRequest {
             public void handleFileRawData(byte[] fileData) {
                 FileLookupAndGetRequest.this.handleFileData(fileData);
             }
+
+            @Override
+            protected void handleFileChunk(byte[] data, int offset, int length) {
+                FileLookupAndGetRequest.this.handleFileChunk(data, offset, length);
+            }
+
+            @Override
+            protected boolean keepsFileData() {
+                return FileLookupAndGetRequest.this.keepsFileData();
+            }
         }, true);
     }
 
+    /**
+     * @see FileGetRawRequest#handleFileChunk(byte[], int, int)
+     */
+    protected void handleFileChunk(byte[] data, int offset, int length) {
+    }
+
+    /**
+     * @see FileGetRawRequest#keepsFileData()
+     */
+    protected boolean keepsFileData() {
+        return true;
+    }
+
     abstract public void handleFileData(byte[] fileData);
 }
@@ -20,10 +20,10 @@ import android.bluetooth.BluetoothGattCharacteristic;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
 import java.util.UUID;
 import java.util.zip.CRC32;
 
+import nodomain.freeyourgadget.gadgetbridge.service.btle.ChunkedUpload;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.adapter.fossil.FossilWatchAdapter;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.file.FileHandle;
@@ -35,8 +35,6 @@ public class FilePutRawRequest extends FossilRequest {
 
     public UploadState state;
 
-    public ArrayList<byte[]> packets = new ArrayList<>();
-
     private short handle;
 
     private FossilWatchAdapter adapter;
@@ -87,15 +85,7 @@ public class FilePutRawRequest extends FossilRequest {
                     TransactionBuilder transactionBuilder = new TransactionBuilder("file upload");
                     BluetoothGattCharacteristic uploadCharacteristic = adapter.getDeviceSupport().getCharacteristic(UUID.fromString("3dda0004-957f-7d4a-34a6-74696673696d"));
 
-                    this.prepareFilePackets(this.file);
-
-                    for (int i = 0, packetCount = packets.size(); i < packetCount; i++) {
-                        byte[] packet = packets.get(i);
-                        transactionBuilder.write(uploadCharacteristic, packet);
-                        onPacketWritten(transactionBuilder, i, packetCount);
-                    }
-
-                    transactionBuilder.queue(adapter.getDeviceSupport().getQueue());
+                    this.createUpload(uploadCharacteristic, this.file).queue(transactionBuilder, adapter.getDeviceSupport().getQueue());
                     break;
                 }
                 case 8: {
@@ -194,26 +184,28 @@ public class FilePutRawRequest extends FossilRequest {
         return this.state == UploadState.UPLOADED;
     }
 
-    private void prepareFilePackets(byte[] file) {
+    private ChunkedUpload createUpload(BluetoothGattCharacteristic uploadCharacteristic, byte[] file) {
         int maxPacketSize = adapter.getMTU() - 4;
 
-        byte[] data = file;
-
         CRC32 fullCRC = new CRC32();
 
-        fullCRC.update(data);
+        fullCRC.update(file);
         this.fullCRC = (int) fullCRC.getValue();
 
-        int packetCount = (int) Math.ceil(data.length / (float) maxPacketSize);
-
-        for (int i = 0; i < packetCount; i++) {
-            int currentPacketLength = Math.min(maxPacketSize, data.length - i * maxPacketSize);
-            byte[] packet = new byte[currentPacketLength + 1];
-            packet[0] = (byte) i;
-            System.arraycopy(data, i * maxPacketSize, packet, 1, currentPacketLength);
+        // each packet starts with its index
+        ChunkedUpload upload = new ChunkedUpload(uploadCharacteristic, ByteBuffer.wrap(file), 1, maxPacketSize + 1, ChunkedUpload.DEFAULT_WINDOW_SIZE) {
+            @Override
+            protected void preparePacket(byte[] packet, int index) {
+                packet[0] = (byte) index;
+            }
 
-            packets.add(packet);
-        }
+            @Override
+            protected void onPacketQueued(TransactionBuilder builder, int index, int packetCount) {
+                onPacketWritten(builder, index, packetCount);
+            }
+        };
+        upload.setWriteWithoutResponseWindow(FossilWatchAdapter.FILE_UPLOAD_WRITE_WINDOW);
+        return upload;
     }
 
     public void onFilePut(boolean success) {
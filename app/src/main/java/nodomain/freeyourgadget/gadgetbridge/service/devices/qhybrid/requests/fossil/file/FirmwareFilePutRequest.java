@@ -26,16 +26,20 @@ import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.adapter.foss
 import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.adapter.fossil_hr.FossilHRWatchAdapter;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.requests.fossil.file.FilePutRawRequest;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
+import nodomain.freeyourgadget.gadgetbridge.util.TransferProgress;
 
 public class FirmwareFilePutRequest extends FilePutRawRequest {
+    private final TransferProgress progress;
+
     public FirmwareFilePutRequest(byte[] firmwareBytes, FossilWatchAdapter adapter) {
         super((short) 0x00FF, firmwareBytes, adapter);
+        Context context = GBApplication.getContext();
+        progress = TransferProgress.forInstall(context.getString(R.string.updatefirmwareoperation_update_in_progress), context);
     }
 
     @Override
     public void onPacketWritten(TransactionBuilder transactionBuilder, int packetNr, int packetCount) {
-        int progressPercent = (int) ((((float) packetNr) / packetCount) * 100);
-        transactionBuilder.add(new SetProgressAction(GBApplication.getContext().getString(R.string.updatefirmwareoperation_update_in_progress), true, progressPercent, GBApplication.getContext()));
+        transactionBuilder.add(new SetProgressAction(progress, (long) file.length * packetNr / packetCount, file.length));
     }
 
     @Override
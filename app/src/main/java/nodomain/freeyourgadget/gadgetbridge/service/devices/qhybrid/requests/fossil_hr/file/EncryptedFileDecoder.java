@@ -0,0 +1,160 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.requests.fossil_hr.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.zip.CRC32;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Decrypts a file that is downloaded from a Fossil Hybrid HR, packet by packet, directly into
+ * the file buffer while updating the CRC. If the file is processed while it is received, it
+ * need not be kept: each payload is then decrypted into a buffer of the packet size.
+ *
+ * Each packet is encrypted with AES-CTR, starting at the initial IV incremented by the packet
+ * index times an increment chosen by the watch. The increment is found by trying the
+ * possible values on the second packet. As the increment is larger than the blocks a packet
+ * spans, the cipher is initialized for every packet.
+ */
+public class EncryptedFileDecoder {
+    private static final Logger LOG = LoggerFactory.getLogger(EncryptedFileDecoder.class);
+
+    private static final int DEFAULT_IV_INCREMENT = 0x1f;
+    private static final int MIN_IV_INCREMENT = 0x1e;
+    private static final int MAX_IV_INCREMENT = 0x2f;
+
+    private final Cipher cipher;
+    private final SecretKeySpec keySpec;
+    private final byte[] originalIv;
+    private final int fileSize;
+    private final byte[] fileData;
+    private final CRC32 crc = new CRC32();
+    private final byte[] header = new byte[1];
+
+    private int position;
+    private byte[] payload;
+    private int payloadOffset;
+    private int payloadLength;
+    private int packetCount;
+    private int ivIncrement = DEFAULT_IV_INCREMENT;
+    private boolean complete;
+
+    public EncryptedFileDecoder(byte[] key, byte[] iv, int fileSize) throws GeneralSecurityException {
+        this(key, iv, fileSize, true);
+    }
+
+    public EncryptedFileDecoder(byte[] key, byte[] iv, int fileSize, boolean keepFileData) throws GeneralSecurityException {
+        this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        this.keySpec = new SecretKeySpec(key, "AES");
+        this.originalIv = iv.clone();
+        this.fileSize = fileSize;
+        this.fileData = keepFileData ? new byte[fileSize] : null;
+        this.payload = fileData;
+    }
+
+    /**
+     * Decrypts the next packet, consisting of a header byte and the payload.
+     *
+     * @return true if this was the last packet of the file
+     */
+    public boolean decryptPacket(byte[] packet) throws GeneralSecurityException {
+        if (complete) {
+            throw new IllegalStateException("file is already complete");
+        }
+        int payloadLength = packet.length - 1;
+        if (payloadLength < 0 || position + payloadLength > fileSize) {
+            throw new IllegalStateException("packet of " + packet.length + " bytes exceeds the file size of " + fileSize + " at " + position);
+        }
+        if (packetCount == 1) {
+            findIvIncrement(packet);
+        }
+
+        cipher.init(Cipher.DECRYPT_MODE, keySpec, new IvParameterSpec(incrementIV(originalIv, ivIncrement * packetCount)));
+        if (fileData != null) {
+            payloadOffset = position;
+        } else {
+            if (payload == null || payload.length < payloadLength) {
+                payload = new byte[payloadLength];
+            }
+            payloadOffset = 0;
+        }
+        this.payloadLength = payloadLength;
+        cipher.update(packet, 0, 1, header, 0);
+        cipher.update(packet, 1, payloadLength, payload, payloadOffset);
+        crc.update(payload, payloadOffset, payloadLength);
+        position += payloadLength;
+        packetCount++;
+
+        complete = (header[0] & 0x80) == 0x80; // 0x81 indicates the last payload
+        return complete;
+    }
+
+    private void findIvIncrement(byte[] packet) throws GeneralSecurityException {
+        boolean last = position + packet.length - 1 == fileSize;
+        byte expectedHeader = last ? (byte) 0x81 : (byte) 0x01;
+        for (int increment = MIN_IV_INCREMENT; increment <= MAX_IV_INCREMENT; increment++) {
+            // the header byte is enough to tell
+            cipher.init(Cipher.DECRYPT_MODE, keySpec, new IvParameterSpec(incrementIV(originalIv, increment)));
+            cipher.update(packet, 0, 1, header, 0);
+            if (header[0] == expectedHeader) {
+                LOG.debug("iv increment: " + increment);
+                ivIncrement = increment;
+                return;
+            }
+        }
+        LOG.warn("no iv increment found, using " + DEFAULT_IV_INCREMENT);
+    }
+
+    /**
+     * Increments the lowest word of the IV, without carry, like the watch does.
+     */
+    static byte[] incrementIV(byte[] iv, int amount) {
+        byte[] incrementedIv = iv.clone();
+        ByteBuffer buffer = ByteBuffer.wrap(incrementedIv);
+        buffer.putInt(12, buffer.getInt(12) + amount);
+        return incrementedIv;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public int getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * Returns the CRC32 of the data decrypted so far.
+     */
+    public int getCrc() {
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Returns the array containing the payload of the last packet, starting at
+     * {@link #getPayloadOffset()}. Its content is only valid until the next packet.
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * Returns the decrypted file, or null if it is not kept. The array is not copied.
+     */
+    public byte[] getFileData() {
+        return fileData;
+    }
+}
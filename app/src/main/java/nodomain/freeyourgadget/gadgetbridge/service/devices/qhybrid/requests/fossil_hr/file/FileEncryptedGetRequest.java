@@ -21,46 +21,25 @@ import android.widget.Toast;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
 import java.util.UUID;
-import java.util.zip.CRC32;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.adapter.fossil.FossilWatchAdapter;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.adapter.fossil_hr.FossilHRWatchAdapter;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.file.FileHandle;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.requests.fossil.FossilRequest;
-import nodomain.freeyourgadget.gadgetbridge.util.CRC32C;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
-import nodomain.freeyourgadget.gadgetbridge.util.StringUtils;
 
 public abstract class FileEncryptedGetRequest extends FossilRequest implements FileEncryptedInterface{
     private short handle;
     private FossilHRWatchAdapter adapter;
 
-    private ByteBuffer fileBuffer;
-
-    private byte[] fileData;
+    private EncryptedFileDecoder decoder;
 
     private boolean finished = false;
 
-    private Cipher cipher;
-    private SecretKeySpec keySpec;
-    private byte[] originalIv;
-
     int fileSize;
 
-    private int packetCount = 0;
-    private int ivIncrementor = 0x1f;
-
     public FileEncryptedGetRequest(short handle, FossilHRWatchAdapter adapter) {
         this.handle = handle;
         this.adapter = adapter;
@@ -78,27 +57,27 @@ public abstract class FileEncryptedGetRequest extends FossilRequest implements F
     }
 
     private void initDecryption() {
+        byte[] key;
         try {
-            cipher = Cipher.getInstance("AES/CTR/NoPadding");
-            try {
-                keySpec = new SecretKeySpec(this.adapter.getSecretKey(), "AES");
-            } catch (IllegalAccessException e) {
-                GB.toast("error getting key: " + e.getMessage(), Toast.LENGTH_LONG, GB.ERROR, e);
-                return;
-            }
-
+            key = this.adapter.getSecretKey();
+        } catch (IllegalAccessException e) {
+            GB.toast("error getting key: " + e.getMessage(), Toast.LENGTH_LONG, GB.ERROR, e);
+            return;
+        }
 
-            originalIv = new byte[16];
+        byte[] originalIv = new byte[16];
 
+        byte[] phoneRandomNumber = adapter.getPhoneRandomNumber();
+        byte[] watchRandomNumber = adapter.getWatchRandomNumber();
 
-            byte[] phoneRandomNumber = adapter.getPhoneRandomNumber();
-            byte[] watchRandomNumber = adapter.getWatchRandomNumber();
+        System.arraycopy(phoneRandomNumber, 0, originalIv, 2, 6);
+        System.arraycopy(watchRandomNumber, 0, originalIv, 9, 7);
 
-            System.arraycopy(phoneRandomNumber, 0, originalIv, 2, 6);
-            System.arraycopy(watchRandomNumber, 0, originalIv, 9, 7);
+        originalIv[7]++;
 
-            originalIv[7]++;
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+        try {
+            decoder = new EncryptedFileDecoder(key, originalIv, fileSize, keepsFileData());
+        } catch (GeneralSecurityException e) {
             e.printStackTrace();
         }
     }
@@ -107,17 +86,6 @@ public abstract class FileEncryptedGetRequest extends FossilRequest implements F
         return adapter;
     }
 
-    private byte[] incrementIV(byte[] iv, int amount){
-        byte[] incrementedIv = new byte[iv.length];
-        System.arraycopy(iv, 0, incrementedIv, 0, iv.length);
-        ByteBuffer buffer = ByteBuffer.wrap(incrementedIv);
-        int number = buffer.getInt(12);
-        number += amount;
-        buffer.position(12);
-        buffer.putInt(number);
-        return buffer.array();
-    }
-
     @Override
     public boolean isFinished() {
         return finished;
@@ -132,8 +100,6 @@ public abstract class FileEncryptedGetRequest extends FossilRequest implements F
                 ByteBuffer buffer = ByteBuffer.wrap(value);
                 buffer.order(ByteOrder.LITTLE_ENDIAN);
 
-                this.initDecryption();
-
                 short handle = buffer.getShort(1);
                 fileSize = buffer.getInt(4);
 
@@ -148,7 +114,7 @@ public abstract class FileEncryptedGetRequest extends FossilRequest implements F
                     throw new RuntimeException("handle: " + handle + "   expected: " + this.handle);
                 }
                 log("file size: " + fileSize);
-                fileBuffer = ByteBuffer.allocate(fileSize);
+                this.initDecryption();
             } else if ((first & 0x0F) == 8) {
                 this.finished = true;
 
@@ -160,55 +126,24 @@ public abstract class FileEncryptedGetRequest extends FossilRequest implements F
                     throw new RuntimeException("handle: " + handle + "   expected: " + this.handle);
                 }
 
-                CRC32 crc = new CRC32();
-                crc.update(this.fileData);
-
-                CRC32C c = new CRC32C();
-                c.update(this.fileData, 0, fileData.length);
+                if (!decoder.isComplete()) {
+                    throw new RuntimeException("file incomplete after " + decoder.getPacketCount() + " packets");
+                }
 
                 int crcExpected = buffer.getInt(8);
 
-                if ((int) crc.getValue() != crcExpected) {
-                    throw new RuntimeException("crc: " + crc.getValue() + "   expected: " + crcExpected);
+                if (decoder.getCrc() != crcExpected) {
+                    throw new RuntimeException("crc: " + (decoder.getCrc() & 0xFFFFFFFFL) + "   expected: " + crcExpected);
                 }
 
-                this.handleFileData(this.fileData);
+                log("decrypted " + decoder.getPacketCount() + " packets");
+                this.handleFileData(decoder.getFileData());
             }
         } else if (characteristic.getUuid().toString().equals("3dda0004-957f-7d4a-34a6-74696673696d")) {
             try {
-                byte[] result = null;
-                if(packetCount == 1) {
-                    for(int testIvSummand = 0x1e; testIvSummand < 0x30; testIvSummand++){
-                        byte[] iv = incrementIV(originalIv, testIvSummand);
-                        cipher.init(Cipher.DECRYPT_MODE, keySpec, new IvParameterSpec(iv));
-                        result = cipher.doFinal(value);
-
-                        int currentLength = fileBuffer.position() + result.length - 1;
-
-                        byte expectedByte = (currentLength == fileSize) ? (byte)0x81 : (byte)0x01; // 0x81 indicated the last payload
-
-                        if(result[0] == expectedByte){
-                            this.ivIncrementor = testIvSummand;
-                            log("iv summand: " + testIvSummand);
-                            break;
-                        }
-                        log("no iv summand found");
-                    }
-                }else{
-                    byte[] iv = incrementIV(originalIv, ivIncrementor * packetCount);
-
-                    cipher.init(Cipher.DECRYPT_MODE, keySpec, new IvParameterSpec(iv));
-                    result = cipher.doFinal(value);
-                }
-
-                log("decryption result: " + StringUtils.bytesToHex(result));
-                packetCount++;
-
-                fileBuffer.put(result, 1, result.length - 1);
-                if ((result[0] & 0x80) == 0x80) {
-                    this.fileData = fileBuffer.array();
-                }
-            } catch (BadPaddingException | IllegalBlockSizeException | InvalidAlgorithmParameterException | InvalidKeyException e) {
+                decoder.decryptPacket(value);
+                handleFileChunk(decoder.getPayload(), decoder.getPayloadOffset(), decoder.getPayloadLength());
+            } catch (GeneralSecurityException e) {
                 e.printStackTrace();
                 throw new RuntimeException(e);
             }
@@ -230,5 +165,25 @@ public abstract class FileEncryptedGetRequest extends FossilRequest implements F
         return 11;
     }
 
+    /**
+     * Called with each part of the file as soon as it was decrypted, before the CRC of the
+     * whole file is checked. The data is only valid during the call.
+     */
+    protected void handleFileChunk(byte[] data, int offset, int length) {
+    }
+
+    /**
+     * Returns whether the whole file is kept in memory and passed to {@link #handleFileData(byte[])},
+     * which is unnecessary if it is processed in {@link #handleFileChunk(byte[], int, int)}.
+     */
+    protected boolean keepsFileData() {
+        return true;
+    }
+
+    /**
+     * Called when the file was received completely and its CRC matches.
+     *
+     * @param fileData the file, or null if {@link #keepsFileData()} returned false
+     */
     abstract public void handleFileData(byte[] fileData);
 }
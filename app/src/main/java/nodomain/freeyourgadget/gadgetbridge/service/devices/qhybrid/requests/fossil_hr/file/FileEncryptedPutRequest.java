@@ -21,7 +21,6 @@ import android.widget.Toast;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
 import java.util.UUID;
 import java.util.zip.CRC32;
 
@@ -29,6 +28,7 @@ import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import nodomain.freeyourgadget.gadgetbridge.service.btle.ChunkedUpload;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.adapter.fossil.FossilWatchAdapter;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.adapter.fossil_hr.FossilHRWatchAdapter;
@@ -41,8 +41,6 @@ public class FileEncryptedPutRequest extends FossilRequest implements FileEncryp
 
     public UploadState state;
 
-    private ArrayList<byte[]> packets = new ArrayList<>();
-
     private short handle;
 
     private FossilHRWatchAdapter adapter;
@@ -89,8 +87,6 @@ public class FileEncryptedPutRequest extends FossilRequest implements FileEncryp
                     TransactionBuilder transactionBuilder = new TransactionBuilder("file upload");
                     BluetoothGattCharacteristic uploadCharacteristic = adapter.getDeviceSupport().getCharacteristic(UUID.fromString("3dda0004-957f-7d4a-34a6-74696673696d"));
 
-                    this.prepareFilePackets(this.file);
-
                     SecretKeySpec keySpec = null;
                     try {
                         keySpec = new SecretKeySpec(this.adapter.getSecretKey(), "AES");
@@ -99,7 +95,7 @@ public class FileEncryptedPutRequest extends FossilRequest implements FileEncryp
                         return;
                     }
                     try {
-                        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+                        final Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
 
                         byte[] fileIV = new byte[16];
 
@@ -114,15 +110,10 @@ public class FileEncryptedPutRequest extends FossilRequest implements FileEncryp
 
                         cipher.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(fileIV));
 
-                        for (byte[] packet : packets) {
-                            byte[] result = cipher.doFinal(packet);
-                            transactionBuilder.write(uploadCharacteristic, result);
-                        }
+                        this.createUpload(uploadCharacteristic, this.file, cipher).queue(transactionBuilder, adapter.getDeviceSupport().getQueue());
                     }catch (Exception e){
                         GB.toast("error encrypting file", Toast.LENGTH_LONG, GB.ERROR, e);
                     }
-
-                    transactionBuilder.queue(adapter.getDeviceSupport().getQueue());
                     break;
                 }
                 case 8: {
@@ -221,7 +212,7 @@ public class FileEncryptedPutRequest extends FossilRequest implements FileEncryp
         return this.state == UploadState.UPLOADED;
     }
 
-    private void prepareFilePackets(byte[] file) {
+    private ChunkedUpload createUpload(BluetoothGattCharacteristic uploadCharacteristic, byte[] file, final Cipher cipher) {
         int maxPacketSize = adapter.getMTU() - 4;
 
         ByteBuffer buffer = ByteBuffer.allocate(file.length + 12 + 4);
@@ -247,16 +238,16 @@ public class FileEncryptedPutRequest extends FossilRequest implements FileEncryp
         fullCRC.update(data);
         this.fullCRC = (int) fullCRC.getValue();
 
-        int packetCount = (int) Math.ceil(data.length / (float) maxPacketSize);
-
-        for (int i = 0; i < packetCount; i++) {
-            int currentPacketLength = Math.min(maxPacketSize, data.length - i * maxPacketSize);
-            byte[] packet = new byte[currentPacketLength + 1];
-            packet[0] = (byte) i;
-            System.arraycopy(data, i * maxPacketSize, packet, 1, currentPacketLength);
-
-            packets.add(packet);
-        }
+        // each packet starts with its index and is encrypted on its own
+        ChunkedUpload upload = new ChunkedUpload(uploadCharacteristic, ByteBuffer.wrap(data), 1, maxPacketSize + 1, ChunkedUpload.DEFAULT_WINDOW_SIZE) {
+            @Override
+            protected void preparePacket(byte[] packet, int index) throws Exception {
+                packet[0] = (byte) index;
+                cipher.doFinal(packet, 0, packet.length, packet, 0);
+            }
+        };
+        upload.setWriteWithoutResponseWindow(FossilWatchAdapter.FILE_UPLOAD_WRITE_WINDOW);
+        return upload;
     }
 
     public void onFilePut(boolean success) {
@@ -656,8 +656,8 @@ public class TLW64Support extends AbstractBTLEDeviceSupport {
                             } else
                                 samples.get(i).setRawKind(ActivityKind.TYPE_LIGHT_SLEEP);
                         }
-                        provider.addGBActivitySample(samples.get(i));
                     }
+                    provider.addGBActivitySamples(samples);
                     LOG.info("Activity data saved");
                     if (data[0] == TLW64Constants.CMD_FETCH_STEPS) {
                         sendFetchCommand(TLW64Constants.CMD_FETCH_SLEEP);
@@ -41,14 +41,14 @@ import java.util.UUID;
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.activities.devicesettings.DeviceSettingsPreferenceConst;
-import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
-import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventBatteryInfo;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventCallControl;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventMusicControl;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventVersionInfo;
+import nodomain.freeyourgadget.gadgetbridge.devices.AbstractSampleProvider;
 import nodomain.freeyourgadget.gadgetbridge.devices.zetime.ZeTimeConstants;
 import nodomain.freeyourgadget.gadgetbridge.devices.zetime.ZeTimeSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.ZeTimeActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
@@ -64,6 +64,7 @@ import nodomain.freeyourgadget.gadgetbridge.model.MusicStateSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.Weather;
 import nodomain.freeyourgadget.gadgetbridge.model.WeatherSpec;
+import nodomain.freeyourgadget.gadgetbridge.service.ActivitySampleIngest;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.AbstractBTLEDeviceSupport;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BtLEAction;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.GattService;
@@ -93,6 +94,12 @@ public class ZeTimeDeviceSupport extends AbstractBTLEDeviceSupport {
     private int progressSteps;
     private int progressSleep;
     private int progressHeartRate;
+    private final ActivitySampleIngest<ZeTimeActivitySample> sampleIngest = registerSampleIngest(new ActivitySampleIngest<ZeTimeActivitySample>(this) {
+        @Override
+        protected AbstractSampleProvider<ZeTimeActivitySample> createProvider(GBDevice device, DaoSession session) {
+            return new ZeTimeSampleProvider(device, session);
+        }
+    });
     private final int maxMsgLength = 20;
     private boolean callIncoming = false;
     private String songtitle = null;
@@ -1219,6 +1226,15 @@ public class ZeTimeDeviceSupport extends AbstractBTLEDeviceSupport {
         }
     }
 
+    private void flushActivitySamples() {
+        try {
+            sampleIngest.flush();
+        } catch (Exception ex) {
+            GB.toast(getContext(), "Error saving activity data: " + ex.getLocalizedMessage(), Toast.LENGTH_LONG, GB.ERROR);
+            GB.updateTransferNotification(null, "Data transfer failed", false, 0, getContext());
+        }
+    }
+
     private void handleStepsData(byte[] msg) {
         ZeTimeActivitySample sample = new ZeTimeActivitySample();
         Calendar now = GregorianCalendar.getInstance();
@@ -1233,11 +1249,8 @@ public class ZeTimeDeviceSupport extends AbstractBTLEDeviceSupport {
         sample.setRawKind(ActivityKind.TYPE_ACTIVITY);
         sample.setRawIntensity(sample.getSteps());
 
-        try (DBHandler dbHandler = GBApplication.acquireDB()) {
-            sample.setUserId(DBHelper.getUser(dbHandler.getDaoSession()).getId());
-            sample.setDeviceId(DBHelper.getDevice(getDevice(), dbHandler.getDaoSession()).getId());
-            ZeTimeSampleProvider provider = new ZeTimeSampleProvider(getDevice(), dbHandler.getDaoSession());
-            provider.addGBActivitySample(sample);
+        try {
+            sampleIngest.add(sample);
         } catch (Exception ex) {
             GB.toast(getContext(), "Error saving steps data: " + ex.getLocalizedMessage(), Toast.LENGTH_LONG, GB.ERROR);
             GB.updateTransferNotification(null, "Data transfer failed", false, 0, getContext());
@@ -1246,6 +1259,7 @@ public class ZeTimeDeviceSupport extends AbstractBTLEDeviceSupport {
         progressSteps = (msg[5] & 0xff) | ((msg[6] << 8) & 0xff00);
         GB.updateTransferNotification(null, getContext().getString(R.string.busy_task_fetch_activity_data), true, progressSteps * 100 / availableStepsData, getContext());
         if (progressSteps == availableStepsData) {
+            flushActivitySamples();
             Prefs prefs = GBApplication.getPrefs();
             progressSteps = 0;
             availableStepsData = 0;
@@ -1280,11 +1294,8 @@ public class ZeTimeDeviceSupport extends AbstractBTLEDeviceSupport {
             sample.setRawKind(ActivityKind.TYPE_UNKNOWN);
         }
 
-        try (DBHandler dbHandler = GBApplication.acquireDB()) {
-            sample.setUserId(DBHelper.getUser(dbHandler.getDaoSession()).getId());
-            sample.setDeviceId(DBHelper.getDevice(getDevice(), dbHandler.getDaoSession()).getId());
-            ZeTimeSampleProvider provider = new ZeTimeSampleProvider(getDevice(), dbHandler.getDaoSession());
-            provider.addGBActivitySample(sample);
+        try {
+            sampleIngest.add(sample);
         } catch (Exception ex) {
             GB.toast(getContext(), "Error saving steps data: " + ex.getLocalizedMessage(), Toast.LENGTH_LONG, GB.ERROR);
             GB.updateTransferNotification(null, "Data transfer failed", false, 0, getContext());
@@ -1293,6 +1304,7 @@ public class ZeTimeDeviceSupport extends AbstractBTLEDeviceSupport {
         progressSleep = (msg[5] & 0xff) | (msg[6] << 8) & 0xff00;
         GB.updateTransferNotification(null, getContext().getString(R.string.busy_task_fetch_activity_data), true, progressSleep * 100 / availableSleepData, getContext());
         if (progressSleep == availableSleepData) {
+            flushActivitySamples();
             Prefs prefs = GBApplication.getPrefs();
             progressSleep = 0;
             availableSleepData = 0;
@@ -1316,11 +1328,8 @@ public class ZeTimeDeviceSupport extends AbstractBTLEDeviceSupport {
         sample.setHeartRate(msg[11]);
         sample.setTimestamp(timestamp);
 
-        try (DBHandler dbHandler = GBApplication.acquireDB()) {
-            sample.setUserId(DBHelper.getUser(dbHandler.getDaoSession()).getId());
-            sample.setDeviceId(DBHelper.getDevice(getDevice(), dbHandler.getDaoSession()).getId());
-            ZeTimeSampleProvider provider = new ZeTimeSampleProvider(getDevice(), dbHandler.getDaoSession());
-            provider.addGBActivitySample(sample);
+        try {
+            sampleIngest.add(sample);
         } catch (Exception ex) {
             GB.toast(getContext(), "Error saving steps data: " + ex.getLocalizedMessage(), Toast.LENGTH_LONG, GB.ERROR);
             GB.updateTransferNotification(null, "Data transfer failed", false, 0, getContext());
@@ -1334,14 +1343,13 @@ public class ZeTimeDeviceSupport extends AbstractBTLEDeviceSupport {
             timestamp = (msg[17] << 24) & 0xff000000 | (msg[16] << 16) & 0xff0000 | (msg[15] << 8) & 0xff00 | (msg[14] & 0xff);
             timestamp += eightHourOffset; // the timestamp from the watch has an offset of eight hours, do not know why...
             timestamp -= ((now.get(Calendar.ZONE_OFFSET) / 1000) + (now.get(Calendar.DST_OFFSET) / 1000));  // TimeZone hour + daylight saving
+            // the first sample may not be written yet
+            sample = new ZeTimeActivitySample();
             sample.setHeartRate(msg[18]);
             sample.setTimestamp(timestamp);
 
-            try (DBHandler dbHandler = GBApplication.acquireDB()) {
-                sample.setUserId(DBHelper.getUser(dbHandler.getDaoSession()).getId());
-                sample.setDeviceId(DBHelper.getDevice(getDevice(), dbHandler.getDaoSession()).getId());
-                ZeTimeSampleProvider provider = new ZeTimeSampleProvider(getDevice(), dbHandler.getDaoSession());
-                provider.addGBActivitySample(sample);
+            try {
+                sampleIngest.add(sample);
             } catch (Exception ex) {
                 GB.toast(getContext(), "Error saving steps data: " + ex.getLocalizedMessage(), Toast.LENGTH_LONG, GB.ERROR);
                 GB.updateTransferNotification(null, "Data transfer failed", false, 0, getContext());
@@ -1352,6 +1360,7 @@ public class ZeTimeDeviceSupport extends AbstractBTLEDeviceSupport {
         }
 
         if (progressHeartRate == availableHeartRateData) {
+            flushActivitySamples();
             Prefs prefs = GBApplication.getPrefs();
             progressHeartRate = 0;
             availableHeartRateData = 0;
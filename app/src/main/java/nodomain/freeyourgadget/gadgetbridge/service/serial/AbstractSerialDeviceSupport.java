@@ -60,6 +60,7 @@ public abstract class AbstractSerialDeviceSupport extends AbstractDeviceSupport
 
     @Override
     public void dispose() {
+        flushSampleIngests();
         // currently only one thread allowed
         if (gbDeviceIOThread != null) {
             gbDeviceIOThread.quit();
@@ -187,6 +187,19 @@ public class BengaliLanguageUtils extends LanguageUtils {
         return null;
     }
 
+    /**
+     * @return true if the text contains characters that {@link #transliterate} changes
+     */
+    static boolean containsBengali(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if ((c >= '\u0980' && c <= '\u09FF') || c == '।') {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static String transliterate(String txt) {
         if (txt.isEmpty()) {
             return txt;
@@ -0,0 +1,53 @@
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+/**
+ * Maps single characters to replacement strings. The table is indexed by the character in two
+ * levels of 256 entries each, so lookups need neither boxing nor hashing, and only the pages
+ * that contain a replacement are allocated.
+ */
+public class CharReplacementTable implements TextTransform {
+    private final String[][] pages = new String[256][];
+
+    public void put(char c, String replacement) {
+        String[] page = pages[c >>> 8];
+        if (page == null) {
+            page = new String[256];
+            pages[c >>> 8] = page;
+        }
+        page[c & 0xff] = replacement;
+    }
+
+    /**
+     * @return the replacement of the given character, or null if it has none
+     */
+    public String get(char c) {
+        String[] page = pages[c >>> 8];
+        return page != null ? page[c & 0xff] : null;
+    }
+
+    /**
+     * Replaces the characters that have a replacement, and copies all others.
+     */
+    @Override
+    public boolean transform(CharSequence text, StringBuilder out) {
+        int length = text.length();
+        int i = 0;
+        while (i < length && get(text.charAt(i)) == null) {
+            i++;
+        }
+        if (i == length) {
+            return false;
+        }
+        out.append(text, 0, i);
+        for (; i < length; i++) {
+            char c = text.charAt(i);
+            String replacement = get(c);
+            if (replacement != null) {
+                out.append(replacement);
+            } else {
+                out.append(c);
+            }
+        }
+        return true;
+    }
+}
@@ -75,6 +75,16 @@ public class EmojiConverter {
         return text;
     }
 
+    // emojis are never plain ASCII, also not the keycap ones
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private static synchronized void initEmojiData(Context context) {
         // Do a lazy initialisation not to slowdown the startup and when it is needed
         if (!isEmojiDataInitialised) {
@@ -94,6 +104,9 @@ public class EmojiConverter {
     }
 
     public static String convertUnicodeEmojiToAscii(String text, Context context) {
+        if (isAscii(text)) {
+            return text;
+        }
         text = convertSimpleEmojiToAscii(text);
 
         text = convertAdvancedEmojiToAscii(text, context);
@@ -29,6 +29,7 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.widget.Toast;
 
 import androidx.annotation.Nullable;
@@ -72,6 +73,10 @@ public class GB {
     public static final int NOTIFICATION_ID_EXPORT_FAILED = 5;
     public static final int NOTIFICATION_ID_PHONE_FIND = 6;
 
+    static final long PROGRESS_UPDATE_INTERVAL_MILLIS = 500;
+    private static final ProgressThrottle transferProgressThrottle = new ProgressThrottle(PROGRESS_UPDATE_INTERVAL_MILLIS);
+    private static final ProgressThrottle installProgressThrottle = new ProgressThrottle(PROGRESS_UPDATE_INTERVAL_MILLIS);
+
     private static final Logger LOG = LoggerFactory.getLogger(GB.class);
     public static final int INFO = 1;
     public static final int WARN = 2;
@@ -407,7 +412,16 @@ public class GB {
         removeNotification(NOTIFICATION_ID_LOW_BATTERY, context);
     }
 
+    /**
+     * Updates the transfer notification. Ongoing progress is rate limited, see {@link ProgressThrottle}.
+     */
     public static void updateTransferNotification(String title, String text, boolean ongoing, int percentage, Context context) {
+        if (transferProgressThrottle.update(ongoing, text, percentage, SystemClock.elapsedRealtime())) {
+            postTransferNotification(title, text, ongoing, percentage, context);
+        }
+    }
+
+    static void postTransferNotification(String title, String text, boolean ongoing, int percentage, Context context) {
         if (percentage == 100) {
             removeNotification(NOTIFICATION_ID_TRANSFER, context);
         } else {
@@ -442,7 +456,16 @@ public class GB {
         return nb.build();
     }
 
+    /**
+     * Updates the install notification. Ongoing progress is rate limited, see {@link ProgressThrottle}.
+     */
     public static void updateInstallNotification(String text, boolean ongoing, int percentage, Context context) {
+        if (installProgressThrottle.update(ongoing, text, percentage, SystemClock.elapsedRealtime())) {
+            postInstallNotification(text, ongoing, percentage, context);
+        }
+    }
+
+    static void postInstallNotification(String text, boolean ongoing, int percentage, Context context) {
         Notification notification = createInstallNotification(text, ongoing, percentage, context);
         updateNotification(notification, NOTIFICATION_ID_INSTALL, context);
     }
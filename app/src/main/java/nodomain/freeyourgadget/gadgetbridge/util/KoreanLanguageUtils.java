@@ -39,6 +39,23 @@ public class KoreanLanguageUtils {
         return c >= start && c <= end;
     }
 
+    // Returns whether a char is in one of the Hangul blocks we know about.
+    private static boolean isHangul(char c) {
+        return inRange(c, JAMO_BLOCK_START, JAMO_BLOCK_END)
+                || inRange(c, SYLLABLES_BLOCK_START, SYLLABLES_BLOCK_END)
+                || inRange(c, COMPAT_JAMO_BLOCK_START, COMPAT_JAMO_BLOCK_END);
+    }
+
+    // Returns whether transliterate() would change the given text.
+    static boolean containsHangul(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (isHangul(text.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     // User input consisting of isolated jamo is usually mapped to the KS X 1001 compatibility
     // block, but jamo resulting from decomposed syllables are mapped to the modern one. This
     // function maps compat jamo to modern ones where possible and returns all other characters
@@ -296,9 +313,7 @@ public class KoreanLanguageUtils {
         for (int i = 0; i < syllables.length; i++) {
             char thisSyllable = syllables[i];
             // If this isn't in any of the Hangul blocks we know about, emit it as-is.
-            if (!inRange(thisSyllable, JAMO_BLOCK_START, JAMO_BLOCK_END)
-                    && !inRange(thisSyllable, SYLLABLES_BLOCK_START, SYLLABLES_BLOCK_END)
-                    && !inRange(thisSyllable, COMPAT_JAMO_BLOCK_START, COMPAT_JAMO_BLOCK_END)) {
+            if (!isHangul(thisSyllable)) {
                 builder.append(thisSyllable);
                 continue;
             }
@@ -21,7 +21,10 @@ package nodomain.freeyourgadget.gadgetbridge.util;
 import org.apache.commons.lang3.text.WordUtils;
 
 import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
@@ -114,62 +117,109 @@ public class LanguageUtils {
         return GBApplication.getPrefs().getBoolean("transliteration", false);
     }
 
-    /**
-     * Replaces unsupported symbols to english
-     * @param txt input text
-     * @return transliterated text
-     */
-    public static String transliterate(String txt){
-        if (txt == null || txt.isEmpty()) {
-            return txt;
+    // Unlike the map, the table has the capitalized replacements of upper case chars too
+    private static final CharReplacementTable transliterateTable = compileTransliterateTable();
+
+    private static final TextTransform bengaliTransform = new TextTransform() {
+        @Override
+        public boolean transform(CharSequence text, StringBuilder out) {
+            if (!BengaliLanguageUtils.containsBengali(text)) {
+                return false;
+            }
+            out.append(BengaliLanguageUtils.transliterate(text.toString()));
+            return true;
         }
+    };
 
-        StringBuilder messageBuilder = new StringBuilder();
+    private static final TextTransform koreanTransform = new TextTransform() {
+        @Override
+        public boolean transform(CharSequence text, StringBuilder out) {
+            if (!KoreanLanguageUtils.containsHangul(text)) {
+                return false;
+            }
+            out.append(KoreanLanguageUtils.transliterate(text.toString()));
+            return true;
+        }
+    };
 
-        // Simple, char-by-char transliteration.
-        char[] chars = txt.toCharArray();
-        for (char c : chars)
-        {
-            messageBuilder.append(transliterate(c));
+    // Converts the diacritics
+    private static final TextTransform flattenToAsciiTransform = new TextTransform() {
+        @Override
+        public boolean transform(CharSequence text, StringBuilder out) {
+            if (isAscii(text)) {
+                return false;
+            }
+            String normalized = Normalizer.normalize(text, Normalizer.Form.NFD);
+            int i = 0;
+            while (i < normalized.length()) {
+                int codePoint = normalized.codePointAt(i);
+                if (!isMark(codePoint)) {
+                    out.appendCodePoint(codePoint);
+                }
+                i += Character.charCount(codePoint);
+            }
+            return true;
         }
-        String message = messageBuilder.toString();
+    };
+
+    // Simple, char-by-char transliteration first, then the more complex one for specific languages
+    private static final List<TextTransform> transliterateTransforms = Collections.unmodifiableList(Arrays.asList(
+            transliterateTable, bengaliTransform, koreanTransform, flattenToAsciiTransform));
 
-        // More complex transliteration for specific languages.
-        message = BengaliLanguageUtils.transliterate(message);
-        message = KoreanLanguageUtils.transliterate(message);
+    private static final TextTransformPipeline transliteratePipeline = new TextTransformPipeline(transliterateTransforms);
 
-        return flattenToAscii(message);
+    /**
+     * Replaces unsupported symbols to english
+     * @param txt input text
+     * @return transliterated text
+     */
+    public static String transliterate(String txt){
+        return transliteratePipeline.apply(txt);
     }
 
     /**
-     * Replaces unsupported symbol to english by {@code transliterateMap}
-     * @param c input char
-     * @return replacement text
+     * @return the steps of {@link #transliterate(String)}, for composing them with others
      */
-    private static String transliterate(char c){
-        char lowerChar = Character.toLowerCase(c);
+    public static List<TextTransform> getTransliterateTransforms() {
+        return transliterateTransforms;
+    }
 
-        if (transliterateMap.containsKey(lowerChar)) {
+    /**
+     * Compiles {@code transliterateMap} to a table that is looked up by the char itself,
+     * replacing upper case chars by the capitalized replacement of their lower case char
+     * @return the table
+     */
+    private static CharReplacementTable compileTransliterateTable() {
+        CharReplacementTable table = new CharReplacementTable();
+        for (int i = Character.MIN_VALUE; i <= Character.MAX_VALUE; i++) {
+            char c = (char) i;
+            char lowerChar = Character.toLowerCase(c);
             String replace = transliterateMap.get(lowerChar);
-
-            if (lowerChar != c)
-            {
-                return WordUtils.capitalize(replace);
+            if (replace != null) {
+                table.put(c, lowerChar != c ? WordUtils.capitalize(replace) : replace);
             }
-
-            return replace;
         }
+        return table;
+    }
 
-        return String.valueOf(c);
+    private static boolean isAscii(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    /**
-     * Converts the diacritics
-     * @param string input text
-     * @return converted text
-     */
-    private static String flattenToAscii(String string) {
-        string = Normalizer.normalize(string, Normalizer.Form.NFD);
-        return string.replaceAll("\\p{M}", "");
+    // The same chars as \p{M}
+    private static boolean isMark(int codePoint) {
+        switch (Character.getType(codePoint)) {
+            case Character.NON_SPACING_MARK:
+            case Character.ENCLOSING_MARK:
+            case Character.COMBINING_SPACING_MARK:
+                return true;
+            default:
+                return false;
+        }
     }
 }
@@ -0,0 +1,170 @@
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Searches a text for several strings at once in a single pass, using an Aho-Corasick
+ * automaton. The matching is case sensitive, like {@link String#contains(CharSequence)}.
+ * Instances are immutable and may be shared between threads.
+ */
+public class MultiStringMatcher {
+    private static final int[] NO_OUTPUT = new int[0];
+    private static final int ASCII_TABLE_SIZE = 128;
+
+    private final List<String> patterns;
+    private final boolean hasEmptyPattern;
+    /** the distinct characters of all patterns, sorted */
+    private final char[] alphabet;
+    /** alphabet index + 1 of the ASCII characters, 0 for characters not in the alphabet */
+    private final int[] asciiIndex = new int[ASCII_TABLE_SIZE];
+    private final int stride;
+    /** the transition of each state for each alphabet index + 1, index 0 is for all other characters */
+    private final int[] transitions;
+    /** the indexes of the patterns that end in each state */
+    private final int[][] outputs;
+
+    public MultiStringMatcher(Collection<String> patterns) {
+        LinkedHashSet<String> distinct = new LinkedHashSet<>(patterns);
+        this.hasEmptyPattern = distinct.remove("");
+        this.patterns = new ArrayList<>(distinct);
+
+        StringBuilder chars = new StringBuilder();
+        int totalLength = 0;
+        for (String pattern : this.patterns) {
+            chars.append(pattern);
+            totalLength += pattern.length();
+        }
+        char[] allChars = chars.toString().toCharArray();
+        Arrays.sort(allChars);
+        int distinctChars = 0;
+        for (int i = 0; i < allChars.length; i++) {
+            if (i == 0 || allChars[i] != allChars[i - 1]) {
+                allChars[distinctChars++] = allChars[i];
+            }
+        }
+        alphabet = Arrays.copyOf(allChars, distinctChars);
+        for (int i = 0; i < alphabet.length && alphabet[i] < ASCII_TABLE_SIZE; i++) {
+            asciiIndex[alphabet[i]] = i + 1;
+        }
+        stride = alphabet.length + 1;
+
+        // build the trie, state 0 is the root, a transition to 0 means there is no child yet
+        int[] trie = new int[(totalLength + 1) * stride];
+        int[] ownOutput = new int[totalLength + 1];
+        Arrays.fill(ownOutput, -1);
+        int stateCount = 1;
+        for (int p = 0; p < this.patterns.size(); p++) {
+            String pattern = this.patterns.get(p);
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                int slot = state * stride + indexOf(pattern.charAt(i));
+                if (trie[slot] == 0) {
+                    trie[slot] = stateCount++;
+                }
+                state = trie[slot];
+            }
+            ownOutput[state] = p;
+        }
+
+        // turn the trie into a complete automaton in breadth first order, following the failure links
+        transitions = Arrays.copyOf(trie, stateCount * stride);
+        outputs = new int[stateCount][];
+        int[] failure = new int[stateCount];
+        int[] queue = new int[stateCount];
+        int head = 0;
+        int tail = 0;
+        outputs[0] = NO_OUTPUT;
+        for (int c = 0; c < stride; c++) {
+            int child = transitions[c];
+            if (child != 0) {
+                failure[child] = 0;
+                outputs[child] = withOutput(NO_OUTPUT, ownOutput[child]);
+                queue[tail++] = child;
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            for (int c = 0; c < stride; c++) {
+                int slot = state * stride + c;
+                int child = transitions[slot];
+                int fallback = transitions[failure[state] * stride + c];
+                if (child != 0) {
+                    failure[child] = fallback;
+                    outputs[child] = withOutput(outputs[fallback], ownOutput[child]);
+                    queue[tail++] = child;
+                } else {
+                    transitions[slot] = fallback;
+                }
+            }
+        }
+    }
+
+    private static int[] withOutput(int[] inherited, int own) {
+        if (own < 0) {
+            return inherited;
+        }
+        int[] result = Arrays.copyOf(inherited, inherited.length + 1);
+        result[inherited.length] = own;
+        return result;
+    }
+
+    private int indexOf(char c) {
+        if (c < ASCII_TABLE_SIZE) {
+            return asciiIndex[c];
+        }
+        int index = Arrays.binarySearch(alphabet, c);
+        return index < 0 ? 0 : index + 1;
+    }
+
+    /**
+     * Returns the number of distinct patterns.
+     */
+    public int getPatternCount() {
+        return patterns.size() + (hasEmptyPattern ? 1 : 0);
+    }
+
+    /**
+     * Returns whether the text contains at least one of the patterns.
+     */
+    public boolean containsAny(CharSequence text) {
+        if (hasEmptyPattern) {
+            return true;
+        }
+        int state = 0;
+        for (int i = 0, length = text.length(); i < length; i++) {
+            state = transitions[state * stride + indexOf(text.charAt(i))];
+            if (outputs[state].length > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the text contains all of the patterns.
+     */
+    public boolean containsAll(CharSequence text) {
+        int remaining = patterns.size();
+        if (remaining == 0) {
+            return true;
+        }
+        boolean[] found = new boolean[remaining];
+        int state = 0;
+        for (int i = 0, length = text.length(); i < length; i++) {
+            state = transitions[state * stride + indexOf(text.charAt(i))];
+            for (int pattern : outputs[state]) {
+                if (!found[pattern]) {
+                    found[pattern] = true;
+                    if (--remaining == 0) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,42 @@
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+/**
+ * Limits the rate at which a progress notification is updated. Each update of a notification
+ * is an IPC call to the system, which is too expensive to be made for every packet of a
+ * transfer.
+ *
+ * Ongoing progress is passed only when the percentage changed and the last update is at least
+ * the given interval ago. The first update of a transfer, the final one, which is not ongoing,
+ * and updates with a new text are always passed.
+ */
+public class ProgressThrottle {
+    private final long minIntervalMillis;
+    private boolean ongoing;
+    private String lastText;
+    private int lastPercentage = -1;
+    private long lastUpdateMillis;
+
+    public ProgressThrottle(long minIntervalMillis) {
+        this.minIntervalMillis = minIntervalMillis;
+    }
+
+    /**
+     * @return whether the notification should be updated with the given progress
+     */
+    public synchronized boolean update(boolean ongoing, String text, int percentage, long nowMillis) {
+        if (ongoing && this.ongoing && percentage < 100 && equals(text, lastText)) {
+            if (percentage == lastPercentage || nowMillis - lastUpdateMillis < minIntervalMillis) {
+                return false;
+            }
+        }
+        this.ongoing = ongoing;
+        lastText = text;
+        lastPercentage = percentage;
+        lastUpdateMillis = nowMillis;
+        return true;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -495,6 +495,10 @@ public class RtlUtils {
      * @return a fix string.
      */
     public static String fixRtl(String oldString) {
+        return fixRtl(oldString, contextualSupport());
+    }
+
+    private static String fixRtl(String oldString, boolean contextualSupport) {
         if (oldString == null || oldString.isEmpty()){
             return oldString;
         }
@@ -561,7 +565,7 @@ public class RtlUtils {
                 phraseString = phrase.toString();
                 debug("phrase:   |" + phraseString + "|");
                 if (PhraseRtlType == characterType.rtl) {
-                    if (contextualSupport()) {
+                    if (contextualSupport) {
                         phraseString = convertToContextual(phraseString);
                     }
                     phraseString = reverse(phraseString);
@@ -606,6 +610,21 @@ public class RtlUtils {
         return newString;
     }
 
+    private static final TextTransform fixRtlTransform = new TextTransform() {
+        @Override
+        public boolean transform(CharSequence text, StringBuilder out) {
+            out.append(fixRtl(text.toString()));
+            return true;
+        }
+    };
+
+    /**
+     * @return {@link #fixRtl(String)} as a step of a {@link TextTransformPipeline}
+     */
+    public static TextTransform getFixRtlTransform() {
+        return fixRtlTransform;
+    }
+
     private static void debug(String s) {
 //        Log.d("ROIGR", s);
     }
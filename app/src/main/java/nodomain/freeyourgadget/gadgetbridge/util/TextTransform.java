@@ -0,0 +1,15 @@
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+/**
+ * A step of a {@link TextTransformPipeline}, e.g. transliteration or emoji conversion.
+ */
+public interface TextTransform {
+    /**
+     * Appends the transformed text to the given builder.
+     *
+     * @param text the text to transform, not empty
+     * @param out  the builder to append to, empty
+     * @return false if the text is unchanged, in which case nothing may have been appended
+     */
+    boolean transform(CharSequence text, StringBuilder out);
+}
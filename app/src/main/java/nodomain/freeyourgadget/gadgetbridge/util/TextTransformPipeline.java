@@ -0,0 +1,77 @@
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies several {@link TextTransform}s to a text, e.g. the transliteration and the RTL fixes
+ * the user enabled, or the filters of a device. The steps write into two builders that are
+ * reused for all texts, and steps that leave a text unchanged cost no copy.
+ * <p>
+ * Instances may be shared between threads, each thread uses its own builders.
+ */
+public class TextTransformPipeline {
+    // do not keep the memory of an unusually long text
+    private static final int MAX_RETAINED_CAPACITY = 4096;
+
+    private final TextTransform[] transforms;
+    private final ThreadLocal<StringBuilder[]> threadBuffers = new ThreadLocal<StringBuilder[]>() {
+        @Override
+        protected StringBuilder[] initialValue() {
+            return new StringBuilder[]{new StringBuilder(), new StringBuilder()};
+        }
+    };
+
+    public TextTransformPipeline(List<? extends TextTransform> transforms) {
+        this.transforms = transforms.toArray(new TextTransform[0]);
+    }
+
+    public boolean isEmpty() {
+        return transforms.length == 0;
+    }
+
+    public String apply(String text) {
+        if (text == null || text.isEmpty()) {
+            return text;
+        }
+        StringBuilder[] buffers = threadBuffers.get();
+        CharSequence current = text;
+        int next = 0;
+        for (TextTransform transform : transforms) {
+            StringBuilder out = buffers[next];
+            out.setLength(0);
+            if (transform.transform(current, out)) {
+                current = out;
+                next ^= 1;
+                if (current.length() == 0) {
+                    break;
+                }
+            }
+        }
+        String result = current.toString();
+        for (int i = 0; i < buffers.length; i++) {
+            if (buffers[i].capacity() > MAX_RETAINED_CAPACITY) {
+                buffers[i] = new StringBuilder();
+            }
+        }
+        return result;
+    }
+
+    public static class Builder {
+        private final List<TextTransform> transforms = new ArrayList<>();
+
+        public Builder add(TextTransform transform) {
+            transforms.add(transform);
+            return this;
+        }
+
+        public Builder addAll(List<? extends TextTransform> transforms) {
+            this.transforms.addAll(transforms);
+            return this;
+        }
+
+        public TextTransformPipeline build() {
+            return new TextTransformPipeline(transforms);
+        }
+    }
+}
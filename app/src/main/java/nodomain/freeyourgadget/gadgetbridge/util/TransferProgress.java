@@ -0,0 +1,89 @@
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
+
+import nodomain.freeyourgadget.gadgetbridge.R;
+
+/**
+ * Reports the progress of a long running transfer, e.g. a firmware installation or an activity
+ * data fetch, in the install or transfer notification. Along with the percentage, the notification shows the
+ * throughput and the estimated time left, which are computed from the bytes transferred since
+ * the first update.
+ *
+ * Updates are rate limited like those of {@link GB#updateInstallNotification} and
+ * {@link GB#updateTransferNotification}, and skipped updates cost no more than a comparison, so
+ * that this can be called for every packet. Each transfer has a throttle of its own, so its first
+ * update is shown even if the previous transfer ended without a final update.
+ */
+public class TransferProgress {
+    // show no estimates before they are somewhat stable
+    private static final long MIN_ESTIMATE_MILLIS = 2000;
+
+    private final boolean install;
+    private final String title;
+    private final String text;
+    private final Context context;
+    private final ProgressThrottle throttle = new ProgressThrottle(GB.PROGRESS_UPDATE_INTERVAL_MILLIS);
+    private long startMillis = -1;
+    private long startBytes;
+
+    private TransferProgress(boolean install, String title, String text, Context context) {
+        this.install = install;
+        this.title = title;
+        this.text = text;
+        this.context = context;
+    }
+
+    /**
+     * Creates a progress for the install notification.
+     */
+    public static TransferProgress forInstall(String text, Context context) {
+        return new TransferProgress(true, null, text, context);
+    }
+
+    /**
+     * Creates a progress for the transfer notification.
+     */
+    public static TransferProgress forTransfer(String title, String text, Context context) {
+        return new TransferProgress(false, title, text, context);
+    }
+
+    public void update(long bytesDone, long bytesTotal) {
+        long now = SystemClock.elapsedRealtime();
+        if (startMillis < 0) {
+            startMillis = now;
+            startBytes = bytesDone;
+        }
+        int percentage = bytesTotal > 0 ? (int) (bytesDone * 100 / bytesTotal) : 0;
+        if (!throttle.update(true, text, percentage, now)) {
+            return;
+        }
+
+        String progressText = text;
+        long bytesPerSecond = getBytesPerSecond(bytesDone - startBytes, now - startMillis);
+        if (now - startMillis >= MIN_ESTIMATE_MILLIS && bytesPerSecond > 0) {
+            progressText = context.getString(R.string.transfer_progress_rate, text,
+                    Formatter.formatShortFileSize(context, bytesPerSecond),
+                    DateUtils.formatElapsedTime(getSecondsLeft(bytesTotal - bytesDone, bytesPerSecond)));
+        }
+        if (install) {
+            GB.postInstallNotification(progressText, true, percentage, context);
+        } else {
+            GB.postTransferNotification(title, progressText, true, percentage, context);
+        }
+    }
+
+    static long getBytesPerSecond(long bytes, long millis) {
+        return millis > 0 ? bytes * 1000 / millis : 0;
+    }
+
+    static long getSecondsLeft(long bytesLeft, long bytesPerSecond) {
+        if (bytesLeft <= 0) {
+            return 0;
+        }
+        return (bytesLeft + bytesPerSecond - 1) / bytesPerSecond;
+    }
+}
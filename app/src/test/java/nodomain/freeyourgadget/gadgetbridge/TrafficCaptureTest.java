@@ -0,0 +1,137 @@
+package nodomain.freeyourgadget.gadgetbridge;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TrafficCaptureTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("btsnoop", ".log");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testFrames() throws IOException {
+        TrafficCapture capture = new TrafficCapture(file, 16, 20);
+        assertTrue(capture.capture(false, TrafficCapture.ATT_WRITE_COMMAND, 0x2a, new byte[]{9, 1, 2, 3, 4, 9}, 1, 4));
+        capture.capture(true, TrafficCapture.ATT_HANDLE_VALUE_NOTIFICATION, 0x102, new byte[]{5, 6}, 0, 2);
+        capture.capture(true, TrafficCapture.ATT_READ_RESPONSE, 0x2b, new byte[]{7}, 0, 1);
+        capture.capture(false, TrafficCapture.ATT_WRITE_REQUEST, 0x2a, new byte[30], 0, 30);
+        capture.close();
+
+        List<Record> records = readRecords(file);
+        assertEquals(4, records.size());
+
+        Record write = records.get(0);
+        assertEquals(0, write.flags);
+        assertArrayEquals(new byte[]{0x02, 0x01, 0x20, 11, 0, 7, 0, 4, 0, 0x52, 0x2a, 0, 1, 2, 3, 4}, write.data);
+
+        Record notification = records.get(1);
+        assertEquals(1, notification.flags);
+        assertArrayEquals(new byte[]{0x1b, 0x02, 0x01, 5, 6}, Arrays.copyOfRange(notification.data, 9, 14));
+
+        Record readResponse = records.get(2);
+        assertArrayEquals(new byte[]{0x0b, 7}, Arrays.copyOfRange(readResponse.data, 9, 11));
+
+        Record truncated = records.get(3);
+        assertEquals(12 + 30, truncated.originalLength);
+        assertEquals(12 + 20, truncated.data.length);
+        assertEquals(0, truncated.drops);
+
+        assertTrue(write.timestamp <= readResponse.timestamp);
+        long nowMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()) + 0x00dcddb30f2f8000L;
+        assertTrue(Math.abs(nowMicros - write.timestamp) < TimeUnit.MINUTES.toMicros(1));
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int threadCount = 4;
+        final int framesPerThread = 20000;
+        final TrafficCapture capture = new TrafficCapture(file, 64, 20);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            final int handle = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    byte[] value = new byte[4];
+                    for (int i = 0; i < framesPerThread; i++) {
+                        value[0] = (byte) (i >> 24);
+                        value[1] = (byte) (i >> 16);
+                        value[2] = (byte) (i >> 8);
+                        value[3] = (byte) i;
+                        capture.capture(true, TrafficCapture.ATT_HANDLE_VALUE_NOTIFICATION, handle, value, 0, value.length);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        capture.close();
+
+        List<Record> records = readRecords(file);
+        assertEquals(threadCount * framesPerThread, records.size() + capture.getDroppedCount());
+        // the frames of each thread are in order
+        int[] lastFrames = new int[]{-1, -1, -1, -1};
+        for (Record record : records) {
+            int handle = record.data[10] & 0xff;
+            int frame = ((record.data[12] & 0xff) << 24) | ((record.data[13] & 0xff) << 16)
+                    | ((record.data[14] & 0xff) << 8) | (record.data[15] & 0xff);
+            assertTrue(frame > lastFrames[handle]);
+            lastFrames[handle] = frame;
+        }
+    }
+
+    private static List<Record> readRecords(File file) throws IOException {
+        List<Record> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            byte[] magic = new byte[8];
+            in.readFully(magic);
+            assertArrayEquals("btsnoop\0".getBytes("US-ASCII"), magic);
+            assertEquals(1, in.readInt());
+            assertEquals(1002, in.readInt());
+            while (in.available() > 0) {
+                Record record = new Record();
+                record.originalLength = in.readInt();
+                record.data = new byte[in.readInt()];
+                record.flags = in.readInt();
+                record.drops = in.readInt();
+                record.timestamp = in.readLong();
+                in.readFully(record.data);
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    private static class Record {
+        int originalLength;
+        int flags;
+        int drops;
+        long timestamp;
+        byte[] data;
+    }
+}
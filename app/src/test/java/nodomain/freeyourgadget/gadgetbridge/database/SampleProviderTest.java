@@ -2,20 +2,42 @@ package nodomain.freeyourgadget.gadgetbridge.database;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.List;
+import java.util.TimeZone;
 
+import nodomain.freeyourgadget.gadgetbridge.activities.charts.ActivityAnalysis;
+import nodomain.freeyourgadget.gadgetbridge.activities.charts.SampleBlock;
+import nodomain.freeyourgadget.gadgetbridge.activities.charts.SleepAnalysis;
+import nodomain.freeyourgadget.gadgetbridge.devices.ActivityRollupHelper;
+import nodomain.freeyourgadget.gadgetbridge.devices.ActivitySampleVisitor;
 import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.hplus.HPlusHealthSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiConst;
+import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBand2SampleProvider;
 import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandSampleProvider;
 import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.ActivityRollup;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.HPlusHealthActivityOverlay;
+import nodomain.freeyourgadget.gadgetbridge.entities.HPlusHealthActivityOverlayDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.HPlusHealthActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.entities.User;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmount;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmounts;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.hplus.HPlusDataRecord;
 import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
@@ -170,4 +192,328 @@ public class SampleProviderTest extends TestBase {
         sleepSamples = sampleProvider.getSleepSamples(1500, 2500);
         assertEquals(1, sleepSamples.size());
     }
+
+    @Test
+    public void testActivityRollups() {
+        MiBandSampleProvider sampleProvider = new MiBandSampleProvider(dummyGBDevice, daoSession);
+        User user = DBHelper.getUser(daoSession);
+        Device device = DBHelper.getDevice(dummyGBDevice, daoSession);
+
+        // no samples yet => rollups are trivially complete, but empty
+        ActivityAmounts amounts = sampleProvider.getActivityAmountsFromRollups(0, 24 * 3600 - 1);
+        assertNotNull(amounts);
+        assertEquals(0, amounts.getAmounts().size());
+
+        MiBandActivitySample[] samples = new MiBandActivitySample[120];
+        for (int i = 0; i < samples.length; i++) {
+            int rawKind = i < 60 ? MiBandSampleProvider.TYPE_ACTIVITY : MiBandSampleProvider.TYPE_DEEP_SLEEP;
+            samples[i] = createSample(sampleProvider, rawKind, 3600 + i * 60, 10, 60 + i % 10, 5, user, device);
+        }
+        sampleProvider.addGBActivitySamples(samples);
+        sampleProvider.addGBActivitySample(samples[10]); // add again, must not be counted twice
+        // the single sample only marks its hour as outdated, readers use the samples then
+        assertNull(sampleProvider.getActivityAmountsFromRollups(0, 24 * 3600 - 1));
+        // the next batch recomputes the outdated hour
+        sampleProvider.addGBActivitySamples(Arrays.copyOfRange(samples, 100, 110));
+
+        ActivityAmounts expected = new ActivityAnalysis().calculateActivityAmounts(sampleProvider.getAllActivitySamples(0, 24 * 3600 - 1));
+        amounts = sampleProvider.getActivityAmountsFromRollups(0, 24 * 3600 - 1);
+        assertNotNull(amounts);
+        assertEquals(expected.getAmounts().size(), amounts.getAmounts().size());
+        long expectedSteps = 0;
+        long steps = 0;
+        for (int i = 0; i < expected.getAmounts().size(); i++) {
+            ActivityAmount expectedAmount = expected.getAmounts().get(i);
+            ActivityAmount amount = amounts.getAmounts().get(i);
+            assertEquals(expectedAmount.getActivityKind(), amount.getActivityKind());
+            assertEquals(expectedAmount.getTotalSeconds(), amount.getTotalSeconds());
+            expectedSteps += expectedAmount.getTotalSteps();
+            steps += amount.getTotalSteps();
+        }
+        // rollups do not keep the steps per activity kind, only the total
+        assertEquals(expectedSteps, steps);
+
+        List<ActivityRollup> rollups = new ActivityRollupHelper(sampleProvider, device.getId()).getRollups(0, 24 * 3600 - 1);
+        assertEquals(2, rollups.size());
+        assertEquals(3600, rollups.get(0).getTimestamp());
+        assertEquals(60, rollups.get(0).getSampleCount());
+        assertEquals(300, rollups.get(0).getSteps());
+        assertEquals(60, rollups.get(0).getHeartRateMin());
+        assertEquals(69, rollups.get(0).getHeartRateMax());
+    }
+
+    @Test
+    public void testActivityRollupsInHalfHourTimeZone() {
+        MiBandSampleProvider sampleProvider = new MiBandSampleProvider(dummyGBDevice, daoSession);
+        User user = DBHelper.getUser(daoSession);
+        Device device = DBHelper.getDevice(dummyGBDevice, daoSession);
+
+        TimeZone defaultTimeZone = TimeZone.getDefault();
+        try {
+            TimeZone.setDefault(TimeZone.getTimeZone("Asia/Kolkata"));
+            Calendar day = Calendar.getInstance();
+            day.setTimeInMillis(10 * 24 * 3600 * 1000L);
+            day.set(Calendar.HOUR_OF_DAY, 0);
+            day.set(Calendar.MINUTE, 0);
+            day.set(Calendar.SECOND, 0);
+            day.set(Calendar.MILLISECOND, 0);
+            int startTs = (int) (day.getTimeInMillis() / 1000);
+            int endTs = startTs + 24 * 3600 - 1;
+            assertEquals(1800, startTs % 3600);
+
+            MiBandActivitySample[] samples = new MiBandActivitySample[48];
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = createSample(sampleProvider, MiBandSampleProvider.TYPE_ACTIVITY, startTs - 3600 + i * 900, 10, 70, 10, user, device);
+            }
+            sampleProvider.addGBActivitySamples(samples);
+
+            // the local day starts in the middle of a rollup hour, so the samples have to be used
+            assertNull(sampleProvider.getActivityAmountsFromRollups(startTs, endTs));
+            assertNotNull(sampleProvider.getActivityAmountsFromRollups(startTs - 1800, endTs - 1800));
+        } finally {
+            TimeZone.setDefault(defaultTimeZone);
+        }
+    }
+
+    @Test
+    public void testActivityRollupsDetectMissingSamples() {
+        MiBandSampleProvider sampleProvider = new MiBandSampleProvider(dummyGBDevice, daoSession);
+        User user = DBHelper.getUser(daoSession);
+        Device device = DBHelper.getDevice(dummyGBDevice, daoSession);
+
+        MiBandActivitySample[] samples = new MiBandActivitySample[10];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = createSample(sampleProvider, MiBandSampleProvider.TYPE_ACTIVITY, 3600 + i * 60, 10, 70, 10, user, device);
+        }
+        sampleProvider.addGBActivitySamples(samples);
+        assertNotNull(sampleProvider.getActivityAmountsFromRollups(0, 24 * 3600 - 1));
+
+        // a sample in the middle of the history that was not written through the provider
+        MiBandActivitySample unrolled = createSample(sampleProvider, MiBandSampleProvider.TYPE_ACTIVITY, 3 * 3600, 10, 70, 10, user, device);
+        sampleProvider.getSampleDao().insert(unrolled);
+        assertNull(sampleProvider.getActivityAmountsFromRollups(0, 24 * 3600 - 1));
+
+        sampleProvider.addGBActivitySample(unrolled);
+        assertNull(sampleProvider.getActivityAmountsFromRollups(0, 24 * 3600 - 1));
+
+        // a sample of another hour recomputes the outdated one, and is outdated itself
+        sampleProvider.addGBActivitySample(createSample(sampleProvider, MiBandSampleProvider.TYPE_ACTIVITY, 5 * 3600, 10, 70, 10, user, device));
+        assertNull(sampleProvider.getActivityAmountsFromRollups(0, 24 * 3600 - 1));
+        ActivityAmounts amounts = sampleProvider.getActivityAmountsFromRollups(0, 5 * 3600 - 1);
+        assertNotNull(amounts);
+        assertEquals(110, amounts.getAmounts().get(0).getTotalSteps());
+    }
+
+    @Test
+    public void testVisitSamples() {
+        MiBandSampleProvider sampleProvider = new MiBandSampleProvider(dummyGBDevice, daoSession);
+        User user = DBHelper.getUser(daoSession);
+        Device device = DBHelper.getDevice(dummyGBDevice, daoSession);
+
+        MiBandActivitySample s1 = createSample(sampleProvider, MiBandSampleProvider.TYPE_ACTIVITY, 300, 10, 70, 1000, user, device);
+        MiBandActivitySample s2 = createSample(sampleProvider, MiBandSampleProvider.TYPE_ACTIVITY, 100, 20, 80, 1030, user, device);
+        MiBandActivitySample s3 = createSample(sampleProvider, MiBandSampleProvider.TYPE_DEEP_SLEEP, 200, 10, 62, 4030, user, device);
+        sampleProvider.addGBActivitySamples(new MiBandActivitySample[] { s1, s2, s3 });
+
+        final List<Integer> timestamps = new ArrayList<>();
+        sampleProvider.visitAllActivitySamples(0, 250, new ActivitySampleVisitor<MiBandActivitySample>() {
+            @Override
+            public void visit(MiBandActivitySample sample) {
+                assertNotNull(sample.getProvider());
+                timestamps.add(sample.getTimestamp());
+            }
+        });
+        assertEquals(Arrays.asList(100, 200), timestamps);
+
+        ActivityAnalysis analysis = new ActivityAnalysis();
+        ActivityAmounts streamed = analysis.calculateActivityAmounts(sampleProvider, 0, 1000);
+        ActivityAmounts listed = analysis.calculateActivityAmounts(sampleProvider.getAllActivitySamples(0, 1000));
+        assertEquals(listed.getTotalSeconds(), streamed.getTotalSeconds());
+        assertEquals(listed.getAmounts().size(), streamed.getAmounts().size());
+    }
+
+    @Test
+    public void testSampleBlock() {
+        MiBandSampleProvider sampleProvider = new MiBandSampleProvider(dummyGBDevice, daoSession);
+        User user = DBHelper.getUser(daoSession);
+        Device device = DBHelper.getDevice(dummyGBDevice, daoSession);
+
+        MiBandActivitySample s1 = createSample(sampleProvider, MiBandSampleProvider.TYPE_ACTIVITY, 100, 10, 70, 1000, user, device);
+        MiBandActivitySample s2 = createSample(sampleProvider, MiBandSampleProvider.TYPE_DEEP_SLEEP, 200, 20, 62, 1030, user, device);
+        MiBandActivitySample s3 = createSample(sampleProvider, MiBandSampleProvider.TYPE_LIGHT_SLEEP, 300, 30, 64, 4030, user, device);
+        sampleProvider.addGBActivitySamples(new MiBandActivitySample[] { s1, s2, s3 });
+
+        SampleBlock block = SampleBlock.load(sampleProvider, 0, 1000);
+        assertEquals(3, block.size());
+        assertEquals(200, block.getTimestamp(1));
+        assertEquals(ActivityKind.TYPE_DEEP_SLEEP, block.getKind(1));
+        assertEquals(ActivityKind.TYPE_LIGHT_SLEEP, block.getKind(2));
+        assertEquals(1030, block.getSteps(1));
+        assertEquals(62, block.getHeartRate(1));
+        assertEquals(s2.getIntensity(), block.getIntensity(1), 0.0001f);
+
+        block.ensureStartAndEnd(50, 400);
+        assertEquals(5, block.size());
+        assertEquals(50, block.getTimestamp(0));
+        assertEquals(400, block.getTimestamp(4));
+        assertTrue(block.isPadding(0));
+        assertTrue(block.isPadding(4));
+        assertFalse(block.isPadding(1));
+
+        block.retainRange(100, 300);
+        assertEquals(3, block.size());
+        assertFalse(block.isPadding(0));
+        assertFalse(block.isPadding(2));
+        assertEquals(ActivityKind.TYPE_ACTIVITY, block.getKind(0));
+
+        List<MiBandActivitySample> samples = sampleProvider.getAllActivitySamples(0, 1000);
+        List<SleepAnalysis.SleepSession> listed = new SleepAnalysis().calculateSleepSessions(samples);
+        List<SleepAnalysis.SleepSession> blocked = new SleepAnalysis().calculateSleepSessions(SampleBlock.of(samples));
+        assertEquals(listed.size(), blocked.size());
+        for (int i = 0; i < listed.size(); i++) {
+            assertEquals(listed.get(i).getLightSleepDuration(), blocked.get(i).getLightSleepDuration());
+            assertEquals(listed.get(i).getDeepSleepDuration(), blocked.get(i).getDeepSleepDuration());
+        }
+    }
+
+    @Test
+    public void testSampleArchive() {
+        final int day = 24 * 3600;
+        MiBandSampleProvider sampleProvider = new MiBandSampleProvider(dummyGBDevice, daoSession);
+        User user = DBHelper.getUser(daoSession);
+        Device device = DBHelper.getDevice(dummyGBDevice, daoSession);
+
+        // two days of samples every 10 minutes
+        MiBandActivitySample[] samples = new MiBandActivitySample[2 * 144];
+        for (int i = 0; i < samples.length; i++) {
+            int rawKind = i % 2 == 0 ? MiBandSampleProvider.TYPE_ACTIVITY : MiBandSampleProvider.TYPE_DEEP_SLEEP;
+            samples[i] = createSample(sampleProvider, rawKind, day + i * 600, i % 50, 60 + i % 20, i, user, device);
+        }
+        sampleProvider.addGBActivitySamples(samples);
+        List<MiBandActivitySample> before = sampleProvider.getAllActivitySamples(0, 4 * day);
+        ActivityAmounts amountsBefore = sampleProvider.getActivityAmountsFromRollups(0, 4 * day);
+        assertNotNull(amountsBefore);
+
+        // only the first day is complete before the given time
+        assertEquals(144, sampleProvider.archiveSamplesOlderThan(2 * day + 100));
+        assertEquals(144, daoSession.getMiBandActivitySampleDao().count());
+        assertEquals(1, daoSession.getActivitySampleArchiveDao().count());
+        assertEquals(0, sampleProvider.archiveSamplesOlderThan(2 * day + 100));
+
+        List<MiBandActivitySample> after = sampleProvider.getAllActivitySamples(0, 4 * day);
+        assertEquals(before.size(), after.size());
+        for (int i = 0; i < before.size(); i++) {
+            assertEquals(before.get(i).getTimestamp(), after.get(i).getTimestamp());
+            assertEquals(before.get(i).getSteps(), after.get(i).getSteps());
+            assertEquals(before.get(i).getRawKind(), after.get(i).getRawKind());
+            assertEquals(before.get(i).getRawIntensity(), after.get(i).getRawIntensity());
+            assertEquals(before.get(i).getHeartRate(), after.get(i).getHeartRate());
+            assertNotNull(after.get(i).getProvider());
+        }
+        assertEquals(144, sampleProvider.getSleepSamples(0, 4 * day).size());
+        assertEquals(13, sampleProvider.getAllActivitySamples(2 * day - 3600, 2 * day + 3600).size());
+
+        final List<Integer> timestamps = new ArrayList<>();
+        sampleProvider.visitAllActivitySamples(2 * day - 3600, 2 * day + 3600, new ActivitySampleVisitor<MiBandActivitySample>() {
+            @Override
+            public void visit(MiBandActivitySample sample) {
+                timestamps.add(sample.getTimestamp());
+            }
+        });
+        assertEquals(13, timestamps.size());
+        assertEquals(2 * day - 3600, timestamps.get(0).intValue());
+        assertEquals(2 * day, timestamps.get(6).intValue());
+
+        ActivityAmounts amountsAfter = sampleProvider.getActivityAmountsFromRollups(0, 4 * day);
+        assertNotNull(amountsAfter);
+        assertEquals(amountsBefore.getTotalSeconds(), amountsAfter.getTotalSeconds());
+
+        // samples added for an archived day take precedence and are merged into its block later
+        MiBandActivitySample changed = createSample(sampleProvider, MiBandSampleProvider.TYPE_ACTIVITY, day + 600, 10, 70, 999, user, device);
+        sampleProvider.addGBActivitySample(changed);
+        List<MiBandActivitySample> single = sampleProvider.getAllActivitySamples(day + 600, day + 600);
+        assertEquals(1, single.size());
+        assertEquals(999, single.get(0).getSteps());
+        assertEquals(1, sampleProvider.archiveSamplesOlderThan(2 * day));
+        single = sampleProvider.getAllActivitySamples(day + 600, day + 600);
+        assertEquals(1, single.size());
+        assertEquals(999, single.get(0).getSteps());
+        assertEquals(288, sampleProvider.getAllActivitySamples(0, 4 * day).size());
+
+        // at most the given number of days are archived per call
+        sampleProvider.addGBActivitySample(changed);
+        assertEquals(1, sampleProvider.archiveSamplesOlderThan(10 * day, 1));
+        assertEquals(144, daoSession.getMiBandActivitySampleDao().count());
+
+        // with everything archived, the latest sample comes from the archive
+        assertEquals(144, sampleProvider.archiveSamplesOlderThan(10 * day));
+        assertEquals(0, daoSession.getMiBandActivitySampleDao().count());
+        MiBandActivitySample latest = sampleProvider.getLatestActivitySample();
+        assertNotNull(latest);
+        assertEquals(day + (samples.length - 1) * 600, latest.getTimestamp());
+    }
+
+    @Test
+    public void testMiBand2KindContinuesFromArchive() {
+        final int day = 24 * 3600;
+        MiBand2SampleProvider sampleProvider = new MiBand2SampleProvider(dummyGBDevice, daoSession);
+        User user = DBHelper.getUser(daoSession);
+        Device device = DBHelper.getDevice(dummyGBDevice, daoSession);
+
+        // light sleep at the start of the first day, no change after that
+        MiBandActivitySample[] samples = new MiBandActivitySample[2 * 144];
+        for (int i = 0; i < samples.length; i++) {
+            int rawKind = i == 0 ? HuamiConst.TYPE_LIGHT_SLEEP : HuamiConst.TYPE_NO_CHANGE;
+            samples[i] = createSample(sampleProvider, rawKind, day + i * 600, 10, 60, 0, user, device);
+        }
+        sampleProvider.addGBActivitySamples(samples);
+        assertEquals(144, sampleProvider.archiveSamplesOlderThan(2 * day));
+
+        List<MiBandActivitySample> secondDay = sampleProvider.getAllActivitySamples(2 * day, 3 * day);
+        assertEquals(144, secondDay.size());
+        for (MiBandActivitySample sample : secondDay) {
+            assertEquals(HuamiConst.TYPE_LIGHT_SLEEP, sample.getRawKind());
+        }
+
+        final List<Integer> kinds = new ArrayList<>();
+        sampleProvider.visitAllActivitySamples(2 * day, 3 * day, new ActivitySampleVisitor<MiBandActivitySample>() {
+            @Override
+            public void visit(MiBandActivitySample sample) {
+                kinds.add(sample.getRawKind());
+            }
+        });
+        assertEquals(144, kinds.size());
+        assertEquals(HuamiConst.TYPE_LIGHT_SLEEP, kinds.get(0).intValue());
+    }
+
+    @Test
+    public void testHPlusNotWornOverlayWinsOverSleep() {
+        final int day = 24 * 3600;
+        HPlusHealthSampleProvider sampleProvider = new HPlusHealthSampleProvider(dummyGBDevice, daoSession);
+        User user = DBHelper.getUser(daoSession);
+        Device device = DBHelper.getDevice(dummyGBDevice, daoSession);
+
+        for (int timestamp = day; timestamp < day + 8 * 3600; timestamp += 600) {
+            daoSession.getHPlusHealthActivitySampleDao().insert(new HPlusHealthActivitySample(timestamp, device.getId(), user.getId(),
+                    null, HPlusDataRecord.TYPE_REALTIME, 50, 0, 70, ActivitySample.NOT_MEASURED, ActivitySample.NOT_MEASURED));
+        }
+        // a not worn overlay within a sleep overlay, stored before and after the sleep overlay
+        HPlusHealthActivityOverlayDao overlayDao = daoSession.getHPlusHealthActivityOverlayDao();
+        overlayDao.insert(new HPlusHealthActivityOverlay(day + 3600, day + 2 * 3600, ActivityKind.TYPE_NOT_WORN, device.getId(), user.getId(), null));
+        overlayDao.insert(new HPlusHealthActivityOverlay(day, day + 4 * 3600, ActivityKind.TYPE_LIGHT_SLEEP, device.getId(), user.getId(), null));
+        overlayDao.insert(new HPlusHealthActivityOverlay(day + 4 * 3600, day + 8 * 3600, ActivityKind.TYPE_DEEP_SLEEP, device.getId(), user.getId(), null));
+        overlayDao.insert(new HPlusHealthActivityOverlay(day + 5 * 3600, day + 6 * 3600, ActivityKind.TYPE_NOT_WORN, device.getId(), user.getId(), null));
+
+        for (HPlusHealthActivitySample sample : sampleProvider.getAllActivitySamples(day, day + 8 * 3600)) {
+            int timestamp = sample.getTimestamp();
+            if ((timestamp >= day + 3600 && timestamp < day + 2 * 3600) || (timestamp >= day + 5 * 3600 && timestamp < day + 6 * 3600)) {
+                assertEquals("kind at " + timestamp, ActivityKind.TYPE_NOT_WORN, sample.getRawKind());
+                assertEquals("heart rate at " + timestamp, 0, sample.getHeartRate());
+            } else if (timestamp < day + 4 * 3600) {
+                assertEquals("kind at " + timestamp, ActivityKind.TYPE_LIGHT_SLEEP, sample.getRawKind());
+            } else if (timestamp < day + 8 * 3600) {
+                assertEquals("kind at " + timestamp, ActivityKind.TYPE_DEEP_SLEEP, sample.getRawKind());
+            }
+        }
+    }
 }
@@ -0,0 +1,139 @@
+package nodomain.freeyourgadget.gadgetbridge.devices;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import nodomain.freeyourgadget.gadgetbridge.model.TimeStamped;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class ActivityOverlayMergerTest {
+    private static final int MINUTE = 60;
+    private static final int DAY = 24 * 60 * MINUTE;
+
+    private static final ActivityOverlayMerger<Overlay, Sample> MERGER = new ActivityOverlayMerger<Overlay, Sample>() {
+        @Override
+        protected int getTimestampFrom(Overlay overlay) {
+            return overlay.from;
+        }
+
+        @Override
+        protected int getTimestampTo(Overlay overlay) {
+            return overlay.to;
+        }
+
+        @Override
+        protected void apply(Overlay overlay, Sample sample) {
+            sample.kind = overlay.kind;
+        }
+    };
+
+    @Test
+    public void testMerge() {
+        List<Sample> samples = createSamples(0, 20 * MINUTE);
+        List<Overlay> overlays = Arrays.asList(
+                new Overlay(2 * MINUTE, 10 * MINUTE, 1),
+                new Overlay(4 * MINUTE, 6 * MINUTE, 2),
+                // starts earlier, but wins as it is later in the list
+                new Overlay(MINUTE, 5 * MINUTE, 3),
+                new Overlay(12 * MINUTE, 12 * MINUTE, 4),
+                new Overlay(15 * MINUTE, 30 * MINUTE, 5));
+        MERGER.merge(overlays, samples);
+
+        assertArrayEquals(new int[]{0, 3, 3, 3, 3, 2, 1, 1, 1, 1, 0, 0, 0, 0, 0, 5, 5, 5, 5, 5}, getKinds(samples));
+    }
+
+    @Test
+    public void testMergeLikeNestedLoop() {
+        Random random = new Random(1);
+        List<Overlay> overlays = createOverlays(random, 3);
+        List<Sample> samples = createSamples(0, 3 * DAY);
+        List<Sample> expected = createSamples(0, 3 * DAY);
+
+        MERGER.merge(overlays, samples);
+        mergeNested(overlays, expected);
+        assertArrayEquals(getKinds(expected), getKinds(samples));
+    }
+
+    /**
+     * Applies the overlays like the sample providers used to, one after the other.
+     */
+    private static void mergeNested(List<Overlay> overlays, List<Sample> samples) {
+        for (Overlay overlay : overlays) {
+            for (Sample sample : samples) {
+                if (overlay.from <= sample.getTimestamp() && sample.getTimestamp() < overlay.to) {
+                    sample.kind = overlay.kind;
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a night of sleep overlays per day, which alternate between light and deep sleep,
+     * and a few walks in random order.
+     */
+    private static List<Overlay> createOverlays(Random random, int days) {
+        List<Overlay> overlays = new ArrayList<>();
+        for (int day = 0; day < days; day++) {
+            int from = day * DAY + random.nextInt(2 * 60) * MINUTE;
+            int end = from + (6 + random.nextInt(3)) * 60 * MINUTE;
+            overlays.add(new Overlay(from, end, 1));
+            while (from < end) {
+                int to = from + (10 + random.nextInt(50)) * MINUTE;
+                overlays.add(new Overlay(from, to, 1 + random.nextInt(2)));
+                from = to;
+            }
+            for (int walk = 0; walk < 5; walk++) {
+                int walkFrom = day * DAY + random.nextInt(DAY);
+                overlays.add(new Overlay(walkFrom, walkFrom + random.nextInt(60) * MINUTE, 5));
+            }
+        }
+        return overlays;
+    }
+
+    private static List<Sample> createSamples(int from, int to) {
+        List<Sample> samples = new ArrayList<>((to - from) / MINUTE);
+        for (int timestamp = from; timestamp < to; timestamp += MINUTE) {
+            samples.add(new Sample(timestamp));
+        }
+        return samples;
+    }
+
+    private static int[] getKinds(List<Sample> samples) {
+        int[] kinds = new int[samples.size()];
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = samples.get(i).kind;
+        }
+        return kinds;
+    }
+
+    private static class Overlay {
+        final int from;
+        final int to;
+        final int kind;
+
+        Overlay(int from, int to, int kind) {
+            this.from = from;
+            this.to = to;
+            this.kind = kind;
+        }
+    }
+
+    private static class Sample implements TimeStamped {
+        final int timestamp;
+        int kind;
+
+        Sample(int timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public int getTimestamp() {
+            return timestamp;
+        }
+    }
+}
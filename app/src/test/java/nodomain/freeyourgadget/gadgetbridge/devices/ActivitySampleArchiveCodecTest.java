@@ -0,0 +1,127 @@
+package nodomain.freeyourgadget.gadgetbridge.devices;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ActivitySampleArchiveCodecTest {
+    private static final int MINUTE = 60;
+    private static final int DAY = 24 * 60 * MINUTE;
+
+    private final MiBandSampleProvider provider = new MiBandSampleProvider(null, null);
+
+    @Test
+    public void testZigzag() {
+        for (int value : new int[] { 0, 1, -1, 255, -256, Integer.MAX_VALUE, Integer.MIN_VALUE }) {
+            assertEquals(value, ActivitySampleArchiveCodec.unzigzag(ActivitySampleArchiveCodec.zigzag(value)));
+        }
+        assertEquals(1, ActivitySampleArchiveCodec.zigzag(ActivitySampleArchiveCodec.unzigzag(1)));
+        assertEquals(2, ActivitySampleArchiveCodec.zigzag(1));
+        assertEquals(1, ActivitySampleArchiveCodec.zigzag(-1));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        List<MiBandActivitySample> samples = createDay(1600000000 - 1600000000 % DAY);
+        samples.add(createSample(samples.get(samples.size() - 1).getTimestamp() + 1, Integer.MAX_VALUE, Integer.MIN_VALUE, 0x7f, 255));
+        samples.add(createSample(Integer.MAX_VALUE, ActivitySample.NOT_MEASURED, ActivitySample.NOT_MEASURED, ActivitySample.NOT_MEASURED, ActivitySample.NOT_MEASURED));
+
+        byte[] data = ActivitySampleArchiveCodec.encode(samples);
+        List<MiBandActivitySample> decoded = ActivitySampleArchiveCodec.decode(data, provider, 7, 3);
+
+        assertEquals(samples.size(), decoded.size());
+        for (int i = 0; i < samples.size(); i++) {
+            MiBandActivitySample expected = samples.get(i);
+            MiBandActivitySample sample = decoded.get(i);
+            assertEquals(expected.getTimestamp(), sample.getTimestamp());
+            assertEquals(7, sample.getDeviceId());
+            assertEquals(3, sample.getUserId());
+            assertEquals(expected.getSteps(), sample.getSteps());
+            assertEquals(expected.getRawIntensity(), sample.getRawIntensity());
+            assertEquals(expected.getRawKind(), sample.getRawKind());
+            assertEquals(expected.getHeartRate(), sample.getHeartRate());
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        byte[] data = ActivitySampleArchiveCodec.encode(Collections.<MiBandActivitySample>emptyList());
+        assertEquals(0, ActivitySampleArchiveCodec.decode(data, provider, 1, 1).size());
+    }
+
+    @Test
+    public void testSize() {
+        List<MiBandActivitySample> samples = createDay(0);
+        byte[] data = ActivitySampleArchiveCodec.encode(samples);
+        // a sample in the sample table takes 36 bytes of plain values, not counting the SQLite overhead
+        if (data.length > samples.size() * 8) {
+            fail("archive block too large: " + data.length + " bytes");
+        }
+    }
+
+    @Test
+    public void testInvalidData() {
+        byte[] data = ActivitySampleArchiveCodec.encode(createDay(0));
+        assertInvalid(Arrays.copyOf(data, data.length - 1));
+        assertInvalid(new byte[0]);
+        data[0] = 99;
+        assertInvalid(data);
+
+        List<MiBandActivitySample> unordered = Arrays.asList(createSample(120, 0, 0, 0, 0), createSample(60, 0, 0, 0, 0));
+        try {
+            ActivitySampleArchiveCodec.encode(unordered);
+            fail("unordered samples must not be encoded");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    private void assertInvalid(byte[] data) {
+        try {
+            ActivitySampleArchiveCodec.decode(data, provider, 1, 1);
+            fail("invalid data must not be decoded");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    /**
+     * Creates a day of samples like a band records them: mostly sleep at night,
+     * some walking during the day and a slowly changing heart rate.
+     */
+    private List<MiBandActivitySample> createDay(int dayStart) {
+        Random random = new Random(42);
+        List<MiBandActivitySample> samples = new ArrayList<>();
+        int heartRate = 60;
+        for (int minute = 0; minute < 24 * 60; minute++) {
+            boolean night = minute < 7 * 60 || minute > 23 * 60;
+            int kind = night ? MiBandSampleProvider.TYPE_LIGHT_SLEEP : MiBandSampleProvider.TYPE_ACTIVITY;
+            int steps = night ? 0 : (random.nextInt(10) < 2 ? 80 + random.nextInt(40) : 0);
+            int intensity = night ? random.nextInt(5) : random.nextInt(100);
+            heartRate = Math.max(45, Math.min(150, heartRate + random.nextInt(5) - 2));
+            samples.add(createSample(dayStart + minute * MINUTE, steps, intensity, kind, minute % 97 == 0 ? ActivitySample.NOT_MEASURED : heartRate));
+        }
+        return samples;
+    }
+
+    private MiBandActivitySample createSample(int timestamp, int steps, int rawIntensity, int rawKind, int heartRate) {
+        MiBandActivitySample sample = new MiBandActivitySample();
+        sample.setTimestamp(timestamp);
+        sample.setSteps(steps);
+        sample.setRawIntensity(rawIntensity);
+        sample.setRawKind(rawKind);
+        sample.setHeartRate(heartRate);
+        return sample;
+    }
+}
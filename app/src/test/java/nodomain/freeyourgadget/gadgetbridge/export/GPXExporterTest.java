@@ -10,11 +10,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.text.ParseException;
 import java.text.ParsePosition;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Random;
 
 import javax.xml.XMLConstants;
 import javax.xml.parsers.ParserConfigurationException;
@@ -24,6 +27,7 @@ import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
 
+import nodomain.freeyourgadget.gadgetbridge.activities.HeartRateUtils;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.entities.User;
 import nodomain.freeyourgadget.gadgetbridge.export.ActivityTrackExporter.GPXTrackEmptyException;
@@ -32,6 +36,9 @@ import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
 import nodomain.freeyourgadget.gadgetbridge.model.GPSCoordinate;
 import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
 public class GPXExporterTest extends TestBase {
     @Test
     public void shouldCreateValidGpxFromSimulatedData() throws IOException, ParseException, GPXTrackEmptyException, SAXException {
@@ -63,6 +70,80 @@ public class GPXExporterTest extends TestBase {
         validateGpxFile(tempFile);
     }
 
+    @Test
+    public void shouldFormatLocationLikeBigDecimal() {
+        final Random random = new Random(42);
+        final StringBuilder buffer = new StringBuilder();
+        final double[] values = new double[100000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextDouble() * 360 - 180;
+        }
+        values[0] = 0;
+        values[1] = -0.0000004;
+        values[2] = 0.0000005;
+        values[3] = -20000;
+        values[4] = 12.3456785;
+
+        for (final double value : values) {
+            final String expected = new BigDecimal(value).setScale(GPSCoordinate.GPS_DECIMAL_DEGREES_SCALE, RoundingMode.HALF_UP).toPlainString();
+            assertEquals(expected, GPXExporter.formatLocation(value, buffer));
+        }
+    }
+
+    @Test
+    public void shouldFindNearestHeartRateLikeFullScan() {
+        final List<ActivityPoint> points = createSyntheticPoints(5000);
+
+        final int[] expected = new int[points.size()];
+        for (int i = 0; i < points.size(); i++) {
+            expected[i] = findClosestHeartRateByFullScan(points.get(i).getTime(), points);
+        }
+        assertArrayEquals(expected, GPXExporter.findNearestSensibleHeartRates(points));
+    }
+
+    /**
+     * Creates points one second apart, where only every 10th point has a heart rate and
+     * there are gaps of more than 2 minutes in between.
+     */
+    private List<ActivityPoint> createSyntheticPoints(int count) {
+        final Random random = new Random(4711);
+        final List<ActivityPoint> points = new ArrayList<>(count);
+        long time = 1577836800000L;
+        for (int i = 0; i < count; i++) {
+            final ActivityPoint point = new ActivityPoint(new Date(time));
+            point.setLocation(new GPSCoordinate(
+                    13.4 + random.nextDouble() / 100,
+                    52.5 + random.nextDouble() / 100,
+                    30 + random.nextDouble() * 10));
+            if (i % 10 == 0 && (i / 1000) % 3 != 2) {
+                point.setHeartRate(60 + random.nextInt(100));
+            }
+            points.add(point);
+            time += (i % 500 == 499) ? 180000 : 1000;
+        }
+        return points;
+    }
+
+    private int findClosestHeartRateByFullScan(Date time, List<ActivityPoint> trackPoints) {
+        final HeartRateUtils heartRateUtils = HeartRateUtils.getInstance();
+        int closestHeartRate = 0;
+        long lowestDifference = 60 * 2 * 1000;
+        for (final ActivityPoint pointItem : trackPoints) {
+            if (heartRateUtils.isValidHeartRateValue(pointItem.getHeartRate())) {
+                final Date timeItem = pointItem.getTime();
+                if (!timeItem.before(time)) {
+                    break;
+                }
+                final long difference = time.getTime() - timeItem.getTime();
+                if (difference < lowestDifference) {
+                    lowestDifference = difference;
+                    closestHeartRate = pointItem.getHeartRate();
+                }
+            }
+        }
+        return closestHeartRate;
+    }
+
     private ActivityTrack createTestTrack(List<ActivityPoint> points) {
         final User user = new User();
         user.setName("Test User");
@@ -121,4 +202,4 @@ public class GPXExporterTest extends TestBase {
         final Validator validator = schema.newValidator();
         validator.validate(xmlFile);
     }
-}
\ No newline at end of file
+}
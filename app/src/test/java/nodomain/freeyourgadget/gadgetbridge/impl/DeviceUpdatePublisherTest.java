@@ -0,0 +1,88 @@
+package nodomain.freeyourgadget.gadgetbridge.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.model.DeviceType;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+
+public class DeviceUpdatePublisherTest extends TestBase {
+    private final List<Runnable> scheduled = new ArrayList<>();
+    private final List<Integer> delivered = new ArrayList<>();
+    private DeviceUpdatePublisher publisher;
+    private GBDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        publisher = new DeviceUpdatePublisher(getContext()) {
+            @Override
+            protected void schedule(Runnable update, long delayMillis) {
+                scheduled.add(update);
+            }
+
+            @Override
+            protected void deliver(GBDevice device, int changes) {
+                delivered.add(changes);
+            }
+        };
+        device = new GBDevice("00:11:22:33:44:55", "Test", null, DeviceType.TEST);
+        device.takeChanges();
+    }
+
+    @Test
+    public void testCoalesceChanges() {
+        device.setBatteryLevel((short) 50);
+        publisher.publish(device);
+        device.setBusyTask("busy");
+        publisher.publish(device);
+        device.setBatteryLevel((short) 49);
+        publisher.publish(device);
+
+        assertEquals(1, scheduled.size());
+        assertEquals(0, delivered.size());
+        scheduled.get(0).run();
+        assertEquals(1, delivered.size());
+        assertEquals(GBDevice.CHANGE_BATTERY | GBDevice.CHANGE_BUSY, (int) delivered.get(0));
+    }
+
+    @Test
+    public void testUnchangedValue() {
+        device.setBatteryLevel((short) 50);
+        device.takeChanges();
+        device.setBatteryLevel((short) 50);
+        device.setRssi((short) 40);
+        publisher.publish(device);
+
+        scheduled.get(0).run();
+        assertEquals(GBDevice.CHANGE_RSSI, (int) delivered.get(0));
+    }
+
+    @Test
+    public void testStateIsImmediate() {
+        device.setBatteryLevel((short) 50);
+        publisher.publish(device);
+        device.setState(GBDevice.State.INITIALIZED);
+        publisher.publish(device);
+
+        assertEquals(1, delivered.size());
+        assertEquals(GBDevice.CHANGE_STATE | GBDevice.CHANGE_BATTERY, (int) delivered.get(0));
+
+        // the pending update was delivered along with the state
+        scheduled.get(0).run();
+        assertEquals(1, delivered.size());
+    }
+
+    @Test
+    public void testNoChanges() {
+        publisher.publish(device);
+
+        assertEquals(0, scheduled.size());
+        assertEquals(GBDevice.CHANGE_ALL, (int) delivered.get(0));
+    }
+}
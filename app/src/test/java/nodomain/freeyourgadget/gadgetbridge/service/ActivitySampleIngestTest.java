@@ -0,0 +1,123 @@
+package nodomain.freeyourgadget.gadgetbridge.service;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.AbstractSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ActivitySampleIngestTest extends TestBase {
+    private static final int BATCH_SIZE = 10;
+
+    private boolean failing;
+    private int writeAttempts;
+
+    @Test
+    public void testFailedBatchIsRetriedWithTheNextBatch() throws Exception {
+        ActivitySampleIngest<MiBandActivitySample> ingest = createIngest();
+
+        failing = true;
+        addSamples(ingest, 0, BATCH_SIZE - 1);
+        try {
+            ingest.add(createSample(BATCH_SIZE - 1));
+            fail("writing should have failed");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(1, writeAttempts);
+        assertEquals(BATCH_SIZE, ingest.getPendingCount());
+
+        // no further attempt for each added sample, only once another batch is full
+        addSamples(ingest, BATCH_SIZE, 2 * BATCH_SIZE - 1);
+        assertEquals(1, writeAttempts);
+
+        failing = false;
+        ingest.add(createSample(2 * BATCH_SIZE - 1));
+        assertEquals(2, writeAttempts);
+        assertEquals(0, ingest.getPendingCount());
+        assertEquals(2 * BATCH_SIZE, daoSession.getMiBandActivitySampleDao().count());
+    }
+
+    @Test
+    public void testFlushRetriesRightAway() throws Exception {
+        ActivitySampleIngest<MiBandActivitySample> ingest = createIngest();
+
+        failing = true;
+        addSamples(ingest, 0, 3);
+        ingest.flushQuietly();
+        assertEquals(1, writeAttempts);
+        assertEquals(3, ingest.getPendingCount());
+
+        failing = false;
+        ingest.flush();
+        assertEquals(2, writeAttempts);
+        assertEquals(0, ingest.getPendingCount());
+    }
+
+    @Test
+    public void testPendingSamplesAreCapped() throws Exception {
+        ActivitySampleIngest<MiBandActivitySample> ingest = createIngest();
+        int max = ActivitySampleIngest.MAX_PENDING_BATCHES * BATCH_SIZE;
+
+        failing = true;
+        for (int i = 0; i < 3 * max; i++) {
+            try {
+                ingest.add(createSample(i));
+            } catch (IllegalStateException expected) {
+            }
+            if (ingest.getPendingCount() > max) {
+                fail("more than " + max + " samples pending");
+            }
+        }
+
+        failing = false;
+        ingest.flush();
+        // the newest samples were kept
+        int newest = -1;
+        for (MiBandActivitySample sample : daoSession.getMiBandActivitySampleDao().loadAll()) {
+            newest = Math.max(newest, sample.getTimestamp());
+        }
+        assertEquals(3 * max - 1, newest);
+    }
+
+    private ActivitySampleIngest<MiBandActivitySample> createIngest() {
+        TestDeviceSupport support = new TestDeviceSupport();
+        support.setContext(createDummyGDevice("00:00:00:00:10"), null, getContext());
+        return new ActivitySampleIngest<MiBandActivitySample>(support, BATCH_SIZE) {
+            @Override
+            protected AbstractSampleProvider<MiBandActivitySample> createProvider(GBDevice device, DaoSession session) {
+                return new MiBandSampleProvider(device, session) {
+                    @Override
+                    public void addGBActivitySamples(List<MiBandActivitySample> activitySamples) {
+                        writeAttempts++;
+                        if (failing) {
+                            throw new IllegalStateException("database is not writable");
+                        }
+                        super.addGBActivitySamples(activitySamples);
+                    }
+                };
+            }
+        };
+    }
+
+    private void addSamples(ActivitySampleIngest<MiBandActivitySample> ingest, int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            ingest.add(createSample(i));
+        }
+    }
+
+    private MiBandActivitySample createSample(int timestamp) {
+        MiBandActivitySample sample = new MiBandActivitySample();
+        sample.setTimestamp(timestamp);
+        sample.setRawKind(1);
+        sample.setSteps(1);
+        return sample;
+    }
+}
@@ -0,0 +1,80 @@
+package nodomain.freeyourgadget.gadgetbridge.service;
+
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DeviceCommandExecutorTest extends TestBase {
+    private final List<String> executed = new ArrayList<>();
+    private DeviceCommandExecutor executor;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        executor = new DeviceCommandExecutor(Looper.getMainLooper());
+    }
+
+    @Test
+    public void testCoalesce() {
+        ShadowLooper.pauseMainLooper();
+        executor.submit("music", "music", record("track 1"));
+        executor.submit("find", null, record("find"));
+        executor.submit("music", "music", record("track 2"));
+        executor.submit("music", "music", record("track 3"));
+
+        assertEquals(2, executor.getQueueDepth());
+        assertEquals(2, executor.getCoalescedCount());
+        assertEquals(0, executed.size());
+
+        ShadowLooper.unPauseMainLooper();
+        assertEquals(Arrays.asList("find", "track 3"), executed);
+        assertEquals(0, executor.getQueueDepth());
+        assertEquals(3, executor.getMaxQueueDepth());
+        assertEquals(2, executor.getExecutedCount());
+        assertEquals(1, executor.getStats("music").getCount());
+    }
+
+    @Test
+    public void testNoCoalescingWhileIdle() {
+        executor.submit("music", "music", record("track 1"));
+        executor.submit("music", "music", record("track 2"));
+
+        assertEquals(Arrays.asList("track 1", "track 2"), executed);
+        assertEquals(0, executor.getCoalescedCount());
+        assertEquals(2, executor.getStats("music").getCount());
+    }
+
+    @Test
+    public void testShutdown() {
+        ShadowLooper.pauseMainLooper();
+        executor.submit("find", null, record("find"));
+        executor.submit("dispose", null, record("dispose"));
+        executor.shutdown();
+        executor.submit("music", "music", record("track 1"));
+
+        ShadowLooper.unPauseMainLooper();
+        assertEquals(Arrays.asList("find", "dispose"), executed);
+        assertEquals(0, executor.getQueueDepth());
+        assertNull(executor.getStats("music"));
+    }
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                executed.add(name);
+            }
+        };
+    }
+}
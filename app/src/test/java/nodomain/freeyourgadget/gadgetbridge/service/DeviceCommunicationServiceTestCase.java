@@ -3,11 +3,13 @@ package nodomain.freeyourgadget.gadgetbridge.service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.Looper;
 
 import org.junit.Test;
 import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.robolectric.shadows.ShadowLooper;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.GBException;
@@ -54,6 +56,8 @@ public class DeviceCommunicationServiceTestCase extends TestBase {
         realSupport.setContext(new GBDevice(TEST_DEVICE_ADDRESS, "Test Device", "Test Device Alias", DeviceType.TEST), null, getContext());
         mockSupport = Mockito.spy(realSupport);
         DeviceCommunicationService.setDeviceSupportFactory(new TestDeviceSupportFactory(getContext()));
+        // run the commands right away
+        DeviceCommunicationService.setCommandLooper(Looper.getMainLooper());
 
         mDeviceService = new TestDeviceService(getContext());
     }
@@ -65,6 +69,7 @@ public class DeviceCommunicationServiceTestCase extends TestBase {
     @Override
     public void tearDown() throws Exception {
         mDeviceService.stopService(mDeviceService.createIntent());
+        DeviceCommunicationService.setCommandLooper(null);
         super.tearDown();
     }
 
@@ -90,6 +95,20 @@ public class DeviceCommunicationServiceTestCase extends TestBase {
         assertTrue(getDevice().isInitialized());
     }
 
+    @Test
+    public void testConnectWhileConnectIsQueued() {
+        mDeviceService.start();
+        ShadowLooper.pauseMainLooper();
+        mDeviceService.connect(getDevice());
+        // the device is not connecting yet, but must not get a second device support
+        mDeviceService.connect(getDevice());
+        ShadowLooper.unPauseMainLooper();
+
+        Mockito.verify(mockSupport, Mockito.times(1)).connect();
+        Mockito.verify(mockSupport, Mockito.never()).dispose();
+        assertTrue(getDevice().isInitialized());
+    }
+
     @Test
     public void testFindDevice() {
         ensureConnected();
@@ -0,0 +1,146 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the write window the BtLEQueue dispatch thread uses for pipelined writes
+ * without response.
+ */
+public class ActionResultMonitorTest {
+    private ScheduledExecutorService fakeGatt;
+
+    @Before
+    public void setUp() {
+        fakeGatt = Executors.newSingleThreadScheduledExecutor();
+        BtLEQueueMetrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        fakeGatt.shutdownNow();
+    }
+
+    @Test
+    public void testWindowIsRespected() throws Exception {
+        final ActionResultMonitor monitor = new ActionResultMonitor();
+        monitor.setWindow(2);
+        assertTrue(monitor.beginWrite(Object.class));
+        assertTrue(monitor.beginWrite(Object.class));
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    monitor.beginWrite(Object.class);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        writer.start();
+        writer.join(100);
+        assertTrue("third write must wait for a free slot", writer.isAlive());
+
+        assertTrue(monitor.writeCompleted());
+        writer.join(1000);
+        assertFalse(writer.isAlive());
+
+        assertTrue(monitor.writeCompleted());
+        assertTrue(monitor.writeCompleted());
+        assertFalse(monitor.writeCompleted());
+        assertFalse(monitor.hasWritesInFlight());
+    }
+
+    @Test
+    public void testAbortWakesUpWaiters() throws Exception {
+        final ActionResultMonitor monitor = new ActionResultMonitor();
+        monitor.setWindow(1);
+        assertTrue(monitor.beginWrite(Object.class));
+        fakeGatt.schedule(new Runnable() {
+            @Override
+            public void run() {
+                monitor.abort();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        assertFalse(monitor.beginWrite(Object.class));
+        monitor.awaitWritesCompleted();
+
+        monitor.reset();
+        monitor.expectResult();
+        monitor.resultReceived();
+        monitor.awaitResult();
+        assertEquals(1, monitor.getWindow());
+    }
+
+    @Test
+    public void testMissingCallbacksTimeOut() throws Exception {
+        ActionResultMonitor monitor = new ActionResultMonitor(50);
+        monitor.setWindow(2);
+        assertTrue(monitor.beginWrite(Object.class));
+        assertTrue(monitor.beginWrite(Object.class));
+
+        // the callbacks never come, the writes are forgotten instead of blocking the queue
+        assertTrue(monitor.beginWrite(Object.class));
+        assertEquals(1, countWritesInFlight(monitor));
+        monitor.awaitWritesCompleted();
+        assertFalse(monitor.hasWritesInFlight());
+        monitor.setWindow(4);
+    }
+
+    @Test
+    public void testAbortResetsTheWindow() throws Exception {
+        ActionResultMonitor monitor = new ActionResultMonitor();
+        monitor.setWindow(4);
+        assertTrue(monitor.beginWrite(Object.class));
+        assertTrue(monitor.beginWrite(Object.class));
+        assertTrue(monitor.writeCompleted());
+
+        // e.g. on disconnect
+        monitor.abort();
+        assertFalse(monitor.hasWritesInFlight());
+        assertFalse(monitor.writeCompleted());
+
+        monitor.reset();
+        monitor.setWindow(2);
+        assertTrue(monitor.beginWrite(Object.class));
+        assertTrue(monitor.beginWrite(Object.class));
+        assertEquals(2, countWritesInFlight(monitor));
+    }
+
+    @Test
+    public void testWindowCanOnlyShrinkWhenIdle() throws Exception {
+        ActionResultMonitor monitor = new ActionResultMonitor();
+        monitor.setWindow(4);
+        assertTrue(monitor.beginWrite(Object.class));
+        try {
+            monitor.setWindow(2);
+            fail("the window must not change while writes are in flight");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+        assertTrue(monitor.writeCompleted());
+        monitor.awaitWritesCompleted();
+        monitor.setWindow(monitor.getWindow() / 2);
+        assertEquals(2, monitor.getWindow());
+        monitor.setWindow(0);
+        assertEquals(1, monitor.getWindow());
+    }
+
+    private static int countWritesInFlight(ActionResultMonitor monitor) {
+        int count = 0;
+        while (monitor.writeCompleted()) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,120 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.PlainAction;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.WriteAction;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class ChunkedUploadTest {
+    private final Random random = new Random(1234);
+
+    @Test
+    public void testPackets() throws Exception {
+        byte[] file = randomBytes(990);
+        ChunkedUpload upload = new ChunkedUpload(null, ByteBuffer.wrap(file), 1, 21, ChunkedUpload.DEFAULT_WINDOW_SIZE) {
+            @Override
+            protected void preparePacket(byte[] packet, int index) {
+                packet[0] = (byte) index;
+            }
+        };
+
+        assertEquals(50, upload.getPacketCount());
+        ByteArrayOutputStream payloads = new ByteArrayOutputStream();
+        for (int i = 0; i < upload.getPacketCount(); i++) {
+            byte[] packet = upload.getPacket(i);
+            assertEquals(i == 49 ? 11 : 21, packet.length);
+            assertEquals((byte) i, packet[0]);
+            payloads.write(packet, 1, packet.length - 1);
+        }
+        assertArrayEquals(file, payloads.toByteArray());
+    }
+
+    @Test
+    public void testPartOfBuffer() throws Exception {
+        byte[] file = randomBytes(1000);
+        ChunkedUpload upload = new ChunkedUpload(null, ByteBuffer.wrap(file, 100, 50), 20);
+
+        assertEquals(50, upload.getLength());
+        assertEquals(3, upload.getPacketCount());
+        assertArrayEquals(Arrays.copyOfRange(file, 100, 120), upload.getPacket(0));
+        assertArrayEquals(Arrays.copyOfRange(file, 140, 150), upload.getPacket(2));
+    }
+
+    @Test
+    public void testWindows() {
+        final List<Integer> queuedPackets = new ArrayList<>();
+        final int[] uploadsQueued = new int[1];
+        ChunkedUpload upload = new ChunkedUpload(null, ByteBuffer.wrap(randomBytes(2500)), 0, 10, 100) {
+            @Override
+            protected void onPacketQueued(TransactionBuilder builder, int index, int packetCount) {
+                queuedPackets.add(index);
+            }
+
+            @Override
+            protected void onUploadQueued(TransactionBuilder builder) {
+                uploadsQueued[0]++;
+            }
+        };
+
+        TransactionBuilder builder = new TransactionBuilder("first");
+        assertTrue(upload.addWindow(builder));
+        List<BtLEAction> actions = builder.getTransaction().getActions();
+        assertEquals(101, actions.size());
+        assertTrue(actions.get(99) instanceof WriteAction);
+        assertTrue(actions.get(100) instanceof PlainAction);
+        assertEquals(100, queuedPackets.size());
+        assertEquals(0, uploadsQueued[0]);
+
+        assertTrue(upload.addWindow(new TransactionBuilder("second")));
+        builder = new TransactionBuilder("third");
+        assertFalse(upload.addWindow(builder));
+        assertEquals(50, builder.getTransaction().getActionCount());
+        assertEquals(250, queuedPackets.size());
+        assertEquals(249, (int) queuedPackets.get(249));
+        assertEquals(1, uploadsQueued[0]);
+    }
+
+    @Test
+    public void testFollowingWindowsGoFirst() {
+        BtLEQueue queue = mock(BtLEQueue.class);
+        ChunkedUpload upload = new ChunkedUpload(null, ByteBuffer.wrap(randomBytes(300)), 0, 10, 10);
+
+        TransactionBuilder builder = new TransactionBuilder("upload");
+        upload.queue(builder, queue);
+        verify(queue).add(builder.getTransaction());
+
+        // the last action of each window queues the next one in front of everything else
+        Transaction window = builder.getTransaction();
+        for (int i = 1; i < 3; i++) {
+            assertTrue(window.getActions().get(10).run(null));
+            ArgumentCaptor<Transaction> inserted = ArgumentCaptor.forClass(Transaction.class);
+            verify(queue, times(i)).insert(inserted.capture());
+            window = inserted.getValue();
+        }
+        assertEquals(10, window.getActionCount());
+        verify(queue).add(any(Transaction.class));
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,258 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.pebble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the send pipeline against a fake Pebble speaking the emulator (TCP) protocol,
+ * which answers every PutBytes chunk with a token, like a firmware upload.
+ */
+public class PebbleSendPipelineTest {
+    private static final short ENDPOINT_PUTBYTES = (short) 0xbeef;
+    private static final short ENDPOINT_UNANSWERED = (short) 0x07d1;
+    private static final int CHUNK_SIZE = 2000;
+    private static final int CHUNK_COUNT = 20;
+    // long enough to never advance the window in these tests
+    private static final int NO_PACE_TIMEOUT_MILLIS = 60000;
+
+    private ServerSocket serverSocket;
+    private Socket phoneSocket;
+    private FakePebble fakePebble;
+    private PebbleSendPipeline pipeline;
+
+    @Before
+    public void setUp() throws Exception {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        fakePebble = new FakePebble(serverSocket);
+        fakePebble.start();
+        phoneSocket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        phoneSocket.close();
+        serverSocket.close();
+        fakePebble.join(1000);
+        fakePebble.checkFailure();
+    }
+
+    @Test
+    public void testUploadIsPacedByResponses() throws Exception {
+        pipeline = new PebbleSendPipeline(phoneSocket.getOutputStream(), true, 4, NO_PACE_TIMEOUT_MILLIS);
+        pipeline.start();
+
+        final BlockingQueue<Integer> tokens = new LinkedBlockingQueue<>();
+        Thread reader = new Thread("phone reader") {
+            @Override
+            public void run() {
+                try {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(phoneSocket.getInputStream()));
+                    while (true) {
+                        in.skipBytes(6);
+                        int length = in.readUnsignedShort();
+                        in.readShort(); // endpoint
+                        byte[] payload = new byte[length];
+                        in.readFully(payload);
+                        in.skipBytes(2);
+                        pipeline.onPacketReceived();
+                        tokens.add(ByteBuffer.wrap(payload).getInt(1));
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        };
+        reader.start();
+
+        byte[] data = new byte[CHUNK_SIZE];
+        int token = 1;
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            assertTrue(pipeline.send(encodeUploadChunk(token, data)));
+            Integer nextToken = tokens.poll(5, TimeUnit.SECONDS);
+            fakePebble.checkFailure();
+            assertNotNull("no token for chunk " + i, nextToken);
+            assertEquals(token + 1, nextToken.intValue());
+            token = nextToken;
+        }
+
+        assertEquals(CHUNK_COUNT, fakePebble.packetsReceived.get());
+        // every chunk was answered, so the window never had to be advanced by the timeout
+        assertEquals(0, pipeline.getPaceTimeouts());
+    }
+
+    @Test
+    public void testWindowIsOpenedByAnswers() throws Exception {
+        int window = 3;
+        pipeline = new PebbleSendPipeline(phoneSocket.getOutputStream(), true, window, NO_PACE_TIMEOUT_MILLIS);
+        pipeline.start();
+
+        for (int i = 0; i < 3 * window; i++) {
+            pipeline.send(encodeUnansweredPacket(i));
+        }
+        for (int round = 1; round <= 3; round++) {
+            fakePebble.awaitPackets(round * window, 5000);
+            assertEquals(round * window, fakePebble.packetsReceived.get());
+            // without an answer, the next packet must wait for the window
+            fakePebble.awaitPackets(round * window + 1, 200);
+            assertEquals(round * window, fakePebble.packetsReceived.get());
+            pipeline.onPacketReceived();
+        }
+        assertEquals(0, pipeline.getPaceTimeouts());
+        fakePebble.checkFailure();
+    }
+
+    @Test
+    public void testUnansweredPacketsArePaced() throws Exception {
+        int window = 2;
+        int count = 6;
+        pipeline = new PebbleSendPipeline(phoneSocket.getOutputStream(), true, window, 10);
+        pipeline.start();
+
+        for (int i = 0; i < count; i++) {
+            pipeline.send(encodeUnansweredPacket(i));
+        }
+        fakePebble.awaitPackets(count, 5000);
+
+        assertEquals(count, fakePebble.packetsReceived.get());
+        // the window advanced by one packet for every packet past the first window
+        assertEquals(count - window, pipeline.getPaceTimeouts());
+        fakePebble.checkFailure();
+    }
+
+    @Test
+    public void testUnlimitedWindow() throws Exception {
+        int count = 1000;
+        pipeline = new PebbleSendPipeline(phoneSocket.getOutputStream(), true, 0, NO_PACE_TIMEOUT_MILLIS);
+        pipeline.start();
+
+        for (int i = 0; i < count; i++) {
+            pipeline.send(encodeUnansweredPacket(i));
+        }
+        fakePebble.awaitPackets(count, 5000);
+        assertEquals(count, fakePebble.packetsReceived.get());
+        assertEquals(0, pipeline.getPaceTimeouts());
+        fakePebble.checkFailure();
+    }
+
+    /**
+     * Encodes a packet for an endpoint the fake Pebble does not answer, with a sequence
+     * number so that the fake can check the order.
+     */
+    private static byte[] encodeUnansweredPacket(int sequence) {
+        ByteBuffer buf = ByteBuffer.allocate(4 + 4);
+        buf.putShort((short) 4);
+        buf.putShort(ENDPOINT_UNANSWERED);
+        buf.putInt(sequence);
+        return buf.array();
+    }
+
+    private static byte[] encodeUploadChunk(int token, byte[] data) {
+        ByteBuffer buf = ByteBuffer.allocate(4 + 9 + data.length);
+        buf.putShort((short) (9 + data.length));
+        buf.putShort(ENDPOINT_PUTBYTES);
+        buf.put((byte) 2); // PUTBYTES_SEND
+        buf.putInt(token);
+        buf.putInt(data.length);
+        buf.put(data);
+        return buf.array();
+    }
+
+    /**
+     * Accepts a single connection, parses the emulator framing and answers PutBytes
+     * packets with the next token. It checks that the chunks come with the token it handed
+     * out last and that the other packets arrive in order. As assertions failing on this
+     * thread would not reach JUnit, the first failure is kept for {@link #checkFailure()}.
+     */
+    private static class FakePebble extends Thread {
+        private final ServerSocket serverSocket;
+        final AtomicInteger packetsReceived = new AtomicInteger();
+        private volatile AssertionError failure;
+
+        FakePebble(ServerSocket serverSocket) {
+            super("fake pebble");
+            this.serverSocket = serverSocket;
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = serverSocket.accept()) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                int expectedToken = 1;
+                int expectedSequence = 0;
+                while (true) {
+                    assertEquals(0xfeed, in.readUnsignedShort());
+                    assertEquals(1, in.readUnsignedShort());
+                    byte[] packet = new byte[in.readUnsignedShort()];
+                    in.readFully(packet);
+                    assertEquals(0xbeef, in.readUnsignedShort());
+                    synchronized (this) {
+                        packetsReceived.incrementAndGet();
+                        notifyAll();
+                    }
+
+                    short endpoint = ByteBuffer.wrap(packet).getShort(2);
+                    if (endpoint == ENDPOINT_UNANSWERED) {
+                        assertEquals("packet out of order", expectedSequence++, ByteBuffer.wrap(packet).getInt(4));
+                    } else if (endpoint == ENDPOINT_PUTBYTES) {
+                        int token = ByteBuffer.wrap(packet).getInt(5);
+                        assertEquals("chunk sent before the previous token arrived", expectedToken, token);
+                        expectedToken = token + 1;
+                        out.write(new byte[6]);
+                        out.writeShort(5);
+                        out.writeShort(ENDPOINT_PUTBYTES);
+                        out.writeByte(1); // ACK
+                        out.writeInt(token + 1);
+                        out.writeShort(0xbeef);
+                        out.flush();
+                    }
+                }
+            } catch (IOException ignored) {
+            } catch (AssertionError e) {
+                failure = e;
+            } finally {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        void checkFailure() {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        synchronized void awaitPackets(int count, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (packetsReceived.get() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return;
+                }
+                wait(remaining);
+            }
+        }
+    }
+}
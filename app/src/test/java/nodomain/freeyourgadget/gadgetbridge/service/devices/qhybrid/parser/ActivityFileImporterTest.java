@@ -0,0 +1,136 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.parser;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import nodomain.freeyourgadget.gadgetbridge.service.DeviceSupport;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.file.FileHandle;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.requests.fossil.file.FileGetRawRequest;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ActivityFileImporterTest extends TestBase {
+    private static final int START_TIME = 1600000000;
+    private static final UUID FILE_CONTROL = UUID.fromString("3dda0003-957f-7d4a-34a6-74696673696d");
+    private static final UUID FILE_DATA = UUID.fromString("3dda0004-957f-7d4a-34a6-74696673696d");
+
+    private DeviceSupport support;
+
+    @Before
+    public void setUpSupport() {
+        support = Mockito.mock(DeviceSupport.class);
+        Mockito.when(support.getDevice()).thenReturn(createDummyGDevice("00:00:00:00:20:00"));
+    }
+
+    @Test
+    public void testImport() {
+        byte[] file = createFile(1000);
+        receiveFile(file, crc(file));
+
+        assertEquals(2000, daoSession.getHybridHRActivitySampleDao().count());
+    }
+
+    @Test
+    public void testCrcMismatch() {
+        byte[] file = createFile(1000);
+        try {
+            receiveFile(file, crc(file) + 1);
+            fail("a file with a wrong CRC must not be accepted");
+        } catch (RuntimeException expected) {
+            // expected
+        }
+
+        assertEquals(0, daoSession.getHybridHRActivitySampleDao().count());
+    }
+
+    /**
+     * Passes the file to a request in packets like the watch sends them, then ends
+     * the transfer with the given CRC.
+     */
+    private void receiveFile(byte[] file, int crc) {
+        final ActivityFileImporter importer = new ActivityFileImporter(support);
+        FileGetRawRequest request = new FileGetRawRequest(FileHandle.ACTIVITY_FILE, null) {
+            @Override
+            protected void handleFileChunk(byte[] data, int offset, int length) {
+                importer.consume(data, offset, length);
+            }
+
+            @Override
+            protected boolean keepsFileData() {
+                return false;
+            }
+
+            @Override
+            public void handleFileRawData(byte[] fileData) {
+                try {
+                    importer.finish();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        ByteBuffer start = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        start.put((byte) 0x01).putShort(FileHandle.ACTIVITY_FILE.getHandle()).put((byte) 0).putInt(file.length);
+        request.handleResponse(createCharacteristic(FILE_CONTROL, start.array()));
+
+        int payloadSize = 243;
+        for (int offset = 0, index = 0; offset < file.length; offset += payloadSize, index++) {
+            int length = Math.min(payloadSize, file.length - offset);
+            byte[] packet = new byte[length + 1];
+            packet[0] = (byte) (offset + length == file.length ? index | 0x80 : index & 0x7f);
+            System.arraycopy(file, offset, packet, 1, length);
+            request.handleResponse(createCharacteristic(FILE_DATA, packet));
+        }
+
+        ByteBuffer end = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        end.put((byte) 0x08).putShort(FileHandle.ACTIVITY_FILE.getHandle()).putInt(8, crc);
+        request.handleResponse(createCharacteristic(FILE_CONTROL, end.array()));
+    }
+
+    private BluetoothGattCharacteristic createCharacteristic(UUID uuid, byte[] value) {
+        BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(uuid, 0, 0);
+        characteristic.setValue(value);
+        return characteristic;
+    }
+
+    private int crc(byte[] file) {
+        CRC32 crc = new CRC32();
+        crc.update(file);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Creates a file with a timestamp, followed by pairs of samples with different wearing states.
+     */
+    private byte[] createFile(int pairs) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+        header.putShort(2, (short) 22);
+        header.putInt(8, START_TIME);
+        out.write(header.array(), 0, 20);
+
+        ByteBuffer timestamp = ByteBuffer.allocate(10).order(ByteOrder.LITTLE_ENDIAN);
+        timestamp.put((byte) 0xE2).put((byte) 0x04).putInt(START_TIME).putShort((short) 0).putShort((short) 0);
+        out.write(timestamp.array(), 0, 10);
+
+        for (int i = 0; i < pairs; i++) {
+            out.write(new byte[] { (byte) 0xCE, 0b00001000, 0x10, 0x04, 60, 0x40 | 5 }, 0, 6);
+            out.write(new byte[] { (byte) 0xCE, 0b00000000, 0x10, 0x04, 61, 3 }, 0, 6);
+        }
+        // CRC of the activity file itself, not checked by the parser
+        out.write(new byte[4], 0, 4);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,106 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.parser;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ActivityFileParserTest {
+    private static final int START_TIME = 1600000000;
+
+    @Test
+    public void testParseFile() {
+        List<ActivityEntry> entries = new ActivityFileParser().parseFile(createFile(3));
+
+        assertEquals(6, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            ActivityEntry entry = entries.get(i);
+            assertEquals(START_TIME + i * 60, entry.timestamp);
+            assertEquals(60 + i, entry.heartRate);
+            assertEquals(i % 2 == 0 ? ActivityEntry.WEARING_STATE.WEARING : ActivityEntry.WEARING_STATE.NOT_WEARING, entry.wearingState);
+        }
+        assertTrue(entries.get(0).isActive);
+        assertFalse(entries.get(1).isActive);
+    }
+
+    @Test
+    public void testParseChunks() {
+        byte[] file = createFile(100);
+        List<ActivityEntry> expected = new ActivityFileParser().parseFile(file);
+
+        for (int chunkSize = 1; chunkSize <= 13; chunkSize++) {
+            final List<ActivityEntry> entries = new ArrayList<>();
+            ActivityFileParser parser = new ActivityFileParser(new ActivityFileParser.ActivityEntryListener() {
+                @Override
+                public void onActivityEntry(ActivityEntry entry) {
+                    entries.add(entry);
+                }
+            });
+            for (int offset = 0; offset < file.length; offset += chunkSize) {
+                parser.consume(file, offset, Math.min(chunkSize, file.length - offset));
+            }
+            parser.finish();
+
+            assertEquals(expected.size(), entries.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).timestamp, entries.get(i).timestamp);
+                assertEquals(expected.get(i).heartRate, entries.get(i).heartRate);
+                assertEquals(expected.get(i).stepCount, entries.get(i).stepCount);
+                assertEquals(expected.get(i).calories, entries.get(i).calories);
+                assertEquals(expected.get(i).wearingState, entries.get(i).wearingState);
+            }
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testWrongVersion() {
+        byte[] file = createFile(1);
+        file[2] = 16;
+        new ActivityFileParser().parseFile(file);
+    }
+
+    /**
+     * Creates a file with a timestamp, followed by pairs of samples with different wearing states.
+     */
+    private byte[] createFile(int pairs) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+        header.putShort(2, (short) 22);
+        header.putInt(8, START_TIME);
+        out.write(header.array(), 0, 20);
+
+        ByteBuffer timestamp = ByteBuffer.allocate(10).order(ByteOrder.LITTLE_ENDIAN);
+        timestamp.put((byte) 0xE2).put((byte) 0x04).putInt(START_TIME).putShort((short) 0).putShort((short) 0);
+        out.write(timestamp.array(), 0, 10);
+
+        int heartRate = 60;
+        for (int i = 0; i < pairs; i++) {
+            writeWearingState(out, 0b00001000);
+            writeSample(out, heartRate++, 0x40 | 5);
+            writeWearingState(out, 0b00000000);
+            writeSample(out, heartRate++, 3);
+        }
+        // CRC
+        out.write(new byte[4], 0, 4);
+        return out.toByteArray();
+    }
+
+    private void writeWearingState(ByteArrayOutputStream out, int arg) {
+        out.write(0xCE);
+        out.write(arg);
+    }
+
+    private void writeSample(ByteArrayOutputStream out, int heartRate, int calories) {
+        out.write(0x10);
+        out.write(0x04);
+        out.write(heartRate);
+        out.write(calories);
+    }
+}
@@ -0,0 +1,138 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.qhybrid.requests.fossil_hr.file;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EncryptedFileDecoderTest {
+    /** the packet size at the usual MTU of 247 bytes */
+    private static final int PACKET_SIZE = 244;
+
+    private final Random random = new Random(1234);
+    private final byte[] key = randomBytes(16);
+
+    @Test
+    public void testUnalignedPackets() throws GeneralSecurityException {
+        byte[] iv = randomBytes(16);
+        byte[] file = randomBytes(10000);
+        List<byte[]> packets = encrypt(file, iv, 243, 0x23);
+
+        assertDecrypts(file, iv, packets);
+    }
+
+    @Test
+    public void testIvIncrements() throws GeneralSecurityException {
+        for (int increment = 0x1e; increment <= 0x2f; increment++) {
+            byte[] iv = randomBytes(16);
+            byte[] file = randomBytes(10000);
+            List<byte[]> packets = encrypt(file, iv, PACKET_SIZE, increment);
+
+            assertDecrypts(file, iv, packets);
+        }
+    }
+
+    @Test
+    public void testCounterOverflow() throws GeneralSecurityException {
+        // the watch increments the lowest word of the IV only, without carry
+        byte[] iv = randomBytes(16);
+        iv[12] = (byte) 0xff;
+        iv[13] = (byte) 0xff;
+        iv[14] = (byte) 0xff;
+        iv[15] = (byte) 0x00;
+        byte[] file = randomBytes(20000);
+        List<byte[]> packets = encrypt(file, iv, PACKET_SIZE, 0x1e);
+
+        assertDecrypts(file, iv, packets);
+    }
+
+    @Test
+    public void testSinglePacket() throws GeneralSecurityException {
+        byte[] iv = randomBytes(16);
+        byte[] file = randomBytes(100);
+        List<byte[]> packets = encrypt(file, iv, 243, 0x1f);
+
+        assertEquals(1, packets.size());
+        assertDecrypts(file, iv, packets);
+    }
+
+    @Test
+    public void testWithoutFileData() throws GeneralSecurityException {
+        byte[] iv = randomBytes(16);
+        byte[] file = randomBytes(10000);
+        List<byte[]> packets = encrypt(file, iv, 243, 0x23);
+
+        EncryptedFileDecoder decoder = new EncryptedFileDecoder(key, iv, file.length, false);
+        ByteArrayOutputStream payloads = new ByteArrayOutputStream();
+        for (byte[] packet : packets) {
+            decoder.decryptPacket(packet);
+            payloads.write(decoder.getPayload(), decoder.getPayloadOffset(), decoder.getPayloadLength());
+        }
+        assertTrue(decoder.isComplete());
+        assertNull(decoder.getFileData());
+        assertArrayEquals(file, payloads.toByteArray());
+    }
+
+    private void assertDecrypts(byte[] file, byte[] iv, List<byte[]> packets) throws GeneralSecurityException {
+        EncryptedFileDecoder decoder = decrypt(iv, file.length, packets);
+        CRC32 crc = new CRC32();
+        crc.update(file);
+
+        assertTrue(decoder.isComplete());
+        assertEquals(packets.size(), decoder.getPacketCount());
+        assertEquals((int) crc.getValue(), decoder.getCrc());
+        assertArrayEquals(file, decoder.getFileData());
+    }
+
+    private EncryptedFileDecoder decrypt(byte[] iv, int fileSize, List<byte[]> packets) throws GeneralSecurityException {
+        EncryptedFileDecoder decoder = new EncryptedFileDecoder(key, iv, fileSize);
+        for (int i = 0; i < packets.size(); i++) {
+            boolean last = decoder.decryptPacket(packets.get(i));
+            assertEquals(i == packets.size() - 1, last);
+        }
+        return decoder;
+    }
+
+    /**
+     * Encrypts the file like the watch does, starting each packet at the IV incremented
+     * by the packet index times the given increment.
+     */
+    private List<byte[]> encrypt(byte[] file, byte[] iv, int packetSize, int ivIncrement) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+        List<byte[]> packets = new ArrayList<>();
+        int payloadSize = packetSize - 1;
+        for (int offset = 0; offset < file.length; offset += payloadSize) {
+            int length = Math.min(payloadSize, file.length - offset);
+            byte[] packet = new byte[length + 1];
+            packet[0] = offset + length == file.length ? (byte) 0x81 : (byte) 0x01;
+            System.arraycopy(file, offset, packet, 1, length);
+
+            byte[] packetIv = EncryptedFileDecoder.incrementIV(iv, ivIncrement * packets.size());
+            cipher.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(packetIv));
+            packets.add(cipher.doFinal(packet));
+        }
+        assertFalse(packets.isEmpty());
+        return packets;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -7,14 +7,17 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
+import nodomain.freeyourgadget.gadgetbridge.GBException;
 import nodomain.freeyourgadget.gadgetbridge.devices.amazfitbip.BipActivitySummary;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.entities.User;
 import nodomain.freeyourgadget.gadgetbridge.export.GPXExporter;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityPoint;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityPointSink;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.HuamiActivityDetailsParser;
@@ -50,6 +53,51 @@ public class HuamiActivityDetailsParserTest extends TestBase {
         }
     }
 
+    @Test
+    public void testStreamingActivityDetails() throws Exception {
+        byte[] details;
+        try (InputStream in = getContents(DETAILS_1)) {
+            details = FileUtils.readAll(in, MAX_DETAILS);
+        }
+
+        HuamiActivityDetailsParser parser = new HuamiActivityDetailsParser(createSummary());
+        parser.setSkipCounterByte(true);
+        List<ActivityPoint> expectedPoints = parser.parse(details).getTrackPoints();
+
+        final List<ActivityPoint> streamedPoints = new ArrayList<>();
+        HuamiActivityDetailsParser streamingParser = new HuamiActivityDetailsParser(createSummary());
+        streamingParser.setSkipCounterByte(true);
+        streamingParser.setActivityPointSink(new ActivityPointSink() {
+            @Override
+            public void addActivityPoint(ActivityPoint point) {
+                streamedPoints.add(point);
+            }
+        });
+        // chunks that do not line up with records or packets
+        int chunkSize = 5;
+        for (int i = 0; i < details.length; i += chunkSize) {
+            streamingParser.consume(details, i, Math.min(chunkSize, details.length - i));
+        }
+        streamingParser.finish();
+
+        assertEquals(0, streamingParser.getActivityTrack().getTrackPoints().size());
+        assertEquals(expectedPoints.size(), streamedPoints.size());
+        for (int i = 0; i < expectedPoints.size(); i++) {
+            ActivityPoint expected = expectedPoints.get(i);
+            ActivityPoint actual = streamedPoints.get(i);
+            assertEquals(expected.getTime(), actual.getTime());
+            assertEquals(expected.getLocation(), actual.getLocation());
+            assertEquals(expected.getHeartRate(), actual.getHeartRate());
+        }
+    }
+
+    @Test(expected = GBException.class)
+    public void testIncompleteRecord() throws Exception {
+        HuamiActivityDetailsParser parser = new HuamiActivityDetailsParser(createSummary());
+        parser.consume(new byte[] { 1, 0, 80, 0 }, 0, 4);
+        parser.finish();
+    }
+
     private BipActivitySummary createSummary() {
         BipActivitySummary summary = new BipActivitySummary();
         summary.setBaseLongitude(1);
@@ -0,0 +1,85 @@
+package nodomain.freeyourgadget.gadgetbridge.test;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import nodomain.freeyourgadget.gadgetbridge.util.MultiStringMatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests MultiStringMatcher
+ */
+public class MultiStringMatcherTest extends TestBase {
+
+    @Test
+    public void testOverlappingWords() {
+        MultiStringMatcher matcher = new MultiStringMatcher(Arrays.asList("he", "she", "his", "hers"));
+        assertTrue(matcher.containsAny("ushers"));
+        assertFalse(matcher.containsAll("ushers"));
+        assertTrue(matcher.containsAll("ushers his"));
+        assertFalse(matcher.containsAny("HE SHE"));
+        assertFalse(matcher.containsAny(""));
+    }
+
+    @Test
+    public void testNonAsciiWords() {
+        MultiStringMatcher matcher = new MultiStringMatcher(Arrays.asList("über", "你好"));
+        assertTrue(matcher.containsAny("Grüße über alles"));
+        assertTrue(matcher.containsAll("你好, über"));
+        assertFalse(matcher.containsAll("你 好 über"));
+    }
+
+    @Test
+    public void testDuplicateAndEmptyWords() {
+        MultiStringMatcher matcher = new MultiStringMatcher(Arrays.asList("a", "a", "b"));
+        assertEquals(2, matcher.getPatternCount());
+        assertTrue(matcher.containsAll("ab"));
+
+        MultiStringMatcher noWords = new MultiStringMatcher(Collections.<String>emptyList());
+        assertFalse(noWords.containsAny("anything"));
+        assertTrue(noWords.containsAll("anything"));
+    }
+
+    @Test
+    public void testLikeStringContains() {
+        Random random = new Random(42);
+        String chars = "abcabä中";
+        for (int run = 0; run < 10000; run++) {
+            List<String> words = new ArrayList<>();
+            int wordCount = random.nextInt(5);
+            for (int i = 0; i < wordCount; i++) {
+                words.add(randomString(random, chars, 1 + random.nextInt(4)));
+            }
+            String text = randomString(random, chars + "z", random.nextInt(20));
+
+            boolean containsAny = false;
+            boolean containsAll = true;
+            for (String word : words) {
+                if (text.contains(word)) {
+                    containsAny = true;
+                } else {
+                    containsAll = false;
+                }
+            }
+            MultiStringMatcher matcher = new MultiStringMatcher(words);
+            assertEquals(words + " in " + text, containsAny, matcher.containsAny(text));
+            assertEquals(words + " in " + text, containsAll, matcher.containsAll(text));
+        }
+    }
+
+    private String randomString(Random random, String chars, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(chars.charAt(random.nextInt(chars.length())));
+        }
+        return builder.toString();
+    }
+}
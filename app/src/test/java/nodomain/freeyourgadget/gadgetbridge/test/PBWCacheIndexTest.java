@@ -0,0 +1,141 @@
+package nodomain.freeyourgadget.gadgetbridge.test;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.UUID;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.pebble.PBWCacheIndex;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDeviceApp;
+import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PBWCacheIndexTest extends TestBase {
+    private static final UUID APP_UUID = UUID.fromString("01234567-89ab-cdef-0123-456789abcdef");
+    private static final UUID FACE_UUID = UUID.fromString("fedcba98-7654-3210-fedc-ba9876543210");
+
+    private File cacheDir;
+    private File indexFile;
+
+    @Before
+    public void setUp() throws IOException {
+        File dir = FileUtils.createTempDir("pbwcacheindex");
+        cacheDir = new File(dir, "pbw-cache");
+        assertTrue(cacheDir.mkdir());
+        indexFile = new File(dir, "pbwcacheindex.dat");
+    }
+
+    @Test
+    public void testListCache() throws IOException {
+        addApp(APP_UUID, "Test App", GBDeviceApp.Type.APP_GENERIC);
+        writeFile(APP_UUID + "_config.js", "");
+        addApp(FACE_UUID, "Test Face", GBDeviceApp.Type.WATCHFACE);
+        writeFile("broken.pbw", "");
+        writeFile("broken.json", "{");
+        writeFile("orphan.json", "{}");
+
+        PBWCacheIndex index = new PBWCacheIndex(cacheDir, indexFile);
+        index.validate();
+
+        assertEquals(new HashSet<>(Arrays.asList(APP_UUID.toString(), FACE_UUID.toString(), "broken")),
+                new HashSet<>(index.getBaseNames()));
+        GBDeviceApp app = index.getApp(APP_UUID.toString());
+        assertEquals(APP_UUID, app.getUUID());
+        assertEquals("Test App", app.getName());
+        assertEquals(GBDeviceApp.Type.APP_GENERIC, app.getType());
+        assertTrue(app.isInCache());
+        assertTrue(app.isConfigurable());
+        assertFalse(index.getApp(FACE_UUID.toString()).isConfigurable());
+        assertNull(index.getApp("broken"));
+        assertNull(index.getApp("orphan"));
+    }
+
+    @Test
+    public void testReadAppWithoutPbw() throws IOException {
+        addApp(APP_UUID, "Test App", GBDeviceApp.Type.APP_GENERIC);
+        assertTrue(new File(cacheDir, APP_UUID + ".pbw").delete());
+        writeFile(APP_UUID + "_config.js", "");
+        writeFile("broken.json", "{");
+
+        PBWCacheIndex index = new PBWCacheIndex(cacheDir, indexFile);
+        index.validate();
+        assertNull(index.getApp(APP_UUID.toString()));
+
+        GBDeviceApp app = index.readApp(APP_UUID.toString());
+        assertEquals("Test App", app.getName());
+        assertTrue(app.isConfigurable());
+        assertNull(index.readApp("broken"));
+        assertNull(index.readApp(FACE_UUID.toString()));
+    }
+
+    @Test
+    public void testLoadIndex() throws IOException {
+        File jsonFile = addApp(APP_UUID, "Test App", GBDeviceApp.Type.APP_GENERIC);
+        new PBWCacheIndex(cacheDir, indexFile).validate();
+
+        // neither the cache dir nor the json file seem modified, so the index is not read again
+        long jsonModified = jsonFile.lastModified();
+        addApp(APP_UUID, "Renamed App", GBDeviceApp.Type.APP_GENERIC);
+        assertTrue(jsonFile.setLastModified(jsonModified));
+
+        PBWCacheIndex index = new PBWCacheIndex(cacheDir, indexFile);
+        index.validate();
+        assertEquals("Test App", index.getApp(APP_UUID.toString()).getName());
+    }
+
+    @Test
+    public void testUpdate() throws IOException {
+        addApp(APP_UUID, "Test App", GBDeviceApp.Type.APP_GENERIC);
+        PBWCacheIndex index = new PBWCacheIndex(cacheDir, indexFile);
+        index.validate();
+
+        addApp(FACE_UUID, "Test Face", GBDeviceApp.Type.WATCHFACE);
+        index.update(FACE_UUID.toString());
+        assertEquals("Test Face", index.getApp(FACE_UUID.toString()).getName());
+
+        assertTrue(new File(cacheDir, APP_UUID + ".pbw").delete());
+        index.update(APP_UUID.toString());
+        assertEquals(Arrays.asList(FACE_UUID.toString()), index.getBaseNames());
+
+        assertEquals(Arrays.asList(FACE_UUID.toString()), new PBWCacheIndex(cacheDir, indexFile).getBaseNames());
+    }
+
+    @Test
+    public void testModifiedCacheDir() throws IOException {
+        addApp(APP_UUID, "Test App", GBDeviceApp.Type.APP_GENERIC);
+        PBWCacheIndex index = new PBWCacheIndex(cacheDir, indexFile);
+        index.validate();
+
+        addApp(FACE_UUID, "Test Face", GBDeviceApp.Type.WATCHFACE);
+        // the modification time may have a resolution of seconds
+        assertTrue(cacheDir.setLastModified(cacheDir.lastModified() + 10000));
+        index.validate();
+
+        assertEquals(new HashSet<>(Arrays.asList(APP_UUID.toString(), FACE_UUID.toString())),
+                new HashSet<>(index.getBaseNames()));
+        assertEquals("Test Face", index.getApp(FACE_UUID.toString()).getName());
+    }
+
+    private File addApp(UUID uuid, String name, GBDeviceApp.Type type) throws IOException {
+        writeFile(uuid + ".pbw", "");
+        return writeFile(uuid + ".json", "{\"uuid\": \"" + uuid + "\", \"name\": \"" + name
+                + "\", \"creator\": \"Test\", \"version\": \"1.0\", \"type\": \"" + type.name() + "\"}");
+    }
+
+    private File writeFile(String name, String content) throws IOException {
+        File file = new File(cacheDir, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes("UTF-8"));
+        }
+        return file;
+    }
+}
@@ -0,0 +1,122 @@
+package nodomain.freeyourgadget.gadgetbridge.test;
+
+import android.net.Uri;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.pebble.PBWReader;
+import nodomain.freeyourgadget.gadgetbridge.devices.pebble.PebbleInstallable;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDeviceApp;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.pebble.PebbleProtocol;
+import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PBWReaderTest extends TestBase {
+    private static final UUID APP_UUID = UUID.fromString("01234567-89ab-cdef-0123-456789abcdef");
+    private static final String JS_APP = "Pebble.addEventListener('ready', function() {});";
+
+    @Test
+    public void testReadApp() throws IOException {
+        File file = createPbw("basalt/", "1.0");
+        PBWReader reader = new PBWReader(Uri.fromFile(file), getContext(), "basalt");
+
+        assertTrue(reader.isValid());
+        assertFalse(reader.isFirmware());
+        assertEquals(3, reader.getSdkVersion());
+        assertEquals(5, reader.getAppVersion());
+        assertEquals(42, reader.getIconId());
+
+        GBDeviceApp app = reader.getGBDeviceApp();
+        assertEquals(APP_UUID, app.getUUID());
+        assertEquals("Test Face", app.getName());
+        assertEquals("1.0", app.getVersion());
+        assertEquals(GBDeviceApp.Type.WATCHFACE, app.getType());
+
+        PebbleInstallable[] installables = reader.getPebbleInstallables();
+        assertEquals(1, installables.length);
+        assertEquals("basalt/pebble-app.bin", installables[0].getFileName());
+        assertEquals(PebbleProtocol.PUTBYTES_TYPE_BINARY, installables[0].getType());
+
+        try (InputStream in = reader.getInputStreamFile(installables[0].getFileName())) {
+            assertEquals(108, FileUtils.readAll(in, 1000).length);
+        }
+        try (InputStream in = reader.getInputStreamFile("pebble-js-app.js")) {
+            assertEquals(JS_APP, new String(FileUtils.readAll(in, 1000)));
+        }
+        assertNull(reader.getInputStreamFile("missing.js"));
+    }
+
+    @Test
+    public void testPlatformDir() throws IOException {
+        File file = createPbw("aplite/", "1.0");
+
+        PBWReader reader = new PBWReader(Uri.fromFile(file), getContext(), "diorite");
+        assertTrue(reader.isValid());
+        assertEquals("aplite/pebble-app.bin", reader.getPebbleInstallables()[0].getFileName());
+
+        reader = new PBWReader(Uri.fromFile(file), getContext(), "chalk");
+        assertFalse(reader.isValid());
+        assertNull(reader.getPebbleInstallables());
+    }
+
+    @Test
+    public void testChangedFile() throws IOException {
+        File file = createPbw("basalt/", "1.0");
+        PBWReader reader = new PBWReader(Uri.fromFile(file), getContext(), "basalt");
+        assertEquals("1.0", reader.getGBDeviceApp().getVersion());
+
+        // served from the cache
+        reader = new PBWReader(Uri.fromFile(file), getContext(), "basalt");
+        assertEquals("1.0", reader.getGBDeviceApp().getVersion());
+
+        assertTrue(file.delete());
+        file = createPbw(file, "basalt/", "1.10");
+        reader = new PBWReader(Uri.fromFile(file), getContext(), "basalt");
+        assertEquals("1.10", reader.getGBDeviceApp().getVersion());
+    }
+
+    private File createPbw(String platformDir, String version) throws IOException {
+        return createPbw(new File(FileUtils.createTempDir("pbw"), "test.pbw"), platformDir, version);
+    }
+
+    private File createPbw(File file, String platformDir, String version) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(108).order(ByteOrder.LITTLE_ENDIAN);
+        header.putShort(10, (short) 3); // sdk version
+        header.putShort(12, (short) 5); // app version
+        header.putInt(88, 42); // icon id
+        header.putInt(96, 1); // flags: watchface
+
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+            putEntry(zip, "appinfo.json", "{\"shortName\": \"Test Face\", \"companyName\": \"Test\", "
+                    + "\"versionLabel\": \"" + version + "\", \"uuid\": \"" + APP_UUID + "\"}");
+            putEntry(zip, platformDir + "manifest.json", "{\"application\": {\"name\": \"pebble-app.bin\", \"size\": 108, \"crc\": 1234}}");
+            putEntry(zip, platformDir + "pebble-app.bin", header.array());
+            putEntry(zip, "pebble-js-app.js", JS_APP);
+        }
+        return file;
+    }
+
+    private void putEntry(ZipOutputStream zip, String name, String content) throws IOException {
+        putEntry(zip, name, content.getBytes("UTF-8"));
+    }
+
+    private void putEntry(ZipOutputStream zip, String name, byte[] content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content);
+        zip.closeEntry();
+    }
+}
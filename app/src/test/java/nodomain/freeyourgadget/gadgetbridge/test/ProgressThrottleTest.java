@@ -0,0 +1,46 @@
+package nodomain.freeyourgadget.gadgetbridge.test;
+
+import org.junit.Test;
+
+import nodomain.freeyourgadget.gadgetbridge.util.ProgressThrottle;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProgressThrottleTest extends TestBase {
+
+    @Test
+    public void testRateLimit() {
+        ProgressThrottle throttle = new ProgressThrottle(500);
+        assertTrue(throttle.update(true, "upload", 0, 1000));
+        assertFalse(throttle.update(true, "upload", 1, 1100));
+        assertFalse(throttle.update(true, "upload", 2, 1499));
+        assertTrue(throttle.update(true, "upload", 3, 1500));
+        // same percentage
+        assertFalse(throttle.update(true, "upload", 3, 2500));
+        assertTrue(throttle.update(true, "upload", 4, 2500));
+    }
+
+    @Test
+    public void testNewText() {
+        ProgressThrottle throttle = new ProgressThrottle(500);
+        assertTrue(throttle.update(true, "file 1", 10, 1000));
+        assertTrue(throttle.update(true, "file 2", 10, 1100));
+        assertFalse(throttle.update(true, "file 2", 10, 1700));
+        assertTrue(throttle.update(true, null, 10, 1800));
+        assertFalse(throttle.update(true, null, 10, 2400));
+    }
+
+    @Test
+    public void testFinalUpdates() {
+        ProgressThrottle throttle = new ProgressThrottle(500);
+        assertTrue(throttle.update(true, "upload", 50, 1000));
+        assertTrue(throttle.update(true, "upload", 100, 1100));
+        assertTrue(throttle.update(false, "done", 100, 1200));
+        assertTrue(throttle.update(false, "done", 0, 1300));
+
+        // the next transfer starts right away
+        assertTrue(throttle.update(true, "upload", 0, 1400));
+        assertFalse(throttle.update(true, "upload", 1, 1500));
+    }
+}
@@ -0,0 +1,202 @@
+package nodomain.freeyourgadget.gadgetbridge.test;
+
+import org.apache.commons.lang3.text.WordUtils;
+import org.junit.Test;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nodomain.freeyourgadget.gadgetbridge.util.BengaliLanguageUtils;
+import nodomain.freeyourgadget.gadgetbridge.util.CharReplacementTable;
+import nodomain.freeyourgadget.gadgetbridge.util.KoreanLanguageUtils;
+import nodomain.freeyourgadget.gadgetbridge.util.LanguageUtils;
+import nodomain.freeyourgadget.gadgetbridge.util.TextTransform;
+import nodomain.freeyourgadget.gadgetbridge.util.TextTransformPipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TextTransformPipelineTest extends TestBase {
+    private static final List<String> NOTIFICATIONS = Arrays.asList(
+            "Are we still on for lunch tomorrow? 🙂",
+            "Your package has been delivered to the front door.",
+            "Kannst du bitte noch Brötchen mitbringen? Grüße aus Köln, Jürgen",
+            "Straße gesperrt, ich komme etwa 15 Minuten später.",
+            "Привет! Ты сегодня будешь на встрече в 18:00?",
+            "Напоминание: оплатить счёт за электроэнергию до пятницы",
+            "Доброго ранку! Зустрінемось біля їдальні о дев'ятій",
+            "Καλημέρα! Θα είμαι στο γραφείο μετά τις δέκα.",
+            "שלום, הפגישה נדחתה ליום חמישי בשעה שלוש",
+            "مرحبا، هل يمكنك الاتصال بي عندما تصل؟",
+            "سلام، جلسه فردا ساعت ۱۰ برگزار می‌شود",
+            "Cześć! Spotkanie przeniesione na środę, łącznie z obiadem.",
+            "Labas! Ar šiandien važiuosi į Vilnių?",
+            "Tere! Kas sa tuled õhtul jõuluturule?",
+            "Smørrebrød og æblekage på fredag, kommer du?",
+            "안녕하세요, 내일 회의는 오후 세 시에 시작합니다",
+            "আমি আজ একটু দেরিতে আসব, অপেক্ষা করো।",
+            "Café crème à emporter, s'il vous plaît — merci beaucoup",
+            "Reunião amanhã às 9h, não se esqueça da apresentação",
+            "OK 👍 see you at 8 ❤"
+    );
+
+    @Test
+    public void testTable() {
+        CharReplacementTable table = new CharReplacementTable();
+        table.put('ä', "ae");
+        table.put('ﺓ', "");
+        assertEquals("ae", table.get('ä'));
+        assertEquals("", table.get('ﺓ'));
+        assertNull(table.get('a'));
+        assertNull(table.get('å'));
+
+        TextTransformPipeline pipeline = new TextTransformPipeline(Arrays.asList(table));
+        assertEquals("Baer", pipeline.apply("Bär"));
+        assertEquals("", pipeline.apply("ﺓ"));
+        String unchanged = "Bar";
+        assertSame(unchanged, pipeline.apply(unchanged));
+    }
+
+    @Test
+    public void testComposition() {
+        CharReplacementTable first = new CharReplacementTable();
+        first.put('a', "bb");
+        CharReplacementTable second = new CharReplacementTable();
+        second.put('b', "c");
+        TextTransform upperCase = new TextTransform() {
+            @Override
+            public boolean transform(CharSequence text, StringBuilder out) {
+                out.append(text.toString().toUpperCase());
+                return true;
+            }
+        };
+
+        TextTransformPipeline pipeline = new TextTransformPipeline.Builder()
+                .add(first)
+                .add(second)
+                .add(upperCase)
+                .build();
+        assertEquals("XCCX", pipeline.apply("xax"));
+        assertEquals("XBX", new TextTransformPipeline.Builder().add(first).add(upperCase).build().apply("xbx"));
+        assertNull(pipeline.apply(null));
+        assertEquals("", pipeline.apply(""));
+    }
+
+    @Test
+    public void testTransliterateLikeSeparatePasses() {
+        for (String notification : NOTIFICATIONS) {
+            assertEquals(transliterateInSeparatePasses(notification), LanguageUtils.transliterate(notification));
+        }
+    }
+
+    @Test
+    public void testTransliterateAllMappedChars() {
+        for (char lowerChar : LEGACY_TRANSLITERATE_MAP.keySet()) {
+            String text = "x" + lowerChar + Character.toUpperCase(lowerChar) + "x";
+            assertEquals(transliterateInSeparatePasses(text), LanguageUtils.transliterate(text));
+        }
+    }
+
+    // Verbatim copy of the transliteration map before the table, to compare the table against
+    @SuppressWarnings("OverwrittenKey")
+    private static final Map<Character, String> LEGACY_TRANSLITERATE_MAP = new HashMap<Character, String>() {
+        {
+            // Extended ASCII characters
+            put('œ', "oe"); put('ª', "a"); put('º', "o"); put('«',"\""); put('»',"\"");
+            
+            // Scandinavian characters
+            put('Æ',"Ae"); put('æ',"ae");
+            put('Ø',"Oe"); put('ø',"oe");
+            put('Å',"Aa"); put('å',"aa");
+            
+            // German characters
+            put('ä',"ae"); put('ö',"oe"); put('ü',"ue");
+            put('Ä',"Ae"); put('Ö',"Oe"); put('Ü',"Üe");
+            put('ß',"ss"); put('ẞ',"SS");
+
+            // Russian chars
+            put('а', "a"); put('б', "b"); put('в', "v");  put('г', "g"); put('д', "d"); put('е', "e"); put('ё', "jo"); put('ж', "zh");
+            put('з', "z"); put('и', "i"); put('й', "jj"); put('к', "k"); put('л', "l"); put('м', "m"); put('н', "n");  put('о', "o");
+            put('п', "p"); put('р', "r"); put('с', "s");  put('т', "t"); put('у', "u"); put('ф', "f"); put('х', "kh"); put('ц', "c");
+            put('ч', "ch");put('ш', "sh");put('щ', "shh");put('ъ', "\"");put('ы', "y"); put('ь', "'"); put('э', "eh"); put('ю', "ju");
+            put('я', "ja");
+
+            // Hebrew chars
+            put('א', "a"); put('ב', "b"); put('ג', "g");  put('ד', "d"); put('ה', "h"); put('ו', "u"); put('ז', "z"); put('ח', "kh");
+            put('ט', "t"); put('י', "y"); put('כ', "c"); put('ל', "l"); put('מ', "m"); put('נ', "n"); put('ס', "s");  put('ע', "'");
+            put('פ', "p"); put('צ', "ts"); put('ק', "k");  put('ר', "r"); put('ש', "sh"); put('ת', "th"); put('ף', "f"); put('ץ', "ts");
+            put('ך', "ch");put('ם', "m");put('ן', "n");
+
+            // Greek chars
+            put('α',"a");put('ά',"a");put('β',"v");put('γ',"g");put('δ',"d");put('ε',"e");put('έ',"e");put('ζ',"z");put('η',"i");
+            put('ή',"i");put('θ',"th");put('ι',"i");put('ί',"i");put('ϊ',"i");put('ΐ',"i");put('κ',"k");put('λ',"l");put('μ',"m");
+            put('ν',"n");put('ξ',"ks");put('ο',"o");put('ό',"o");put('π',"p");put('ρ',"r");put('σ',"s");put('ς',"s");put('τ',"t");
+            put('υ',"y");put('ύ',"y");put('ϋ',"y");put('ΰ',"y");put('φ',"f");put('χ',"ch");put('ψ',"ps");put('ω',"o");put('ώ',"o");
+            put('Α',"A");put('Ά',"A");put('Β',"B");put('Γ',"G");put('Δ',"D");put('Ε',"E");put('Έ',"E");put('Ζ',"Z");put('Η',"I");
+            put('Ή',"I");put('Θ',"TH");put('Ι',"I");put('Ί',"I");put('Ϊ',"I");put('Κ',"K");put('Λ',"L");put('Μ',"M");put('Ν',"N");
+            put('Ξ',"KS");put('Ο',"O");put('Ό',"O");put('Π',"P");put('Ρ',"R");put('Σ',"S");put('Τ',"T");put('Υ',"Y");put('Ύ',"Y");
+            put('Ϋ',"Y");put('Φ',"F");put('Χ',"CH");put('Ψ',"PS");put('Ω',"O");put('Ώ',"O");
+
+            // Ukrainian characters
+            put('ґ', "gh"); put('є', "je"); put('і', "i"); put('ї', "ji"); put('Ґ', "GH"); put('Є', "JE"); put('І', "I"); put('Ї', "JI");
+
+            // Arabic
+            put('ا', "a"); put('ب', "b"); put('ت', "t"); put('ث', "th"); put('ج', "j"); put('ح', "7"); put('خ', "5");
+            put('د', "d"); put('ذ', "th"); put('ر', "r"); put('ز', "z"); put('س', "s"); put('ش', "sh"); put('ص', "9");
+            put('ض', "9'"); put('ط', "6"); put('ظ', "6'"); put('ع', "3"); put('غ', "3'"); put('ف', "f");
+            put('ق', "q"); put('ك', "k"); put('ل', "l"); put('م', "m"); put('ن', "n"); put('ه', "h");
+            put('و', "w"); put('ي', "y"); put('ى', "a"); put('ﺓ', "");
+            put('آ', "2"); put('ئ', "2"); put('إ', "2"); put('ؤ', "2"); put('أ', "2"); put('ء', "2");
+            put('٠', "0"); put('١', "1"); put('٢', "2"); put('٣', "3"); put('٤', "4"); put('٥', "5");
+            put('٦', "6"); put('٧', "7"); put('٨', "8"); put('٩', "9");
+
+            // Persian(Farsi)
+            put('پ', "p"); put('چ', "ch"); put('ژ', "zh"); put('ک', "k"); put('گ', "g"); put('ی', "y"); put('‌', " "); 
+            put('؟', "?"); put('٪', "%"); put('؛', ";"); put('،', ","); put('۱', "1"); put('۲', "2"); put('۳', "3"); 
+            put('۴', "4"); put('۵', "5"); put('۶', "6"); put('۷', "7"); put('۸', "8"); put('۹', "9"); put('۰', "0"); 
+            put('»', "<"); put('«', ">"); put('ِ', "e"); put('َ', "a"); put('ُ', "o"); put('ّ', "");
+
+            // Polish
+            put('Ł', "L"); put('ł', "l");
+
+            //Lithuanian
+            put('ą', "a"); put('č', "c"); put('ę', "e"); put('ė', "e"); put('į', "i"); put('š', "s"); put('ų', "u"); put('ū', "u"); put('ž', "z");
+
+
+            // Estonian
+            put('ä', "a"); put('Ä', "A");
+            put('ö', "o"); put('õ', "o");
+            put('Ö', "O"); put('Õ', "O");
+            put('ü', "u"); put('Ü', "U");
+
+            //TODO: these must be configurable. If someone wants to transliterate cyrillic it does not mean his device has no German umlauts
+            // all or nothing is really bad here
+        }
+    };
+
+    /**
+     * Transliterates like before the pipeline, with boxed map lookups and a new string for
+     * every step.
+     */
+    private static String transliterateInSeparatePasses(String txt) {
+        StringBuilder messageBuilder = new StringBuilder();
+        for (char c : txt.toCharArray()) {
+            char lowerChar = Character.toLowerCase(c);
+            if (LEGACY_TRANSLITERATE_MAP.containsKey(lowerChar)) {
+                String replace = LEGACY_TRANSLITERATE_MAP.get(lowerChar);
+                messageBuilder.append(lowerChar != c ? WordUtils.capitalize(replace) : replace);
+            } else {
+                messageBuilder.append(String.valueOf(c));
+            }
+        }
+        String message = messageBuilder.toString();
+        message = BengaliLanguageUtils.transliterate(message);
+        message = KoreanLanguageUtils.transliterate(message);
+        message = Normalizer.normalize(message, Normalizer.Form.NFD);
+        return message.replaceAll("\\p{M}", "");
+    }
+}